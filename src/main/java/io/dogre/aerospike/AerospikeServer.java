@@ -21,6 +21,17 @@ public interface AerospikeServer {
      */
     void start(String host, int port, String... namespaces);
 
+    /**
+     * Start Aerospike Mock Server, with configurations of namespace.
+     * <p>
+     * Same as {@link #start(String, int, String...)}, but storage type and memory size can be set per namespace.
+     *
+     * @param host host
+     * @param port port
+     * @param namespaces configurations of namespaces
+     */
+    void start(String host, int port, NamespaceConfig... namespaces);
+
     /**
      * Whether Server is started.
      *
@@ -0,0 +1,754 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Operation;
+import com.aerospike.client.command.Buffer;
+import com.aerospike.client.command.ParticleType;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Import and export of records in the text format of <code>asbackup</code>, version 3.1.
+ * <p>
+ * A backup file starts with the version line and meta lines, followed by records. A record is lines of
+ * <code>+ n</code> namespace, <code>+ d</code> digest in base64, <code>+ s</code> set, <code>+ g</code> generation,
+ * <code>+ t</code> void time in seconds since citrus epoch, and <code>+ b</code> the number of bins, followed by a
+ * <code>-</code> line per bin. Strings and GeoJSON are written raw after their length, and blobs, lists and maps in
+ * base64. Names are escaped by backslash.
+ * <p>
+ * Records are converted between the file and bins in wire format directly, without decoding values, and base64 is
+ * decoded from the read buffer into the bins of record. Export writes a file per range of partitions in parallel, and
+ * import reads files in parallel. Records are imported into the given engine whatever the namespace of file, the same
+ * as <code>asrestore</code> with namespace mapping, and user keys, secondary indexes and UDFs in the file are skipped.
+ *
+ * @author dogre
+ */
+public class AsBackup {
+
+    public static final String VERSION = "3.1";
+
+    /**
+     * The extension of backup files.
+     */
+    public static final String EXTENSION = ".asb";
+
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(
+            StandardCharsets.US_ASCII);
+
+    private static final int[] BASE64_VALUES = new int[256];
+
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i = 0; i < BASE64.length; i++) {
+            BASE64_VALUES[BASE64[i]] = i;
+        }
+    }
+
+    /**
+     * Export records of the engine to backup files in a directory, by threads. Each file has a range of partitions.
+     *
+     * @param engine storage engine.
+     * @param directory directory, created if not exists.
+     * @param files the number of files and threads.
+     * @return the number of records.
+     * @throws IOException if failed to write.
+     */
+    public static long write(StorageEngine engine, Path directory, int files) throws IOException {
+        Files.createDirectories(directory);
+        int count = Math.max(1, Math.min(files, RecordStore.PARTITIONS));
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            Path file = directory.resolve(String.format("%s_%05d%s", engine.getNamespace(), i, EXTENSION));
+            tasks.add(() -> writeFile(engine, file, index == 0, RecordStore.PARTITIONS * index / count,
+                    RecordStore.PARTITIONS * (index + 1) / count));
+        }
+        return execute(tasks, count, directory);
+    }
+
+    private static long writeFile(StorageEngine engine, Path file, boolean first, int fromPartition,
+            int toPartition) throws IOException {
+        long[] count = { 0 };
+        try (Writer writer = new Writer(Files.newOutputStream(file))) {
+            writer.write("Version " + VERSION + "\n# namespace ");
+            writer.writeEscaped(engine.getNamespace());
+            writer.write(first ? "\n# first-file\n" : "\n");
+            for (int i = fromPartition; i < toPartition; i++) {
+                try {
+                    // records are copied, not to write the file while holding the lock of partition
+                    engine.forEachCopied(i, (digest, record) -> {
+                        try {
+                            writer.writeRecord(engine.getNamespace(), digest, record);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        count[0]++;
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+        return count[0];
+    }
+
+    /**
+     * Import records from backup files into the engine, by threads, a file per thread. Expired records are skipped,
+     * and the others keep their generation and void time.
+     *
+     * @param engine storage engine.
+     * @param path a backup file, or a directory of backup files.
+     * @param threads the number of threads.
+     * @return the number of records imported.
+     * @throws IOException if failed to read, or a file is not valid.
+     */
+    public static long read(StorageEngine engine, Path path, int threads) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, "*" + EXTENSION)) {
+                stream.forEach(files::add);
+            }
+            files.sort(null);
+        } else {
+            files.add(path);
+        }
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (Path file : files) {
+            tasks.add(() -> readFile(engine, file));
+        }
+        return execute(tasks, threads, path);
+    }
+
+    private static long readFile(StorageEngine engine, Path file) throws IOException {
+        try (Reader reader = new Reader(Files.newInputStream(file), file)) {
+            return reader.readRecords(engine);
+        }
+    }
+
+    private static long execute(List<Callable<Long>> tasks, int threads, Path path) throws IOException {
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (Callable<Long> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            long count = 0;
+            for (Future<Long> future : futures) {
+                count += future.get();
+            }
+            return count;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing " + path, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to process " + path, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the type of bin in backup file.
+     *
+     * @param particleType particle type.
+     * @return type. <code>0</code> if not supported.
+     */
+    private static char toBinType(int particleType) {
+        switch (particleType) {
+            case ParticleType.NULL:
+                return 'N';
+            case ParticleType.INTEGER:
+                return 'I';
+            case ParticleType.DOUBLE:
+                return 'D';
+            case ParticleType.STRING:
+                return 'S';
+            case ParticleType.BLOB:
+                return 'B';
+            case ParticleType.JBLOB:
+                return 'J';
+            case 8:
+                return 'C';
+            case 9:
+                return 'P';
+            case 10:
+                return 'R';
+            case 11:
+                return 'H';
+            case 12:
+                return 'E';
+            case ParticleType.MAP:
+                return 'M';
+            case ParticleType.LIST:
+                return 'L';
+            case ParticleType.GEOJSON:
+                return 'G';
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Get the particle type of bin in backup file.
+     *
+     * @param binType type.
+     * @return particle type. <code>-1</code> if not supported.
+     */
+    private static int toParticleType(int binType) {
+        for (int particleType = 0; particleType <= ParticleType.GEOJSON; particleType++) {
+            if (toBinType(particleType) == binType) {
+                return particleType;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writer of backup file.
+     */
+    private static class Writer implements AutoCloseable {
+
+        private OutputStream output;
+
+        private Writer(OutputStream output) {
+            this.output = new BufferedOutputStream(output, 1024 * 1024);
+        }
+
+        private void writeRecord(String namespace, byte[] digest, StoredRecord record) throws IOException {
+            write("+ n ");
+            writeEscaped(namespace);
+            write("\n+ d ");
+            writeBase64(digest, 0, DigestIndex.DIGEST_LENGTH);
+            if (record.getSetName() != null) {
+                write("\n+ s ");
+                writeEscaped(record.getSetName());
+            }
+            write("\n+ g " + record.getGeneration() + "\n+ t " + record.getVoidTime() + "\n+ b " +
+                    record.getBinCount() + "\n");
+
+            byte[] wireBins = record.getWireBins();
+            int offset = 0;
+            while (offset < wireBins.length) {
+                int length = Buffer.bytesToInt(wireBins, offset);
+                int particleType = wireBins[offset + 5] & 0xff;
+                int nameLength = wireBins[offset + 7] & 0xff;
+                int valueOffset = offset + 8 + nameLength;
+                int valueLength = length - 4 - nameLength;
+                char binType = toBinType(particleType);
+                if (binType == 0) {
+                    throw new IOException("Unsupported particle type " + particleType);
+                }
+                this.output.write('-');
+                this.output.write(' ');
+                this.output.write(binType);
+                this.output.write(' ');
+                writeEscaped(wireBins, offset + 8, nameLength);
+                switch (particleType) {
+                    case ParticleType.NULL:
+                        break;
+                    case ParticleType.INTEGER:
+                        write(" " + Buffer.bytesToLong(wireBins, valueOffset));
+                        break;
+                    case ParticleType.DOUBLE:
+                        write(" " + Double.longBitsToDouble(Buffer.bytesToLong(wireBins, valueOffset)));
+                        break;
+                    case ParticleType.STRING:
+                        write(" " + valueLength + " ");
+                        this.output.write(wireBins, valueOffset, valueLength);
+                        break;
+                    case ParticleType.GEOJSON:
+                        // flags and cells precede the json
+                        int cells = Buffer.bytesToShort(wireBins, valueOffset + 1);
+                        int header = 3 + cells * 8;
+                        write(" " + (valueLength - header) + " ");
+                        this.output.write(wireBins, valueOffset + header, valueLength - header);
+                        break;
+                    default:
+                        write(" " + (valueLength + 2) / 3 * 4 + " ");
+                        writeBase64(wireBins, valueOffset, valueLength);
+                        break;
+                }
+                this.output.write('\n');
+                offset += 4 + length;
+            }
+        }
+
+        private void write(String ascii) throws IOException {
+            for (int i = 0; i < ascii.length(); i++) {
+                this.output.write(ascii.charAt(i));
+            }
+        }
+
+        private void writeEscaped(String name) throws IOException {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeEscaped(bytes, 0, bytes.length);
+        }
+
+        private void writeEscaped(byte[] bytes, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                byte b = bytes[i];
+                if (b == '\\' || b == ' ' || b == '\n') {
+                    this.output.write('\\');
+                }
+                this.output.write(b);
+            }
+        }
+
+        private void writeBase64(byte[] bytes, int offset, int length) throws IOException {
+            int end = offset + length;
+            int i = offset;
+            for (; i + 3 <= end; i += 3) {
+                int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+                this.output.write(BASE64[bits >>> 18]);
+                this.output.write(BASE64[bits >>> 12 & 0x3f]);
+                this.output.write(BASE64[bits >>> 6 & 0x3f]);
+                this.output.write(BASE64[bits & 0x3f]);
+            }
+            if (i < end) {
+                int bits = (bytes[i] & 0xff) << 16 | (i + 1 < end ? (bytes[i + 1] & 0xff) << 8 : 0);
+                this.output.write(BASE64[bits >>> 18]);
+                this.output.write(BASE64[bits >>> 12 & 0x3f]);
+                this.output.write(i + 1 < end ? BASE64[bits >>> 6 & 0x3f] : '=');
+                this.output.write('=');
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.output.close();
+        }
+
+    }
+
+    /**
+     * Reader of backup file, which parses the bytes of file in its own buffer.
+     */
+    private static class Reader implements AutoCloseable {
+
+        private InputStream input;
+
+        private Path file;
+
+        private byte[] buffer = new byte[64 * 1024];
+
+        private int position;
+
+        private int limit;
+
+        /**
+         * The offset of buffer in file.
+         */
+        private long offset;
+
+        /**
+         * Token, reused.
+         */
+        private byte[] token = new byte[256];
+
+        /**
+         * The delimiter of the last token, a space or a new line.
+         */
+        private int delimiter;
+
+        /**
+         * Bins of the record being read, in wire format. Reused.
+         */
+        private byte[] bins = new byte[1024];
+
+        private int binsLength;
+
+        private Reader(InputStream input, Path file) {
+            this.input = input;
+            this.file = file;
+        }
+
+        private long readRecords(StorageEngine engine) throws IOException {
+            if (!readLine().startsWith("Version 3.")) {
+                throw error("Not a backup file of version 3");
+            }
+            long count = 0;
+            int time = engine.currentTime();
+            int c;
+            while ((c = peek()) >= 0) {
+                if (c == '#') {
+                    readLine();
+                } else if (c == '*') {
+                    skipGlobal();
+                } else if (c == '+') {
+                    count += readRecord(engine, time) ? 1 : 0;
+                } else {
+                    throw error("Unexpected line");
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Skip a line of secondary index or UDF. The content of UDF is raw, after its length.
+         */
+        private void skipGlobal() throws IOException {
+            expect('*');
+            expect(' ');
+            if (read() != 'u') {
+                readLine();
+                return;
+            }
+            expect(' ');
+            readToken();
+            readToken();
+            skip(readInt());
+            expect('\n');
+        }
+
+        private boolean readRecord(StorageEngine engine, int time) throws IOException {
+            byte[] digest = null;
+            String setName = null;
+            int generation = 0;
+            int voidTime = 0;
+            int binCount = -1;
+            while (binCount < 0) {
+                expect('+');
+                expect(' ');
+                int type = read();
+                expect(' ');
+                switch (type) {
+                    case 'k':
+                        skipKey();
+                        break;
+                    case 'n':
+                        readToken();
+                        break;
+                    case 'd':
+                        try {
+                            digest = Base64.getDecoder().decode(readToken());
+                        } catch (IllegalArgumentException e) {
+                            throw error("Invalid digest");
+                        }
+                        break;
+                    case 's':
+                        setName = readToken();
+                        break;
+                    case 'g':
+                        generation = readInt();
+                        break;
+                    case 't':
+                        voidTime = readInt();
+                        break;
+                    case 'b':
+                        binCount = readInt();
+                        break;
+                    default:
+                        throw error("Unknown record line " + (char) type);
+                }
+            }
+            if (digest == null || digest.length != DigestIndex.DIGEST_LENGTH) {
+                throw error("Record without digest");
+            }
+
+            this.binsLength = 0;
+            for (int i = 0; i < binCount; i++) {
+                readBin();
+            }
+            if (voidTime != 0 && voidTime <= time) {
+                return false;
+            }
+            engine.restore(digest, new StoredRecord(setName, Arrays.copyOf(this.bins, this.binsLength), binCount,
+                    generation, voidTime));
+            return true;
+        }
+
+        private void skipKey() throws IOException {
+            String type = readToken();
+            if (type.equals("I") || type.equals("D")) {
+                readToken();
+            } else {
+                // base64, or raw if the type is a string or ends with '!'
+                skip(readInt());
+                expect('\n');
+            }
+        }
+
+        /**
+         * Read a bin line, and append the bin in wire format.
+         */
+        private void readBin() throws IOException {
+            expect('-');
+            expect(' ');
+            int binType = read();
+            boolean raw = peek() == '!';
+            if (raw) {
+                read();
+            }
+            expect(' ');
+            byte[] name = readToken().getBytes(StandardCharsets.UTF_8);
+            if (0xff < name.length) {
+                throw error("Too long bin name");
+            }
+            int particleType = binType == 'Z' ? ParticleType.INTEGER : toParticleType(binType);
+            if (particleType < 0) {
+                throw error("Unsupported bin type " + (char) binType);
+            }
+
+            int start = this.binsLength;
+            ensure(8 + name.length);
+            this.binsLength += 4;
+            this.bins[this.binsLength++] = (byte) Operation.Type.READ.protocolType;
+            this.bins[this.binsLength++] = (byte) particleType;
+            this.bins[this.binsLength++] = 0;
+            this.bins[this.binsLength++] = (byte) name.length;
+            System.arraycopy(name, 0, this.bins, this.binsLength, name.length);
+            this.binsLength += name.length;
+
+            switch (binType) {
+                case 'N':
+                    if (this.delimiter != '\n') {
+                        throw error("Invalid nil bin");
+                    }
+                    break;
+                case 'Z':
+                    String bool = readToken();
+                    appendLong(bool.equals("T") || bool.equals("true") ? 1 : 0);
+                    break;
+                case 'I':
+                    appendLong(readLong());
+                    break;
+                case 'D':
+                    appendLong(Double.doubleToLongBits(readDouble()));
+                    break;
+                case 'S':
+                    readRaw(readInt());
+                    expect('\n');
+                    break;
+                case 'G':
+                    ensure(3);
+                    this.bins[this.binsLength++] = 0;
+                    this.bins[this.binsLength++] = 0;
+                    this.bins[this.binsLength++] = 0;
+                    readRaw(readInt());
+                    expect('\n');
+                    break;
+                default:
+                    if (raw) {
+                        readRaw(readInt());
+                    } else {
+                        readBase64(readInt());
+                    }
+                    expect('\n');
+                    break;
+            }
+            Buffer.intToBytes(this.binsLength - start - 4, this.bins, start);
+        }
+
+        private void ensure(int length) {
+            if (this.bins.length < this.binsLength + length) {
+                this.bins = Arrays.copyOf(this.bins, Math.max(this.bins.length * 2, this.binsLength + length));
+            }
+        }
+
+        private void appendLong(long value) {
+            ensure(8);
+            Buffer.longToBytes(value, this.bins, this.binsLength);
+            this.binsLength += 8;
+        }
+
+        private void readRaw(int length) throws IOException {
+            ensure(length);
+            while (0 < length) {
+                if (this.position == this.limit && !fill()) {
+                    throw error("Unexpected end of file");
+                }
+                int n = Math.min(length, this.limit - this.position);
+                System.arraycopy(this.buffer, this.position, this.bins, this.binsLength, n);
+                this.position += n;
+                this.binsLength += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Decode base64 from the buffer into bins.
+         *
+         * @param length the length of base64.
+         */
+        private void readBase64(int length) throws IOException {
+            ensure(length / 4 * 3 + 3);
+            byte[] bins = this.bins;
+            int bits = 0;
+            int count = 0;
+            while (0 < length) {
+                if (this.position == this.limit && !fill()) {
+                    throw error("Unexpected end of file");
+                }
+                int end = this.position + Math.min(length, this.limit - this.position);
+                length -= end - this.position;
+                for (; this.position < end; this.position++) {
+                    int c = this.buffer[this.position] & 0xff;
+                    if (c == '=') {
+                        continue;
+                    }
+                    int value = BASE64_VALUES[c];
+                    if (value < 0) {
+                        throw error("Invalid base64");
+                    }
+                    bits = bits << 6 | value;
+                    if (++count == 4) {
+                        bins[this.binsLength++] = (byte) (bits >>> 16);
+                        bins[this.binsLength++] = (byte) (bits >>> 8);
+                        bins[this.binsLength++] = (byte) bits;
+                        bits = 0;
+                        count = 0;
+                    }
+                }
+            }
+            if (count == 2) {
+                bins[this.binsLength++] = (byte) (bits >>> 4);
+            } else if (count == 3) {
+                bins[this.binsLength++] = (byte) (bits >>> 10);
+                bins[this.binsLength++] = (byte) (bits >>> 2);
+            } else if (count == 1) {
+                throw error("Invalid base64");
+            }
+        }
+
+        private void skip(int length) throws IOException {
+            while (0 < length) {
+                if (this.position == this.limit && !fill()) {
+                    throw error("Unexpected end of file");
+                }
+                int n = Math.min(length, this.limit - this.position);
+                this.position += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Read a token, until a space or a new line which is not escaped. The delimiter is consumed.
+         *
+         * @return token.
+         */
+        private String readToken() throws IOException {
+            int length = 0;
+            while (true) {
+                int c = read();
+                if (c < 0) {
+                    throw error("Unexpected end of file");
+                } else if (c == ' ' || c == '\n') {
+                    this.delimiter = c;
+                    break;
+                } else if (c == '\\') {
+                    c = read();
+                    if (c < 0) {
+                        throw error("Unexpected end of file");
+                    }
+                }
+                if (length == this.token.length) {
+                    this.token = Arrays.copyOf(this.token, length * 2);
+                }
+                this.token[length++] = (byte) c;
+            }
+            return new String(this.token, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private int readInt() throws IOException {
+            long value = readLong();
+            if (value < Integer.MIN_VALUE || 0xffffffffL < value) {
+                throw error("Too large number");
+            }
+            return (int) value;
+        }
+
+        private long readLong() throws IOException {
+            try {
+                return Long.parseLong(readToken());
+            } catch (NumberFormatException e) {
+                throw error("Invalid number");
+            }
+        }
+
+        private double readDouble() throws IOException {
+            try {
+                return Double.parseDouble(readToken());
+            } catch (NumberFormatException e) {
+                throw error("Invalid number");
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder builder = new StringBuilder();
+            int c;
+            while ((c = read()) >= 0 && c != '\n') {
+                builder.append((char) c);
+            }
+            return builder.toString();
+        }
+
+        private void expect(int expected) throws IOException {
+            if (read() != expected) {
+                throw error("Expected '" + (char) expected + "'");
+            }
+        }
+
+        private int peek() throws IOException {
+            if (this.position == this.limit && !fill()) {
+                return -1;
+            }
+            return this.buffer[this.position] & 0xff;
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            if (0 <= c) {
+                this.position++;
+            }
+            return c;
+        }
+
+        private boolean fill() throws IOException {
+            this.offset += this.limit;
+            this.position = 0;
+            this.limit = 0;
+            int n;
+            do {
+                n = this.input.read(this.buffer, 0, this.buffer.length);
+            } while (n == 0);
+            if (n < 0) {
+                return false;
+            }
+            this.limit = n;
+            return true;
+        }
+
+        private IOException error(String message) {
+            return new IOException(message + " at offset " + (this.offset + this.position) + " of " + this.file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.input.close();
+        }
+
+    }
+
+}
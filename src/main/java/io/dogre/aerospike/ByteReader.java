@@ -1,49 +1,194 @@
 package io.dogre.aerospike;
 
-import com.aerospike.client.Key;
 import com.aerospike.client.Operation;
 import com.aerospike.client.Operation.Type;
 import com.aerospike.client.Value;
 import com.aerospike.client.command.Buffer;
 import com.aerospike.client.command.FieldType;
 import com.aerospike.client.command.ParticleType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
-import java.util.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Helper class for reading Aerospike Message.
+ * <p>
+ * This reads the readable bytes of {@link ByteBuf} in place, without copying them and without changing the reader
+ * index of the buffer. Offsets are relative to the reader index at construction, or at {@link #wrap(ByteBuf)}.
+ * <p>
+ * A reader is a flyweight to be reused by a thread for messages. The header, key fields and operations of a message
+ * are read as views over the buffer, so that reading a message does not allocate: the header is read into the header
+ * of reader, the digest into the digest of reader, and operations are visited by a cursor, {@link
+ * #nextOperation()}, which decodes values only when asked. Names, such as namespaces and bin names, are decoded by a
+ * cache of recent names, so that names repeated by messages are decoded once. Objects returned by a reader are
+ * reused by the next message, unless stated otherwise.
  *
  * @author dogre
  */
 public class ByteReader {
 
     /**
-     * byte array.
+     * The number of names cached by a reader, a power of 2.
      */
-    private byte[] bytes;
+    private static final int NAME_CACHE_SIZE = 64;
+
+    /**
+     * buffer.
+     */
+    private ByteBuf buffer;
+
+    /**
+     * the index of buffer where the message starts.
+     */
+    private int start;
+
+    /**
+     * the length of message.
+     */
+    private int length;
 
     /**
      * current offset.
      */
     private int offset;
 
+    /**
+     * Header, reused for messages.
+     */
+    private Header header = new Header();
+
+    /**
+     * The offset of namespace field. <code>-1</code> if not exists.
+     */
+    private int namespaceOffset;
+
+    private int namespaceLength;
+
+    /**
+     * The offset of set field. <code>-1</code> if not exists.
+     */
+    private int setNameOffset;
+
+    private int setNameLength;
+
+    /**
+     * Digest, reused for messages. <code>null</code> until a message has digest.
+     */
+    private byte[] digest;
+
+    /**
+     * Whether the message has digest.
+     */
+    private boolean hasDigest;
+
+    /**
+     * The offset of the first operation.
+     */
+    private int operationsOffset;
+
+    /**
+     * The number of operations.
+     */
+    private int operationCount;
+
+    /**
+     * The index of current operation of cursor. <code>-1</code> before the first.
+     */
+    private int operationIndex;
+
+    /**
+     * The offset of the next operation of cursor.
+     */
+    private int nextOperationOffset;
+
+    private int operationType;
+
+    private int particleType;
+
+    private int binNameOffset;
+
+    private int binNameLength;
+
+    private int valueOffset;
+
+    private int valueLength;
+
+    /**
+     * Operations in wire format, copied by {@link #getOperationBytes()}. Reused.
+     */
+    private byte[] operationBytes;
+
+    /**
+     * Cached names encoded in UTF-8, by the hash of bytes.
+     */
+    private byte[][] cachedNameBytes = new byte[NAME_CACHE_SIZE][];
+
+    /**
+     * Cached names.
+     */
+    private String[] cachedNames = new String[NAME_CACHE_SIZE];
+
+    /**
+     * Constructor, for a reader to {@link #wrap(ByteBuf) wrap} messages.
+     */
+    public ByteReader() {
+        this(Unpooled.EMPTY_BUFFER);
+    }
+
     /**
      * Constructor
      *
      * @param bytes byte array.
      */
     public ByteReader(byte[] bytes) {
-        this.bytes = bytes;
+        this(Unpooled.wrappedBuffer(bytes));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param buffer buffer, its readable bytes are the message.
+     */
+    public ByteReader(ByteBuf buffer) {
+        wrap(buffer);
+    }
+
+    /**
+     * Start reading a message.
+     *
+     * @param buffer buffer, its readable bytes are the message.
+     */
+    public void wrap(ByteBuf buffer) {
+        this.buffer = buffer;
+        this.start = buffer.readerIndex();
+        this.length = buffer.readableBytes();
         this.offset = 0;
+        this.namespaceOffset = -1;
+        this.setNameOffset = -1;
+        this.hasDigest = false;
+        this.operationCount = 0;
+        this.operationIndex = -1;
     }
 
     /**
-     * Get the length of byte array.
+     * Stop reading the message, not to keep the buffer.
+     */
+    public void clear() {
+        wrap(Unpooled.EMPTY_BUFFER);
+    }
+
+    /**
+     * Get the length of message.
      *
-     * @return The length of byte array.
+     * @return The length of message.
      */
     public int getLength() {
-        return this.bytes.length;
+        return this.length;
     }
 
     /**
@@ -70,7 +215,7 @@ public class ByteReader {
      * @return byte.
      */
     public byte readByte() {
-        byte value = this.bytes[this.offset];
+        byte value = this.buffer.getByte(this.start + this.offset);
         this.offset++;
         return value;
     }
@@ -81,7 +226,7 @@ public class ByteReader {
      * @return short value.
      */
     public int readShort() {
-        int value = Buffer.bytesToShort(this.bytes, this.offset);
+        int value = this.buffer.getUnsignedShort(this.start + this.offset);
         this.offset += 2;
         return value;
     }
@@ -92,7 +237,7 @@ public class ByteReader {
      * @return int value.
      */
     public int readInt() {
-        int value = Buffer.bytesToInt(this.bytes, this.offset);
+        int value = this.buffer.getInt(this.start + this.offset);
         this.offset += 4;
         return value;
     }
@@ -103,7 +248,7 @@ public class ByteReader {
      * @return long value.
      */
     public long readLong() {
-        long value = Buffer.bytesToLong(this.bytes, this.offset);
+        long value = this.buffer.getLong(this.start + this.offset);
         this.offset += 8;
         return value;
     }
@@ -115,29 +260,78 @@ public class ByteReader {
      * @return string value.
      */
     public String readUtf8String(int length) {
-        String value = Buffer.utf8ToString(this.bytes, this.offset, length);
+        String value;
+        if (this.buffer.hasArray()) {
+            value = Buffer.utf8ToString(this.buffer.array(), this.buffer.arrayOffset() + this.start + this.offset, length);
+        } else {
+            value = this.buffer.toString(this.start + this.offset, length, StandardCharsets.UTF_8);
+        }
         this.offset += length;
         return value;
     }
 
+    /**
+     * Read a name encoded in UTF-8, and increase offset by the length. The name is decoded only if not cached.
+     *
+     * @param length The length of bytes contains name encoded in UTF-8.
+     * @return name.
+     */
+    public String readName(int length) {
+        String name = this.cachedNames[cacheName(this.offset, length)];
+        this.offset += length;
+        return name;
+    }
+
+    /**
+     * Find a name in cache, caching it if not found.
+     *
+     * @param offset the offset of name.
+     * @param length the length of name.
+     * @return the index of name in cache.
+     */
+    private int cacheName(int offset, int length) {
+        int index = this.start + offset;
+        int hash = length;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + this.buffer.getByte(index + i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        byte[] cached = this.cachedNameBytes[slot];
+        if (cached != null && cached.length == length) {
+            int i = 0;
+            while (i < length && cached[i] == this.buffer.getByte(index + i)) {
+                i++;
+            }
+            if (i == length) {
+                return slot;
+            }
+        }
+        byte[] bytes = new byte[length];
+        this.buffer.getBytes(index, bytes);
+        this.cachedNameBytes[slot] = bytes;
+        this.cachedNames[slot] = Buffer.utf8ToString(bytes, 0, length);
+        return slot;
+    }
+
     /**
      * Read {@link Header Aerospike Message Header}, and increase offset by 22.
      *
-     * @return header.
+     * @return header, reused by the next message.
      */
     public Header readHeader() {
+        Header header = this.header;
         skip(1); // length
-        int info1 = readByte();
-        int info2 = readByte();
-        int info3 = readByte();
+        header.setInfo1(readByte());
+        header.setInfo2(readByte());
+        header.setInfo3(readByte());
         skip(1);
-        int resultCode = readByte();
-        int generation = readInt();
-        int expiration = readInt();
-        int ttl = readInt();
-        int fieldCount = readShort();
-        int operationCount = readShort();
-        return new Header(info1, info2, info3, 0, resultCode, generation, expiration, ttl, fieldCount, operationCount);
+        header.setResultCode(readByte());
+        header.setGeneration(readInt());
+        header.setExpiration(readInt());
+        header.setTtl(readInt());
+        header.setFieldCount(readShort());
+        header.setOperationCount(readShort());
+        return header;
     }
 
     /**
@@ -146,7 +340,7 @@ public class ByteReader {
      * @param bytes byte array.
      */
     public void readBytes(byte[] bytes) {
-        System.arraycopy(this.bytes, this.offset, bytes, 0, bytes.length);
+        this.buffer.getBytes(this.start + this.offset, bytes);
         this.offset += bytes.length;
     }
 
@@ -158,7 +352,13 @@ public class ByteReader {
      */
     public Value readKeyValue(int length) {
         int type = readByte();
-        Value keyValue = Buffer.bytesToKeyValue(type, this.bytes, this.offset, length);
+        Value keyValue;
+        if (this.buffer.hasArray()) {
+            keyValue = Buffer.bytesToKeyValue(type, this.buffer.array(),
+                    this.buffer.arrayOffset() + this.start + this.offset, length);
+        } else {
+            keyValue = Buffer.bytesToKeyValue(type, copyBytes(length), 0, length);
+        }
         this.offset += length;
         return keyValue;
     }
@@ -175,39 +375,41 @@ public class ByteReader {
      * @see Value
      */
     public Object readParticle(int type, int length) {
-        Object particle = Buffer.bytesToParticle(type, this.bytes, this.offset, length);
+        Object particle;
+        if (this.buffer.hasArray()) {
+            particle = Buffer.bytesToParticle(type, this.buffer.array(),
+                    this.buffer.arrayOffset() + this.start + this.offset, length);
+        } else {
+            particle = Buffer.bytesToParticle(type, copyBytes(length), 0, length);
+        }
         this.offset += length;
         return particle;
     }
 
     /**
-     * Read {@link Operation}, and increase offset by the length of operation.
+     * Copy bytes at current offset into new byte array, without increasing offset.
+     * <p>
+     * Used when the buffer is not backed by byte array, because the decoders of Aerospike Client need byte array.
      *
-     * @return operation.
+     * @param length the length of bytes.
+     * @return byte array.
      */
-    public Operation readOperation() {
-        int length = readInt() - 4;
-        int operationType = readByte();
-        int valueType = readByte();
-        skip(1);
-        int nameLength = readByte();
-        int valueLength = length - nameLength;
-
-        String name = 0 < nameLength ? readUtf8String(nameLength) : null;
-        Value value = 0 < valueLength ? Value.get(readParticle(valueType, valueLength)) : null;
-
-        return new Operation(findOperationType(operationType), name, value);
+    private byte[] copyBytes(int length) {
+        byte[] bytes = new byte[length];
+        this.buffer.getBytes(this.start + this.offset, bytes);
+        return bytes;
     }
 
     /**
-     * The map for finding the operation type by protocol type.
+     * Protocol types of operation, by protocol type.
      */
-    private static final Map<Integer, Type> OPERATION_TYPE_MAP = new HashMap<>();
+    private static final Type[] OPERATION_TYPES = new Type[256];
 
     static {
-        // Support READ, WRITE, ADD, APPEND, PREPEND, TOUCH only.
-        for (Type type : new Type[] { Type.READ, Type.WRITE, Type.ADD, Type.APPEND, Type.PREPEND, Type.TOUCH }) {
-            OPERATION_TYPE_MAP.put(type.protocolType, type);
+        // Support READ, WRITE, ADD, APPEND, PREPEND, TOUCH, CDT list and map operations only.
+        for (Type type : new Type[] { Type.READ, Type.WRITE, Type.ADD, Type.APPEND, Type.PREPEND, Type.TOUCH,
+                Type.CDT_READ, Type.CDT_MODIFY }) {
+            OPERATION_TYPES[type.protocolType] = type;
         }
     }
 
@@ -215,58 +417,252 @@ public class ByteReader {
      * Find {@link Type} of operation by protocol type.
      *
      * @param protocolType protocol type.
-     * @return type of operation.
+     * @return type of operation. <code>null</code> if not supported.
      */
     public static Type findOperationType(int protocolType) {
-        return OPERATION_TYPE_MAP.get(protocolType);
+        return OPERATION_TYPES[protocolType & 0xff];
     }
 
     /**
-     * Read {@link Key}, and increase offset by the length of bytes contains Key.
+     * Read the fields of key, and increase offset by the length of fields. Namespace and set are kept as offsets, and
+     * the digest is copied into the digest of reader.
      *
-     * @param fieldCount The number of fields of Key.
-     * @return Key.
+     * @param fieldCount The number of fields.
      */
-    public Key readKey(int fieldCount) {
-        String namespace = null;
-        String set = null;
-        byte[] digest = null;
-        Value userKey = null;
+    public void readKeyFields(int fieldCount) {
         for (int i = 0; i < fieldCount; i++) {
             int fieldSize = readInt() - 1;
             int fieldType = readByte();
             switch (fieldType) {
                 case FieldType.NAMESPACE:
-                    namespace = readUtf8String(fieldSize);
+                    this.namespaceOffset = this.offset;
+                    this.namespaceLength = fieldSize;
                     break;
                 case FieldType.TABLE:
-                    set = readUtf8String(fieldSize);
+                    this.setNameOffset = this.offset;
+                    this.setNameLength = fieldSize;
                     break;
                 case FieldType.DIGEST_RIPE:
-                    digest = new byte[fieldSize];
-                    readBytes(digest);
+                    if (this.digest == null) {
+                        this.digest = new byte[DigestIndex.DIGEST_LENGTH];
+                    }
+                    this.buffer.getBytes(this.start + this.offset, this.digest, 0, DigestIndex.DIGEST_LENGTH);
+                    this.hasDigest = true;
                     break;
-                case FieldType.KEY:
-                    userKey = readKeyValue(fieldSize);
+                default:
                     break;
             }
+            skip(fieldSize);
         }
+    }
+
+    /**
+     * Get the namespace read by {@link #readKeyFields(int)}.
+     *
+     * @return namespace. <code>null</code> if not exists.
+     */
+    public String getNamespace() {
+        return this.namespaceOffset < 0 ? null : this.cachedNames[cacheName(this.namespaceOffset,
+                this.namespaceLength)];
+    }
 
-        return new Key(namespace, digest, set, userKey);
+    /**
+     * Get the set name read by {@link #readKeyFields(int)}.
+     *
+     * @return set name. <code>null</code> if not exists.
+     */
+    public String getSetName() {
+        return this.setNameOffset < 0 ? null : this.cachedNames[cacheName(this.setNameOffset, this.setNameLength)];
     }
 
     /**
-     * Read operations, and increase offset by the length of bytes.
+     * Get the digest read by {@link #readKeyFields(int)}.
+     *
+     * @return digest, reused by the next message. <code>null</code> if not exists.
+     */
+    public byte[] getDigest() {
+        return this.hasDigest ? this.digest : null;
+    }
+
+    /**
+     * Start the cursor of operations at current offset. The cursor is before the first operation.
      *
      * @param operationCount The number of operations.
-     * @return List of {@link Operation}.
      */
-    public List<Operation> readOperations(int operationCount) {
-        List<Operation> operations = new ArrayList<>();
+    public void readOperations(int operationCount) {
+        this.operationsOffset = this.offset;
+        this.operationCount = operationCount;
+        rewindOperations();
+        int offset = this.offset;
         for (int i = 0; i < operationCount; i++) {
-            operations.add(readOperation());
+            offset += 4 + this.buffer.getInt(this.start + offset);
+        }
+        this.offset = offset;
+    }
+
+    /**
+     * Move the cursor of operations before the first operation.
+     */
+    public void rewindOperations() {
+        this.operationIndex = -1;
+        this.nextOperationOffset = this.operationsOffset;
+    }
+
+    /**
+     * Move the cursor to the next operation.
+     *
+     * @return <code>false</code> if there are no more operations.
+     */
+    public boolean nextOperation() {
+        if (this.operationCount <= this.operationIndex + 1) {
+            return false;
+        }
+        int index = this.start + this.nextOperationOffset;
+        int length = this.buffer.getInt(index) - 4;
+        this.operationType = this.buffer.getByte(index + 4);
+        this.particleType = this.buffer.getByte(index + 5);
+        this.binNameLength = this.buffer.getUnsignedByte(index + 7);
+        this.binNameOffset = this.nextOperationOffset + 8;
+        this.valueOffset = this.binNameOffset + this.binNameLength;
+        this.valueLength = length - this.binNameLength;
+        this.nextOperationOffset = this.valueOffset + this.valueLength;
+        this.operationIndex++;
+        return true;
+    }
+
+    /**
+     * Get the type of current operation.
+     *
+     * @return type. <code>null</code> if not supported.
+     */
+    public Type getOperationType() {
+        return findOperationType(this.operationType);
+    }
+
+    /**
+     * Get the particle type of the value of current operation.
+     *
+     * @return particle type.
+     */
+    public int getParticleType() {
+        return this.particleType;
+    }
+
+    /**
+     * Get the bin name of current operation.
+     *
+     * @return bin name. <code>null</code> if not exists.
+     */
+    public String getBinName() {
+        return this.binNameLength == 0 ? null : this.cachedNames[cacheName(this.binNameOffset, this.binNameLength)];
+    }
+
+    /**
+     * Get the bin name of current operation, encoded in UTF-8.
+     *
+     * @return bin name, which must not be modified. <code>null</code> if not exists.
+     */
+    public byte[] getBinNameBytes() {
+        return this.binNameLength == 0 ? null :
+                this.cachedNameBytes[cacheName(this.binNameOffset, this.binNameLength)];
+    }
+
+    /**
+     * Decode the value of current operation. Lists and maps are copied, and kept packed.
+     *
+     * @return value, which is not reused. <code>null</code> if no value.
+     */
+    public Value getValue() {
+        if (this.valueLength <= 0) {
+            return null;
+        }
+        int offset = this.offset;
+        this.offset = this.valueOffset;
+        Value value;
+        if (this.particleType == ParticleType.LIST || this.particleType == ParticleType.MAP) {
+            byte[] packed = new byte[this.valueLength];
+            readBytes(packed);
+            value = this.particleType == ParticleType.LIST ? PackedList.wrap(packed, 0, this.valueLength) :
+                    PackedMap.wrap(packed, 0, this.valueLength);
+        } else {
+            value = Value.get(readParticle(this.particleType, this.valueLength));
         }
-        return operations;
+        this.offset = offset;
+        return value;
+    }
+
+    /**
+     * Decode current operation.
+     *
+     * @return operation, which is not reused.
+     */
+    public Operation getOperation() {
+        return new Operation(getOperationType(), getBinName(), getValue());
+    }
+
+    /**
+     * Get the length of operations in wire format.
+     *
+     * @return the length of operations.
+     */
+    public int getOperationsLength() {
+        int end = this.operationsOffset;
+        for (int i = 0; i < this.operationCount; i++) {
+            end += 4 + this.buffer.getInt(this.start + end);
+        }
+        return end - this.operationsOffset;
+    }
+
+    /**
+     * Copy operations in wire format, which are also bins in wire format.
+     *
+     * @return operations from the offset <code>0</code> for {@link #getOperationsLength()}, reused by the next
+     * message.
+     */
+    public byte[] getOperationBytes() {
+        int length = getOperationsLength();
+        if (this.operationBytes == null || this.operationBytes.length < length) {
+            this.operationBytes = new byte[Math.max(length, 256)];
+        }
+        this.buffer.getBytes(this.start + this.operationsOffset, this.operationBytes, 0, length);
+        return this.operationBytes;
+    }
+
+    /**
+     * Read fields, and increase offset by the length of bytes.
+     *
+     * @param fieldCount The number of fields.
+     * @return the data of fields by field type.
+     */
+    public Map<Integer, byte[]> readFields(int fieldCount) {
+        Map<Integer, byte[]> fields = new HashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            int fieldSize = readInt() - 1;
+            int fieldType = readByte();
+            byte[] data = new byte[fieldSize];
+            readBytes(data);
+            fields.put(fieldType, data);
+        }
+        return fields;
+    }
+
+    /**
+     * Find field from current offset, without changing offset.
+     *
+     * @param fieldCount The number of fields.
+     * @param fieldType field type.
+     * @return whether the field exists.
+     */
+    public boolean hasField(int fieldCount, int fieldType) {
+        int offset = this.offset;
+        for (int i = 0; i < fieldCount; i++) {
+            int fieldSize = this.buffer.getInt(this.start + offset);
+            if (this.buffer.getByte(this.start + offset + 4) == fieldType) {
+                return true;
+            }
+            offset += 4 + fieldSize;
+        }
+        return false;
     }
 
     /**
@@ -277,9 +673,12 @@ public class ByteReader {
      */
     public Set<String> readBinNames(int operationCount) {
         Set<String> binNames = new HashSet<>();
-        List<Operation> operations = readOperations(operationCount);
-        for (Operation operation : operations) {
-            binNames.add(operation.binName);
+        for (int i = 0; i < operationCount; i++) {
+            int length = readInt() - 4;
+            skip(3);
+            int nameLength = readByte() & 0xff;
+            binNames.add(0 < nameLength ? readName(nameLength) : null);
+            skip(length - nameLength);
         }
         return binNames;
     }
@@ -7,20 +7,38 @@ import com.aerospike.client.Value;
 import com.aerospike.client.command.Buffer;
 import com.aerospike.client.command.Command;
 import com.aerospike.client.command.FieldType;
+import com.aerospike.client.command.ParticleType;
+import io.netty.buffer.ByteBuf;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
 import java.util.Set;
 
 /**
  * Helper class for writing Aerospike Message.
+ * <p>
+ * Messages are written into a single growable buffer, which reserves the first 8 bytes for size header. The size
+ * header is back-patched when the message is taken, so a writer can be reused by {@link #reset(int)} without
+ * allocating intermediate arrays.
  *
  * @author dogre
  */
 public class ByteWriter {
 
+    /**
+     * The length of size header.
+     */
+    private static final int SIZE_HEADER_LENGTH = 8;
+
+    /**
+     * Initial capacity of buffer.
+     */
+    public static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Max capacity of buffer retained by {@link #reset(int)}. Larger buffer is released.
+     */
+    public static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
     /**
      * Message version.
      */
@@ -32,14 +50,19 @@ public class ByteWriter {
     private long messageType;
 
     /**
-     * current length.
+     * current length, excluding size header.
      */
     private int length;
 
     /**
-     * list of byte array.
+     * buffer, size header and message.
      */
-    private List<byte[]> bytesList;
+    private byte[] buffer;
+
+    /**
+     * header of record, reused by {@link #writeRecord}.
+     */
+    private Header recordHeader = new Header();
 
     /**
      * Constructor.
@@ -47,9 +70,32 @@ public class ByteWriter {
      * @param messageType message type.
      */
     public ByteWriter(int messageType) {
+        this(messageType, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param messageType message type.
+     * @param capacity initial capacity of message, excluding size header.
+     */
+    public ByteWriter(int messageType, int capacity) {
         this.messageType = messageType;
         this.length = 0;
-        this.bytesList = new ArrayList<>();
+        this.buffer = new byte[SIZE_HEADER_LENGTH + capacity];
+    }
+
+    /**
+     * Reset to write new message, reusing buffer.
+     *
+     * @param messageType message type.
+     */
+    public void reset(int messageType) {
+        this.messageType = messageType;
+        this.length = 0;
+        if (MAX_RETAINED_CAPACITY < this.buffer.length) {
+            this.buffer = new byte[SIZE_HEADER_LENGTH + INITIAL_CAPACITY];
+        }
     }
 
     /**
@@ -61,14 +107,83 @@ public class ByteWriter {
         return this.length;
     }
 
+    /**
+     * Truncate message to the length, to discard bytes written after it.
+     *
+     * @param length length, not greater than current length.
+     */
+    public void truncate(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Ensure buffer has enough space to write more bytes, growing it twice at least.
+     *
+     * @param extra the length of bytes to write.
+     * @return the offset in buffer to write bytes.
+     */
+    private int ensureWritable(int extra) {
+        int position = SIZE_HEADER_LENGTH + this.length;
+        if (this.buffer.length < position + extra) {
+            int capacity = Math.max(this.buffer.length * 2, position + extra);
+            this.buffer = Arrays.copyOf(this.buffer, capacity);
+        }
+        return position;
+    }
+
+    /**
+     * Reserve bytes to be written later, and increase length.
+     *
+     * @param length the length of bytes.
+     * @return the offset of reserved bytes in message.
+     */
+    public int reserve(int length) {
+        ensureWritable(length);
+        int offset = this.length;
+        this.length += length;
+        return offset;
+    }
+
     /**
      * Write byte array, and increase length.
      *
      * @param bytes byte array.
      */
     public void writeBytes(byte[] bytes) {
-        this.bytesList.add(bytes);
-        this.length += bytes.length;
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write a part of byte array, and increase length.
+     *
+     * @param bytes byte array.
+     * @param offset the offset in bytes.
+     * @param length the length to write.
+     */
+    public void writeBytes(byte[] bytes, int offset, int length) {
+        int position = ensureWritable(length);
+        System.arraycopy(bytes, offset, this.buffer, position, length);
+        this.length += length;
+    }
+
+    /**
+     * Write the bytes written to other writer, and increase length.
+     *
+     * @param other other writer.
+     */
+    public void writeAll(ByteWriter other) {
+        writeAll(other, 0, other.length);
+    }
+
+    /**
+     * Write a part of the bytes written to other writer, and increase length.
+     *
+     * @param other other writer.
+     * @param offset the offset in the message of other writer.
+     * @param length the length to write.
+     */
+    public void writeAll(ByteWriter other, int offset, int length) {
+        writeBytes(other.buffer, SIZE_HEADER_LENGTH + offset, length);
     }
 
     /**
@@ -77,19 +192,29 @@ public class ByteWriter {
      * @param header header.
      */
     public void writeHeader(Header header) {
-        byte[] bytes = new byte[Command.MSG_REMAINING_HEADER_SIZE];
-        bytes[0] = Command.MSG_REMAINING_HEADER_SIZE;
-        bytes[1] = (byte) header.getInfo1();
-        bytes[2] = (byte) header.getInfo2();
-        bytes[3] = (byte) header.getInfo3();
-        bytes[5] = (byte) header.getResultCode();
-        Buffer.intToBytes(header.getGeneration(), bytes, 6);
-        Buffer.intToBytes(header.getExpiration(), bytes, 10);
-        Buffer.intToBytes(header.getTtl(), bytes, 14);
-        Buffer.shortToBytes(header.getFieldCount(), bytes, 18);
-        Buffer.shortToBytes(header.getOperationCount(), bytes, 20);
-
-        writeBytes(bytes);
+        writeHeader(reserve(Command.MSG_REMAINING_HEADER_SIZE), header);
+    }
+
+    /**
+     * Write {@link Header Aerospike Message Header} over the bytes reserved by {@link #reserve(int)}.
+     *
+     * @param offset the offset of header in message.
+     * @param header header.
+     */
+    public void writeHeader(int offset, Header header) {
+        byte[] bytes = this.buffer;
+        int position = SIZE_HEADER_LENGTH + offset;
+        bytes[position] = Command.MSG_REMAINING_HEADER_SIZE;
+        bytes[position + 1] = (byte) header.getInfo1();
+        bytes[position + 2] = (byte) header.getInfo2();
+        bytes[position + 3] = (byte) header.getInfo3();
+        bytes[position + 4] = 0;
+        bytes[position + 5] = (byte) header.getResultCode();
+        Buffer.intToBytes(header.getGeneration(), bytes, position + 6);
+        Buffer.intToBytes(header.getExpiration(), bytes, position + 10);
+        Buffer.intToBytes(header.getTtl(), bytes, position + 14);
+        Buffer.shortToBytes(header.getFieldCount(), bytes, position + 18);
+        Buffer.shortToBytes(header.getOperationCount(), bytes, position + 20);
     }
 
     /**
@@ -102,13 +227,12 @@ public class ByteWriter {
         int nameLength = Buffer.estimateSizeUtf8(name);
         int length = nameLength + 1 + info.length + 1;
 
-        byte[] bytes = new byte[length];
-        Buffer.stringToUtf8(name, bytes, 0);
-        bytes[nameLength] = '\t';
-        System.arraycopy(info, 0, bytes, nameLength + 1, info.length);
-        bytes[length - 1] = '\n';
-
-        writeBytes(bytes);
+        int position = ensureWritable(length);
+        Buffer.stringToUtf8(name, this.buffer, position);
+        this.buffer[position + nameLength] = '\t';
+        System.arraycopy(info, 0, this.buffer, position + nameLength + 1, info.length);
+        this.buffer[position + length - 1] = '\n';
+        this.length += length;
     }
 
     /**
@@ -117,20 +241,44 @@ public class ByteWriter {
      * @param operation operation.
      */
     public void writeOperation(Operation operation) {
-        int nameLength = operation.binName != null ? Buffer.estimateSizeUtf8(operation.binName) : 0;
-        int valueLength = operation.value != null ? operation.value.estimateSize() : 0;
-
-        byte[] bytes = new byte[8 + nameLength + valueLength];
-        Buffer.intToBytes(4 + nameLength + valueLength, bytes, 0);
-        bytes[4] = (byte) operation.type.protocolType;
-        bytes[5] = (byte) operation.value.getType();
-        bytes[7] = (byte) nameLength;
-        Buffer.stringToUtf8(operation.binName, bytes, 8);
-        if (operation.value != null) {
-            operation.value.write(bytes, 8 + nameLength);
-        }
+        writeOperation(operation.type, operation.binName, operation.value);
+    }
+
+    /**
+     * Write operation, and increase length.
+     *
+     * @param type operation type.
+     * @param binName bin name.
+     * @param value value.
+     */
+    public void writeOperation(Operation.Type type, String binName, Value value) {
+        int nameLength = binName != null ? Buffer.estimateSizeUtf8(binName) : 0;
+        int valueLength = value != null ? value.estimateSize() : 0;
+
+        int position = ensureWritable(8 + nameLength + valueLength);
+        this.length += writeOperation(type, binName, value, this.buffer, position);
+    }
 
-        writeBytes(bytes);
+    /**
+     * Write operation into byte array.
+     *
+     * @param type operation type.
+     * @param binName bin name.
+     * @param value value.
+     * @param bytes byte array, must have enough space.
+     * @param offset offset.
+     * @return the length of written bytes.
+     */
+    public static int writeOperation(Operation.Type type, String binName, Value value, byte[] bytes, int offset) {
+        int nameLength = binName != null ? Buffer.stringToUtf8(binName, bytes, offset + 8) : 0;
+        int valueLength = value != null ? value.write(bytes, offset + 8 + nameLength) : 0;
+
+        Buffer.intToBytes(4 + nameLength + valueLength, bytes, offset);
+        bytes[offset + 4] = (byte) type.protocolType;
+        bytes[offset + 5] = (byte) (value != null ? value.getType() : ParticleType.NULL);
+        bytes[offset + 6] = 0;
+        bytes[offset + 7] = (byte) nameLength;
+        return 8 + nameLength + valueLength;
     }
 
     /**
@@ -139,58 +287,138 @@ public class ByteWriter {
      * @param key key.
      */
     public void writeKey(Key key) {
-        int namespaceLength = Buffer.estimateSizeUtf8(key.namespace);
-        int digestLength = key.digest.length;
-
-        byte[] bytes = new byte[5 + namespaceLength + 5 + digestLength];
-        int offset = 0;
-        // namespace
-        Buffer.intToBytes(namespaceLength + 1, bytes, offset);
-        offset += 4;
-        bytes[offset] = FieldType.NAMESPACE;
-        offset++;
-        Buffer.stringToUtf8(key.namespace, bytes, offset);
-        offset += namespaceLength;
-        // digest
-        Buffer.intToBytes(digestLength + 1, bytes, offset);
-        offset += 4;
-        bytes[offset] = FieldType.DIGEST_RIPE;
-        offset++;
-        System.arraycopy(key.digest, 0, bytes, offset, digestLength);
-
-        writeBytes(bytes);
+        writeKey(key.namespace, key.digest);
+    }
+
+    /**
+     * Write key, namespace and digest fields, and increase length.
+     *
+     * @param namespace namespace.
+     * @param digest digest.
+     */
+    public void writeKey(String namespace, byte[] digest) {
+        writeField(FieldType.NAMESPACE, namespace);
+        writeField(FieldType.DIGEST_RIPE, digest);
+    }
+
+    /**
+     * Write key, namespace, set and digest fields, and increase length.
+     *
+     * @param namespace namespace.
+     * @param setName the name of set. if <code>null</code>, set field is not written.
+     * @param digest digest.
+     */
+    public void writeKey(String namespace, String setName, byte[] digest) {
+        writeKey(namespace, digest);
+        if (setName != null) {
+            writeField(FieldType.TABLE, setName);
+        }
+    }
+
+    /**
+     * Write a string field, and increase length.
+     *
+     * @param type field type.
+     * @param value value, encoded in UTF-8.
+     */
+    private void writeField(int type, String value) {
+        int valueLength = Buffer.estimateSizeUtf8(value);
+        int position = ensureWritable(5 + valueLength);
+        Buffer.intToBytes(valueLength + 1, this.buffer, position);
+        this.buffer[position + 4] = (byte) type;
+        Buffer.stringToUtf8(value, this.buffer, position + 5);
+        this.length += 5 + valueLength;
+    }
+
+    /**
+     * Write a bytes field, and increase length.
+     *
+     * @param type field type.
+     * @param value value.
+     */
+    private void writeField(int type, byte[] value) {
+        int position = ensureWritable(5 + value.length);
+        Buffer.intToBytes(value.length + 1, this.buffer, position);
+        this.buffer[position + 4] = (byte) type;
+        System.arraycopy(value, 0, this.buffer, position + 5, value.length);
+        this.length += 5 + value.length;
+    }
+
+    /**
+     * Write a bin of record in wire format, and increase length.
+     *
+     * @param record record.
+     * @param offset the offset of bin, found by {@link StoredRecord#findBin(byte[])}.
+     */
+    public void writeBin(StoredRecord record, int offset) {
+        int length = 4 + record.getWireInt(offset);
+        int position = ensureWritable(length);
+        record.getWireBytes(offset, this.buffer, position, length);
+        this.length += length;
+    }
+
+    /**
+     * Write all bins of record in wire format, and increase length.
+     *
+     * @param record record.
+     */
+    public void writeBins(StoredRecord record) {
+        int length = record.getWireLength();
+        int position = ensureWritable(length);
+        record.getWireBytes(0, this.buffer, position, length);
+        this.length += length;
+    }
+
+    /**
+     * Write a bin of record in wire format if exists, and increase length.
+     * <p>
+     * The name is encoded at the end of buffer to find bin, and then overwritten by the bin.
+     *
+     * @param record record.
+     * @param name the name of bin.
+     * @return <code>true</code> if the bin exists.
+     */
+    public boolean writeBin(StoredRecord record, String name) {
+        int position = ensureWritable(Buffer.estimateSizeUtf8(name));
+        int nameLength = Buffer.stringToUtf8(name, this.buffer, position);
+        int offset = record.findBin(this.buffer, position, nameLength);
+        if (offset < 0) {
+            return false;
+        }
+        writeBin(record, offset);
+        return true;
     }
 
     /**
      * Estimate the length of record.
      *
-     * @param key the key of record.
-     * @param bins the bins of record.
+     * @param namespace the namespace of record.
+     * @param digest the digest of record.
+     * @param record record.
      * @param binNames bin names to be written. if <code>null</code>, write all bins.
      * @param noBinData flag for exclude bins. if <code>true</code>, write no bins.
      * @return the length of record.
      */
-    public static int estimateRecord(Key key, Map<String, Value> bins, Set<String> binNames, boolean noBinData) {
+    public static int estimateRecord(String namespace, byte[] digest, StoredRecord record, Set<String> binNames,
+            boolean noBinData) {
         int length = 0;
 
         // fields
-        int namespaceLength = Buffer.estimateSizeUtf8(key.namespace);
-        int digestLength = key.digest.length;
+        int namespaceLength = Buffer.estimateSizeUtf8(namespace);
+        int digestLength = digest.length;
         length += 5 + namespaceLength + 5 + digestLength;
 
-        if (bins != null && !noBinData) {
+        if (record != null && !noBinData) {
             // operations
-            for (Entry<String, Value> entry : bins.entrySet()) {
-                String name = entry.getKey();
-                if (binNames != null && !binNames.contains(name)) {
-                    continue;
+            if (binNames == null) {
+                length += record.getWireLength();
+            } else {
+                for (String binName : binNames) {
+                    int offset = record.findBin(Buffer.stringToUtf8(binName));
+                    if (0 <= offset) {
+                        length += 4 + record.getWireInt(offset);
+                    }
                 }
-                Value value = entry.getValue();
-
-                int nameLength = Buffer.estimateSizeUtf8(name);
-                int valueLength = value.estimateSize();
-
-                length += 8 + nameLength + valueLength;
             }
         }
         return length;
@@ -198,99 +426,107 @@ public class ByteWriter {
 
     /**
      * Write record, and increase length.
+     * <p>
+     * Bins are copied from the wire format of record, without encoding.
      *
      * @param batchIndex batch index.
-     * @param key the key of record.
-     * @param bins the bins of record.
+     * @param namespace the namespace of record.
+     * @param digest the digest of record.
+     * @param record record. <code>null</code> if not exists.
      * @param binNames bin names to be written. if <code>null</code>, write all bins.
      * @param noBinData flag for exclude bins. if <code>true</code>, write no bins.
      */
-    public void writeRecord(int batchIndex, Key key, Map<String, Value> bins, Set<String> binNames, boolean noBinData) {
-        Header header = new Header();
-        header.setTtl(batchIndex);
-        header.setFieldCount(2);
+    public void writeRecord(int batchIndex, String namespace, byte[] digest, StoredRecord record,
+            Set<String> binNames, boolean noBinData) {
+        writeRecord(batchIndex, namespace, null, digest, record, binNames, noBinData);
+    }
 
-        int length = estimateRecord(key, bins, binNames, noBinData);
+    /**
+     * Write record with the name of set, and increase length.
+     *
+     * @param batchIndex batch index.
+     * @param namespace the namespace of record.
+     * @param setName the name of set. if <code>null</code>, set field is not written.
+     * @param digest the digest of record.
+     * @param record record. <code>null</code> if not exists.
+     * @param binNames bin names to be written. if <code>null</code>, write all bins.
+     * @param noBinData flag for exclude bins. if <code>true</code>, write no bins.
+     */
+    public void writeRecord(int batchIndex, String namespace, String setName, byte[] digest, StoredRecord record,
+            Set<String> binNames, boolean noBinData) {
+        Header header = this.recordHeader;
+        header.setResultCode(ResultCode.OK);
+        header.setGeneration(0);
+        header.setExpiration(0);
+        header.setTtl(batchIndex);
+        header.setFieldCount(setName != null ? 3 : 2);
+        header.setOperationCount(0);
 
-        byte[] bytes = new byte[length];
+        if (record == null) {
+            // result code
+            header.setResultCode(ResultCode.KEY_NOT_FOUND_ERROR);
+            writeHeader(header);
+            writeKey(namespace, setName, digest);
+            return;
+        }
 
-        int offset = 0;
-        // fields
-        // namespace
-        int namespaceLength = Buffer.stringToUtf8(key.namespace, bytes, offset + 5);
-        Buffer.intToBytes(namespaceLength + 1, bytes, offset);
-        offset += 4;
-        bytes[offset] = FieldType.NAMESPACE;
-        offset++;
-        offset += namespaceLength;
-        // digest
-        int digestLength = key.digest.length;
-        System.arraycopy(key.digest, 0, bytes, offset + 5, digestLength);
-        Buffer.intToBytes(digestLength + 1, bytes, offset);
-        offset += 4;
-        bytes[offset] = FieldType.DIGEST_RIPE;
-        offset++;
-        offset += digestLength;
-
-        if (bins != null) {
-            if (!noBinData) {
-                // operations
-                int operationCount = 0;
-                for (Entry<String, Value> entry : bins.entrySet()) {
-                    String name = entry.getKey();
-                    if (binNames != null && !binNames.contains(name)) {
-                        continue;
-                    }
-                    Value value = entry.getValue();
-
-                    int nameLength = Buffer.stringToUtf8(name, bytes, offset + 8);
-                    int valueLength = value.write(bytes, offset + 8 + nameLength);
-
-                    Buffer.intToBytes(4 + nameLength + valueLength, bytes, offset);
-                    offset += 4;
-                    bytes[offset] = 1;
-                    offset++;
-                    bytes[offset] = (byte) value.getType();
-                    offset += 2;
-                    bytes[offset] = (byte) nameLength;
-                    offset++;
-                    offset += nameLength + valueLength;
-
-                    operationCount++;
+        header.setGeneration(record.getGeneration());
+        header.setExpiration(record.getVoidTime());
+        if (noBinData) {
+            writeHeader(header);
+            writeKey(namespace, setName, digest);
+        } else if (binNames == null) {
+            // operations, all bins
+            header.setOperationCount(record.getBinCount());
+            writeHeader(header);
+            writeKey(namespace, setName, digest);
+            writeBins(record);
+        } else {
+            // operations, selected bins. header is written after counting bins.
+            int headerOffset = reserve(Command.MSG_REMAINING_HEADER_SIZE);
+            writeKey(namespace, setName, digest);
+            int count = 0;
+            for (String binName : binNames) {
+                if (writeBin(record, binName)) {
+                    count++;
                 }
-
-                // operation count
-                header.setOperationCount(operationCount);
             }
-        } else {
-            // result code
-            header.setResultCode(ResultCode.KEY_NOT_FOUND_ERROR);
+            header.setOperationCount(count);
+            writeHeader(headerOffset, header);
         }
+    }
+
+    /**
+     * Get size header.
+     *
+     * @return size header, contains message version, message type and length.
+     */
+    private long getSizeHeader() {
+        return ((long) this.length) | (this.messageVersion << 56) | (this.messageType << 48);
+    }
 
-        writeHeader(header);
-        writeBytes(bytes);
+    /**
+     * Write message to buffer.
+     * <p>
+     * Like {@link #toBytes()}, size header is written at first. So, <code>8 + length</code> bytes are written.
+     *
+     * @param buffer buffer.
+     */
+    public void writeTo(ByteBuf buffer) {
+        Buffer.longToBytes(getSizeHeader(), this.buffer, 0);
+        buffer.writeBytes(this.buffer, 0, SIZE_HEADER_LENGTH + this.length);
     }
 
     /**
-     * Concatenate the byte arrays in {@link #bytesList}.
+     * Copy message with size header.
      * <p>
-     * It just not only concatenate the byte arrays, but also prepend size header at front of byte array. So, the length
-     * of response is 8 + length.
+     * Size header is written at front of byte array. So, the length of response is 8 + length.
      *
      * @return byte array.
      */
     public byte[] toBytes() {
-        byte[] bytes = new byte[8 + this.length];
-        int offset = 0;
-
-        long sizeHeader = ((long) this.length) | (this.messageVersion << 56) | (this.messageType << 48);
-        Buffer.longToBytes(sizeHeader, bytes, offset);
-        offset += 8;
-        for (byte[] b : this.bytesList) {
-            System.arraycopy(b, 0, bytes, offset, b.length);
-            offset += b.length;
-        }
-        return bytes;
+        Buffer.longToBytes(getSizeHeader(), this.buffer, 0);
+        return Arrays.copyOf(this.buffer, SIZE_HEADER_LENGTH + this.length);
     }
 
 }
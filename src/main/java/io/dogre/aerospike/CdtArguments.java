@@ -0,0 +1,136 @@
+package io.dogre.aerospike;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Arguments of CDT operation, located in the packed value without being decoded.
+ * <p>
+ * The value of operation is a blob, the command in 2 bytes followed by the arguments packed in an array.
+ *
+ * @author dogre
+ */
+public class CdtArguments {
+
+    private int command;
+
+    private byte[] bytes;
+
+    /**
+     * The offsets of arguments, and the end of the last argument.
+     */
+    private int[] offsets;
+
+    /**
+     * Constructor.
+     *
+     * @param bytes the value of operation.
+     */
+    public CdtArguments(byte[] bytes) {
+        this.bytes = bytes;
+        this.command = ((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff);
+        if (bytes.length <= 2) {
+            this.offsets = new int[] { 2 };
+            return;
+        }
+        int count = MessagePack.readCount(bytes, 2);
+        this.offsets = new int[count + 1];
+        int offset = 2 + MessagePack.readHeaderLength(bytes, 2);
+        for (int i = 0; i < count; i++) {
+            this.offsets[i] = offset;
+            offset = MessagePack.skip(bytes, offset);
+        }
+        this.offsets[count] = offset;
+    }
+
+    public int getCommand() {
+        return command;
+    }
+
+    /**
+     * Whether the argument exists.
+     *
+     * @param index the index of argument.
+     * @return <code>true</code> if exists.
+     */
+    public boolean has(int index) {
+        return index < this.offsets.length - 1;
+    }
+
+    /**
+     * Read an integer argument.
+     *
+     * @param index the index of argument.
+     * @param defaultValue the value if not exists or not an integer.
+     * @return the value.
+     */
+    public long getLong(int index, long defaultValue) {
+        if (!has(index) || !MessagePack.isInteger(this.bytes, this.offsets[index])) {
+            return defaultValue;
+        }
+        return MessagePack.readLong(this.bytes, this.offsets[index]);
+    }
+
+    /**
+     * Copy a packed argument.
+     *
+     * @param index the index of argument.
+     * @return packed argument. <code>null</code> if not exists.
+     */
+    public byte[] getBytes(int index) {
+        if (!has(index)) {
+            return null;
+        }
+        return Arrays.copyOfRange(this.bytes, this.offsets[index], this.offsets[index + 1]);
+    }
+
+    /**
+     * Copy the packed elements of a list argument.
+     *
+     * @param index the index of argument.
+     * @return packed elements. empty if not exists.
+     */
+    public byte[][] getElements(int index) {
+        if (!has(index) || !MessagePack.isArray(this.bytes, this.offsets[index])) {
+            return new byte[0][];
+        }
+        int offset = this.offsets[index];
+        int count = MessagePack.readCount(this.bytes, offset);
+        offset += MessagePack.readHeaderLength(this.bytes, offset);
+        byte[][] elements = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int next = MessagePack.skip(this.bytes, offset);
+            elements[i] = Arrays.copyOfRange(this.bytes, offset, next);
+            offset = next;
+        }
+        return elements;
+    }
+
+    /**
+     * Copy the packed entries of a map argument. The extension header of ordered map is skipped.
+     *
+     * @param index the index of argument.
+     * @return packed keys and values, in pairs. <code>null</code> if not exists or not a map.
+     */
+    public List<byte[][]> getEntries(int index) {
+        if (!has(index) || !MessagePack.isMap(this.bytes, this.offsets[index])) {
+            return null;
+        }
+        int offset = this.offsets[index];
+        int count = MessagePack.readCount(this.bytes, offset);
+        offset += MessagePack.readHeaderLength(this.bytes, offset);
+        List<byte[][]> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int valueOffset = MessagePack.skip(this.bytes, offset);
+            int next = MessagePack.skip(this.bytes, valueOffset);
+            if (i != 0 || !MessagePack.isExtensionHeader(this.bytes, offset)) {
+                entries.add(new byte[][] { Arrays.copyOfRange(this.bytes, offset, valueOffset),
+                        Arrays.copyOfRange(this.bytes, valueOffset, next) });
+            }
+            offset = next;
+        }
+        return entries;
+    }
+
+}
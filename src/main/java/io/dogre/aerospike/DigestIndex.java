@@ -0,0 +1,360 @@
+package io.dogre.aerospike;
+
+/**
+ * Open addressing hash index keyed by namespace id and the 20 bytes RIPEMD-160 digest of key.
+ * <p>
+ * The digest is stored inline in primitive arrays, as two longs and an int, with namespace id. So no object is
+ * allocated for a key, and lookup does not allocate at all. Collisions are resolved by linear probing, and removal
+ * shifts following entries back instead of leaving tombstones.
+ * <p>
+ * This is not thread-safe.
+ *
+ * @param <V> the type of value.
+ * @author dogre
+ */
+public class DigestIndex<V> {
+
+    /**
+     * The length of digest.
+     */
+    public static final int DIGEST_LENGTH = 20;
+
+    /**
+     * The default capacity.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The first 8 bytes of digests.
+     */
+    private long[] digests0;
+
+    /**
+     * The second 8 bytes of digests.
+     */
+    private long[] digests1;
+
+    /**
+     * The last 4 bytes of digests.
+     */
+    private int[] digests2;
+
+    /**
+     * Namespace ids.
+     */
+    private int[] namespaceIds;
+
+    /**
+     * Values. <code>null</code> means empty slot.
+     */
+    private Object[] values;
+
+    /**
+     * The number of entries.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    public DigestIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity initial capacity, rounded up to power of 2.
+     */
+    public DigestIndex(int capacity) {
+        allocate(Integer.highestOneBit(Math.max(2, capacity) - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+        this.digests0 = new long[capacity];
+        this.digests1 = new long[capacity];
+        this.digests2 = new int[capacity];
+        this.namespaceIds = new int[capacity];
+        this.values = new Object[capacity];
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xffL) << 56) | ((bytes[offset + 1] & 0xffL) << 48) |
+                ((bytes[offset + 2] & 0xffL) << 40) | ((bytes[offset + 3] & 0xffL) << 32) |
+                ((bytes[offset + 4] & 0xffL) << 24) | ((bytes[offset + 5] & 0xffL) << 16) |
+                ((bytes[offset + 6] & 0xffL) << 8) | (bytes[offset + 7] & 0xffL);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) |
+                (bytes[offset + 3] & 0xff);
+    }
+
+    private static void putLong(long value, byte[] bytes, int offset) {
+        for (int i = 7; 0 <= i; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void putInt(int value, byte[] bytes, int offset) {
+        for (int i = 3; 0 <= i; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Get the home slot of digest.
+     * <p>
+     * The first bytes of digest decide the partition, so all digests in a partition share them. Use the middle bytes,
+     * which are uniformly distributed.
+     */
+    private int slot(long digest1, int namespaceId) {
+        long hash = (digest1 ^ namespaceId) * 0x9e3779b97f4a7c15L;
+        return (int) (hash >>> 32) & (this.values.length - 1);
+    }
+
+    /**
+     * Find the slot of entry.
+     *
+     * @return the slot of entry if found, otherwise <code>-(empty slot + 1)</code>.
+     */
+    private int find(int namespaceId, long digest0, long digest1, int digest2) {
+        int mask = this.values.length - 1;
+        int slot = slot(digest1, namespaceId);
+        while (this.values[slot] != null) {
+            if (this.digests1[slot] == digest1 && this.digests0[slot] == digest0 && this.digests2[slot] == digest2 &&
+                    this.namespaceIds[slot] == namespaceId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -(slot + 1);
+    }
+
+    /**
+     * Get value.
+     *
+     * @param namespaceId namespace id.
+     * @param digest byte array contains digest.
+     * @param offset the offset of digest.
+     * @return value. <code>null</code> if not exists.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int namespaceId, byte[] digest, int offset) {
+        int slot = find(namespaceId, getLong(digest, offset), getLong(digest, offset + 8), getInt(digest, offset + 16));
+        return 0 <= slot ? (V) this.values[slot] : null;
+    }
+
+    /**
+     * Put value.
+     *
+     * @param namespaceId namespace id.
+     * @param digest byte array contains digest.
+     * @param offset the offset of digest.
+     * @param value value, must not be <code>null</code>.
+     * @return previous value. <code>null</code> if not exists.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int namespaceId, byte[] digest, int offset, V value) {
+        long digest0 = getLong(digest, offset);
+        long digest1 = getLong(digest, offset + 8);
+        int digest2 = getInt(digest, offset + 16);
+        int slot = find(namespaceId, digest0, digest1, digest2);
+        if (0 <= slot) {
+            V previous = (V) this.values[slot];
+            this.values[slot] = value;
+            return previous;
+        }
+
+        if (this.values.length <= (this.size + 1) * 2) {
+            resize(this.values.length * 2);
+            slot = find(namespaceId, digest0, digest1, digest2);
+        }
+        slot = -slot - 1;
+        this.digests0[slot] = digest0;
+        this.digests1[slot] = digest1;
+        this.digests2[slot] = digest2;
+        this.namespaceIds[slot] = namespaceId;
+        this.values[slot] = value;
+        this.size++;
+        return null;
+    }
+
+    /**
+     * Remove value.
+     *
+     * @param namespaceId namespace id.
+     * @param digest byte array contains digest.
+     * @param offset the offset of digest.
+     * @return removed value. <code>null</code> if not exists.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int namespaceId, byte[] digest, int offset) {
+        int slot = find(namespaceId, getLong(digest, offset), getLong(digest, offset + 8), getInt(digest, offset + 16));
+        if (slot < 0) {
+            return null;
+        }
+        V value = (V) this.values[slot];
+        removeSlot(slot);
+        return value;
+    }
+
+    /**
+     * Remove the entry at slot, and shift back following entries of the probe sequence.
+     */
+    private void removeSlot(int slot) {
+        int mask = this.values.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (this.values[next] != null) {
+            int home = slot(this.digests1[next], this.namespaceIds[next]);
+            // move the entry if its home is not in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.digests0[hole] = this.digests0[next];
+                this.digests1[hole] = this.digests1[next];
+                this.digests2[hole] = this.digests2[next];
+                this.namespaceIds[hole] = this.namespaceIds[next];
+                this.values[hole] = this.values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        this.values[hole] = null;
+        this.size--;
+    }
+
+    private void resize(int capacity) {
+        rehash(capacity, null);
+    }
+
+    /**
+     * Re-insert entries into new arrays.
+     *
+     * @param capacity new capacity.
+     * @param excludes flags of slots to exclude. if <code>null</code>, exclude nothing.
+     */
+    private void rehash(int capacity, boolean[] excludes) {
+        long[] digests0 = this.digests0;
+        long[] digests1 = this.digests1;
+        int[] digests2 = this.digests2;
+        int[] namespaceIds = this.namespaceIds;
+        Object[] values = this.values;
+        allocate(capacity);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && (excludes == null || !excludes[i])) {
+                int slot = -find(namespaceIds[i], digests0[i], digests1[i], digests2[i]) - 1;
+                this.digests0[slot] = digests0[i];
+                this.digests1[slot] = digests1[i];
+                this.digests2[slot] = digests2[i];
+                this.namespaceIds[slot] = namespaceIds[i];
+                this.values[slot] = values[i];
+            }
+        }
+    }
+
+    /**
+     * Get the number of entries in namespace.
+     *
+     * @param namespaceId namespace id.
+     * @return the number of entries.
+     */
+    public int size(int namespaceId) {
+        int size = 0;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null && this.namespaceIds[i] == namespaceId) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Perform the action for each entry.
+     * <p>
+     * The digest array passed to the action is reused for all entries, copy it to keep.
+     *
+     * @param action action.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> action) {
+        byte[] digest = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null) {
+                putDigest(i, digest);
+                action.accept(this.namespaceIds[i], digest, (V) this.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Remove entries which satisfy the filter.
+     * <p>
+     * The digest array passed to the filter is reused for all entries, copy it to keep.
+     *
+     * @param filter filter.
+     * @return the number of removed entries.
+     */
+    @SuppressWarnings("unchecked")
+    public int removeIf(EntryPredicate<? super V> filter) {
+        byte[] digest = new byte[DIGEST_LENGTH];
+        boolean[] removes = new boolean[this.values.length];
+        int removed = 0;
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != null) {
+                putDigest(i, digest);
+                if (filter.test(this.namespaceIds[i], digest, (V) this.values[i])) {
+                    removes[i] = true;
+                    removed++;
+                }
+            }
+        }
+        if (0 < removed) {
+            // Removing one by one shifts entries to slots already visited, so rebuild with the rest instead.
+            rehash(this.values.length, removes);
+            this.size -= removed;
+        }
+        return removed;
+    }
+
+    private void putDigest(int slot, byte[] digest) {
+        putLong(this.digests0[slot], digest, 0);
+        putLong(this.digests1[slot], digest, 8);
+        putInt(this.digests2[slot], digest, 16);
+    }
+
+    /**
+     * Action for an entry.
+     *
+     * @param <V> the type of value.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+
+        void accept(int namespaceId, byte[] digest, V value);
+
+    }
+
+    /**
+     * Filter for an entry.
+     *
+     * @param <V> the type of value.
+     */
+    @FunctionalInterface
+    public interface EntryPredicate<V> {
+
+        boolean test(int namespaceId, byte[] digest, V value);
+
+    }
+
+}
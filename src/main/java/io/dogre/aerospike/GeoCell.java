@@ -0,0 +1,165 @@
+package io.dogre.aerospike;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Cells of a quadtree on the plane of longitude and latitude, identified like cells of S2.
+ * <p>
+ * The cell of level <code>0</code> is the whole earth, and a cell of level <code>k</code> is divided into 4 cells of
+ * level <code>k + 1</code>, up to {@link #MAX_LEVEL}. The id of cell is the Z-order of its position followed by a bit
+ * <code>1</code> and zeros, whose position tells the level. So the cells in a cell have ids in a contiguous range, from
+ * {@link #rangeMin(long)} to {@link #rangeMax(long)}, and a sorted index of cell ids finds the points in a region by
+ * the ranges of cells covering the region.
+ *
+ * @author dogre
+ */
+public class GeoCell {
+
+    /**
+     * The level of leaf cells, about 4 cm.
+     */
+    public static final int MAX_LEVEL = 30;
+
+    private static final double SCALE = 1L << MAX_LEVEL;
+
+    /**
+     * Get the id of leaf cell containing the point.
+     *
+     * @param longitude longitude in degrees.
+     * @param latitude latitude in degrees.
+     * @return cell id.
+     */
+    public static long fromPoint(double longitude, double latitude) {
+        long x = quantize((longitude + 180) / 360);
+        long y = quantize((latitude + 90) / 180);
+        return (interleave(x, y) << 1) | 1;
+    }
+
+    private static long quantize(double fraction) {
+        return Math.max(0, Math.min((long) SCALE - 1, (long) Math.floor(fraction * SCALE)));
+    }
+
+    private static long interleave(long x, long y) {
+        long z = 0;
+        for (int i = 0; i < MAX_LEVEL; i++) {
+            z |= ((x >>> i) & 1) << (2 * i);
+            z |= ((y >>> i) & 1) << (2 * i + 1);
+        }
+        return z;
+    }
+
+    private static long lowestBit(long id) {
+        return id & -id;
+    }
+
+    private static long lowestBit(int level) {
+        return 1L << (2 * (MAX_LEVEL - level));
+    }
+
+    /**
+     * Get the level of cell.
+     *
+     * @param id cell id.
+     * @return level.
+     */
+    public static int level(long id) {
+        return MAX_LEVEL - Long.numberOfTrailingZeros(id) / 2;
+    }
+
+    /**
+     * Get the cell of lower level containing the cell.
+     *
+     * @param id cell id.
+     * @param level the level of parent, not greater than the level of cell.
+     * @return cell id.
+     */
+    public static long parent(long id, int level) {
+        long lowestBit = lowestBit(level);
+        return (id & -(lowestBit << 1)) | lowestBit;
+    }
+
+    /**
+     * Get the lowest id of cells in the cell.
+     *
+     * @param id cell id.
+     * @return the lowest id, inclusive.
+     */
+    public static long rangeMin(long id) {
+        return id - lowestBit(id) + 1;
+    }
+
+    /**
+     * Get the highest id of cells in the cell.
+     *
+     * @param id cell id.
+     * @return the highest id, inclusive.
+     */
+    public static long rangeMax(long id) {
+        return id + lowestBit(id) - 1;
+    }
+
+    /**
+     * Get the bounding box of cell.
+     *
+     * @param id cell id.
+     * @return the lowest longitude, the lowest latitude, the highest longitude and the highest latitude.
+     */
+    public static double[] getBounds(long id) {
+        int level = level(id);
+        long z = id >>> (2 * (MAX_LEVEL - level) + 1);
+        long x = 0;
+        long y = 0;
+        for (int i = 0; i < level; i++) {
+            x |= ((z >>> (2 * i)) & 1) << i;
+            y |= ((z >>> (2 * i + 1)) & 1) << i;
+        }
+        double size = 1.0 / (1L << level);
+        return new double[] { x * size * 360 - 180, y * size * 180 - 90, (x + 1) * size * 360 - 180,
+                (y + 1) * size * 180 - 90 };
+    }
+
+    /**
+     * Get disjoint cells covering the bounding box, as small as possible within the number of cells.
+     * <p>
+     * Cells are divided level by level, and a cell is kept undivided if it is in the box, or dividing it would exceed
+     * the number of cells.
+     *
+     * @param bounds the lowest longitude, the lowest latitude, the highest longitude and the highest latitude.
+     * @param maxCells the maximum number of cells, at least <code>4</code>.
+     * @return cell ids.
+     */
+    public static List<Long> cover(double[] bounds, int maxCells) {
+        List<Long> cells = new ArrayList<>();
+        Deque<Long> candidates = new ArrayDeque<>();
+        candidates.add(parent(1, 0));
+        while (!candidates.isEmpty()) {
+            long id = candidates.poll();
+            double[] cell = getBounds(id);
+            if (level(id) == MAX_LEVEL || (bounds[0] <= cell[0] && cell[2] <= bounds[2] && bounds[1] <= cell[1] &&
+                    cell[3] <= bounds[3])) {
+                cells.add(id);
+                continue;
+            }
+            List<Long> children = new ArrayList<>(4);
+            long lowestBit = lowestBit(id) >>> 2;
+            for (int i = 0; i < 4; i++) {
+                long child = id - lowestBit(id) + lowestBit * (2 * i + 1);
+                double[] childBounds = getBounds(child);
+                if (childBounds[0] <= bounds[2] && bounds[0] <= childBounds[2] && childBounds[1] <= bounds[3] &&
+                        bounds[1] <= childBounds[3]) {
+                    children.add(child);
+                }
+            }
+            if (maxCells < cells.size() + candidates.size() + children.size()) {
+                cells.add(id);
+            } else {
+                candidates.addAll(children);
+            }
+        }
+        return cells;
+    }
+
+}
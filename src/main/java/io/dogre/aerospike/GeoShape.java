@@ -0,0 +1,432 @@
+package io.dogre.aerospike;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shape of GeoJSON, a point or a region, with longitude and latitude in degrees.
+ * <p>
+ * Supported types are <code>Point</code>, <code>Polygon</code>, <code>MultiPolygon</code> and <code>AeroCircle</code>
+ * of Aerospike, whose coordinates are the center and the radius in meters. Edges of polygons are straight lines on the
+ * plane of longitude and latitude, and distances are great circle distances.
+ *
+ * @author dogre
+ */
+public abstract class GeoShape {
+
+    /**
+     * The mean radius of the earth, in meters.
+     */
+    public static final double EARTH_RADIUS = 6371000;
+
+    /**
+     * Parse GeoJSON.
+     *
+     * @param json GeoJSON.
+     * @return shape. <code>null</code> if not valid or not supported.
+     */
+    public static GeoShape parse(String json) {
+        try {
+            Object parsed = new JsonParser(json).parse();
+            if (!(parsed instanceof Map)) {
+                return null;
+            }
+            Map<?, ?> object = (Map<?, ?>) parsed;
+            Object type = object.get("type");
+            List<?> coordinates = (List<?>) object.get("coordinates");
+            if ("Point".equals(type)) {
+                return toPoint(coordinates);
+            } else if ("Polygon".equals(type)) {
+                return toPolygon(coordinates);
+            } else if ("MultiPolygon".equals(type)) {
+                List<Polygon> polygons = new ArrayList<>();
+                for (Object polygon : coordinates) {
+                    polygons.add(toPolygon((List<?>) polygon));
+                }
+                return new MultiPolygon(polygons);
+            } else if ("AeroCircle".equals(type)) {
+                return new Circle(toPoint((List<?>) coordinates.get(0)), ((Number) coordinates.get(1)).doubleValue());
+            }
+        } catch (RuntimeException e) {
+            // not valid
+        }
+        return null;
+    }
+
+    private static Point toPoint(List<?> coordinates) {
+        return new Point(((Number) coordinates.get(0)).doubleValue(), ((Number) coordinates.get(1)).doubleValue());
+    }
+
+    private static Polygon toPolygon(List<?> coordinates) {
+        List<double[][]> rings = new ArrayList<>();
+        for (Object ring : coordinates) {
+            List<?> points = (List<?>) ring;
+            double[][] vertices = new double[points.size()][];
+            for (int i = 0; i < vertices.length; i++) {
+                Point point = toPoint((List<?>) points.get(i));
+                vertices[i] = new double[] { point.longitude, point.latitude };
+            }
+            rings.add(vertices);
+        }
+        if (rings.isEmpty() || rings.get(0).length < 3) {
+            throw new IllegalArgumentException("Polygon needs a ring of 3 or more points");
+        }
+        return new Polygon(rings);
+    }
+
+    /**
+     * Whether this is a point.
+     *
+     * @return <code>true</code> if a point, <code>false</code> if a region.
+     */
+    public boolean isPoint() {
+        return false;
+    }
+
+    /**
+     * Whether the point is in this region.
+     *
+     * @param point point.
+     * @return <code>true</code> if in this region. <code>false</code> if not, or this is a point.
+     */
+    public abstract boolean contains(Point point);
+
+    /**
+     * Get the bounding box.
+     *
+     * @return the lowest longitude, the lowest latitude, the highest longitude and the highest latitude.
+     */
+    public abstract double[] getBounds();
+
+    /**
+     * Point.
+     */
+    public static class Point extends GeoShape {
+
+        private double longitude;
+
+        private double latitude;
+
+        public Point(double longitude, double latitude) {
+            this.longitude = longitude;
+            this.latitude = latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public boolean isPoint() {
+            return true;
+        }
+
+        @Override
+        public boolean contains(Point point) {
+            return false;
+        }
+
+        @Override
+        public double[] getBounds() {
+            return new double[] { this.longitude, this.latitude, this.longitude, this.latitude };
+        }
+
+        /**
+         * Get the great circle distance to a point, by the haversine formula.
+         *
+         * @param other point.
+         * @return distance in meters.
+         */
+        public double distance(Point other) {
+            double latitude1 = Math.toRadians(this.latitude);
+            double latitude2 = Math.toRadians(other.latitude);
+            double sinLatitude = Math.sin((latitude2 - latitude1) / 2);
+            double sinLongitude = Math.sin(Math.toRadians(other.longitude - this.longitude) / 2);
+            double a = sinLatitude * sinLatitude +
+                    Math.cos(latitude1) * Math.cos(latitude2) * sinLongitude * sinLongitude;
+            return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+        }
+
+    }
+
+    /**
+     * Polygon, the outer ring and holes. Rings are closed, the last vertex may or may not be the first vertex.
+     */
+    public static class Polygon extends GeoShape {
+
+        private List<double[][]> rings;
+
+        private double[] bounds;
+
+        public Polygon(List<double[][]> rings) {
+            this.rings = rings;
+            double[] bounds = { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+            for (double[] vertex : rings.get(0)) {
+                bounds[0] = Math.min(bounds[0], vertex[0]);
+                bounds[1] = Math.min(bounds[1], vertex[1]);
+                bounds[2] = Math.max(bounds[2], vertex[0]);
+                bounds[3] = Math.max(bounds[3], vertex[1]);
+            }
+            this.bounds = bounds;
+        }
+
+        @Override
+        public boolean contains(Point point) {
+            if (point.longitude < this.bounds[0] || this.bounds[2] < point.longitude ||
+                    point.latitude < this.bounds[1] || this.bounds[3] < point.latitude) {
+                return false;
+            }
+            if (!inRing(this.rings.get(0), point)) {
+                return false;
+            }
+            for (int i = 1; i < this.rings.size(); i++) {
+                if (inRing(this.rings.get(i), point)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Whether the point is in the ring, by counting crossings of a ray to the east.
+         */
+        private static boolean inRing(double[][] ring, Point point) {
+            boolean inside = false;
+            for (int i = 0, j = ring.length - 1; i < ring.length; j = i++) {
+                double[] a = ring[i];
+                double[] b = ring[j];
+                if ((a[1] > point.latitude) != (b[1] > point.latitude) &&
+                        point.longitude < (b[0] - a[0]) * (point.latitude - a[1]) / (b[1] - a[1]) + a[0]) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+
+        @Override
+        public double[] getBounds() {
+            return this.bounds.clone();
+        }
+
+    }
+
+    /**
+     * Polygons.
+     */
+    public static class MultiPolygon extends GeoShape {
+
+        private List<Polygon> polygons;
+
+        public MultiPolygon(List<Polygon> polygons) {
+            if (polygons.isEmpty()) {
+                throw new IllegalArgumentException("MultiPolygon needs a polygon");
+            }
+            this.polygons = polygons;
+        }
+
+        @Override
+        public boolean contains(Point point) {
+            for (Polygon polygon : this.polygons) {
+                if (polygon.contains(point)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public double[] getBounds() {
+            double[] bounds = this.polygons.get(0).getBounds();
+            for (Polygon polygon : this.polygons) {
+                bounds[0] = Math.min(bounds[0], polygon.bounds[0]);
+                bounds[1] = Math.min(bounds[1], polygon.bounds[1]);
+                bounds[2] = Math.max(bounds[2], polygon.bounds[2]);
+                bounds[3] = Math.max(bounds[3], polygon.bounds[3]);
+            }
+            return bounds;
+        }
+
+    }
+
+    /**
+     * Circle of Aerospike, the center and the radius in meters.
+     */
+    public static class Circle extends GeoShape {
+
+        private Point center;
+
+        private double radius;
+
+        public Circle(Point center, double radius) {
+            this.center = center;
+            this.radius = radius;
+        }
+
+        @Override
+        public boolean contains(Point point) {
+            return this.center.distance(point) <= this.radius;
+        }
+
+        @Override
+        public double[] getBounds() {
+            double latitudeDelta = Math.toDegrees(this.radius / EARTH_RADIUS);
+            double minLatitude = this.center.latitude - latitudeDelta;
+            double maxLatitude = this.center.latitude + latitudeDelta;
+            if (minLatitude <= -90 || 90 <= maxLatitude) {
+                // a pole is in the circle
+                return new double[] { -180, Math.max(-90, minLatitude), 180, Math.min(90, maxLatitude) };
+            }
+            double cos = Math.min(Math.cos(Math.toRadians(minLatitude)), Math.cos(Math.toRadians(maxLatitude)));
+            double longitudeDelta = Math.min(180, latitudeDelta / cos);
+            return new double[] { this.center.longitude - longitudeDelta, minLatitude,
+                    this.center.longitude + longitudeDelta, maxLatitude };
+        }
+
+    }
+
+    /**
+     * Parser of JSON, to maps, lists, strings, doubles, booleans and <code>null</code>.
+     */
+    private static class JsonParser {
+
+        private String json;
+
+        private int offset;
+
+        private JsonParser(String json) {
+            this.json = json;
+        }
+
+        private Object parse() {
+            Object value = parseValue();
+            skipWhitespace();
+            if (this.offset != this.json.length()) {
+                throw error();
+            }
+            return value;
+        }
+
+        private Object parseValue() {
+            skipWhitespace();
+            if (this.json.length() <= this.offset) {
+                throw error();
+            }
+            char c = this.json.charAt(this.offset);
+            if (c == '{') {
+                Map<String, Object> object = new LinkedHashMap<>();
+                this.offset++;
+                if (!consume('}')) {
+                    do {
+                        skipWhitespace();
+                        String name = parseString();
+                        if (!consume(':')) {
+                            throw error();
+                        }
+                        object.put(name, parseValue());
+                    } while (consume(','));
+                    if (!consume('}')) {
+                        throw error();
+                    }
+                }
+                return object;
+            } else if (c == '[') {
+                List<Object> array = new ArrayList<>();
+                this.offset++;
+                if (!consume(']')) {
+                    do {
+                        array.add(parseValue());
+                    } while (consume(','));
+                    if (!consume(']')) {
+                        throw error();
+                    }
+                }
+                return array;
+            } else if (c == '"') {
+                return parseString();
+            } else if (this.json.startsWith("true", this.offset)) {
+                this.offset += 4;
+                return Boolean.TRUE;
+            } else if (this.json.startsWith("false", this.offset)) {
+                this.offset += 5;
+                return Boolean.FALSE;
+            } else if (this.json.startsWith("null", this.offset)) {
+                this.offset += 4;
+                return null;
+            }
+            int start = this.offset;
+            while (this.offset < this.json.length() && "+-.eE0123456789".indexOf(this.json.charAt(this.offset)) >= 0) {
+                this.offset++;
+            }
+            return Double.valueOf(this.json.substring(start, this.offset));
+        }
+
+        private String parseString() {
+            if (!consume('"')) {
+                throw error();
+            }
+            StringBuilder builder = new StringBuilder();
+            while (true) {
+                char c = this.json.charAt(this.offset++);
+                if (c == '"') {
+                    return builder.toString();
+                } else if (c == '\\') {
+                    c = this.json.charAt(this.offset++);
+                    switch (c) {
+                        case 'b':
+                            builder.append('\b');
+                            break;
+                        case 'f':
+                            builder.append('\f');
+                            break;
+                        case 'n':
+                            builder.append('\n');
+                            break;
+                        case 'r':
+                            builder.append('\r');
+                            break;
+                        case 't':
+                            builder.append('\t');
+                            break;
+                        case 'u':
+                            String hex = this.json.substring(this.offset, this.offset + 4);
+                            builder.append((char) Integer.parseInt(hex, 16));
+                            this.offset += 4;
+                            break;
+                        default:
+                            builder.append(c);
+                            break;
+                    }
+                } else {
+                    builder.append(c);
+                }
+            }
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (this.offset < this.json.length() && this.json.charAt(this.offset) == c) {
+                this.offset++;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (this.offset < this.json.length() && Character.isWhitespace(this.json.charAt(this.offset))) {
+                this.offset++;
+            }
+        }
+
+        private IllegalArgumentException error() {
+            return new IllegalArgumentException("Invalid JSON at " + this.offset);
+        }
+
+    }
+
+}
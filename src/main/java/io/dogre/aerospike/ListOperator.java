@@ -0,0 +1,572 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Operation;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.Value;
+import com.aerospike.client.cdt.ListReturnType;
+import com.aerospike.client.cdt.ListSortFlags;
+import com.aerospike.client.cdt.ListWriteFlags;
+import com.aerospike.client.command.ParticleType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Applies CDT list operations, sent by <code>ListOperation</code> of Aerospike Client, to {@link PackedList}.
+ * <p>
+ * The value of operation is a blob, the command in 2 bytes followed by the arguments packed in an array.
+ *
+ * @author dogre
+ */
+public class ListOperator {
+
+    /**
+     * Result code for operations not applicable to the list, such as an index out of range. Aerospike Client 4.3.0
+     * has no constant of it.
+     */
+    public static final int OP_NOT_APPLICABLE = 26;
+
+    /**
+     * Sort flag for descending order. Aerospike Client 4.3.0 has no constant of it.
+     */
+    private static final int SORT_DESCENDING = 1;
+
+    private static final int SET_TYPE = 0;
+    private static final int APPEND = 1;
+    private static final int APPEND_ITEMS = 2;
+    private static final int INSERT = 3;
+    private static final int INSERT_ITEMS = 4;
+    private static final int POP = 5;
+    private static final int POP_RANGE = 6;
+    private static final int REMOVE = 7;
+    private static final int REMOVE_RANGE = 8;
+    private static final int SET = 9;
+    private static final int TRIM = 10;
+    private static final int CLEAR = 11;
+    private static final int INCREMENT = 12;
+    private static final int SORT = 13;
+    private static final int SIZE = 16;
+    private static final int GET = 17;
+    private static final int GET_RANGE = 18;
+    private static final int GET_BY_INDEX = 19;
+    private static final int GET_BY_RANK = 21;
+    private static final int GET_BY_VALUE = 22;
+    private static final int GET_BY_VALUE_LIST = 23;
+    private static final int GET_BY_INDEX_RANGE = 24;
+    private static final int GET_BY_VALUE_INTERVAL = 25;
+    private static final int GET_BY_RANK_RANGE = 26;
+    private static final int GET_BY_VALUE_REL_RANK_RANGE = 27;
+    private static final int REMOVE_BY_INDEX = 32;
+    private static final int REMOVE_BY_RANK = 34;
+    private static final int REMOVE_BY_VALUE = 35;
+    private static final int REMOVE_BY_VALUE_LIST = 36;
+    private static final int REMOVE_BY_INDEX_RANGE = 37;
+    private static final int REMOVE_BY_VALUE_INTERVAL = 38;
+    private static final int REMOVE_BY_RANK_RANGE = 39;
+    private static final int REMOVE_BY_VALUE_REL_RANK_RANGE = 40;
+
+    /**
+     * Apply a list operation.
+     *
+     * @param operation operation, <code>CDT_READ</code> or <code>CDT_MODIFY</code>.
+     * @param bins bins to be modified. <code>null</code> if not writing.
+     * @param current the current record, read if not writing.
+     * @param output the consumer of result. Not called if the operation has no result.
+     * @return result code.
+     */
+    public static int apply(Operation operation, Map<String, Value> bins, StoredRecord current,
+            Consumer<Value> output) {
+        if (operation.value == null || operation.value.getType() != ParticleType.BLOB) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+        CdtArguments args = new CdtArguments((byte[]) operation.value.getObject());
+        boolean modify = operation.type == Operation.Type.CDT_MODIFY;
+        if (modify && bins == null) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+
+        Value value = bins != null ? bins.get(operation.binName) :
+                (current != null ? current.getBin(operation.binName) : null);
+        PackedList list = PackedList.of(value);
+        if (value != null && list == null) {
+            return ResultCode.BIN_TYPE_ERROR;
+        }
+        if (list == null) {
+            if (!modify || !creates(args.getCommand())) {
+                // no result for a missing bin
+                return ResultCode.OK;
+            }
+            list = new PackedList(createFlags(args));
+        }
+
+        int resultCode = modify ? modify(list, args, output) : read(list, args, output);
+        if (modify && resultCode == ResultCode.OK) {
+            bins.put(operation.binName, list);
+        }
+        return resultCode;
+    }
+
+    /**
+     * Whether the command creates the list if not exists.
+     */
+    private static boolean creates(int command) {
+        switch (command) {
+            case SET_TYPE:
+            case APPEND:
+            case APPEND_ITEMS:
+            case INSERT:
+            case INSERT_ITEMS:
+            case SET:
+            case INCREMENT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get the flags of list created by the command, from list policy.
+     */
+    private static int createFlags(CdtArguments args) {
+        switch (args.getCommand()) {
+            case SET_TYPE:
+                return (int) args.getLong(0, 0);
+            case APPEND:
+            case APPEND_ITEMS:
+                return (int) args.getLong(1, 0);
+            case INCREMENT:
+                return (int) args.getLong(2, 0);
+            default:
+                return 0;
+        }
+    }
+
+    private static int read(PackedList list, CdtArguments args, Consumer<Value> output) {
+        switch (args.getCommand()) {
+            case SIZE:
+                output.accept(Value.get(list.size()));
+                return ResultCode.OK;
+            case GET: {
+                int index = normalizeIndex(list, args.getLong(0, 0));
+                if (index < 0) {
+                    return OP_NOT_APPLICABLE;
+                }
+                output.accept(list.getValue(index));
+                return ResultCode.OK;
+            }
+            case GET_RANGE: {
+                int[] range = normalizeRange(list.size(), args.getLong(0, 0), args.getLong(1, Integer.MAX_VALUE));
+                output.accept(list.copyOf(IntStream.range(range[0], range[1]).toArray()));
+                return ResultCode.OK;
+            }
+            default:
+                return select(list, args, false, output);
+        }
+    }
+
+    private static int modify(PackedList list, CdtArguments args, Consumer<Value> output) {
+        switch (args.getCommand()) {
+            case SET_TYPE:
+                list.setFlags((int) args.getLong(0, 0));
+                return ResultCode.OK;
+            case APPEND:
+                return append(list, new byte[][] { args.getBytes(0) }, (int) args.getLong(2, 0), output);
+            case APPEND_ITEMS:
+                return append(list, args.getElements(0), (int) args.getLong(2, 0), output);
+            case INSERT:
+                return insert(list, args.getLong(0, 0), new byte[][] { args.getBytes(1) }, (int) args.getLong(2, 0),
+                        output);
+            case INSERT_ITEMS:
+                return insert(list, args.getLong(0, 0), args.getElements(1), (int) args.getLong(2, 0), output);
+            case POP:
+            case REMOVE: {
+                int index = normalizeIndex(list, args.getLong(0, 0));
+                if (index < 0) {
+                    return OP_NOT_APPLICABLE;
+                }
+                output.accept(args.getCommand() == POP ? list.getValue(index) : Value.get(1));
+                list.remove(index, index + 1);
+                return ResultCode.OK;
+            }
+            case POP_RANGE:
+            case REMOVE_RANGE: {
+                int[] range = normalizeRange(list.size(), args.getLong(0, 0), args.getLong(1, Integer.MAX_VALUE));
+                if (args.getCommand() == POP_RANGE) {
+                    output.accept(list.copyOf(IntStream.range(range[0], range[1]).toArray()));
+                } else {
+                    output.accept(Value.get(range[1] - range[0]));
+                }
+                list.remove(range[0], range[1]);
+                return ResultCode.OK;
+            }
+            case SET: {
+                byte[] element = args.getBytes(1);
+                if (element == null) {
+                    return ResultCode.PARAMETER_ERROR;
+                } else if (list.isOrdered()) {
+                    return OP_NOT_APPLICABLE;
+                }
+                int index = normalizeInsertIndex(list, args.getLong(0, 0));
+                if (index < 0) {
+                    return OP_NOT_APPLICABLE;
+                }
+                pad(list, index + 1);
+                list.set(index, element);
+                return ResultCode.OK;
+            }
+            case TRIM: {
+                int size = list.size();
+                int[] range = normalizeRange(size, args.getLong(0, 0), args.getLong(1, Integer.MAX_VALUE));
+                list.remove(range[1], size);
+                list.remove(0, range[0]);
+                output.accept(Value.get(size - list.size()));
+                return ResultCode.OK;
+            }
+            case CLEAR:
+                list.remove(0, list.size());
+                return ResultCode.OK;
+            case INCREMENT:
+                return increment(list, args, output);
+            case SORT: {
+                int flags = (int) args.getLong(0, 0);
+                list.sort((flags & SORT_DESCENDING) != 0, (flags & ListSortFlags.DROP_DUPLICATES) != 0);
+                return ResultCode.OK;
+            }
+            default:
+                return select(list, args, true, output);
+        }
+    }
+
+    private static int append(PackedList list, byte[][] elements, int flags, Consumer<Value> output) {
+        if (Arrays.asList(elements).contains(null)) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+        List<byte[]> added = new ArrayList<>(elements.length);
+        if ((flags & ListWriteFlags.ADD_UNIQUE) != 0) {
+            for (byte[] element : elements) {
+                if (contains(list, element) || added.stream().anyMatch(a -> MessagePack.compare(a, 0, element, 0) == 0)) {
+                    if ((flags & ListWriteFlags.NO_FAIL) == 0) {
+                        return ResultCode.ELEMENT_EXISTS;
+                    } else if ((flags & ListWriteFlags.PARTIAL) == 0) {
+                        // all or nothing
+                        added.clear();
+                        break;
+                    }
+                } else {
+                    added.add(element);
+                }
+            }
+        } else {
+            added.addAll(Arrays.asList(elements));
+        }
+        for (byte[] element : added) {
+            list.add(element);
+        }
+        output.accept(Value.get(list.size()));
+        return ResultCode.OK;
+    }
+
+    private static int insert(PackedList list, long index, byte[][] elements, int flags, Consumer<Value> output) {
+        if (list.isOrdered()) {
+            return OP_NOT_APPLICABLE;
+        } else if (Arrays.asList(elements).contains(null)) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+        int position = normalizeInsertIndex(list, index);
+        if (position < 0 || ((flags & ListWriteFlags.INSERT_BOUNDED) != 0 && list.size() < position)) {
+            if ((flags & ListWriteFlags.NO_FAIL) == 0) {
+                return OP_NOT_APPLICABLE;
+            }
+        } else {
+            if ((flags & ListWriteFlags.ADD_UNIQUE) != 0) {
+                for (byte[] element : elements) {
+                    if (contains(list, element)) {
+                        if ((flags & ListWriteFlags.NO_FAIL) == 0) {
+                            return ResultCode.ELEMENT_EXISTS;
+                        }
+                        output.accept(Value.get(list.size()));
+                        return ResultCode.OK;
+                    }
+                }
+            }
+            pad(list, position);
+            for (int i = 0; i < elements.length; i++) {
+                list.insert(position + i, elements[i]);
+            }
+        }
+        output.accept(Value.get(list.size()));
+        return ResultCode.OK;
+    }
+
+    private static int increment(PackedList list, CdtArguments args, Consumer<Value> output) {
+        byte[] delta = args.getBytes(1);
+        if (delta == null) {
+            delta = MessagePack.pack(1);
+        }
+        boolean integer = MessagePack.isInteger(delta, 0);
+        if (!integer && !MessagePack.isDouble(delta, 0)) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+        int index = normalizeInsertIndex(list, args.getLong(0, 0));
+        if (index < 0) {
+            return OP_NOT_APPLICABLE;
+        }
+
+        Value result;
+        if (index < list.size()) {
+            byte[] bytes = list.getBytes();
+            int offset = list.getOffset(index);
+            if (integer && MessagePack.isInteger(bytes, offset)) {
+                result = Value.get(MessagePack.readLong(bytes, offset) + MessagePack.readLong(delta, 0));
+            } else if (!integer && MessagePack.isDouble(bytes, offset)) {
+                result = Value.get(MessagePack.readDouble(bytes, offset) + MessagePack.readDouble(delta, 0));
+            } else {
+                return ResultCode.PARAMETER_ERROR;
+            }
+            list.remove(index, index + 1);
+        } else {
+            result = integer ? Value.get(MessagePack.readLong(delta, 0)) : Value.get(MessagePack.readDouble(delta, 0));
+            if (!list.isOrdered()) {
+                pad(list, index);
+            }
+        }
+        byte[] element = MessagePack.pack(result);
+        if (list.isOrdered()) {
+            list.add(element);
+        } else {
+            list.insert(index, element);
+        }
+        output.accept(result);
+        return ResultCode.OK;
+    }
+
+    /**
+     * Get, or remove, the elements selected by index, rank or value.
+     *
+     * @param list list.
+     * @param args arguments, the return type first.
+     * @param modify whether to remove the selected elements.
+     * @param output the consumer of result.
+     * @return result code.
+     */
+    private static int select(PackedList list, CdtArguments args, boolean modify, Consumer<Value> output) {
+        int returnType = (int) args.getLong(0, ListReturnType.NONE);
+        byte[] value = args.getBytes(1);
+        boolean inverted = (returnType & ListReturnType.INVERTED) != 0;
+        returnType &= ~ListReturnType.INVERTED;
+        int size = list.size();
+
+        // selected indexes, in the order of result
+        int[] selected;
+        // whether the result is a single value, not a list
+        boolean single = false;
+        switch (modify ? args.getCommand() - (REMOVE_BY_INDEX - GET_BY_INDEX) : args.getCommand()) {
+            case GET_BY_INDEX: {
+                int index = normalizeIndex(list, args.getLong(1, 0));
+                if (index < 0) {
+                    return OP_NOT_APPLICABLE;
+                }
+                selected = new int[] { index };
+                single = true;
+                break;
+            }
+            case GET_BY_INDEX_RANGE: {
+                int[] range = normalizeRange(size, args.getLong(1, 0), args.getLong(2, Integer.MAX_VALUE));
+                selected = IntStream.range(range[0], range[1]).toArray();
+                break;
+            }
+            case GET_BY_RANK: {
+                int rank = normalizeIndex(list, args.getLong(1, 0));
+                if (rank < 0) {
+                    return OP_NOT_APPLICABLE;
+                }
+                selected = new int[] { list.getRankOrder()[rank] };
+                single = true;
+                break;
+            }
+            case GET_BY_RANK_RANGE: {
+                int[] range = normalizeRange(size, args.getLong(1, 0), args.getLong(2, Integer.MAX_VALUE));
+                selected = Arrays.copyOfRange(list.getRankOrder(), range[0], range[1]);
+                break;
+            }
+            case GET_BY_VALUE: {
+                if (value == null) {
+                    return ResultCode.PARAMETER_ERROR;
+                }
+                selected = IntStream.range(0, size).filter(i -> list.compare(i, value) == 0).toArray();
+                break;
+            }
+            case GET_BY_VALUE_LIST: {
+                byte[][] values = args.getElements(1);
+                selected = IntStream.range(0, size)
+                        .filter(i -> Arrays.stream(values).anyMatch(v -> list.compare(i, v) == 0)).toArray();
+                break;
+            }
+            case GET_BY_VALUE_INTERVAL: {
+                if (value == null) {
+                    return ResultCode.PARAMETER_ERROR;
+                }
+                byte[] end = args.getBytes(2);
+                selected = IntStream.range(0, size)
+                        .filter(i -> 0 <= list.compare(i, value) && (end == null || list.compare(i, end) < 0))
+                        .toArray();
+                break;
+            }
+            case GET_BY_VALUE_REL_RANK_RANGE: {
+                if (value == null) {
+                    return ResultCode.PARAMETER_ERROR;
+                }
+                int[] order = list.getRankOrder();
+                // the rank of value, the number of elements less than it
+                int base = (int) IntStream.range(0, size).filter(i -> list.compare(i, value) < 0).count();
+                long from = base + args.getLong(2, 0);
+                long count = args.getLong(3, Integer.MAX_VALUE);
+                if (from < 0) {
+                    count += from;
+                    from = 0;
+                }
+                int to = (int) Math.min(size, from + Math.max(0, count));
+                selected = from < to ? Arrays.copyOfRange(order, (int) from, to) : new int[0];
+                break;
+            }
+            default:
+                return ResultCode.PARAMETER_ERROR;
+        }
+
+        if (inverted) {
+            boolean[] excluded = new boolean[size];
+            for (int index : selected) {
+                excluded[index] = true;
+            }
+            selected = IntStream.range(0, size).filter(i -> !excluded[i]).toArray();
+            single = false;
+        }
+
+        Value result = toResult(list, selected, returnType, single);
+        if (result == null && returnType != ListReturnType.NONE) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+        if (modify) {
+            int[] sorted = selected.clone();
+            Arrays.sort(sorted);
+            for (int i = sorted.length - 1; 0 <= i; i--) {
+                list.remove(sorted[i], sorted[i] + 1);
+            }
+        }
+        if (result != null) {
+            output.accept(result);
+        }
+        return ResultCode.OK;
+    }
+
+    private static Value toResult(PackedList list, int[] selected, int returnType, boolean single) {
+        int size = list.size();
+        switch (returnType) {
+            case ListReturnType.NONE:
+                return null;
+            case ListReturnType.COUNT:
+                return Value.get(selected.length);
+            case ListReturnType.VALUE:
+                if (single) {
+                    return list.getValue(selected[0]);
+                }
+                return list.copyOf(selected);
+            case ListReturnType.INDEX:
+            case ListReturnType.REVERSE_INDEX:
+            case ListReturnType.RANK:
+            case ListReturnType.REVERSE_RANK: {
+                boolean rank = returnType == ListReturnType.RANK || returnType == ListReturnType.REVERSE_RANK;
+                boolean reverse = returnType == ListReturnType.REVERSE_INDEX ||
+                        returnType == ListReturnType.REVERSE_RANK;
+                int[] ranks = null;
+                if (rank) {
+                    int[] order = list.getRankOrder();
+                    ranks = new int[size];
+                    for (int i = 0; i < size; i++) {
+                        ranks[order[i]] = i;
+                    }
+                }
+                PackedList result = new PackedList(0);
+                for (int index : selected) {
+                    long position = rank ? ranks[index] : index;
+                    if (reverse) {
+                        position = size - 1 - position;
+                    }
+                    if (single) {
+                        return Value.get(position);
+                    }
+                    result.add(MessagePack.pack(position));
+                }
+                return result;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static boolean contains(PackedList list, byte[] element) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.compare(i, element) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append nils until the size of list becomes <code>size</code>.
+     */
+    private static void pad(PackedList list, int size) {
+        while (list.size() < size) {
+            list.add(MessagePack.NIL);
+        }
+    }
+
+    /**
+     * Normalize index, negative index counts from the end.
+     *
+     * @return index. <code>-1</code> if out of range.
+     */
+    private static int normalizeIndex(PackedList list, long index) {
+        int size = list.size();
+        if (index < 0) {
+            index += size;
+        }
+        return 0 <= index && index < size ? (int) index : -1;
+    }
+
+    /**
+     * Normalize index for insert, which may be the size of list or beyond.
+     *
+     * @return index. <code>-1</code> if out of range.
+     */
+    private static int normalizeInsertIndex(PackedList list, long index) {
+        if (index < 0) {
+            index += list.size();
+        }
+        return 0 <= index && index <= Integer.MAX_VALUE - 1 ? (int) index : -1;
+    }
+
+    /**
+     * Normalize range, index and count. Negative index counts from the end, and the range is clipped by the list.
+     *
+     * @return the first index, inclusive, and the last index, exclusive.
+     */
+    static int[] normalizeRange(int size, long index, long count) {
+        if (index < 0) {
+            index += size;
+        }
+        if (index < 0) {
+            count += index;
+            index = 0;
+        }
+        long from = Math.min(index, size);
+        long to = Math.min(size, from + Math.max(0, count));
+        return new int[] { (int) from, (int) to };
+    }
+
+}
@@ -0,0 +1,503 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.Value;
+import com.aerospike.client.lua.LuaBytes;
+import com.aerospike.client.lua.LuaInstance;
+import com.aerospike.client.lua.LuaList;
+import com.aerospike.client.lua.LuaUtil;
+import com.aerospike.client.util.Unpacker;
+import io.dogre.aerospike.StorageEngine.RecordEntry;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaUserdata;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.ThreeArgFunction;
+import org.luaj.vm2.lib.TwoArgFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs record UDFs written in Lua, by the Lua interpreter of Aerospike Client.
+ * <p>
+ * Modules registered by <code>udf-put</code> are compiled once, and the compiled chunks are shared by all threads. Each
+ * thread has its own Lua state, because a Lua state is not thread-safe, and loads a module into it at the first call.
+ * So a call runs a cached function, without parsing or compiling. Each module is loaded into its own environment, so
+ * modules may define functions of the same name.
+ * <p>
+ * A UDF gets the record and arguments, and reads and writes the record by the record API of Aerospike:
+ * <code>rec[name]</code>, <code>aerospike:exists(rec)</code>, <code>aerospike:create(rec)</code>,
+ * <code>aerospike:update(rec)</code>, <code>aerospike:remove(rec)</code>, <code>record.ttl(rec)</code>,
+ * <code>record.gen(rec)</code>, <code>record.set_ttl(rec, ttl)</code>, <code>record.bin_names(rec)</code>,
+ * <code>record.setname(rec)</code> and <code>record.digest(rec)</code>. It runs while holding the lock of record, and
+ * its changes are written when it returns, so it is atomic.
+ *
+ * @author dogre
+ */
+public class LuaUdfEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(LuaUdfEngine.class);
+
+    /**
+     * Registered modules, by name.
+     */
+    private ConcurrentMap<String, Module> modules = new ConcurrentHashMap<>();
+
+    /**
+     * Generator of module generations. A module registered again has a new generation, and is loaded again.
+     */
+    private AtomicLong generations = new AtomicLong();
+
+    /**
+     * Lua states, by thread.
+     */
+    private ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+    /**
+     * Register a module, compiling it.
+     *
+     * @param name the name of module, the file name such as <code>example.lua</code>.
+     * @param source the source of module.
+     * @throws LuaError if failed to compile. The message is <code>chunk name:line: message</code>.
+     */
+    public void register(String name, byte[] source) {
+        String moduleName = toModuleName(name);
+        Prototype prototype;
+        try {
+            prototype = LuaC.instance.compile(new ByteArrayInputStream(source), moduleName);
+        } catch (LuaError e) {
+            throw e;
+        } catch (Exception e) {
+            throw new LuaError(e);
+        }
+        this.modules.put(moduleName, new Module(name, source, prototype, this.generations.incrementAndGet()));
+    }
+
+    /**
+     * Remove a module.
+     *
+     * @param name the name of module, the file name.
+     * @return <code>true</code> if removed.
+     */
+    public boolean remove(String name) {
+        return this.modules.remove(toModuleName(name)) != null;
+    }
+
+    /**
+     * Find a module.
+     *
+     * @param name the name of module, the file name.
+     * @return module. <code>null</code> if not exists.
+     */
+    public Module getModule(String name) {
+        return this.modules.get(toModuleName(name));
+    }
+
+    public Collection<Module> getModules() {
+        return this.modules.values();
+    }
+
+    /**
+     * The name of module is the file name without extension.
+     */
+    private static String toModuleName(String name) {
+        return name.endsWith(".lua") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    /**
+     * Call a function of module with a record.
+     *
+     * @param moduleName the name of module, without extension.
+     * @param functionName the name of function.
+     * @param arguments arguments, packed in a list.
+     * @param entry the entry of record, locked for write.
+     * @param key the key of record.
+     * @param expiration the expiration of written record, unless the function sets it.
+     * @return the return value of function.
+     * @throws AerospikeException if the module or the function doesn't exist, or the function raises an error.
+     */
+    public Value execute(String moduleName, String functionName, byte[] arguments, RecordEntry entry,
+            Key key, int expiration) {
+        Module module = this.modules.get(moduleName);
+        if (module == null) {
+            throw new AerospikeException(ResultCode.UDF_BAD_RESPONSE, "Module not found: " + moduleName);
+        }
+        State state = this.states.get();
+        LuaValue function = state.getEnvironment(module).get(functionName);
+        if (!function.isfunction()) {
+            throw new AerospikeException(ResultCode.UDF_BAD_RESPONSE, "Function not found: " + functionName);
+        }
+
+        List<?> values = arguments != null && 0 < arguments.length ?
+                (List<?>) Unpacker.unpackObjectList(arguments, 0, arguments.length) : new ArrayList<>();
+        LuaValue[] args = new LuaValue[values.size() + 1];
+        UdfRecord record = new UdfRecord(entry, key, expiration);
+        args[0] = new LuaUserdata(record, state.recordMetatable);
+        for (int i = 0; i < values.size(); i++) {
+            args[i + 1] = state.instance.getLuaValue(values.get(i));
+        }
+
+        Varargs result;
+        try {
+            result = function.invoke(LuaValue.varargsOf(args));
+        } catch (LuaError e) {
+            throw new AerospikeException(ResultCode.UDF_BAD_RESPONSE, e.getMessage());
+        }
+        Value value = toValue(result.arg1());
+        int resultCode = record.commit();
+        if (resultCode != ResultCode.OK) {
+            throw new AerospikeException(resultCode);
+        }
+        return value;
+    }
+
+    private static Value toValue(LuaValue value) {
+        if (value instanceof LuaUserdata && ((LuaUserdata) value).m_instance instanceof UdfRecord) {
+            // the record itself is not a value
+            return Value.getAsNull();
+        }
+        return Value.get(LuaUtil.luaToObject(value));
+    }
+
+    /**
+     * Registered module.
+     */
+    public static class Module {
+
+        /**
+         * The file name of module.
+         */
+        private String fileName;
+
+        private byte[] source;
+
+        /**
+         * Compiled chunk.
+         */
+        private Prototype prototype;
+
+        private long generation;
+
+        private String hash;
+
+        public Module(String fileName, byte[] source, Prototype prototype, long generation) {
+            this.fileName = fileName;
+            this.source = source;
+            this.prototype = prototype;
+            this.generation = generation;
+            this.hash = sha1(source);
+        }
+
+        private static String sha1(byte[] source) {
+            try {
+                StringBuilder hash = new StringBuilder();
+                for (byte b : MessageDigest.getInstance("SHA-1").digest(source)) {
+                    hash.append(String.format("%02x", b));
+                }
+                return hash.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public byte[] getSource() {
+            return source;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+    }
+
+    /**
+     * Lua state of a thread, and modules loaded into it.
+     */
+    private static class State {
+
+        private LuaInstance instance;
+
+        private Globals globals;
+
+        /**
+         * Metatable of records, which reads and writes bins.
+         */
+        private LuaTable recordMetatable;
+
+        /**
+         * Environments of loaded modules, by module.
+         */
+        private Map<Module, LuaTable> environments = new HashMap<>();
+
+        private State() {
+            this.instance = new LuaInstance();
+            this.globals = (Globals) this.instance.getPackage("_G");
+            this.instance.registerPackage("record", createRecordLib());
+            this.instance.registerPackage("aerospike", createAerospikeLib());
+
+            this.recordMetatable = new LuaTable();
+            this.recordMetatable.set("__index", new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue rec, LuaValue name) {
+                    return record(rec).getBin(name.checkjstring(), State.this.instance);
+                }
+            });
+            this.recordMetatable.set("__newindex", new ThreeArgFunction() {
+                @Override
+                public LuaValue call(LuaValue rec, LuaValue name, LuaValue value) {
+                    record(rec).setBin(name.checkjstring(), value);
+                    return NIL;
+                }
+            });
+        }
+
+        /**
+         * Get the environment of module, loading it if not loaded.
+         */
+        private LuaTable getEnvironment(Module module) {
+            LuaTable environment = this.environments.get(module);
+            if (environment == null) {
+                // modules registered again are unloaded
+                this.environments.keySet().removeIf(loaded -> loaded.fileName.equals(module.fileName));
+                environment = new LuaTable();
+                LuaTable metatable = new LuaTable();
+                metatable.set("__index", this.globals);
+                environment.setmetatable(metatable);
+                new LuaClosure(module.prototype, environment).call();
+                this.environments.put(module, environment);
+            }
+            return environment;
+        }
+
+        private LuaTable createRecordLib() {
+            LuaTable record = new LuaTable();
+            record.set("ttl", new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue rec) {
+                    StoredRecord current = record(rec).entry.getRecord();
+                    if (current == null || current.getVoidTime() == 0) {
+                        return valueOf(0);
+                    }
+                    return valueOf(Math.max(0, current.getVoidTime() - record(rec).entry.currentTime()));
+                }
+            });
+            record.set("gen", new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue rec) {
+                    StoredRecord current = record(rec).entry.getRecord();
+                    return valueOf(current != null ? current.getGeneration() : 0);
+                }
+            });
+            record.set("set_ttl", new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue rec, LuaValue ttl) {
+                    record(rec).expiration = ttl.checkint();
+                    return NIL;
+                }
+            });
+            record.set("bin_names", new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue rec) {
+                    List<LuaValue> names = new ArrayList<>();
+                    for (String name : record(rec).getBins().keySet()) {
+                        names.add(valueOf(name));
+                    }
+                    return new LuaList(State.this.instance, names);
+                }
+            });
+            record.set("setname", new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue rec) {
+                    StoredRecord current = record(rec).entry.getRecord();
+                    String setName = current != null ? current.getSetName() : record(rec).key.setName;
+                    return setName != null ? valueOf(setName) : NIL;
+                }
+            });
+            record.set("digest", new OneArgFunction() {
+                @Override
+                public LuaValue call(LuaValue rec) {
+                    return new LuaBytes(State.this.instance, record(rec).key.digest);
+                }
+            });
+            return record;
+        }
+
+        private LuaTable createAerospikeLib() {
+            LuaTable aerospike = new LuaTable();
+            aerospike.set("log", new ThreeArgFunction() {
+                @Override
+                public LuaValue call(LuaValue self, LuaValue level, LuaValue message) {
+                    if (level.toint() <= 1) {
+                        logger.warn(message.tojstring());
+                    } else if (level.toint() == 2) {
+                        logger.info(message.tojstring());
+                    } else {
+                        logger.debug(message.tojstring());
+                    }
+                    return NIL;
+                }
+            });
+            aerospike.set("exists", new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue self, LuaValue rec) {
+                    return valueOf(record(rec).exists());
+                }
+            });
+            aerospike.set("create", new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue self, LuaValue rec) {
+                    UdfRecord record = record(rec);
+                    if (record.exists()) {
+                        return valueOf(1);
+                    }
+                    record.update();
+                    return valueOf(0);
+                }
+            });
+            aerospike.set("update", new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue self, LuaValue rec) {
+                    record(rec).update();
+                    return valueOf(0);
+                }
+            });
+            aerospike.set("remove", new TwoArgFunction() {
+                @Override
+                public LuaValue call(LuaValue self, LuaValue rec) {
+                    record(rec).remove();
+                    return valueOf(0);
+                }
+            });
+            return aerospike;
+        }
+
+        private static UdfRecord record(LuaValue rec) {
+            return (UdfRecord) rec.checkuserdata(UdfRecord.class);
+        }
+
+    }
+
+    /**
+     * Record passed to UDF. Changes are kept until the UDF returns, and then written at once, so a UDF raising an
+     * error changes nothing.
+     */
+    private static class UdfRecord {
+
+        private RecordEntry entry;
+
+        private Key key;
+
+        /**
+         * The expiration of written record, in seconds.
+         */
+        private int expiration;
+
+        /**
+         * Bins, decoded at the first access. <code>null</code> until accessed.
+         */
+        private Map<String, Value> bins;
+
+        /**
+         * Whether the UDF created or updated the record.
+         */
+        private boolean updated;
+
+        /**
+         * Whether the UDF removed the record.
+         */
+        private boolean removed;
+
+        private UdfRecord(RecordEntry entry, Key key, int expiration) {
+            this.entry = entry;
+            this.key = key;
+            this.expiration = expiration;
+        }
+
+        private boolean exists() {
+            return this.updated || (!this.removed && this.entry.getRecord() != null);
+        }
+
+        private void update() {
+            getBins();
+            this.updated = true;
+            this.removed = false;
+        }
+
+        private void remove() {
+            this.bins = new LinkedHashMap<>();
+            this.updated = false;
+            this.removed = true;
+        }
+
+        private Map<String, Value> getBins() {
+            if (this.bins == null) {
+                StoredRecord current = this.entry.getRecord();
+                this.bins = current != null ? current.getBins() : new LinkedHashMap<>();
+            }
+            return this.bins;
+        }
+
+        private LuaValue getBin(String name, LuaInstance instance) {
+            Value value = getBins().get(name);
+            return value != null ? value.getLuaValue(instance) : LuaValue.NIL;
+        }
+
+        private void setBin(String name, LuaValue value) {
+            if (value.isnil()) {
+                getBins().remove(name);
+            } else {
+                getBins().put(name, Value.get(LuaUtil.luaToObject(value)));
+            }
+        }
+
+        /**
+         * Write the changes to the record.
+         *
+         * @return result code.
+         */
+        private int commit() {
+            StoredRecord current = this.entry.getRecord();
+            if (this.removed && current != null) {
+                this.entry.delete();
+            } else if (this.updated) {
+                String setName = this.key.setName != null ? this.key.setName :
+                        (current != null ? current.getSetName() : null);
+                if (!this.entry.put(setName, this.bins, this.expiration)) {
+                    return ResultCode.SERVER_MEM_ERROR;
+                }
+            }
+            return ResultCode.OK;
+        }
+
+    }
+
+}
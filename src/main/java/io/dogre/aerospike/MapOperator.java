@@ -0,0 +1,485 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Operation;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.Value;
+import com.aerospike.client.cdt.MapReturnType;
+import com.aerospike.client.cdt.MapWriteFlags;
+import com.aerospike.client.command.ParticleType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Applies CDT map operations, sent by <code>MapOperation</code> of Aerospike Client, to {@link PackedMap}.
+ * <p>
+ * Entries are selected through the index of map, so selecting by key, index, rank or a range of them takes logarithmic
+ * time, and the selected entries linear time on their count.
+ *
+ * @author dogre
+ */
+public class MapOperator {
+
+    private static final int SET_TYPE = 64;
+    private static final int ADD = 65;
+    private static final int ADD_ITEMS = 66;
+    private static final int PUT = 67;
+    private static final int PUT_ITEMS = 68;
+    private static final int REPLACE = 69;
+    private static final int REPLACE_ITEMS = 70;
+    private static final int INCREMENT = 73;
+    private static final int DECREMENT = 74;
+    private static final int CLEAR = 75;
+    private static final int REMOVE_BY_KEY = 76;
+    private static final int REMOVE_BY_INDEX = 77;
+    private static final int REMOVE_BY_RANK = 79;
+    private static final int REMOVE_BY_KEY_LIST = 81;
+    private static final int REMOVE_BY_VALUE = 82;
+    private static final int REMOVE_BY_VALUE_LIST = 83;
+    private static final int REMOVE_BY_KEY_INTERVAL = 84;
+    private static final int REMOVE_BY_INDEX_RANGE = 85;
+    private static final int REMOVE_BY_VALUE_INTERVAL = 86;
+    private static final int REMOVE_BY_RANK_RANGE = 87;
+    private static final int REMOVE_BY_KEY_REL_INDEX_RANGE = 88;
+    private static final int REMOVE_BY_VALUE_REL_RANK_RANGE = 89;
+    private static final int SIZE = 96;
+    private static final int GET_BY_KEY = 97;
+    private static final int GET_BY_INDEX = 98;
+    private static final int GET_BY_RANK = 100;
+    private static final int GET_BY_VALUE = 102;
+    private static final int GET_BY_KEY_INTERVAL = 103;
+    private static final int GET_BY_INDEX_RANGE = 104;
+    private static final int GET_BY_VALUE_INTERVAL = 105;
+    private static final int GET_BY_RANK_RANGE = 106;
+    private static final int GET_BY_KEY_LIST = 107;
+    private static final int GET_BY_VALUE_LIST = 108;
+    private static final int GET_BY_KEY_REL_INDEX_RANGE = 109;
+    private static final int GET_BY_VALUE_REL_RANK_RANGE = 110;
+
+    /**
+     * Whether the operation is a map operation. Map and list operations share operation types, and map commands start
+     * from {@link #SET_TYPE}.
+     *
+     * @param operation operation, <code>CDT_READ</code> or <code>CDT_MODIFY</code>.
+     * @return <code>true</code> if a map operation.
+     */
+    public static boolean isMapOperation(Operation operation) {
+        if (operation.value == null || operation.value.getType() != ParticleType.BLOB) {
+            return false;
+        }
+        byte[] bytes = (byte[]) operation.value.getObject();
+        return 2 <= bytes.length && SET_TYPE <= (((bytes[0] & 0xff) << 8) | (bytes[1] & 0xff));
+    }
+
+    /**
+     * Apply a map operation.
+     *
+     * @param operation operation, <code>CDT_READ</code> or <code>CDT_MODIFY</code>.
+     * @param bins bins to be modified. <code>null</code> if not writing.
+     * @param current the current record, read if not writing.
+     * @param output the consumer of result. Not called if the operation has no result.
+     * @return result code.
+     */
+    public static int apply(Operation operation, Map<String, Value> bins, StoredRecord current,
+            Consumer<Value> output) {
+        if (operation.value == null || operation.value.getType() != ParticleType.BLOB) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+        CdtArguments args = new CdtArguments((byte[]) operation.value.getObject());
+        boolean modify = operation.type == Operation.Type.CDT_MODIFY || operation.type == Operation.Type.MAP_MODIFY;
+        if (modify && bins == null) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+
+        Value value = bins != null ? bins.get(operation.binName) :
+                (current != null ? current.getBin(operation.binName) : null);
+        PackedMap map = PackedMap.of(value);
+        if (value != null && map == null) {
+            return ResultCode.BIN_TYPE_ERROR;
+        }
+        if (map == null) {
+            int flags = createFlags(args);
+            if (!modify || flags < 0) {
+                // no result for a missing bin
+                return ResultCode.OK;
+            }
+            map = new PackedMap(flags);
+        }
+
+        int resultCode = modify ? modify(map, args, output) : read(map, args, output);
+        if (modify && resultCode == ResultCode.OK) {
+            bins.put(operation.binName, map);
+        }
+        return resultCode;
+    }
+
+    /**
+     * Get the flags of map created by the command, from map policy.
+     *
+     * @return flags. <code>-1</code> if the command doesn't create the map.
+     */
+    private static int createFlags(CdtArguments args) {
+        switch (args.getCommand()) {
+            case SET_TYPE:
+            case ADD_ITEMS:
+            case PUT_ITEMS:
+                return (int) args.getLong(args.getCommand() == SET_TYPE ? 0 : 1, 0);
+            case ADD:
+            case PUT:
+            case INCREMENT:
+            case DECREMENT:
+                return (int) args.getLong(2, 0);
+            case REPLACE:
+            case REPLACE_ITEMS:
+                return 0;
+            default:
+                return -1;
+        }
+    }
+
+    private static int read(PackedMap map, CdtArguments args, Consumer<Value> output) {
+        if (args.getCommand() == SIZE) {
+            output.accept(Value.get(map.size()));
+            return ResultCode.OK;
+        }
+        return select(map, args, args.getCommand(), false, output);
+    }
+
+    private static int modify(PackedMap map, CdtArguments args, Consumer<Value> output) {
+        switch (args.getCommand()) {
+            case SET_TYPE:
+                map.setFlags((int) args.getLong(0, 0));
+                return ResultCode.OK;
+            case ADD:
+                return put(map, Collections.singletonList(new byte[][] { args.getBytes(0), args.getBytes(1) }),
+                        MapWriteFlags.CREATE_ONLY, output);
+            case PUT:
+                return put(map, Collections.singletonList(new byte[][] { args.getBytes(0), args.getBytes(1) }),
+                        (int) args.getLong(3, MapWriteFlags.DEFAULT), output);
+            case REPLACE:
+                return put(map, Collections.singletonList(new byte[][] { args.getBytes(0), args.getBytes(1) }),
+                        MapWriteFlags.UPDATE_ONLY, output);
+            case ADD_ITEMS:
+                return put(map, args.getEntries(0), MapWriteFlags.CREATE_ONLY, output);
+            case PUT_ITEMS:
+                return put(map, args.getEntries(0), (int) args.getLong(2, MapWriteFlags.DEFAULT), output);
+            case REPLACE_ITEMS:
+                return put(map, args.getEntries(0), MapWriteFlags.UPDATE_ONLY, output);
+            case INCREMENT:
+            case DECREMENT:
+                return increment(map, args, output);
+            case CLEAR:
+                map.clear();
+                return ResultCode.OK;
+            case REMOVE_BY_KEY:
+                return select(map, args, GET_BY_KEY, true, output);
+            case REMOVE_BY_INDEX:
+                return select(map, args, GET_BY_INDEX, true, output);
+            case REMOVE_BY_RANK:
+                return select(map, args, GET_BY_RANK, true, output);
+            case REMOVE_BY_KEY_LIST:
+                return select(map, args, GET_BY_KEY_LIST, true, output);
+            case REMOVE_BY_VALUE:
+                return select(map, args, GET_BY_VALUE, true, output);
+            case REMOVE_BY_VALUE_LIST:
+                return select(map, args, GET_BY_VALUE_LIST, true, output);
+            case REMOVE_BY_KEY_INTERVAL:
+                return select(map, args, GET_BY_KEY_INTERVAL, true, output);
+            case REMOVE_BY_INDEX_RANGE:
+                return select(map, args, GET_BY_INDEX_RANGE, true, output);
+            case REMOVE_BY_VALUE_INTERVAL:
+                return select(map, args, GET_BY_VALUE_INTERVAL, true, output);
+            case REMOVE_BY_RANK_RANGE:
+                return select(map, args, GET_BY_RANK_RANGE, true, output);
+            case REMOVE_BY_KEY_REL_INDEX_RANGE:
+                return select(map, args, GET_BY_KEY_REL_INDEX_RANGE, true, output);
+            case REMOVE_BY_VALUE_REL_RANK_RANGE:
+                return select(map, args, GET_BY_VALUE_REL_RANK_RANGE, true, output);
+            default:
+                return ResultCode.PARAMETER_ERROR;
+        }
+    }
+
+    /**
+     * Put entries, as permitted by write flags.
+     *
+     * @param map map.
+     * @param entries packed keys and values, in pairs.
+     * @param flags write flags.
+     * @param output the consumer of result, the size of map.
+     * @return result code.
+     */
+    private static int put(PackedMap map, List<byte[][]> entries, int flags, Consumer<Value> output) {
+        if (entries == null) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+        List<byte[][]> permitted = new ArrayList<>(entries.size());
+        for (byte[][] entry : entries) {
+            if (entry[0] == null || entry[1] == null) {
+                return ResultCode.PARAMETER_ERROR;
+            }
+            boolean exists = map.getEntry(entry[0]) != null;
+            if (exists && (flags & MapWriteFlags.CREATE_ONLY) != 0) {
+                if ((flags & MapWriteFlags.NO_FAIL) == 0) {
+                    return ResultCode.ELEMENT_EXISTS;
+                } else if ((flags & MapWriteFlags.PARTIAL) == 0) {
+                    // all or nothing
+                    permitted.clear();
+                    break;
+                }
+            } else if (!exists && (flags & MapWriteFlags.UPDATE_ONLY) != 0) {
+                if ((flags & MapWriteFlags.NO_FAIL) == 0) {
+                    return ResultCode.ELEMENT_NOT_FOUND;
+                } else if ((flags & MapWriteFlags.PARTIAL) == 0) {
+                    permitted.clear();
+                    break;
+                }
+            } else {
+                permitted.add(entry);
+            }
+        }
+        for (byte[][] entry : permitted) {
+            map.put(entry[0], entry[1]);
+        }
+        output.accept(Value.get(map.size()));
+        return ResultCode.OK;
+    }
+
+    private static int increment(PackedMap map, CdtArguments args, Consumer<Value> output) {
+        byte[] key = args.getBytes(0);
+        byte[] delta = args.getBytes(1);
+        if (key == null) {
+            return ResultCode.PARAMETER_ERROR;
+        } else if (delta == null || MessagePack.compare(delta, 0, MessagePack.NIL, 0) == 0) {
+            delta = MessagePack.pack(1);
+        }
+        boolean integer = MessagePack.isInteger(delta, 0);
+        if (!integer && !MessagePack.isDouble(delta, 0)) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+        long sign = args.getCommand() == DECREMENT ? -1 : 1;
+
+        Value result;
+        PackedMap.Entry entry = map.getEntry(key);
+        if (entry == null) {
+            result = integer ? Value.get(sign * MessagePack.readLong(delta, 0)) :
+                    Value.get(sign * MessagePack.readDouble(delta, 0));
+        } else if (integer && MessagePack.isInteger(entry.getBytes(), entry.getValueOffset())) {
+            result = Value.get(MessagePack.readLong(entry.getBytes(), entry.getValueOffset()) +
+                    sign * MessagePack.readLong(delta, 0));
+        } else if (!integer && MessagePack.isDouble(entry.getBytes(), entry.getValueOffset())) {
+            result = Value.get(MessagePack.readDouble(entry.getBytes(), entry.getValueOffset()) +
+                    sign * MessagePack.readDouble(delta, 0));
+        } else {
+            return ResultCode.BIN_TYPE_ERROR;
+        }
+        map.put(key, MessagePack.pack(result));
+        output.accept(result);
+        return ResultCode.OK;
+    }
+
+    /**
+     * Get, or remove, the entries selected by key, index, rank or value.
+     *
+     * @param map map.
+     * @param args arguments, the return type first.
+     * @param command the get command of selection.
+     * @param modify whether to remove the selected entries.
+     * @param output the consumer of result.
+     * @return result code.
+     */
+    private static int select(PackedMap map, CdtArguments args, int command, boolean modify,
+            Consumer<Value> output) {
+        int returnType = (int) args.getLong(0, MapReturnType.NONE);
+        byte[] value = args.getBytes(1);
+        boolean inverted = (returnType & MapReturnType.INVERTED) != 0;
+        returnType &= ~MapReturnType.INVERTED;
+        int size = map.size();
+
+        // selected entries, in the order of result
+        List<PackedMap.Entry> selected;
+        // whether the result is a single value, not a list
+        boolean single = false;
+        switch (command) {
+            case GET_BY_KEY: {
+                if (value == null) {
+                    return ResultCode.PARAMETER_ERROR;
+                }
+                PackedMap.Entry entry = map.getEntry(value);
+                selected = entry != null ? Collections.singletonList(entry) : Collections.emptyList();
+                single = true;
+                break;
+            }
+            case GET_BY_INDEX:
+            case GET_BY_RANK: {
+                int[] range = ListOperator.normalizeRange(size, args.getLong(1, 0), 1);
+                selected = command == GET_BY_INDEX ? map.getByIndexRange(range[0], range[1]) :
+                        map.getByRankRange(range[0], range[1]);
+                single = true;
+                break;
+            }
+            case GET_BY_INDEX_RANGE: {
+                int[] range = ListOperator.normalizeRange(size, args.getLong(1, 0), args.getLong(2, Integer.MAX_VALUE));
+                selected = map.getByIndexRange(range[0], range[1]);
+                break;
+            }
+            case GET_BY_RANK_RANGE: {
+                int[] range = ListOperator.normalizeRange(size, args.getLong(1, 0), args.getLong(2, Integer.MAX_VALUE));
+                selected = map.getByRankRange(range[0], range[1]);
+                break;
+            }
+            case GET_BY_KEY_INTERVAL: {
+                if (value == null) {
+                    return ResultCode.PARAMETER_ERROR;
+                }
+                byte[] end = args.getBytes(2);
+                selected = map.getByIndexRange(map.indexOf(value), end != null ? map.indexOf(end) : size);
+                break;
+            }
+            case GET_BY_VALUE: {
+                if (value == null) {
+                    return ResultCode.PARAMETER_ERROR;
+                }
+                selected = map.getByRankRange(map.rankOf(value, false), map.rankOf(value, true));
+                break;
+            }
+            case GET_BY_VALUE_INTERVAL: {
+                if (value == null) {
+                    return ResultCode.PARAMETER_ERROR;
+                }
+                byte[] end = args.getBytes(2);
+                selected = map.getByRankRange(map.rankOf(value, false), end != null ? map.rankOf(end, false) : size);
+                break;
+            }
+            case GET_BY_KEY_LIST: {
+                selected = new ArrayList<>();
+                for (byte[] key : args.getElements(1)) {
+                    PackedMap.Entry entry = map.getEntry(key);
+                    if (entry != null && !selected.contains(entry)) {
+                        selected.add(entry);
+                    }
+                }
+                selected.sort((entry1, entry2) -> Integer.compare(map.getIndex(entry1), map.getIndex(entry2)));
+                break;
+            }
+            case GET_BY_VALUE_LIST: {
+                selected = new ArrayList<>();
+                for (byte[] element : args.getElements(1)) {
+                    for (PackedMap.Entry entry : map.getByRankRange(map.rankOf(element, false),
+                            map.rankOf(element, true))) {
+                        if (!selected.contains(entry)) {
+                            selected.add(entry);
+                        }
+                    }
+                }
+                selected.sort((entry1, entry2) -> Integer.compare(map.getRank(entry1), map.getRank(entry2)));
+                break;
+            }
+            case GET_BY_KEY_REL_INDEX_RANGE:
+            case GET_BY_VALUE_REL_RANK_RANGE: {
+                if (value == null) {
+                    return ResultCode.PARAMETER_ERROR;
+                }
+                boolean byKey = command == GET_BY_KEY_REL_INDEX_RANGE;
+                // the index of key or the rank of value, the number of entries less than it
+                long from = (byKey ? map.indexOf(value) : map.rankOf(value, false)) + args.getLong(2, 0);
+                long count = args.getLong(3, Integer.MAX_VALUE);
+                if (from < 0) {
+                    count += from;
+                    from = 0;
+                }
+                int to = (int) Math.min(size, from + Math.max(0, count));
+                if (to <= from) {
+                    selected = Collections.emptyList();
+                } else {
+                    selected = byKey ? map.getByIndexRange((int) from, to) : map.getByRankRange((int) from, to);
+                }
+                break;
+            }
+            default:
+                return ResultCode.PARAMETER_ERROR;
+        }
+
+        if (inverted) {
+            Set<PackedMap.Entry> excluded = Collections.newSetFromMap(new IdentityHashMap<>());
+            excluded.addAll(selected);
+            selected = new ArrayList<>(size - excluded.size());
+            for (PackedMap.Entry entry : map.getByIndexRange(0, size)) {
+                if (!excluded.contains(entry)) {
+                    selected.add(entry);
+                }
+            }
+            single = false;
+        }
+
+        Value result = toResult(map, selected, returnType, single);
+        if (result == null && returnType != MapReturnType.NONE) {
+            return ResultCode.PARAMETER_ERROR;
+        }
+        if (modify) {
+            for (PackedMap.Entry entry : selected) {
+                map.remove(entry);
+            }
+        }
+        if (result != null) {
+            output.accept(result);
+        }
+        return ResultCode.OK;
+    }
+
+    private static Value toResult(PackedMap map, List<PackedMap.Entry> selected, int returnType, boolean single) {
+        if (single && selected.isEmpty() && returnType != MapReturnType.NONE &&
+                returnType != MapReturnType.COUNT) {
+            return Value.getAsNull();
+        }
+        int size = map.size();
+        switch (returnType) {
+            case MapReturnType.NONE:
+                return null;
+            case MapReturnType.COUNT:
+                return Value.get(selected.size());
+            case MapReturnType.KEY:
+            case MapReturnType.VALUE: {
+                boolean key = returnType == MapReturnType.KEY;
+                if (single) {
+                    return key ? selected.get(0).getKey() : selected.get(0).getValue();
+                }
+                PackedList result = new PackedList(0);
+                for (PackedMap.Entry entry : selected) {
+                    result.add(key ? entry.getPackedKey() : entry.getPackedValue());
+                }
+                return result;
+            }
+            case MapReturnType.KEY_VALUE:
+                return map.copyOf(selected);
+            case MapReturnType.INDEX:
+            case MapReturnType.REVERSE_INDEX:
+            case MapReturnType.RANK:
+            case MapReturnType.REVERSE_RANK: {
+                boolean rank = returnType == MapReturnType.RANK || returnType == MapReturnType.REVERSE_RANK;
+                boolean reverse = returnType == MapReturnType.REVERSE_INDEX ||
+                        returnType == MapReturnType.REVERSE_RANK;
+                PackedList result = new PackedList(0);
+                for (PackedMap.Entry entry : selected) {
+                    long position = rank ? map.getRank(entry) : map.getIndex(entry);
+                    if (reverse) {
+                        position = size - 1 - position;
+                    }
+                    if (single) {
+                        return Value.get(position);
+                    }
+                    result.add(MessagePack.pack(position));
+                }
+                return result;
+            }
+            default:
+                return null;
+        }
+    }
+
+}
@@ -0,0 +1,828 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Value;
+import io.dogre.aerospike.NamespaceConfig.EvictionPolicy;
+import io.dogre.aerospike.NamespaceConfig.StorageType;
+import io.dogre.aerospike.RecordStore.Partition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Default implementation of {@link StorageEngine}, which stores records in memory.
+ * <p>
+ * Records of all namespaces share the partitions of {@link RecordStore}, indexed by namespace id and digest. If the
+ * storage type of namespace is {@link StorageType#OFF_HEAP}, bins are kept in direct memory slabs within the memory
+ * size of namespace, and those slabs are compacted periodically by a background thread.
+ * <p>
+ * Expired records are removed lazily when they are accessed for write, and by the background thread with
+ * {@link TimingWheel}, similar to namespace supervisor of Aerospike Server.
+ * <p>
+ * Memory usage is estimated per record, as the size of index entry and bins. When it is over the high water mark, the
+ * background thread evicts records by {@link EvictionPolicy}. Like Aerospike Server, it builds a histogram of void
+ * times (or last access times), and evicts records below the cutoff that frees enough memory. When memory usage is
+ * over stop writes, writes fail. If the memory size of namespace is <code>0</code>, memory usage is not limited.
+ * <p>
+ * If the log directory is configured, committed writes and deletes are appended to {@link WriteAheadLog} while holding
+ * the write lock of record, and the log is replayed at startup. Commits wait for the log after releasing the lock, so
+ * concurrent commits are synced together. Expired records are not logged, because they are expired again at replay.
+ * If the snapshot file is configured, records are loaded from {@link Snapshot} before the log is replayed. Writing a
+ * snapshot to the file deletes the segments of log covered by it.
+ *
+ * @author dogre
+ */
+public class MemoryStorageEngine implements StorageEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryStorageEngine.class);
+
+    /**
+     * The interval of compaction in seconds.
+     */
+    public static final int COMPACTION_INTERVAL = 10;
+
+    /**
+     * The interval of expiration in seconds.
+     */
+    public static final int EXPIRATION_INTERVAL = 1;
+
+    /**
+     * The number of timing wheels, each for partitions of the same remainder, not to share a lock among all writes.
+     */
+    public static final int EXPIRATION_WHEELS = 16;
+
+    /**
+     * Estimated memory size of index entry per record, same as Aerospike Server.
+     */
+    public static final int INDEX_ENTRY_SIZE = 64;
+
+    /**
+     * The number of buckets of eviction histogram.
+     */
+    public static final int EVICTION_BUCKETS = 1024;
+
+    /**
+     * Records.
+     */
+    private RecordStore records;
+
+    /**
+     * The name of namespace.
+     */
+    private String namespace;
+
+    /**
+     * Namespace id in {@link #records}.
+     */
+    private int namespaceId;
+
+    /**
+     * Default time to live in seconds. <code>0</code> if never expires.
+     */
+    private int defaultTtl;
+
+    /**
+     * Memory size in bytes. <code>0</code> if unlimited.
+     */
+    private long memorySize;
+
+    /**
+     * High water mark of memory usage in bytes. {@link Long#MAX_VALUE} if unlimited.
+     */
+    private long highWaterMemory = Long.MAX_VALUE;
+
+    /**
+     * Stop writes of memory usage in bytes. {@link Long#MAX_VALUE} if unlimited.
+     */
+    private long stopWritesMemory = Long.MAX_VALUE;
+
+    /**
+     * Eviction policy.
+     */
+    private EvictionPolicy evictionPolicy;
+
+    /**
+     * Estimated memory usage in bytes.
+     */
+    private AtomicLong memoryUsed = new AtomicLong();
+
+    /**
+     * The number of records, including expired records not removed yet.
+     */
+    private AtomicLong objects = new AtomicLong();
+
+    /**
+     * The latest void time of records stored, the upper bound of eviction histogram under
+     * {@link EvictionPolicy#SOONEST_EXPIRING}.
+     */
+    private AtomicInteger maxVoidTime = new AtomicInteger();
+
+    /**
+     * The time when this engine started, the lower bound of eviction histogram under {@link EvictionPolicy#LRU}.
+     */
+    private int startTime;
+
+    /**
+     * Whether a record may be evictable. <code>false</code> if the last scan found nothing evictable, until a record
+     * evictable is stored.
+     */
+    private volatile boolean evictable = true;
+
+    /**
+     * The number of records removed by eviction.
+     */
+    private AtomicLong evictedObjects = new AtomicLong();
+
+    /**
+     * Secondary indexes.
+     */
+    private List<SecondaryIndex> indexes = new CopyOnWriteArrayList<>();
+
+    /**
+     * Allocator of direct memory. <code>null</code> if bins are stored on Java heap.
+     */
+    private SlabAllocator allocator;
+
+    /**
+     * Expirations of records, by partition id modulo {@link #EXPIRATION_WHEELS}.
+     */
+    private TimingWheel[] expirations = new TimingWheel[EXPIRATION_WHEELS];
+
+    /**
+     * The number of records removed by expiration.
+     */
+    private AtomicLong expiredObjects = new AtomicLong();
+
+    /**
+     * Executor for background tasks, expiration and compaction.
+     */
+    private ScheduledExecutorService backgroundExecutor;
+
+    /**
+     * Snapshot file loaded at startup. <code>null</code> if not configured.
+     */
+    private Path snapshotFile;
+
+    /**
+     * Clock of expiration.
+     */
+    private Clock clock;
+
+    /**
+     * Write-ahead log. <code>null</code> if records are not persisted.
+     */
+    private WriteAheadLog log;
+
+    /**
+     * Constructor.
+     *
+     * @param records records, shared by namespaces.
+     * @param config the configuration of namespace.
+     */
+    public MemoryStorageEngine(RecordStore records, NamespaceConfig config) {
+        this.records = records;
+        this.namespace = config.getName();
+        this.namespaceId = records.registerNamespace(config.getName());
+        this.defaultTtl = config.getDefaultTtl();
+        this.memorySize = config.getMemorySize();
+        if (0 < this.memorySize) {
+            this.highWaterMemory = this.memorySize / 100 * config.getHighWaterMemoryPct();
+            this.stopWritesMemory = this.memorySize / 100 * config.getStopWritesPct();
+        }
+        this.evictionPolicy = config.getEvictionPolicy();
+        this.clock = config.getClock();
+        this.startTime = currentTime();
+        for (int i = 0; i < EXPIRATION_WHEELS; i++) {
+            this.expirations[i] = new TimingWheel(currentTime());
+        }
+        if (config.getStorageType() == StorageType.OFF_HEAP) {
+            this.allocator = new SlabAllocator(config.getMemorySize());
+        }
+        this.snapshotFile = config.getSnapshotFile();
+        if (config.getSnapshotFile() != null && Files.exists(config.getSnapshotFile())) {
+            // the snapshot is the base, and the log has changes after it
+            try {
+                Snapshot.load(this, config.getSnapshotFile(), Runtime.getRuntime().availableProcessors());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (config.getLogDirectory() != null) {
+            // records are restored before the log is opened, so replay is not logged again
+            WriteAheadLog log = new WriteAheadLog(config.getLogDirectory().resolve(config.getName()),
+                    config.getSyncPolicy(), config.getLogSegmentSize());
+            log.replay(this::restore);
+            log.open(config.getSyncInterval());
+            this.log = log;
+        }
+        this.backgroundExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-" + config.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.backgroundExecutor.scheduleWithFixedDelay(() -> {
+            // an exception would cancel the task, so it is logged and the task goes on
+            try {
+                expire();
+                evict();
+            } catch (RuntimeException e) {
+                logger.error("Failed to expire or evict records of namespace {}", this.namespace, e);
+            }
+        }, EXPIRATION_INTERVAL, EXPIRATION_INTERVAL, TimeUnit.SECONDS);
+        if (this.allocator != null) {
+            this.backgroundExecutor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL, COMPACTION_INTERVAL,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public String getNamespace() {
+        return this.namespace;
+    }
+
+    @Override
+    public int currentTime() {
+        return StoredRecord.currentTime(this.clock);
+    }
+
+    @Override
+    public StoredRecord get(byte[] digest) {
+        return operate(digest, false, entry -> {
+            StoredRecord record = entry.getRecord();
+            if (record instanceof OffHeapRecord) {
+                // copy to Java heap, to be valid after unlock
+                record = new StoredRecord(record.getSetName(), record.getWireBins(), record.getBinCount(),
+                        record.getGeneration(), record.getVoidTime());
+            }
+            return record;
+        });
+    }
+
+    @Override
+    public boolean put(byte[] digest, String setName, Map<String, Value> bins, int expiration) {
+        return operate(digest, true, entry -> entry.put(setName, bins, expiration));
+    }
+
+    @Override
+    public boolean delete(byte[] digest) {
+        return operate(digest, true, RecordEntry::delete);
+    }
+
+    @Override
+    public <T> T operate(byte[] digest, boolean write, RecordFunction<T> function) {
+        Partition partition = this.records.getPartition(digest);
+        Lock lock = write ? partition.getLock().writeLock() : partition.getLock().readLock();
+        Entry entry = new Entry(partition, digest, write);
+        lock.lock();
+        try {
+            return function.apply(entry);
+        } finally {
+            lock.unlock();
+            if (entry.logPosition != 0) {
+                this.log.commit(entry.logPosition);
+            }
+        }
+    }
+
+    /**
+     * Restore a record, from a snapshot, the log or a backup. The record is logged only when the log is open, so
+     * records restored at start are not logged again.
+     *
+     * @param digest the digest of record.
+     * @param record the record put. <code>null</code> if deleted.
+     */
+    @Override
+    public void restore(byte[] digest, StoredRecord record) {
+        operate(digest, true, entry -> {
+            ((Entry) entry).restore(record);
+            return null;
+        });
+    }
+
+    @Override
+    public void forEach(int partitionId, RecordConsumer action) {
+        Partition partition = this.records.getPartition(partitionId);
+        int time = currentTime();
+        partition.getLock().readLock().lock();
+        try {
+            partition.forEach((namespaceId, digest, record) -> {
+                if (namespaceId == this.namespaceId && !record.isExpired(time)) {
+                    action.accept(digest, record);
+                }
+            });
+        } finally {
+            partition.getLock().readLock().unlock();
+        }
+    }
+
+    /**
+     * Write the records to a snapshot file. If the file is the snapshot file of namespace, the segments of log
+     * covered by the snapshot are deleted, because the snapshot is loaded before the log is replayed.
+     */
+    @Override
+    public long writeSnapshot(Path file) throws IOException {
+        if (this.log == null || this.snapshotFile == null ||
+                !file.toAbsolutePath().normalize().equals(this.snapshotFile.toAbsolutePath().normalize())) {
+            return Snapshot.write(this, file);
+        }
+        // changes before the rotation are in memory, so they are in the snapshot
+        long sequence = this.log.rotate();
+        long count = Snapshot.write(this, file);
+        this.log.deleteSegmentsBefore(sequence);
+        return count;
+    }
+
+    @Override
+    public long truncate(String setName) {
+        return removeIf((digest, record) -> setName == null || setName.equals(record.getSetName()));
+    }
+
+    /**
+     * Remove records which satisfy the filter, while holding the write lock of each partition.
+     *
+     * @param filter filter.
+     * @return the number of removed records.
+     */
+    private long removeIf(RecordPredicate filter) {
+        long removed = 0;
+        long[] logPosition = { 0 };
+        for (int i = 0; i < RecordStore.PARTITIONS; i++) {
+            Partition partition = this.records.getPartition(i);
+            partition.getLock().writeLock().lock();
+            try {
+                removed += partition.removeIf((namespaceId, digest, record) -> {
+                    if (namespaceId == this.namespaceId && filter.test(digest, record)) {
+                        this.memoryUsed.addAndGet(-memorySize(record));
+                        this.objects.decrementAndGet();
+                        updateIndexes(digest, record, null);
+                        if (this.log != null) {
+                            logPosition[0] = this.log.appendDelete(digest);
+                        }
+                        return true;
+                    }
+                    return false;
+                });
+            } finally {
+                partition.getLock().writeLock().unlock();
+            }
+        }
+        if (logPosition[0] != 0) {
+            this.log.commit(logPosition[0]);
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean createIndex(SecondaryIndex index) {
+        for (SecondaryIndex existing : this.indexes) {
+            if (existing.getName().equals(index.getName())) {
+                return false;
+            }
+        }
+        // writes after this update the index, so existing records are indexed after it
+        this.indexes.add(index);
+        for (int i = 0; i < RecordStore.PARTITIONS; i++) {
+            forEach(i, (digest, record) -> index.update(digest, null, record));
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean dropIndex(String indexName) {
+        for (SecondaryIndex index : this.indexes) {
+            if (index.getName().equals(indexName)) {
+                this.indexes.remove(index);
+                index.clear();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Collection<SecondaryIndex> getIndexes() {
+        return this.indexes;
+    }
+
+    /**
+     * Update secondary indexes for a change of record. Caller must hold the write lock of partition.
+     *
+     * @param digest the digest of record.
+     * @param previous the record before change. <code>null</code> if created.
+     * @param next the record after change. <code>null</code> if removed.
+     */
+    private void updateIndexes(byte[] digest, StoredRecord previous, StoredRecord next) {
+        for (SecondaryIndex index : this.indexes) {
+            index.update(digest, previous, next);
+        }
+    }
+
+    /**
+     * Get estimated memory size of record.
+     *
+     * @param record record.
+     * @return memory size in bytes.
+     */
+    private static long memorySize(StoredRecord record) {
+        return INDEX_ENTRY_SIZE + record.getWireLength();
+    }
+
+    /**
+     * Get statistics from counters, without scanning records. Expired records are counted until removed.
+     */
+    @Override
+    public StorageStats getStats() {
+        long objects = this.objects.get();
+        long memoryUsed = this.memoryUsed.get();
+        StorageStats stats = new StorageStats();
+        stats.setObjects(objects);
+        // counters are not updated together, so the difference may be off while records are written
+        stats.setUsedBytes(Math.max(0, memoryUsed - INDEX_ENTRY_SIZE * objects));
+        if (this.allocator != null) {
+            stats.setAllocatedBytes(this.allocator.getAllocatedBytes());
+        }
+        stats.setMemoryUsedBytes(memoryUsed);
+        stats.setMemorySize(this.memorySize);
+        stats.setStopWrites(this.stopWritesMemory <= memoryUsed);
+        stats.setExpiredObjects(this.expiredObjects.get());
+        stats.setEvictedObjects(this.evictedObjects.get());
+        return stats;
+    }
+
+    /**
+     * Remove records expired until now. Records are checked again, because they may be updated after scheduled.
+     * <p>
+     * A record has at most one live entry, whose void time is {@link StoredRecord#getScheduledTime()}. If the record
+     * lives longer than the entry, it is scheduled again by its void time. Other entries due are left by records
+     * deleted, and ignored.
+     */
+    public void expire() {
+        int time = currentTime();
+        byte[] digest = new byte[DigestIndex.DIGEST_LENGTH];
+        for (TimingWheel wheel : this.expirations) {
+            TimingWheel.Entries entries = wheel.advance(time);
+            for (int i = 0; i < entries.size(); i++) {
+                entries.getDigest(i, digest);
+                int scheduledTime = entries.getVoidTime(i);
+                operate(digest, true, entry -> {
+                    // getting for write removes the record if expired
+                    StoredRecord record = entry.getRecord();
+                    if (record != null && record.getScheduledTime() == scheduledTime) {
+                        ((Entry) entry).schedule(record, null);
+                    }
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * Get the number of expiration entries scheduled in timing wheels, including the entries of records updated or
+     * deleted after scheduled.
+     *
+     * @return the number of entries.
+     */
+    public long getScheduledExpirations() {
+        long count = 0;
+        for (TimingWheel wheel : this.expirations) {
+            count += wheel.size();
+        }
+        return count;
+    }
+
+    /**
+     * Evict records if memory usage is over the high water mark.
+     * <p>
+     * The histogram has buckets of fixed width, from now to the latest void time stored, or from the start of this
+     * engine to now for {@link EvictionPolicy#LRU}, so it is built in a scan. Keys out of the range, written or read
+     * while scanning, are counted in the first or the last bucket.
+     * <p>
+     * If a scan finds nothing evictable, e.g. no record has a ttl under {@link EvictionPolicy#SOONEST_EXPIRING},
+     * records are not scanned again until a record evictable is stored.
+     */
+    public void evict() {
+        long excess = this.memoryUsed.get() - this.highWaterMemory;
+        if (excess <= 0 || !this.evictable) {
+            return;
+        }
+        boolean lru = this.evictionPolicy == EvictionPolicy.LRU;
+
+        // histogram of memory by eviction key, and the cutoff to free the excess
+        int now = currentTime();
+        long min = lru ? this.startTime : now;
+        long max = lru ? now : this.maxVoidTime.get();
+        long width = Math.max(0, max - min) / EVICTION_BUCKETS + 1;
+        long[] histogram = new long[EVICTION_BUCKETS];
+        boolean[] found = { false };
+        for (int i = 0; i < RecordStore.PARTITIONS; i++) {
+            forEach(i, (digest, record) -> {
+                if (lru || record.getVoidTime() != 0) {
+                    int key = lru ? record.getLastAccessTime() : record.getVoidTime();
+                    int bucket = (int) Math.min(Math.max(0, (key - min) / width), EVICTION_BUCKETS - 1);
+                    histogram[bucket] += memorySize(record);
+                    found[0] = true;
+                }
+            });
+        }
+        if (!found[0]) {
+            this.evictable = false;
+            return;
+        }
+        int buckets = 0;
+        long freed = 0;
+        while (buckets < EVICTION_BUCKETS && freed < excess) {
+            freed += histogram[buckets++];
+        }
+        // the last bucket has all keys beyond the range
+        long cutoff = buckets < EVICTION_BUCKETS ? min + buckets * width : Long.MAX_VALUE;
+
+        long evicted = removeIf((digest, record) -> {
+            if (lru || record.getVoidTime() != 0) {
+                int key = lru ? record.getLastAccessTime() : record.getVoidTime();
+                return key < cutoff;
+            }
+            return false;
+        });
+        this.evictedObjects.addAndGet(evicted);
+    }
+
+    /**
+     * Get void time of write.
+     *
+     * @param expiration expiration of write.
+     * @param current current record. <code>null</code> if not exists.
+     * @return void time. <code>0</code> if never expires.
+     */
+    private int voidTime(int expiration, StoredRecord current) {
+        if (expiration == EXPIRATION_DONT_UPDATE && current != null) {
+            return current.getVoidTime();
+        }
+        int ttl = (expiration == EXPIRATION_NAMESPACE_DEFAULT || expiration == EXPIRATION_DONT_UPDATE) ?
+                this.defaultTtl : expiration;
+        return ttl <= 0 ? 0 : currentTime() + ttl;
+    }
+
+    /**
+     * Compact direct memory.
+     * <p>
+     * Records in sparse slabs are moved to other slabs, while holding the write lock of each partition, so that the
+     * sparse slabs are released. This must not be called while holding the lock of any partition.
+     */
+    public void compact() {
+        if (this.allocator == null || !this.allocator.beginCompaction()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < RecordStore.PARTITIONS; i++) {
+                Partition partition = this.records.getPartition(i);
+                partition.getLock().writeLock().lock();
+                try {
+                    partition.forEach((namespaceId, digest, record) -> {
+                        if (namespaceId == this.namespaceId && ((OffHeapRecord) record).isEvacuating()) {
+                            ((OffHeapRecord) record).relocate();
+                        }
+                    });
+                } finally {
+                    partition.getLock().writeLock().unlock();
+                }
+            }
+        } finally {
+            this.allocator.endCompaction();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.backgroundExecutor.shutdownNow();
+        if (this.log != null) {
+            this.log.close();
+        }
+    }
+
+    /**
+     * Record entry in partition, used while holding the lock of partition.
+     */
+    private class Entry implements RecordEntry {
+
+        private Partition partition;
+
+        private byte[] digest;
+
+        private boolean write;
+
+        /**
+         * The position of log after the changes of this entry. <code>0</code> if not logged.
+         */
+        private long logPosition;
+
+        private Entry(Partition partition, byte[] digest, boolean write) {
+            this.partition = partition;
+            this.digest = digest;
+            this.write = write;
+        }
+
+        @Override
+        public int currentTime() {
+            return MemoryStorageEngine.this.currentTime();
+        }
+
+        @Override
+        public StoredRecord getRecord() {
+            StoredRecord record = this.partition.get(namespaceId, this.digest);
+            if (record != null && record.getVoidTime() != 0 && record.isExpired(currentTime())) {
+                if (this.write) {
+                    updateIndexes(this.digest, record, null);
+                    this.partition.remove(namespaceId, this.digest);
+                    memoryUsed.addAndGet(-memorySize(record));
+                    objects.decrementAndGet();
+                    expiredObjects.incrementAndGet();
+                }
+                return null;
+            }
+            if (record != null && evictionPolicy == EvictionPolicy.LRU) {
+                // written at most once a second per record, since it is volatile
+                int time = currentTime();
+                if (record.getLastAccessTime() != time) {
+                    record.setLastAccessTime(time);
+                }
+            }
+            return record;
+        }
+
+        @Override
+        public boolean put(String setName, Map<String, Value> bins, int expiration) {
+            checkWrite();
+            if (stopWritesMemory <= memoryUsed.get()) {
+                return false;
+            }
+            StoredRecord current = getRecord();
+            int voidTime = voidTime(expiration, current);
+            int generation = current != null ? current.nextGeneration() : 1;
+            return put(current, StoredRecord.of(records.internSetName(setName), bins, generation, voidTime));
+        }
+
+        @Override
+        public boolean put(String setName, byte[] bins, int offset, int length, boolean replace, int expiration) {
+            checkWrite();
+            if (stopWritesMemory <= memoryUsed.get()) {
+                return false;
+            }
+            StoredRecord current = getRecord();
+            int voidTime = voidTime(expiration, current);
+            int generation = current != null ? current.nextGeneration() : 1;
+            return put(current, StoredRecord.merge(replace ? null : current, records.internSetName(setName), bins,
+                    offset, length, generation, voidTime));
+        }
+
+        /**
+         * Store and log a record, replacing the current record.
+         *
+         * @param current the current record. <code>null</code> if not exists.
+         * @param record record on Java heap.
+         * @return <code>false</code> if there is no space for the record.
+         * @throws AerospikeException if the record is too big to be logged.
+         */
+        private boolean put(StoredRecord current, StoredRecord record) {
+            if (log != null) {
+                // rejected before stored, not to keep a record which is not logged
+                WriteAheadLog.checkPut(record);
+            }
+            if (!store(current, record)) {
+                return false;
+            }
+            if (log != null) {
+                this.logPosition = log.appendPut(this.digest, record);
+            }
+            return true;
+        }
+
+        /**
+         * Restore a record as it was. Expired records are removed.
+         *
+         * @param replayed the record put. <code>null</code> if deleted.
+         */
+        private void restore(StoredRecord replayed) {
+            StoredRecord current = getRecord();
+            if (replayed == null || replayed.isExpired(currentTime())) {
+                if (current != null) {
+                    delete();
+                }
+                return;
+            }
+            StoredRecord record = new StoredRecord(records.internSetName(replayed.getSetName()),
+                    replayed.getWireBins(), replayed.getBinCount(), replayed.getGeneration(), replayed.getVoidTime());
+            if (log != null) {
+                WriteAheadLog.checkPut(record);
+            }
+            if (!store(current, record)) {
+                throw new IllegalStateException("No space to restore records of namespace " + namespace);
+            }
+            if (log != null) {
+                this.logPosition = log.appendPut(this.digest, record);
+            }
+        }
+
+        /**
+         * Store a record, replacing the current record.
+         *
+         * @param current the current record. <code>null</code> if not exists.
+         * @param record record on Java heap.
+         * @return <code>false</code> if there is no space for the record.
+         */
+        private boolean store(StoredRecord current, StoredRecord record) {
+            int voidTime = record.getVoidTime();
+            if (allocator != null) {
+                record = OffHeapRecord.of(allocator, record);
+                if (record == null) {
+                    return false;
+                }
+            }
+            if (evictionPolicy == EvictionPolicy.LRU) {
+                record.setLastAccessTime(currentTime());
+            }
+            // the current record is released by put, so indexes are updated before
+            updateIndexes(this.digest, current, record);
+            this.partition.put(namespaceId, this.digest, record);
+            memoryUsed.addAndGet(memorySize(record) - (current != null ? memorySize(current) : 0));
+            if (current == null) {
+                objects.incrementAndGet();
+            }
+            if (maxVoidTime.get() < voidTime) {
+                maxVoidTime.accumulateAndGet(voidTime, Math::max);
+            }
+            if (!evictable && (evictionPolicy == EvictionPolicy.LRU || voidTime != 0)) {
+                evictable = true;
+            }
+            schedule(record, current);
+            return true;
+        }
+
+        /**
+         * Schedule the expiration of record, keeping at most one live entry for it. A new entry is scheduled only if
+         * there is no live entry, or the void time is earlier than it. Otherwise, the record is scheduled again when
+         * the live entry is due.
+         *
+         * @param record record stored.
+         * @param previous the previous record, whose live entry is carried over. <code>null</code> if not exists.
+         */
+        private void schedule(StoredRecord record, StoredRecord previous) {
+            int scheduledTime = previous != null ? previous.getScheduledTime() : 0;
+            int voidTime = record.getVoidTime();
+            if (voidTime != 0 && (scheduledTime == 0 || voidTime < scheduledTime)) {
+                expirations[this.partition.getId() % EXPIRATION_WHEELS].schedule(this.digest, 0, voidTime);
+                scheduledTime = voidTime;
+            }
+            record.setScheduledTime(scheduledTime);
+        }
+
+        @Override
+        public boolean delete() {
+            checkWrite();
+            StoredRecord current = this.partition.get(namespaceId, this.digest);
+            if (current == null) {
+                return false;
+            }
+            updateIndexes(this.digest, current, null);
+            this.partition.remove(namespaceId, this.digest);
+            memoryUsed.addAndGet(-memorySize(current));
+            objects.decrementAndGet();
+            if (log != null) {
+                this.logPosition = log.appendDelete(this.digest);
+            }
+            return true;
+        }
+
+        private void checkWrite() {
+            if (!this.write) {
+                throw new IllegalStateException("Record is not operated for write");
+            }
+        }
+
+    }
+
+    /**
+     * Filter for a record.
+     */
+    @FunctionalInterface
+    private interface RecordPredicate {
+
+        boolean test(byte[] digest, StoredRecord record);
+
+    }
+
+}
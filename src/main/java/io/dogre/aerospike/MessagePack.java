@@ -0,0 +1,540 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.Value;
+import com.aerospike.client.command.Buffer;
+import com.aerospike.client.command.ParticleType;
+import com.aerospike.client.util.Packer;
+import com.aerospike.client.util.Unpacker;
+
+/**
+ * Helper class for reading and writing values in MessagePack, the format of list and map bins.
+ * <p>
+ * Elements of list and map are walked and compared in their packed form, without being decoded. Strings and blobs
+ * are packed with a leading particle type byte, as Aerospike does.
+ *
+ * @author dogre
+ */
+public class MessagePack {
+
+    /**
+     * The order of types, same as Aerospike Server. Values of different types are compared by this.
+     */
+    private static final int ORDER_NIL = 1;
+
+    private static final int ORDER_BOOLEAN = 2;
+
+    private static final int ORDER_INTEGER = 3;
+
+    private static final int ORDER_STRING = 4;
+
+    private static final int ORDER_LIST = 5;
+
+    private static final int ORDER_MAP = 6;
+
+    private static final int ORDER_BYTES = 7;
+
+    private static final int ORDER_DOUBLE = 8;
+
+    private static final int ORDER_GEOJSON = 9;
+
+    private static final int ORDER_EXTENSION = 10;
+
+    /**
+     * Infinity, packed by {@link Value#INFINITY}. Greater than any other value.
+     */
+    private static final int ORDER_INFINITY = 11;
+
+    /**
+     * The packed nil.
+     */
+    public static final byte[] NIL = { (byte) 0xc0 };
+
+    /**
+     * Get the offset right after the value.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of value.
+     * @return the offset of next value.
+     */
+    public static int skip(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        if (type < 0x80 || 0xe0 <= type) {
+            // positive or negative fixint
+            return offset + 1;
+        } else if (type < 0x90) {
+            // fixmap
+            return skip(bytes, offset + 1, (type & 0x0f) * 2);
+        } else if (type < 0xa0) {
+            // fixarray
+            return skip(bytes, offset + 1, type & 0x0f);
+        } else if (type < 0xc0) {
+            // fixstr
+            return offset + 1 + (type & 0x1f);
+        }
+        switch (type) {
+            case 0xc0:
+            case 0xc2:
+            case 0xc3:
+                return offset + 1;
+            case 0xc4:
+            case 0xd9:
+                return offset + 2 + (bytes[offset + 1] & 0xff);
+            case 0xc5:
+            case 0xda:
+                return offset + 3 + Buffer.bytesToShort(bytes, offset + 1);
+            case 0xc6:
+            case 0xdb:
+                return offset + 5 + Buffer.bytesToInt(bytes, offset + 1);
+            case 0xc7:
+                return offset + 3 + (bytes[offset + 1] & 0xff);
+            case 0xc8:
+                return offset + 4 + Buffer.bytesToShort(bytes, offset + 1);
+            case 0xc9:
+                return offset + 6 + Buffer.bytesToInt(bytes, offset + 1);
+            case 0xca:
+                return offset + 5;
+            case 0xcb:
+                return offset + 9;
+            case 0xcc:
+            case 0xd0:
+                return offset + 2;
+            case 0xcd:
+            case 0xd1:
+                return offset + 3;
+            case 0xce:
+            case 0xd2:
+                return offset + 5;
+            case 0xcf:
+            case 0xd3:
+                return offset + 9;
+            case 0xd4:
+                return offset + 3;
+            case 0xd5:
+                return offset + 4;
+            case 0xd6:
+                return offset + 6;
+            case 0xd7:
+                return offset + 10;
+            case 0xd8:
+                return offset + 18;
+            case 0xdc:
+                return skip(bytes, offset + 3, Buffer.bytesToShort(bytes, offset + 1));
+            case 0xdd:
+                return skip(bytes, offset + 5, Buffer.bytesToInt(bytes, offset + 1));
+            case 0xde:
+                return skip(bytes, offset + 3, Buffer.bytesToShort(bytes, offset + 1) * 2);
+            case 0xdf:
+                return skip(bytes, offset + 5, Buffer.bytesToInt(bytes, offset + 1) * 2);
+            default:
+                throw new AerospikeException(ResultCode.PARAMETER_ERROR, "Unknown pack type : " + type);
+        }
+    }
+
+    private static int skip(byte[] bytes, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            offset = skip(bytes, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Whether the value is an array.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of value.
+     * @return <code>true</code> if array.
+     */
+    public static boolean isArray(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        return (type & 0xf0) == 0x90 || type == 0xdc || type == 0xdd;
+    }
+
+    /**
+     * Whether the value is a map.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of value.
+     * @return <code>true</code> if map.
+     */
+    public static boolean isMap(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        return (type & 0xf0) == 0x80 || type == 0xde || type == 0xdf;
+    }
+
+    /**
+     * Read the number of elements of array, or the number of entries of map.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of array or map.
+     * @return the number of elements or entries.
+     */
+    public static int readCount(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        if (type == 0xdc || type == 0xde) {
+            return Buffer.bytesToShort(bytes, offset + 1);
+        } else if (type == 0xdd || type == 0xdf) {
+            return Buffer.bytesToInt(bytes, offset + 1);
+        }
+        return type & 0x0f;
+    }
+
+    /**
+     * Get the length of the header of array or map.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of array or map.
+     * @return the length of header.
+     */
+    public static int readHeaderLength(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        if (type == 0xdc || type == 0xde) {
+            return 3;
+        } else if (type == 0xdd || type == 0xdf) {
+            return 5;
+        }
+        return 1;
+    }
+
+    /**
+     * Get the length of the header of array or map.
+     *
+     * @param count the number of elements or entries.
+     * @return the length of header.
+     */
+    public static int headerLength(int count) {
+        return count < 16 ? 1 : (count < 0x10000 ? 3 : 5);
+    }
+
+    /**
+     * Write the header of array.
+     *
+     * @param count the number of elements.
+     * @param bytes destination.
+     * @param offset the offset of destination.
+     * @return the length of header.
+     */
+    public static int writeArrayHeader(int count, byte[] bytes, int offset) {
+        return writeHeader(0x90, 0xdc, count, bytes, offset);
+    }
+
+    /**
+     * Write the header of map.
+     *
+     * @param count the number of entries.
+     * @param bytes destination.
+     * @param offset the offset of destination.
+     * @return the length of header.
+     */
+    public static int writeMapHeader(int count, byte[] bytes, int offset) {
+        return writeHeader(0x80, 0xde, count, bytes, offset);
+    }
+
+    private static int writeHeader(int fixType, int type16, int count, byte[] bytes, int offset) {
+        if (count < 16) {
+            bytes[offset] = (byte) (fixType | count);
+            return 1;
+        } else if (count < 0x10000) {
+            bytes[offset] = (byte) type16;
+            Buffer.shortToBytes(count, bytes, offset + 1);
+            return 3;
+        }
+        bytes[offset] = (byte) (type16 + 1);
+        Buffer.intToBytes(count, bytes, offset + 1);
+        return 5;
+    }
+
+    /**
+     * Whether the value is the extension header of ordered list or map, which Aerospike puts as the first element.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of value.
+     * @return <code>true</code> if the extension header.
+     */
+    public static boolean isExtensionHeader(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) == 0xc7 && bytes[offset + 1] == 0;
+    }
+
+    /**
+     * Read the flags of the extension header, such as order.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of the extension header.
+     * @return flags.
+     */
+    public static int readExtensionFlags(byte[] bytes, int offset) {
+        return bytes[offset + 2] & 0xff;
+    }
+
+    /**
+     * Write the extension header, an empty extension whose type is flags.
+     *
+     * @param flags flags.
+     * @param bytes destination.
+     * @param offset the offset of destination.
+     * @return the length of the extension header, always <code>3</code>.
+     */
+    public static int writeExtensionHeader(int flags, byte[] bytes, int offset) {
+        bytes[offset] = (byte) 0xc7;
+        bytes[offset + 1] = 0;
+        bytes[offset + 2] = (byte) flags;
+        return 3;
+    }
+
+    /**
+     * Whether the value is an integer.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of value.
+     * @return <code>true</code> if integer.
+     */
+    public static boolean isInteger(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        return type < 0x80 || 0xe0 <= type || (0xcc <= type && type <= 0xd3);
+    }
+
+    /**
+     * Whether the value is a floating point number.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of value.
+     * @return <code>true</code> if floating point number.
+     */
+    public static boolean isDouble(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        return type == 0xca || type == 0xcb;
+    }
+
+    /**
+     * Read an integer.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of integer. It must be an integer.
+     * @return the value.
+     */
+    public static long readLong(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        switch (type) {
+            case 0xcc:
+                return bytes[offset + 1] & 0xff;
+            case 0xcd:
+                return Buffer.bytesToShort(bytes, offset + 1);
+            case 0xce:
+                return Buffer.bigUnsigned32ToLong(bytes, offset + 1);
+            case 0xcf:
+            case 0xd3:
+                return Buffer.bytesToLong(bytes, offset + 1);
+            case 0xd0:
+                return bytes[offset + 1];
+            case 0xd1:
+                return Buffer.bigSigned16ToShort(bytes, offset + 1);
+            case 0xd2:
+                return Buffer.bytesToInt(bytes, offset + 1);
+            default:
+                return (byte) type;
+        }
+    }
+
+    /**
+     * Read a floating point number.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of number. It must be a floating point number.
+     * @return the value.
+     */
+    public static double readDouble(byte[] bytes, int offset) {
+        if ((bytes[offset] & 0xff) == 0xca) {
+            return Float.intBitsToFloat(Buffer.bytesToInt(bytes, offset + 1));
+        }
+        return Double.longBitsToDouble(Buffer.bytesToLong(bytes, offset + 1));
+    }
+
+    /**
+     * Pack a value.
+     *
+     * @param value value.
+     * @return packed bytes.
+     */
+    public static byte[] pack(Value value) {
+        Packer packer = new Packer();
+        value.pack(packer);
+        return packer.toByteArray();
+    }
+
+    /**
+     * Pack an integer.
+     *
+     * @param value value.
+     * @return packed bytes.
+     */
+    public static byte[] pack(long value) {
+        Packer packer = new Packer();
+        packer.packLong(value);
+        return packer.toByteArray();
+    }
+
+    /**
+     * Decode a value into {@link Value}. Lists and maps are not decoded, but wrapped by {@link PackedList} and
+     * {@link PackedMap}.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of value.
+     * @param length the length of value.
+     * @return value.
+     */
+    public static Value toValue(byte[] bytes, int offset, int length) {
+        if (isArray(bytes, offset)) {
+            return PackedList.wrap(bytes, offset, length);
+        } else if (isMap(bytes, offset)) {
+            return PackedMap.wrap(bytes, offset, length);
+        }
+        return Value.get(Unpacker.unpackObject(bytes, offset, length));
+    }
+
+    /**
+     * Compare two values in the order of Aerospike Server.
+     * <p>
+     * Values of different types are ordered by type: nil, boolean, integer, string, list, map, blob, double and
+     * GeoJSON. Integers and doubles are compared numerically, strings and blobs byte by byte, lists element by element
+     * and maps by size and then entry by entry.
+     *
+     * @param bytes1 packed bytes of the first value.
+     * @param offset1 the offset of the first value.
+     * @param bytes2 packed bytes of the second value.
+     * @param offset2 the offset of the second value.
+     * @return negative, zero or positive, if the first value is less than, equal to or greater than the second.
+     */
+    public static int compare(byte[] bytes1, int offset1, byte[] bytes2, int offset2) {
+        int order1 = order(bytes1, offset1);
+        int order2 = order(bytes2, offset2);
+        if (order1 != order2) {
+            return Integer.compare(order1, order2);
+        }
+        switch (order1) {
+            case ORDER_BOOLEAN:
+                return Integer.compare(bytes1[offset1] & 0xff, bytes2[offset2] & 0xff);
+            case ORDER_INTEGER:
+                return Long.compare(readLong(bytes1, offset1), readLong(bytes2, offset2));
+            case ORDER_DOUBLE:
+                return Double.compare(readDouble(bytes1, offset1), readDouble(bytes2, offset2));
+            case ORDER_STRING:
+            case ORDER_BYTES:
+            case ORDER_GEOJSON:
+                return compareRaw(bytes1, offset1, bytes2, offset2);
+            case ORDER_LIST:
+                return compareElements(bytes1, offset1, bytes2, offset2, false);
+            case ORDER_MAP:
+                return compareElements(bytes1, offset1, bytes2, offset2, true);
+            default:
+                return 0;
+        }
+    }
+
+    private static int order(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        if (isInteger(bytes, offset)) {
+            return ORDER_INTEGER;
+        } else if (isArray(bytes, offset)) {
+            return ORDER_LIST;
+        } else if (isMap(bytes, offset)) {
+            return ORDER_MAP;
+        } else if (isDouble(bytes, offset)) {
+            return ORDER_DOUBLE;
+        }
+        switch (type) {
+            case 0xc0:
+                return ORDER_NIL;
+            case 0xc2:
+            case 0xc3:
+                return ORDER_BOOLEAN;
+            case 0xd4:
+                // infinity and wildcard are packed as fixext 1 of type 0xff
+                return bytes[offset + 1] == (byte) 0xff ? ORDER_INFINITY : ORDER_EXTENSION;
+            default:
+                break;
+        }
+        int rawOffset = rawOffset(bytes, offset);
+        if (rawOffset < 0) {
+            return ORDER_EXTENSION;
+        }
+        int particleType = rawOffset < skip(bytes, offset) ? bytes[rawOffset] : ParticleType.BLOB;
+        if (particleType == ParticleType.STRING) {
+            return ORDER_STRING;
+        } else if (particleType == ParticleType.GEOJSON) {
+            return ORDER_GEOJSON;
+        }
+        return ORDER_BYTES;
+    }
+
+    /**
+     * Get the offset of the content of string or blob.
+     *
+     * @param bytes packed bytes.
+     * @param offset the offset of value.
+     * @return the offset of content. <code>-1</code> if not string or blob.
+     */
+    private static int rawOffset(byte[] bytes, int offset) {
+        int type = bytes[offset] & 0xff;
+        if ((type & 0xe0) == 0xa0) {
+            return offset + 1;
+        }
+        switch (type) {
+            case 0xc4:
+            case 0xd9:
+                return offset + 2;
+            case 0xc5:
+            case 0xda:
+                return offset + 3;
+            case 0xc6:
+            case 0xdb:
+                return offset + 5;
+            default:
+                return -1;
+        }
+    }
+
+    private static int compareRaw(byte[] bytes1, int offset1, byte[] bytes2, int offset2) {
+        int start1 = rawOffset(bytes1, offset1);
+        int end1 = skip(bytes1, offset1);
+        int start2 = rawOffset(bytes2, offset2);
+        int end2 = skip(bytes2, offset2);
+        int length = Math.min(end1 - start1, end2 - start2);
+        for (int i = 0; i < length; i++) {
+            int result = (bytes1[start1 + i] & 0xff) - (bytes2[start2 + i] & 0xff);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(end1 - start1, end2 - start2);
+    }
+
+    private static int compareElements(byte[] bytes1, int offset1, byte[] bytes2, int offset2, boolean map) {
+        int count1 = readCount(bytes1, offset1);
+        int count2 = readCount(bytes2, offset2);
+        offset1 += readHeaderLength(bytes1, offset1);
+        offset2 += readHeaderLength(bytes2, offset2);
+        if (0 < count1 && isExtensionHeader(bytes1, offset1)) {
+            offset1 = skip(bytes1, offset1, map ? 2 : 1);
+            count1--;
+        }
+        if (0 < count2 && isExtensionHeader(bytes2, offset2)) {
+            offset2 = skip(bytes2, offset2, map ? 2 : 1);
+            count2--;
+        }
+        if (map && count1 != count2) {
+            return Integer.compare(count1, count2);
+        }
+        int count = Math.min(count1, count2) * (map ? 2 : 1);
+        for (int i = 0; i < count; i++) {
+            int result = compare(bytes1, offset1, bytes2, offset2);
+            if (result != 0) {
+                return result;
+            }
+            offset1 = skip(bytes1, offset1);
+            offset2 = skip(bytes2, offset2);
+        }
+        return Integer.compare(count1, count2);
+    }
+
+}
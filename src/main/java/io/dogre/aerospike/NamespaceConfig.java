@@ -0,0 +1,260 @@
+package io.dogre.aerospike;
+
+import java.nio.file.Path;
+import java.time.Clock;
+
+/**
+ * Configuration of namespace.
+ *
+ * @author dogre
+ */
+public class NamespaceConfig {
+
+    /**
+     * Storage type of namespace.
+     */
+    public enum StorageType {
+
+        /**
+         * Records are stored on Java heap.
+         */
+        MEMORY,
+
+        /**
+         * Records are stored in direct memory slabs, out of Java heap. Only the index is on Java heap.
+         */
+        OFF_HEAP
+
+    }
+
+    /**
+     * Policy to choose records to evict, when memory usage is over the high water mark.
+     */
+    public enum EvictionPolicy {
+
+        /**
+         * Records expiring soonest are evicted. Records never expire are not evicted, same as Aerospike Server.
+         */
+        SOONEST_EXPIRING,
+
+        /**
+         * Records least recently accessed are evicted.
+         */
+        LRU
+
+    }
+
+    /**
+     * When the write-ahead log is forced to storage.
+     */
+    public enum SyncPolicy {
+
+        /**
+         * The log is written to the file system at intervals, and forced by the operating system.
+         */
+        NONE,
+
+        /**
+         * The log is forced at intervals. Commits of the last interval may be lost by a crash.
+         */
+        INTERVAL,
+
+        /**
+         * Each commit waits until the log is forced. Commits of concurrent writes are forced together.
+         */
+        EVERY_COMMIT
+
+    }
+
+    /**
+     * The name of namespace.
+     */
+    private String name;
+
+    /**
+     * Storage type.
+     */
+    private StorageType storageType = StorageType.MEMORY;
+
+    /**
+     * Memory size in bytes. Memory usage is estimated from records, and limited by the percentages of this. It is also
+     * the budget of direct memory if storage type is {@link StorageType#OFF_HEAP}. <code>0</code> if unlimited, then
+     * records are never evicted, and direct memory is limited only by JVM.
+     */
+    private long memorySize;
+
+    /**
+     * High water mark of memory usage, in percentage of memory size. Over this, records are evicted.
+     */
+    private int highWaterMemoryPct = 60;
+
+    /**
+     * Stop writes, in percentage of memory size. Over this, writes fail.
+     */
+    private int stopWritesPct = 90;
+
+    /**
+     * Eviction policy.
+     */
+    private EvictionPolicy evictionPolicy = EvictionPolicy.SOONEST_EXPIRING;
+
+    /**
+     * Default time to live in seconds, used when a write does not specify expiration. <code>0</code> if never expires.
+     */
+    private int defaultTtl;
+
+    /**
+     * Clock of expiration. Tests may set a clock of their own, to expire records without waiting.
+     */
+    private Clock clock = Clock.systemUTC();
+
+    /**
+     * The directory of write-ahead log. <code>null</code> if records are not persisted. Records are restored from the
+     * log at startup.
+     */
+    private Path logDirectory;
+
+    /**
+     * Sync policy of write-ahead log.
+     */
+    private SyncPolicy syncPolicy = SyncPolicy.INTERVAL;
+
+    /**
+     * The interval of sync in milliseconds, for {@link SyncPolicy#NONE} and {@link SyncPolicy#INTERVAL}.
+     */
+    private long syncInterval = 1000;
+
+    /**
+     * The size of log segment in bytes.
+     */
+    private long logSegmentSize = 64L * 1024 * 1024;
+
+    /**
+     * Snapshot file loaded at startup, if exists. <code>null</code> if not loaded.
+     */
+    private Path snapshotFile;
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of namespace.
+     */
+    public NamespaceConfig(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Create configurations with default values.
+     *
+     * @param names the names of namespace.
+     * @return configurations.
+     */
+    public static NamespaceConfig[] of(String... names) {
+        NamespaceConfig[] configs = new NamespaceConfig[names.length];
+        for (int i = 0; i < names.length; i++) {
+            configs[i] = new NamespaceConfig(names[i]);
+        }
+        return configs;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public StorageType getStorageType() {
+        return storageType;
+    }
+
+    public void setStorageType(StorageType storageType) {
+        this.storageType = storageType;
+    }
+
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    public void setMemorySize(long memorySize) {
+        this.memorySize = memorySize;
+    }
+
+    public int getHighWaterMemoryPct() {
+        return highWaterMemoryPct;
+    }
+
+    public void setHighWaterMemoryPct(int highWaterMemoryPct) {
+        this.highWaterMemoryPct = highWaterMemoryPct;
+    }
+
+    public int getStopWritesPct() {
+        return stopWritesPct;
+    }
+
+    public void setStopWritesPct(int stopWritesPct) {
+        this.stopWritesPct = stopWritesPct;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    public int getDefaultTtl() {
+        return defaultTtl;
+    }
+
+    public void setDefaultTtl(int defaultTtl) {
+        this.defaultTtl = defaultTtl;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public Path getLogDirectory() {
+        return logDirectory;
+    }
+
+    public void setLogDirectory(Path logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    public long getLogSegmentSize() {
+        return logSegmentSize;
+    }
+
+    public void setLogSegmentSize(long logSegmentSize) {
+        this.logSegmentSize = logSegmentSize;
+    }
+
+    public Path getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public void setSnapshotFile(Path snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+}
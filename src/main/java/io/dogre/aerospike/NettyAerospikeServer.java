@@ -2,16 +2,33 @@ package io.dogre.aerospike;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * Implementation of {@link AerospikeServer} based on Netty.
  *
@@ -31,57 +48,121 @@ public class NettyAerospikeServer implements AerospikeServer {
      */
     private int workerThreads;
 
+    /**
+     * Transport type.
+     */
+    private TransportType transportType;
+
     /**
      * Whether stared.
      */
-    private boolean started;
+    private volatile boolean started;
 
     /**
      * Constructor.
+     * <p>
+     * Transport type is {@link TransportType#AUTO}.
      *
      * @param ioThreads The number of IO threads.
      * @param workerThreads The number of Worker threads.
      */
     public NettyAerospikeServer(int ioThreads, int workerThreads) {
+        this(ioThreads, workerThreads, TransportType.AUTO);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ioThreads The number of IO threads.
+     * @param workerThreads The number of Worker threads.
+     * @param transportType Transport type.
+     */
+    public NettyAerospikeServer(int ioThreads, int workerThreads, TransportType transportType) {
         this.ioThreads = ioThreads;
         this.workerThreads = workerThreads;
+        this.transportType = transportType;
         this.started = false;
     }
 
     @Override
     public void start(String host, int port, String[] namespaces) {
-        logger.info("Starting server : host = {}, port = {}, namespaces = {}, " +
-                        "# of io threads = {}, # of worker threads = {}", host, port, namespaces, this.ioThreads,
-                this.workerThreads);
+        start(host, port, NamespaceConfig.of(namespaces));
+    }
+
+    @Override
+    public void start(String host, int port, NamespaceConfig... namespaces) {
+        TransportType transportType = this.transportType.resolve();
+        if (transportType != this.transportType && this.transportType != TransportType.AUTO) {
+            logger.warn("Transport {} is not available, use {} instead", this.transportType, transportType,
+                    Epoll.unavailabilityCause());
+        }
+        List<String> namespaceNames = new ArrayList<>();
+        for (NamespaceConfig namespace : namespaces) {
+            namespaceNames.add(namespace.getName() + "(" + namespace.getStorageType() + ")");
+        }
+        logger.info("Starting server : host = {}, port = {}, namespaces = {}, transport = {}, " +
+                        "# of io threads = {}, # of worker threads = {}", host, port, namespaceNames, transportType,
+                this.ioThreads, this.workerThreads);
 
         // create ServiceHandler
         ServiceHandler serviceHandler = new ServiceHandlerImpl(host + ":" + port, namespaces);
 
-        EventLoopGroup ioGroup = new NioEventLoopGroup(this.ioThreads);
-        EventLoopGroup workerGroup = new NioEventLoopGroup(this.workerThreads);
-        ChannelHandler channelHandler = new AerospikeServiceChannelHandler(serviceHandler);
+        EventLoopGroup ioGroup;
+        EventLoopGroup workerGroup;
+        Class<? extends ServerSocketChannel> channelClass;
+        // With SO_REUSEPORT, bind one acceptor per IO thread, so the kernel spreads accepts across IO threads.
+        int acceptors;
+        if (transportType == TransportType.EPOLL) {
+            ioGroup = new EpollEventLoopGroup(this.ioThreads);
+            workerGroup = new EpollEventLoopGroup(this.workerThreads);
+            channelClass = EpollServerSocketChannel.class;
+            acceptors = Math.max(1, this.ioThreads);
+        } else {
+            ioGroup = new NioEventLoopGroup(this.ioThreads);
+            workerGroup = new NioEventLoopGroup(this.workerThreads);
+            channelClass = NioServerSocketChannel.class;
+            acceptors = 1;
+        }
+        // streamed requests, such as scan, are handled off the IO threads
+        ExecutorService streamExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ChannelHandler channelHandler = new AerospikeServiceChannelHandler(serviceHandler, streamExecutor);
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(ioGroup, workerGroup).channel(NioServerSocketChannel.class)
+            bootstrap.group(ioGroup, workerGroup).channel(channelClass)
                     .handler(new LoggingHandler(LogLevel.INFO))
                     .childHandler(new ChannelInitializer<SocketChannel>() {             //송수신 되는 데이터 가공 핸들러
                         @Override
                         protected void initChannel(SocketChannel ch) throws Exception {
                             ChannelPipeline pipeline = ch.pipeline();
                             pipeline.addLast(new LoggingHandler(LogLevel.INFO));
+                            pipeline.addLast(new AerospikeMessageDecoder());
                             pipeline.addLast(channelHandler);
                         }
                     });
+            if (1 < acceptors) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
 
-            ChannelFuture channelFuture = bootstrap.bind(port).sync();
-            this.started = channelFuture.isSuccess();
-            logger.info("Server started");
-            channelFuture.channel().closeFuture().sync();
+            List<Channel> channels = new ArrayList<>();
+            for (int i = 0; i < acceptors; i++) {
+                channels.add(bootstrap.bind(port).sync().channel());
+            }
+            this.started = true;
+            logger.info("Server started : # of acceptors = {}", acceptors);
+            for (Channel channel : channels) {
+                channel.closeFuture().sync();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         } finally {
             ioGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            streamExecutor.shutdownNow();
+            serviceHandler.close();
         }
     }
 
@@ -90,58 +171,280 @@ public class NettyAerospikeServer implements AerospikeServer {
         return this.started;
     }
 
+    /**
+     * Decoder that splits the inbound byte stream of a connection into Aerospike Messages.
+     * <p>
+     * This is not sharable, one instance is created per connection. It emits every complete message in a read batch,
+     * so pipelined requests are handled without waiting for more data. Partial messages are accumulated with a
+     * composite buffer, so the received chunks are stitched together without being copied.
+     */
+    public static class AerospikeMessageDecoder extends ByteToMessageDecoder {
+
+        /**
+         * The length of size header.
+         */
+        public static final int SIZE_HEADER_LENGTH = 8;
+
+        /**
+         * The maximum length of message, same as the limit of Aerospike Server. (128 MiB)
+         */
+        public static final int MAX_MESSAGE_LENGTH = 128 * 1024 * 1024;
+
+        public AerospikeMessageDecoder() {
+            setCumulator(COMPOSITE_CUMULATOR);
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+            // The first 8 bytes of Aerospike Message contains the infomation of message size.
+            // The first byte is the version of message protocol.
+            // The second byte is the type of message, 1 means 'info', 3 means 'command'.
+            // The rest 6 bytes is the length of message.
+            while (SIZE_HEADER_LENGTH <= in.readableBytes()) {
+                long sizeHeader = in.getLong(in.readerIndex());
+                long length = sizeHeader & 0xffffffffffffL;
+                if (MAX_MESSAGE_LENGTH < length) {
+                    throw new CorruptedFrameException("Message is too long : length = " + length);
+                }
+                if (in.readableBytes() < SIZE_HEADER_LENGTH + length) {
+                    break;
+                }
+                out.add(in.readRetainedSlice(SIZE_HEADER_LENGTH + (int) length));
+            }
+        }
+
+    }
+
+    /**
+     * Handler that passes each Aerospike Message to {@link ServiceHandler}.
+     * <p>
+     * This is stateless, so one instance is shared by all connections, and the state of connection is kept in a
+     * channel attribute. The messages must be split by {@link AerospikeMessageDecoder} in front of this. Responses are
+     * flushed once per read batch.
+     * <p>
+     * A request whose response is streamed in several messages, such as scan or large batch, is handled by the
+     * executor, not by the IO thread. Each message is flushed as soon as it is built, and the next one is built after
+     * the connection becomes writable, so a slow client does not make the server buffer the whole response. Reading
+     * is suspended until the request is done, and the requests already read are handled after it, in order.
+     */
     @ChannelHandler.Sharable
     public static class AerospikeServiceChannelHandler extends ChannelInboundHandlerAdapter {
 
         private static final Logger logger = LoggerFactory.getLogger(AerospikeServiceChannelHandler.class);
 
-        private ServiceHandler serviceHandler;
+        /**
+         * The key of the state of connection.
+         */
+        private static final AttributeKey<ChannelState> STATE = AttributeKey.valueOf(ChannelState.class.getName());
 
-        private ByteBuf buffer;
+        /**
+         * The interval to check whether the connection is writable, in milliseconds.
+         */
+        private static final long WRITABILITY_CHECK_INTERVAL = 100;
+
+        private ServiceHandler serviceHandler;
 
-        public static final int BUFFER_SIZE = 96;
+        /**
+         * Executor for streamed requests.
+         */
+        private Executor executor;
 
+        /**
+         * Constructor.
+         * <p>
+         * Streamed requests are handled by {@link ForkJoinPool#commonPool()}.
+         *
+         * @param serviceHandler service handler.
+         */
         public AerospikeServiceChannelHandler(ServiceHandler serviceHandler) {
-            this.serviceHandler = serviceHandler;
+            this(serviceHandler, ForkJoinPool.commonPool());
         }
 
-        @Override
-        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
-            this.buffer = ctx.alloc().buffer(BUFFER_SIZE);
+        /**
+         * Constructor.
+         *
+         * @param serviceHandler service handler.
+         * @param executor executor for streamed requests.
+         */
+        public AerospikeServiceChannelHandler(ServiceHandler serviceHandler, Executor executor) {
+            this.serviceHandler = serviceHandler;
+            this.executor = executor;
         }
 
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-            ByteBuf byteBuf = (ByteBuf) msg;
-            this.buffer.writeBytes(byteBuf);
-            byteBuf.release();
+            ChannelState state = getState(ctx);
+            if (state.busy) {
+                // handled after the streamed request
+                state.pending.add((ByteBuf) msg);
+                return;
+            }
+            handle(ctx, state, (ByteBuf) msg);
+        }
 
-            // The first 8 bytes of Aerospike Message contains the infomation of message size.
-            // The first byte is the version of message protocol.
-            // The second byte is the type of message, 1 means 'info', 3 means 'command'.
-            // The rest 6 bytes is the length of message.
-            if (8 <= this.buffer.readableBytes()) {
-                long sizeHeader = this.buffer.getLong(this.buffer.readerIndex());
-                int length = (int) (sizeHeader & 0xffffffffffffL);
-                if (8 + length <= this.buffer.readableBytes()) {
-                    byte[] request = new byte[8 + length];
-                    this.buffer.readBytes(request);
-
-                    byte[] response = this.serviceHandler.handleRequest(request);
-                    ByteBuf responseByteBuf = ByteBufAllocator.DEFAULT.buffer(response.length);
-                    responseByteBuf.writeBytes(response);
-
-                    ctx.writeAndFlush(responseByteBuf);
+        /**
+         * Handle a request. Called by the IO thread.
+         *
+         * @param ctx channel handler context.
+         * @param state the state of connection.
+         * @param byteBuf request, released by this.
+         */
+        private void handle(ChannelHandlerContext ctx, ChannelState state, ByteBuf byteBuf) {
+            boolean streaming;
+            try {
+                streaming = this.serviceHandler.isStreaming(byteBuf);
+            } catch (RuntimeException e) {
+                byteBuf.release();
+                throw e;
+            }
+            if (!streaming) {
+                try {
+                    this.serviceHandler.handleRequest(byteBuf, ctx.alloc(), ctx::write);
+                } finally {
+                    byteBuf.release();
                 }
+                return;
+            }
+
+            state.busy = true;
+            ctx.channel().config().setAutoRead(false);
+            // the responses of previous requests go first
+            ctx.flush();
+            this.executor.execute(() -> {
+                try {
+                    this.serviceHandler.handleRequest(byteBuf, ctx.alloc(), response -> stream(ctx, state, response));
+                } catch (Throwable e) {
+                    if (ctx.channel().isActive()) {
+                        ctx.fireExceptionCaught(e);
+                    } else {
+                        logger.debug("Streaming is stopped, connection is closed", e);
+                    }
+                } finally {
+                    byteBuf.release();
+                    ctx.executor().execute(() -> resume(ctx, state));
+                }
+            });
+        }
+
+        /**
+         * Write and flush a message of streamed response, and wait until the connection becomes writable. Called by
+         * the executor.
+         *
+         * @param ctx channel handler context.
+         * @param state the state of connection.
+         * @param response a message of response.
+         */
+        private void stream(ChannelHandlerContext ctx, ChannelState state, ByteBuf response) {
+            Channel channel = ctx.channel();
+            if (!channel.isActive()) {
+                response.release();
+                throw new IllegalStateException("Connection is closed");
+            }
+            ctx.writeAndFlush(response);
+            synchronized (state) {
+                while (!channel.isWritable() && channel.isActive()) {
+                    try {
+                        state.wait(WRITABILITY_CHECK_INTERVAL);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for writability", e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Handle the requests read while a streamed request is handled, and resume reading. Called by the IO thread.
+         *
+         * @param ctx channel handler context.
+         * @param state the state of connection.
+         */
+        private void resume(ChannelHandlerContext ctx, ChannelState state) {
+            state.busy = false;
+            try {
+                ByteBuf byteBuf;
+                while (!state.busy && (byteBuf = state.pending.poll()) != null) {
+                    handle(ctx, state, byteBuf);
+                }
+            } catch (Throwable e) {
+                ctx.fireExceptionCaught(e);
+            }
+            ctx.flush();
+            if (!state.busy) {
+                ctx.channel().config().setAutoRead(true);
             }
         }
 
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            ctx.flush();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            ChannelState state = getState(ctx);
+            synchronized (state) {
+                state.notifyAll();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            ChannelState state = getState(ctx);
+            ByteBuf byteBuf;
+            while ((byteBuf = state.pending.poll()) != null) {
+                byteBuf.release();
+            }
+            synchronized (state) {
+                state.notifyAll();
+            }
+            super.channelInactive(ctx);
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
             logger.error("Exception", cause);
             ctx.close();
         }
 
+        /**
+         * Get the state of connection, create it if not exists.
+         *
+         * @param ctx channel handler context.
+         * @return the state of connection.
+         */
+        private static ChannelState getState(ChannelHandlerContext ctx) {
+            Attribute<ChannelState> attribute = ctx.channel().attr(STATE);
+            ChannelState state = attribute.get();
+            if (state == null) {
+                state = new ChannelState();
+                ChannelState previous = attribute.setIfAbsent(state);
+                if (previous != null) {
+                    state = previous;
+                }
+            }
+            return state;
+        }
+
+    }
+
+    /**
+     * The state of connection, used by {@link AerospikeServiceChannelHandler}. Also used as the monitor to wait for
+     * writability.
+     */
+    private static class ChannelState {
+
+        /**
+         * Whether a streamed request is being handled. Accessed by the IO thread only.
+         */
+        private boolean busy;
+
+        /**
+         * Requests read while a streamed request is handled. Accessed by the IO thread only.
+         */
+        private Queue<ByteBuf> pending = new ArrayDeque<>();
+
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+package io.dogre.aerospike;
+
+/**
+ * Record whose bins are stored in direct memory allocated by {@link SlabAllocator}.
+ * <p>
+ * Only the set name and the handle of memory are on Java heap. Bins are read directly from slab, so they must be read
+ * while holding the lock of partition, because the memory is freed or moved by compaction under the write lock.
+ *
+ * @author dogre
+ */
+public class OffHeapRecord extends StoredRecord {
+
+    /**
+     * Allocator of memory.
+     */
+    private SlabAllocator allocator;
+
+    /**
+     * The handle of memory. It is changed by {@link #relocate()}.
+     */
+    private long handle;
+
+    /**
+     * The length of bins in wire format.
+     */
+    private int length;
+
+    /**
+     * Constructor.
+     *
+     * @param setName the name of set.
+     * @param binCount the number of bins.
+     * @param generation generation.
+     * @param voidTime void time. <code>0</code> if never expires.
+     * @param allocator allocator of memory.
+     * @param handle the handle of memory.
+     * @param length the length of bins in wire format.
+     */
+    public OffHeapRecord(String setName, int binCount, int generation, int voidTime, SlabAllocator allocator,
+            long handle, int length) {
+        super(setName, null, binCount, generation, voidTime);
+        this.allocator = allocator;
+        this.handle = handle;
+        this.length = length;
+    }
+
+    /**
+     * Copy record into direct memory.
+     *
+     * @param allocator allocator of memory.
+     * @param record record on Java heap.
+     * @return record in direct memory. <code>null</code> if the memory budget is exhausted.
+     */
+    public static OffHeapRecord of(SlabAllocator allocator, StoredRecord record) {
+        byte[] wireBins = record.getWireBins();
+        long handle = allocator.allocate(wireBins);
+        if (handle < 0) {
+            return null;
+        }
+        return new OffHeapRecord(record.getSetName(), record.getBinCount(), record.getGeneration(),
+                record.getVoidTime(), allocator, handle, wireBins.length);
+    }
+
+    /**
+     * Get bins in wire format.
+     *
+     * @return new array of bins in wire format.
+     */
+    @Override
+    public byte[] getWireBins() {
+        byte[] wireBins = new byte[this.length];
+        this.allocator.getBytes(this.handle, 0, wireBins, 0, this.length);
+        return wireBins;
+    }
+
+    @Override
+    public int getWireLength() {
+        return this.length;
+    }
+
+    @Override
+    public int getWireInt(int offset) {
+        return this.allocator.getInt(this.handle, offset);
+    }
+
+    @Override
+    protected byte getWireByte(int offset) {
+        return this.allocator.getByte(this.handle, offset);
+    }
+
+    @Override
+    protected void getWireBytes(int offset, byte[] bytes, int bytesOffset, int length) {
+        this.allocator.getBytes(this.handle, offset, bytes, bytesOffset, length);
+    }
+
+    /**
+     * Decode a map bin, without keeping it on Java heap.
+     */
+    @Override
+    protected PackedMap decodeMap(String name, byte[] bytes, int offset, int length) {
+        return PackedMap.wrap(bytes, offset, length);
+    }
+
+    @Override
+    public void release() {
+        this.allocator.free(this.handle, this.length);
+    }
+
+    /**
+     * Whether the memory is in a slab being evacuated by compaction.
+     *
+     * @return <code>true</code> if the memory should be relocated.
+     */
+    public boolean isEvacuating() {
+        return this.allocator.isEvacuating(this.handle);
+    }
+
+    /**
+     * Move the memory to another slab. Caller must hold the write lock of partition.
+     *
+     * @return <code>true</code> if moved.
+     */
+    public boolean relocate() {
+        long handle = this.allocator.relocate(this.handle, this.length);
+        if (handle < 0) {
+            return false;
+        }
+        this.handle = handle;
+        return true;
+    }
+
+}
@@ -0,0 +1,501 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Value;
+import com.aerospike.client.command.ParticleType;
+import com.aerospike.client.lua.LuaInstance;
+import com.aerospike.client.util.Packer;
+import com.aerospike.client.util.Unpacker;
+import org.luaj.vm2.LuaValue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * List bin kept in MessagePack, modified in place by list operations.
+ * <p>
+ * Elements are kept packed and contiguous, and are never decoded to be modified. Element offsets are found by
+ * skipping elements, only when an element is accessed by index, and are kept up to date by modifications afterwards.
+ * Appending to a list copies only the appended element, so a record can take many appends in a request at the cost of
+ * one.
+ * <p>
+ * A list wrapped from the bins of record shares their bytes, and copies them at the first modification, because
+ * records are immutable.
+ * <p>
+ * Ordered lists keep their elements sorted, and are packed with an extension header as their first element, same as
+ * Aerospike Server. Aerospike Client skips the header when it decodes a list.
+ *
+ * @author dogre
+ */
+public class PackedList extends Value {
+
+    /**
+     * The flag of ordered list.
+     */
+    public static final int ORDERED = 1;
+
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    /**
+     * Packed elements, from {@link #start}.
+     */
+    private byte[] bytes;
+
+    /**
+     * The offset of the first element in {@link #bytes}.
+     */
+    private int start;
+
+    /**
+     * The length of packed elements.
+     */
+    private int length;
+
+    /**
+     * The number of elements.
+     */
+    private int count;
+
+    /**
+     * Flags, such as {@link #ORDERED}.
+     */
+    private int flags;
+
+    /**
+     * The offsets of elements from {@link #start}, and the length at last. <code>null</code> until accessed by index.
+     */
+    private int[] offsets;
+
+    /**
+     * Whether {@link #bytes} is shared with others, so must be copied before modified.
+     */
+    private boolean shared;
+
+    /**
+     * Constructor of empty list.
+     *
+     * @param flags flags, such as {@link #ORDERED}.
+     */
+    public PackedList(int flags) {
+        this.bytes = EMPTY_BYTES;
+        this.flags = flags;
+    }
+
+    /**
+     * Wrap a packed list, without copying.
+     *
+     * @param packed packed bytes.
+     * @param offset the offset of list.
+     * @param length the length of list.
+     * @return list.
+     */
+    public static PackedList wrap(byte[] packed, int offset, int length) {
+        PackedList list = new PackedList(0);
+        int count = MessagePack.readCount(packed, offset);
+        int start = offset + MessagePack.readHeaderLength(packed, offset);
+        if (0 < count && MessagePack.isExtensionHeader(packed, start)) {
+            list.flags = MessagePack.readExtensionFlags(packed, start);
+            start = MessagePack.skip(packed, start);
+            count--;
+        }
+        list.bytes = packed;
+        list.start = start;
+        list.length = offset + length - start;
+        list.count = count;
+        list.shared = true;
+        return list;
+    }
+
+    /**
+     * Get a list value as {@link PackedList}.
+     *
+     * @param value value.
+     * @return list. <code>null</code> if the value is not a list.
+     */
+    public static PackedList of(Value value) {
+        if (value instanceof PackedList) {
+            return (PackedList) value;
+        } else if (value == null || value.getType() != ParticleType.LIST) {
+            return null;
+        }
+        byte[] packed = MessagePack.pack(value);
+        return wrap(packed, 0, packed.length);
+    }
+
+    /**
+     * Get the number of elements.
+     *
+     * @return the number of elements.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Set flags. If the list becomes ordered, elements are sorted.
+     *
+     * @param flags flags.
+     */
+    public void setFlags(int flags) {
+        boolean sort = !isOrdered() && (flags & ORDERED) != 0;
+        this.flags = flags;
+        if (sort) {
+            sort(false, false);
+        }
+    }
+
+    public boolean isOrdered() {
+        return (this.flags & ORDERED) != 0;
+    }
+
+    /**
+     * Get the packed bytes of elements. Elements are located by {@link #getOffset(int)}.
+     *
+     * @return packed bytes. It must not be modified.
+     */
+    public byte[] getBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Get the offset of element.
+     *
+     * @param index the index of element.
+     * @return the offset of element in {@link #getBytes()}.
+     */
+    public int getOffset(int index) {
+        index();
+        return this.start + this.offsets[index];
+    }
+
+    /**
+     * Get the length of element.
+     *
+     * @param index the index of element.
+     * @return the length of element.
+     */
+    public int getLength(int index) {
+        index();
+        return this.offsets[index + 1] - this.offsets[index];
+    }
+
+    /**
+     * Decode an element.
+     *
+     * @param index the index of element.
+     * @return the value of element.
+     */
+    public Value getValue(int index) {
+        // copied, because a nested list would share the bytes modified in place
+        byte[] element = getElement(index);
+        return MessagePack.toValue(element, 0, element.length);
+    }
+
+    /**
+     * Copy an element.
+     *
+     * @param index the index of element.
+     * @return packed element.
+     */
+    public byte[] getElement(int index) {
+        int offset = getOffset(index);
+        return Arrays.copyOfRange(this.bytes, offset, offset + getLength(index));
+    }
+
+    /**
+     * Compare an element with a packed value.
+     *
+     * @param index the index of element.
+     * @param value packed value.
+     * @return the result of {@link MessagePack#compare(byte[], int, byte[], int)}.
+     */
+    public int compare(int index, byte[] value) {
+        return MessagePack.compare(this.bytes, getOffset(index), value, 0);
+    }
+
+    /**
+     * Get the indexes of elements in the order of value, the order of index if values are equal.
+     *
+     * @return the indexes of elements, sorted by rank.
+     */
+    public int[] getRankOrder() {
+        if (isOrdered()) {
+            return IntStream.range(0, this.count).toArray();
+        }
+        index();
+        return IntStream.range(0, this.count).boxed().sorted(rankComparator()).mapToInt(Integer::intValue).toArray();
+    }
+
+    private Comparator<Integer> rankComparator() {
+        return (i, j) -> MessagePack.compare(this.bytes, this.start + this.offsets[i], this.bytes,
+                this.start + this.offsets[j]);
+    }
+
+    /**
+     * Get the index where a value is inserted to keep the order, after the elements equal to it.
+     *
+     * @param value packed value.
+     * @return the index to insert.
+     */
+    public int findInsertIndex(byte[] value) {
+        int low = 0;
+        int high = this.count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(middle, value) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Add an element, at the end or, if ordered, where it keeps the order.
+     *
+     * @param element packed element.
+     * @return the index of added element.
+     */
+    public int add(byte[] element) {
+        int index = isOrdered() ? findInsertIndex(element) : this.count;
+        splice(index, index, element);
+        return index;
+    }
+
+    /**
+     * Insert an element.
+     *
+     * @param index the index to insert, from <code>0</code> to {@link #size()}.
+     * @param element packed element.
+     */
+    public void insert(int index, byte[] element) {
+        splice(index, index, element);
+    }
+
+    /**
+     * Replace an element.
+     *
+     * @param index the index of element.
+     * @param element packed element.
+     */
+    public void set(int index, byte[] element) {
+        splice(index, index + 1, element);
+    }
+
+    /**
+     * Remove elements.
+     *
+     * @param from the index of the first element, inclusive.
+     * @param to the index of the last element, exclusive.
+     */
+    public void remove(int from, int to) {
+        splice(from, to);
+    }
+
+    /**
+     * Copy elements into new list, without flags.
+     *
+     * @param indexes the indexes of elements, in the order of new list.
+     * @return new list.
+     */
+    public PackedList copyOf(int[] indexes) {
+        PackedList list = new PackedList(0);
+        int length = 0;
+        for (int index : indexes) {
+            length += getLength(index);
+        }
+        list.bytes = new byte[length];
+        for (int index : indexes) {
+            int elementLength = getLength(index);
+            System.arraycopy(this.bytes, getOffset(index), list.bytes, list.length, elementLength);
+            list.length += elementLength;
+        }
+        list.count = indexes.length;
+        return list;
+    }
+
+    /**
+     * Sort elements.
+     *
+     * @param descending whether in descending order.
+     * @param dropDuplicates whether to remove duplicate elements.
+     */
+    public void sort(boolean descending, boolean dropDuplicates) {
+        index();
+        Comparator<Integer> comparator = rankComparator();
+        if (descending) {
+            comparator = comparator.reversed();
+        }
+        int[] order = IntStream.range(0, this.count).boxed().sorted(comparator).mapToInt(Integer::intValue).toArray();
+        if (dropDuplicates) {
+            order = dropDuplicates(order);
+        }
+        PackedList sorted = copyOf(order);
+        this.bytes = sorted.bytes;
+        this.start = 0;
+        this.length = sorted.length;
+        this.count = sorted.count;
+        this.offsets = null;
+        this.shared = false;
+    }
+
+    /**
+     * Remove the indexes of elements equal to the previous ones.
+     *
+     * @param order the indexes of elements, sorted.
+     * @return the indexes of distinct elements.
+     */
+    private int[] dropDuplicates(int[] order) {
+        Comparator<Integer> comparator = rankComparator();
+        return IntStream.range(0, order.length)
+                .filter(i -> i == 0 || comparator.compare(order[i - 1], order[i]) != 0)
+                .map(i -> order[i]).toArray();
+    }
+
+    /**
+     * Replace elements from <code>from</code> to <code>to</code> with new elements, moving the rest of elements.
+     *
+     * @param from the index of the first element to be replaced, inclusive.
+     * @param to the index of the last element to be replaced, exclusive.
+     * @param elements new packed elements.
+     */
+    private void splice(int from, int to, byte[]... elements) {
+        // appending does not need the offsets of elements
+        int byteFrom = from == this.count ? this.length : getOffset(from) - this.start;
+        int byteTo = to == this.count ? this.length : getOffset(to) - this.start;
+        int added = 0;
+        for (byte[] element : elements) {
+            added += element.length;
+        }
+        int delta = added - (byteTo - byteFrom);
+        int newLength = this.length + delta;
+
+        byte[] target = this.bytes;
+        if (this.shared || this.bytes.length < this.start + newLength) {
+            // grow by half, for following appends
+            target = new byte[Math.max(newLength, this.length + (this.length >> 1))];
+            System.arraycopy(this.bytes, this.start, target, 0, byteFrom);
+        } else if (this.start != 0) {
+            System.arraycopy(this.bytes, this.start, target, 0, byteFrom);
+        }
+        System.arraycopy(this.bytes, this.start + byteTo, target, byteFrom + added, this.length - byteTo);
+        int offset = byteFrom;
+        for (byte[] element : elements) {
+            System.arraycopy(element, 0, target, offset, element.length);
+            offset += element.length;
+        }
+
+        int newCount = this.count - (to - from) + elements.length;
+        if (this.offsets != null) {
+            int[] newOffsets = this.offsets.length < newCount + 1 ?
+                    Arrays.copyOf(this.offsets, Math.max(newCount + 1, this.offsets.length * 3 / 2)) : this.offsets;
+            System.arraycopy(this.offsets, to, newOffsets, from + elements.length, this.count + 1 - to);
+            for (int i = from + elements.length; i <= newCount; i++) {
+                newOffsets[i] += delta;
+            }
+            offset = byteFrom;
+            for (int i = 0; i < elements.length; i++) {
+                newOffsets[from + i] = offset;
+                offset += elements[i].length;
+            }
+            this.offsets = newOffsets;
+        }
+
+        this.bytes = target;
+        this.start = 0;
+        this.length = newLength;
+        this.count = newCount;
+        this.shared = false;
+    }
+
+    /**
+     * Find the offsets of elements, if not found yet.
+     */
+    private void index() {
+        if (this.offsets != null) {
+            return;
+        }
+        int[] offsets = new int[this.count + 1];
+        int offset = this.start;
+        for (int i = 0; i < this.count; i++) {
+            offsets[i] = offset - this.start;
+            offset = MessagePack.skip(this.bytes, offset);
+        }
+        offsets[this.count] = offset - this.start;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Pack the list.
+     *
+     * @return packed bytes.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[estimateSize()];
+        write(bytes, 0);
+        return bytes;
+    }
+
+    @Override
+    public int estimateSize() {
+        int headerCount = this.flags != 0 ? this.count + 1 : this.count;
+        return MessagePack.headerLength(headerCount) + (this.flags != 0 ? 3 : 0) + this.length;
+    }
+
+    @Override
+    public int write(byte[] buffer, int offset) {
+        int position = offset;
+        if (this.flags != 0) {
+            position += MessagePack.writeArrayHeader(this.count + 1, buffer, position);
+            position += MessagePack.writeExtensionHeader(this.flags, buffer, position);
+        } else {
+            position += MessagePack.writeArrayHeader(this.count, buffer, position);
+        }
+        System.arraycopy(this.bytes, this.start, buffer, position, this.length);
+        return position + this.length - offset;
+    }
+
+    @Override
+    public void pack(Packer packer) {
+        for (byte b : toBytes()) {
+            packer.packByte(b);
+        }
+    }
+
+    @Override
+    public int getType() {
+        return ParticleType.LIST;
+    }
+
+    @Override
+    public Object getObject() {
+        byte[] bytes = toBytes();
+        return Unpacker.unpackObjectList(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public LuaValue getLuaValue(LuaInstance instance) {
+        return Value.get(getObject()).getLuaValue(instance);
+    }
+
+    @Override
+    public String toString() {
+        return getObject().toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof PackedList && Arrays.equals(toBytes(), ((PackedList) other).toBytes());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toBytes());
+    }
+
+}
@@ -0,0 +1,576 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Value;
+import com.aerospike.client.command.ParticleType;
+import com.aerospike.client.lua.LuaInstance;
+import com.aerospike.client.util.Packer;
+import com.aerospike.client.util.Unpacker;
+import org.luaj.vm2.LuaValue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Map bin kept in MessagePack, indexed by key and by value for map operations.
+ * <p>
+ * Entries are kept packed, as slices of the bytes they were read from, and are indexed by two {@link RankTree}s: by
+ * key, and by value and then key. So an entry is found by key, index or rank in logarithmic time, and so is the
+ * first entry of a key or value range. The index by value is built at the first access by rank or value.
+ * <p>
+ * A map wrapped from the bins of record is not indexed until accessed. Since the trees are immutable, a copy by
+ * {@link #snapshot()} shares them until either is modified, and the index built by a snapshot is kept by the map it
+ * was taken from. {@link StoredRecord} keeps its maps, so the index is built once and reused by later requests.
+ * <p>
+ * Maps are packed in key order. Ordered maps are packed with an extension header as their first entry, same as
+ * Aerospike Server.
+ *
+ * @author dogre
+ */
+public class PackedMap extends Value {
+
+    /**
+     * The flag of map ordered by key.
+     */
+    public static final int KEY_ORDERED = 1;
+
+    private static final Comparator<Entry> KEY_COMPARATOR =
+            (entry1, entry2) -> MessagePack.compare(entry1.bytes, entry1.offset, entry2.bytes, entry2.offset);
+
+    private static final Comparator<Entry> VALUE_COMPARATOR = (entry1, entry2) -> {
+        int result = MessagePack.compare(entry1.bytes, entry1.getValueOffset(), entry2.bytes,
+                entry2.getValueOffset());
+        if (result != 0) {
+            return result;
+        } else if (entry1.bound != 0 || entry2.bound != 0) {
+            return Integer.compare(entry1.bound, entry2.bound);
+        }
+        return KEY_COMPARATOR.compare(entry1, entry2);
+    };
+
+    /**
+     * Packed map, until indexed. <code>null</code> after indexed.
+     */
+    private byte[] source;
+
+    private int sourceOffset;
+
+    private int sourceLength;
+
+    /**
+     * The number of entries.
+     */
+    private int count;
+
+    /**
+     * Flags, such as {@link #KEY_ORDERED}.
+     */
+    private int flags;
+
+    /**
+     * Entries by key. <code>null</code> until indexed.
+     */
+    private RankTree<Entry> byKey;
+
+    /**
+     * Entries by value and then key. <code>null</code> until accessed by rank or value.
+     */
+    private RankTree<Entry> byValue;
+
+    /**
+     * The total length of packed entries, once indexed.
+     */
+    private int length;
+
+    /**
+     * The map this is a snapshot of, while not modified. Index is built by it, to be shared.
+     */
+    private PackedMap origin;
+
+    /**
+     * Constructor of empty map.
+     *
+     * @param flags flags, such as {@link #KEY_ORDERED}.
+     */
+    public PackedMap(int flags) {
+        this.flags = flags;
+        this.byKey = RankTree.empty(KEY_COMPARATOR);
+    }
+
+    /**
+     * Wrap a packed map, without copying.
+     *
+     * @param packed packed bytes. They must not be modified afterwards.
+     * @param offset the offset of map.
+     * @param length the length of map.
+     * @return map.
+     */
+    public static PackedMap wrap(byte[] packed, int offset, int length) {
+        PackedMap map = new PackedMap(0);
+        map.byKey = null;
+        map.source = packed;
+        map.sourceOffset = offset;
+        map.sourceLength = length;
+        map.count = MessagePack.readCount(packed, offset);
+        int start = offset + MessagePack.readHeaderLength(packed, offset);
+        if (0 < map.count && MessagePack.isExtensionHeader(packed, start)) {
+            map.flags = MessagePack.readExtensionFlags(packed, start);
+            map.count--;
+        }
+        return map;
+    }
+
+    /**
+     * Get a map value as {@link PackedMap}.
+     *
+     * @param value value.
+     * @return map. <code>null</code> if the value is not a map.
+     */
+    public static PackedMap of(Value value) {
+        if (value instanceof PackedMap) {
+            return (PackedMap) value;
+        } else if (value == null || value.getType() != ParticleType.MAP) {
+            return null;
+        }
+        byte[] packed = MessagePack.pack(value);
+        return wrap(packed, 0, packed.length);
+    }
+
+    /**
+     * Copy the map in constant time. The copy shares the index with this map.
+     *
+     * @return copy.
+     */
+    public synchronized PackedMap snapshot() {
+        PackedMap map = new PackedMap(this.flags);
+        map.source = this.source;
+        map.sourceOffset = this.sourceOffset;
+        map.sourceLength = this.sourceLength;
+        map.count = this.count;
+        map.byKey = this.byKey;
+        map.byValue = this.byValue;
+        map.length = this.length;
+        map.origin = this.origin != null ? this.origin : this;
+        return map;
+    }
+
+    /**
+     * Whether indexed, so the index is worth keeping.
+     *
+     * @return <code>true</code> if indexed.
+     */
+    public boolean isIndexed() {
+        return this.byKey != null;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Set flags, such as {@link #KEY_ORDERED}.
+     *
+     * @param flags flags.
+     */
+    public void setFlags(int flags) {
+        index();
+        this.flags = flags;
+        this.origin = null;
+    }
+
+    /**
+     * Find an entry by key.
+     *
+     * @param key packed key.
+     * @return entry. <code>null</code> if not exists.
+     */
+    public Entry getEntry(byte[] key) {
+        return index().find(new Entry(key, 0, key.length, key.length, 0));
+    }
+
+    /**
+     * Get an entry by index, in key order.
+     *
+     * @param index index.
+     * @return entry.
+     */
+    public Entry getByIndex(int index) {
+        return index().get(index);
+    }
+
+    /**
+     * Get entries by index.
+     *
+     * @param from the first index, inclusive.
+     * @param to the last index, exclusive.
+     * @return entries, in key order.
+     */
+    public List<Entry> getByIndexRange(int from, int to) {
+        return index().subList(from, to);
+    }
+
+    /**
+     * Get an entry by rank, in value order.
+     *
+     * @param rank rank.
+     * @return entry.
+     */
+    public Entry getByRank(int rank) {
+        return byValue().get(rank);
+    }
+
+    /**
+     * Get entries by rank.
+     *
+     * @param from the first rank, inclusive.
+     * @param to the last rank, exclusive.
+     * @return entries, in value order.
+     */
+    public List<Entry> getByRankRange(int from, int to) {
+        return byValue().subList(from, to);
+    }
+
+    /**
+     * Get the number of entries whose keys are less than the given key.
+     *
+     * @param key packed key, need not be in the map.
+     * @return index of key.
+     */
+    public int indexOf(byte[] key) {
+        return index().rank(new Entry(key, 0, key.length, key.length, 0));
+    }
+
+    /**
+     * Get the number of entries whose values are less than the given value.
+     *
+     * @param value packed value, need not be in the map.
+     * @param inclusive whether to count entries whose values are equal to the given value too.
+     * @return rank of value.
+     */
+    public int rankOf(byte[] value, boolean inclusive) {
+        return byValue().rank(new Entry(value, 0, 0, value.length, inclusive ? 1 : -1));
+    }
+
+    /**
+     * Get the index of entry, in key order.
+     *
+     * @param entry entry in the map.
+     * @return index.
+     */
+    public int getIndex(Entry entry) {
+        return index().rank(entry);
+    }
+
+    /**
+     * Get the rank of entry, in value order.
+     *
+     * @param entry entry in the map.
+     * @return rank.
+     */
+    public int getRank(Entry entry) {
+        return byValue().rank(entry);
+    }
+
+    /**
+     * Put an entry, replacing the entry of the same key.
+     *
+     * @param key packed key.
+     * @param value packed value.
+     */
+    public void put(byte[] key, byte[] value) {
+        byte[] bytes = Arrays.copyOf(key, key.length + value.length);
+        System.arraycopy(value, 0, bytes, key.length, value.length);
+        Entry entry = new Entry(bytes, 0, key.length, bytes.length, 0);
+
+        Entry previous = index().find(entry);
+        if (previous != null) {
+            remove(previous);
+        }
+        if (this.byValue != null) {
+            this.byValue = this.byValue.insert(entry);
+        }
+        this.byKey = this.byKey.insert(entry);
+        this.length += entry.length;
+        this.count++;
+        this.origin = null;
+    }
+
+    /**
+     * Remove an entry.
+     *
+     * @param entry entry in the map.
+     */
+    public void remove(Entry entry) {
+        index();
+        if (this.byValue != null) {
+            this.byValue = this.byValue.remove(entry);
+        }
+        this.byKey = this.byKey.remove(entry);
+        this.length -= entry.length;
+        this.count--;
+        this.origin = null;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        this.source = null;
+        this.byKey = RankTree.empty(KEY_COMPARATOR);
+        this.byValue = null;
+        this.length = 0;
+        this.count = 0;
+        this.origin = null;
+    }
+
+    /**
+     * Create a map of entries, having the same flags.
+     *
+     * @param entries entries.
+     * @return new map.
+     */
+    public PackedMap copyOf(List<Entry> entries) {
+        PackedMap map = new PackedMap(this.flags);
+        for (Entry entry : entries) {
+            map.byKey = map.byKey.insert(entry);
+            map.length += entry.length;
+        }
+        map.count = map.byKey.size();
+        return map;
+    }
+
+    /**
+     * Build the index by key, if not built.
+     *
+     * @return entries by key.
+     */
+    private RankTree<Entry> index() {
+        if (this.byKey != null) {
+            return this.byKey;
+        }
+        if (this.origin != null) {
+            synchronized (this.origin) {
+                this.origin.index();
+                this.byKey = this.origin.byKey;
+                this.length = this.origin.length;
+            }
+        } else {
+            byte[] packed = this.source;
+            int count = MessagePack.readCount(packed, this.sourceOffset);
+            int offset = this.sourceOffset + MessagePack.readHeaderLength(packed, this.sourceOffset);
+            List<Entry> entries = new ArrayList<>(count);
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                int valueOffset = MessagePack.skip(packed, offset);
+                int next = MessagePack.skip(packed, valueOffset);
+                if (i != 0 || !MessagePack.isExtensionHeader(packed, offset)) {
+                    entries.add(new Entry(packed, offset, valueOffset - offset, next - offset, 0));
+                    length += next - offset;
+                }
+                offset = next;
+            }
+            entries.sort(KEY_COMPARATOR);
+            this.byKey = RankTree.of(KEY_COMPARATOR, entries);
+            this.length = length;
+        }
+        this.source = null;
+        return this.byKey;
+    }
+
+    /**
+     * Build the index by value, if not built.
+     *
+     * @return entries by value.
+     */
+    private RankTree<Entry> byValue() {
+        if (this.byValue != null) {
+            return this.byValue;
+        }
+        RankTree<Entry> byKey = index();
+        if (this.origin != null) {
+            synchronized (this.origin) {
+                this.byValue = this.origin.byValue();
+            }
+        } else {
+            List<Entry> entries = byKey.subList(0, byKey.size());
+            entries.sort(VALUE_COMPARATOR);
+            this.byValue = RankTree.of(VALUE_COMPARATOR, entries);
+        }
+        return this.byValue;
+    }
+
+    /**
+     * Pack the map.
+     *
+     * @return packed bytes.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[estimateSize()];
+        write(bytes, 0);
+        return bytes;
+    }
+
+    @Override
+    public int estimateSize() {
+        if (this.source != null) {
+            return this.sourceLength;
+        }
+        int headerCount = this.flags != 0 ? this.count + 1 : this.count;
+        return MessagePack.headerLength(headerCount) + (this.flags != 0 ? 4 : 0) + this.length;
+    }
+
+    @Override
+    public int write(byte[] buffer, int offset) {
+        if (this.source != null) {
+            System.arraycopy(this.source, this.sourceOffset, buffer, offset, this.sourceLength);
+            return this.sourceLength;
+        }
+        int position = offset;
+        if (this.flags != 0) {
+            position += MessagePack.writeMapHeader(this.count + 1, buffer, position);
+            position += MessagePack.writeExtensionHeader(this.flags, buffer, position);
+            buffer[position++] = MessagePack.NIL[0];
+        } else {
+            position += MessagePack.writeMapHeader(this.count, buffer, position);
+        }
+        for (Entry entry : this.byKey.subList(0, this.count)) {
+            System.arraycopy(entry.bytes, entry.offset, buffer, position, entry.length);
+            position += entry.length;
+        }
+        return position - offset;
+    }
+
+    @Override
+    public void pack(Packer packer) {
+        for (byte b : toBytes()) {
+            packer.packByte(b);
+        }
+    }
+
+    @Override
+    public int getType() {
+        return ParticleType.MAP;
+    }
+
+    @Override
+    public Object getObject() {
+        byte[] bytes = toBytes();
+        return Unpacker.unpackObjectMap(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public LuaValue getLuaValue(LuaInstance instance) {
+        return Value.get(getObject()).getLuaValue(instance);
+    }
+
+    @Override
+    public String toString() {
+        return getObject().toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof PackedMap && Arrays.equals(toBytes(), ((PackedMap) other).toBytes());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toBytes());
+    }
+
+    /**
+     * Entry of map, packed key followed by packed value. Immutable.
+     */
+    public static class Entry {
+
+        private final byte[] bytes;
+
+        /**
+         * The offset of key.
+         */
+        private final int offset;
+
+        private final int keyLength;
+
+        /**
+         * The length of key and value.
+         */
+        private final int length;
+
+        /**
+         * Whether the entry is a probe of value, ordered before (<code>-1</code>) or after (<code>1</code>) all
+         * entries of the value. <code>0</code> if an entry.
+         */
+        private final int bound;
+
+        private Entry(byte[] bytes, int offset, int keyLength, int length, int bound) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.length = length;
+            this.bound = bound;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getValueOffset() {
+            return this.offset + this.keyLength;
+        }
+
+        /**
+         * Copy the packed key.
+         *
+         * @return packed key.
+         */
+        public byte[] getPackedKey() {
+            return Arrays.copyOfRange(this.bytes, this.offset, this.offset + this.keyLength);
+        }
+
+        /**
+         * Copy the packed value.
+         *
+         * @return packed value.
+         */
+        public byte[] getPackedValue() {
+            return Arrays.copyOfRange(this.bytes, getValueOffset(), this.offset + this.length);
+        }
+
+        /**
+         * Decode the key.
+         *
+         * @return key.
+         */
+        public Value getKey() {
+            return MessagePack.toValue(this.bytes, this.offset, this.keyLength);
+        }
+
+        /**
+         * Decode the value. Lists and maps are copied.
+         *
+         * @return value.
+         */
+        public Value getValue() {
+            int valueOffset = getValueOffset();
+            byte[] value = Arrays.copyOfRange(this.bytes, valueOffset, this.offset + this.length);
+            return MessagePack.toValue(value, 0, value.length);
+        }
+
+    }
+
+}
@@ -0,0 +1,279 @@
+package io.dogre.aerospike;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable sorted set that finds an element by its rank, the number of elements less than it, in logarithmic time.
+ * <p>
+ * This is an AVL tree whose nodes know the size of their subtrees. Modifications copy only the path from the root to
+ * the modified node, and return a new tree sharing the rest. So a tree is safely kept by an immutable record, while
+ * its next version is built by a writer.
+ *
+ * @param <E> the type of elements.
+ * @author dogre
+ */
+public class RankTree<E> {
+
+    /**
+     * Comparator of elements. Elements equal by this are the same element.
+     */
+    private final Comparator<? super E> comparator;
+
+    /**
+     * The root node. <code>null</code> if empty.
+     */
+    private final Node<E> root;
+
+    private RankTree(Comparator<? super E> comparator, Node<E> root) {
+        this.comparator = comparator;
+        this.root = root;
+    }
+
+    /**
+     * Create an empty tree.
+     *
+     * @param comparator comparator of elements.
+     * @param <E> the type of elements.
+     * @return empty tree.
+     */
+    public static <E> RankTree<E> empty(Comparator<? super E> comparator) {
+        return new RankTree<>(comparator, null);
+    }
+
+    /**
+     * Create a tree of elements.
+     *
+     * @param comparator comparator of elements.
+     * @param elements elements, sorted by comparator and distinct.
+     * @param <E> the type of elements.
+     * @return tree.
+     */
+    public static <E> RankTree<E> of(Comparator<? super E> comparator, List<E> elements) {
+        return new RankTree<>(comparator, build(elements, 0, elements.size()));
+    }
+
+    private static <E> Node<E> build(List<E> elements, int from, int to) {
+        if (to <= from) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        return new Node<>(elements.get(middle), build(elements, from, middle), build(elements, middle + 1, to));
+    }
+
+    /**
+     * Get the number of elements.
+     *
+     * @return the number of elements.
+     */
+    public int size() {
+        return size(this.root);
+    }
+
+    /**
+     * Add an element, replacing the element equal to it.
+     *
+     * @param element element.
+     * @return new tree.
+     */
+    public RankTree<E> insert(E element) {
+        return new RankTree<>(this.comparator, insert(this.root, element));
+    }
+
+    /**
+     * Remove the element equal to the given element.
+     *
+     * @param element element.
+     * @return new tree.
+     */
+    public RankTree<E> remove(E element) {
+        return new RankTree<>(this.comparator, remove(this.root, element));
+    }
+
+    /**
+     * Find the element equal to the given element.
+     *
+     * @param element element to find.
+     * @return the element in the tree. <code>null</code> if not exists.
+     */
+    public E find(E element) {
+        Node<E> node = this.root;
+        while (node != null) {
+            int result = this.comparator.compare(element, node.element);
+            if (result == 0) {
+                return node.element;
+            }
+            node = result < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of elements less than the given element.
+     *
+     * @param element element, need not be in the tree.
+     * @return the rank of element.
+     */
+    public int rank(E element) {
+        int rank = 0;
+        Node<E> node = this.root;
+        while (node != null) {
+            if (this.comparator.compare(element, node.element) <= 0) {
+                node = node.left;
+            } else {
+                rank += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Get an element by rank.
+     *
+     * @param index the rank of element, from <code>0</code>.
+     * @return element.
+     */
+    public E get(int index) {
+        if (index < 0 || size() <= index) {
+            throw new IndexOutOfBoundsException("index = " + index + ", size = " + size());
+        }
+        Node<E> node = this.root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.element;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Get elements by rank, in order.
+     *
+     * @param from the first rank, inclusive.
+     * @param to the last rank, exclusive.
+     * @return elements.
+     */
+    public List<E> subList(int from, int to) {
+        List<E> elements = new ArrayList<>(Math.max(0, to - from));
+        collect(this.root, 0, from, to, elements);
+        return elements;
+    }
+
+    private static <E> void collect(Node<E> node, int offset, int from, int to, List<E> elements) {
+        if (node == null || to <= offset || offset + node.size <= from) {
+            return;
+        }
+        int index = offset + size(node.left);
+        collect(node.left, offset, from, to, elements);
+        if (from <= index && index < to) {
+            elements.add(node.element);
+        }
+        collect(node.right, index + 1, from, to, elements);
+    }
+
+    private Node<E> insert(Node<E> node, E element) {
+        if (node == null) {
+            return new Node<>(element, null, null);
+        }
+        int result = this.comparator.compare(element, node.element);
+        if (result < 0) {
+            return balance(node.element, insert(node.left, element), node.right);
+        } else if (0 < result) {
+            return balance(node.element, node.left, insert(node.right, element));
+        }
+        return new Node<>(element, node.left, node.right);
+    }
+
+    private Node<E> remove(Node<E> node, E element) {
+        if (node == null) {
+            return null;
+        }
+        int result = this.comparator.compare(element, node.element);
+        if (result < 0) {
+            return balance(node.element, remove(node.left, element), node.right);
+        } else if (0 < result) {
+            return balance(node.element, node.left, remove(node.right, element));
+        } else if (node.left == null) {
+            return node.right;
+        } else if (node.right == null) {
+            return node.left;
+        }
+        Node<E> min = node.right;
+        while (min.left != null) {
+            min = min.left;
+        }
+        return balance(min.element, node.left, removeMin(node.right));
+    }
+
+    private static <E> Node<E> removeMin(Node<E> node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(node.element, removeMin(node.left), node.right);
+    }
+
+    private static <E> Node<E> balance(E element, Node<E> left, Node<E> right) {
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        if (rightHeight + 1 < leftHeight) {
+            if (height(left.right) <= height(left.left)) {
+                return new Node<>(left.element, left.left, new Node<>(element, left.right, right));
+            }
+            Node<E> middle = left.right;
+            return new Node<>(middle.element, new Node<>(left.element, left.left, middle.left),
+                    new Node<>(element, middle.right, right));
+        } else if (leftHeight + 1 < rightHeight) {
+            if (height(right.left) <= height(right.right)) {
+                return new Node<>(right.element, new Node<>(element, left, right.left), right.right);
+            }
+            Node<E> middle = right.left;
+            return new Node<>(middle.element, new Node<>(element, left, middle.left),
+                    new Node<>(right.element, middle.right, right.right));
+        }
+        return new Node<>(element, left, right);
+    }
+
+    private static int size(Node<?> node) {
+        return node != null ? node.size : 0;
+    }
+
+    private static int height(Node<?> node) {
+        return node != null ? node.height : 0;
+    }
+
+    /**
+     * Immutable node of tree.
+     */
+    private static class Node<E> {
+
+        private final E element;
+
+        private final Node<E> left;
+
+        private final Node<E> right;
+
+        /**
+         * The number of elements in the subtree.
+         */
+        private final int size;
+
+        private final int height;
+
+        private Node(E element, Node<E> left, Node<E> right) {
+            this.element = element;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + size(right) + 1;
+            this.height = Math.max(height(left), height(right)) + 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,302 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.command.Buffer;
+import io.dogre.aerospike.DigestIndex.EntryConsumer;
+import io.dogre.aerospike.DigestIndex.EntryPredicate;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Concurrent store of records.
+ * <p>
+ * Like Aerospike Server, records are split into {@link #PARTITIONS 4096} partitions by the digest of key. Each
+ * {@link Partition} owns its map of records and its lock, so commands on different partitions do not contend, and
+ * scans, truncates and statistics can walk partitions one by one.
+ * <p>
+ * Records are indexed by namespace id and digest with {@link DigestIndex}, so looking up a record needs no
+ * {@link com.aerospike.client.Key} object. Namespace ids are small integers given by {@link #registerNamespace(String)}.
+ * <p>
+ * This is shared by {@link MemoryStorageEngine} of each namespace.
+ *
+ * @author dogre
+ */
+public class RecordStore {
+
+    /**
+     * The number of partitions.
+     */
+    public static final int PARTITIONS = 4096;
+
+    /**
+     * Partitions.
+     */
+    private Partition[] partitions;
+
+    /**
+     * Namespace ids by the name of namespace.
+     */
+    private ConcurrentMap<String, Integer> namespaceIds = new ConcurrentHashMap<>();
+
+    /**
+     * The names of namespace, indexed by namespace id.
+     */
+    private List<String> namespaceNames = new CopyOnWriteArrayList<>();
+
+    /**
+     * The canonical instances of set names, to share a string among records of the same set.
+     */
+    private ConcurrentMap<String, String> setNames = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param namespaces the names of namespace to register.
+     */
+    public RecordStore(String... namespaces) {
+        this.partitions = new Partition[PARTITIONS];
+        for (int i = 0; i < PARTITIONS; i++) {
+            this.partitions[i] = new Partition(i);
+        }
+        for (String namespace : namespaces) {
+            registerNamespace(namespace);
+        }
+    }
+
+    /**
+     * Get namespace id.
+     *
+     * @param namespace the name of namespace.
+     * @return namespace id. <code>-1</code> if not registered.
+     */
+    public int getNamespaceId(String namespace) {
+        Integer id = this.namespaceIds.get(namespace);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Register namespace, and get its id.
+     *
+     * @param namespace the name of namespace.
+     * @return namespace id.
+     */
+    public synchronized int registerNamespace(String namespace) {
+        Integer id = this.namespaceIds.get(namespace);
+        if (id == null) {
+            id = this.namespaceNames.size();
+            this.namespaceNames.add(namespace);
+            this.namespaceIds.put(namespace, id);
+        }
+        return id;
+    }
+
+    /**
+     * Get the name of namespace.
+     *
+     * @param namespaceId namespace id.
+     * @return the name of namespace.
+     */
+    public String getNamespaceName(int namespaceId) {
+        return this.namespaceNames.get(namespaceId);
+    }
+
+    /**
+     * Get the canonical instance of set name.
+     *
+     * @param setName the name of set.
+     * @return the canonical instance. <code>null</code> if <code>setName</code> is <code>null</code>.
+     */
+    public String internSetName(String setName) {
+        if (setName == null) {
+            return null;
+        }
+        String canonical = this.setNames.putIfAbsent(setName, setName);
+        return canonical != null ? canonical : setName;
+    }
+
+    /**
+     * Get partition id of digest, same as Aerospike Client.
+     *
+     * @param digest the digest of key.
+     * @return partition id.
+     */
+    public static int getPartitionId(byte[] digest) {
+        return (Buffer.littleBytesToInt(digest, 0) & 0xffff) % PARTITIONS;
+    }
+
+    /**
+     * Get partition.
+     *
+     * @param partitionId partition id.
+     * @return partition.
+     */
+    public Partition getPartition(int partitionId) {
+        return this.partitions[partitionId];
+    }
+
+    /**
+     * Get partition of record.
+     *
+     * @param digest the digest of record.
+     * @return partition.
+     */
+    public Partition getPartition(byte[] digest) {
+        return this.partitions[getPartitionId(digest)];
+    }
+
+    /**
+     * Get the number of records in namespace.
+     *
+     * @param namespace the name of namespace. if <code>null</code>, count records of all namespaces.
+     * @return the number of records.
+     */
+    public long size(String namespace) {
+        int namespaceId = namespace != null ? getNamespaceId(namespace) : -1;
+        if (namespace != null && namespaceId < 0) {
+            return 0;
+        }
+        long size = 0;
+        for (Partition partition : this.partitions) {
+            partition.getLock().readLock().lock();
+            try {
+                size += namespace != null ? partition.size(namespaceId) : partition.size();
+            } finally {
+                partition.getLock().readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * A partition of records.
+     * <p>
+     * Methods of this do not lock. Callers must hold the read lock of {@link #getLock()} to read, and the write lock to
+     * modify.
+     */
+    public static class Partition {
+
+        /**
+         * Partition id.
+         */
+        private int id;
+
+        /**
+         * Records.
+         */
+        private DigestIndex<StoredRecord> records = new DigestIndex<>();
+
+        /**
+         * Lock.
+         */
+        private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * Constructor.
+         *
+         * @param id partition id.
+         */
+        public Partition(int id) {
+            this.id = id;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public ReadWriteLock getLock() {
+            return lock;
+        }
+
+        /**
+         * Get record.
+         *
+         * @param namespaceId namespace id.
+         * @param digest the digest of record.
+         * @return record. <code>null</code> if not exists.
+         */
+        public StoredRecord get(int namespaceId, byte[] digest) {
+            return this.records.get(namespaceId, digest, 0);
+        }
+
+        /**
+         * Put record. The replaced record is released.
+         *
+         * @param namespaceId namespace id.
+         * @param digest the digest of record.
+         * @param record record.
+         */
+        public void put(int namespaceId, byte[] digest, StoredRecord record) {
+            StoredRecord previous = this.records.put(namespaceId, digest, 0, record);
+            if (previous != null) {
+                previous.release();
+            }
+        }
+
+        /**
+         * Remove record. The removed record is released, so its bins must not be read.
+         *
+         * @param namespaceId namespace id.
+         * @param digest the digest of record.
+         * @return removed record. <code>null</code> if not exists.
+         */
+        public StoredRecord remove(int namespaceId, byte[] digest) {
+            StoredRecord removed = this.records.remove(namespaceId, digest, 0);
+            if (removed != null) {
+                removed.release();
+            }
+            return removed;
+        }
+
+        /**
+         * Get the number of records.
+         *
+         * @return the number of records.
+         */
+        public int size() {
+            return this.records.size();
+        }
+
+        /**
+         * Get the number of records in namespace.
+         *
+         * @param namespaceId namespace id.
+         * @return the number of records.
+         */
+        public int size(int namespaceId) {
+            return this.records.size(namespaceId);
+        }
+
+        /**
+         * Perform the action for each record.
+         * <p>
+         * The digest array passed to the action is reused, copy it to keep.
+         *
+         * @param action action.
+         */
+        public void forEach(EntryConsumer<StoredRecord> action) {
+            this.records.forEach(action);
+        }
+
+        /**
+         * Remove records which satisfy the filter. Removed records are released.
+         *
+         * @param filter filter.
+         * @return the number of removed records.
+         */
+        public int removeIf(EntryPredicate<StoredRecord> filter) {
+            return this.records.removeIf((namespaceId, digest, record) -> {
+                if (filter.test(namespaceId, digest, record)) {
+                    record.release();
+                    return true;
+                }
+                return false;
+            });
+        }
+
+    }
+
+}
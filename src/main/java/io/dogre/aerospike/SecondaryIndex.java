@@ -0,0 +1,332 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Value;
+import com.aerospike.client.command.ParticleType;
+import com.aerospike.client.query.IndexType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index of a bin in a namespace, similar to secondary index of Aerospike Server.
+ * <p>
+ * Entries are pairs of the value of bin and the digest of record, sorted by value and then digest, so that a range or
+ * equality query visits only the matching entries. Only records of the set are indexed, or records of all sets if the
+ * set is <code>null</code>. Bins of other types than the index type are not indexed.
+ * <p>
+ * Geospatial index keeps GeoJSON bins by the ids of {@link GeoCell}. A point is kept by its leaf cell, and a region by
+ * a few cells covering it. A query for points within a region scans the ranges of cells covering the region, and a
+ * query for regions containing a point looks up the cells containing the point. Entries found are candidates, and are
+ * checked with the shapes by {@link #matches(Object, GeoShape)}.
+ * <p>
+ * The owner updates the index while holding the write lock of record, with {@link #update(byte[], StoredRecord,
+ * StoredRecord)}. Updates of different partitions run concurrently, so entries are kept in a concurrent skip list.
+ *
+ * @author dogre
+ */
+public class SecondaryIndex {
+
+    /**
+     * The lowest digest, for the lower bound of query.
+     */
+    private static final byte[] MIN_DIGEST = new byte[DigestIndex.DIGEST_LENGTH];
+
+    /**
+     * The highest digest, for the upper bound of query.
+     */
+    private static final byte[] MAX_DIGEST = new byte[DigestIndex.DIGEST_LENGTH];
+
+    static {
+        Arrays.fill(MAX_DIGEST, (byte) 0xff);
+    }
+
+    /**
+     * The maximum number of cells covering a region of bin.
+     */
+    public static final int REGION_CELLS = 8;
+
+    /**
+     * The maximum number of cells covering a region of query.
+     */
+    public static final int QUERY_CELLS = 32;
+
+    /**
+     * The name of index.
+     */
+    private String name;
+
+    /**
+     * The name of set. <code>null</code> if all sets.
+     */
+    private String setName;
+
+    /**
+     * The name of bin.
+     */
+    private String binName;
+
+    /**
+     * Index type.
+     */
+    private IndexType type;
+
+    /**
+     * Entries, sorted by value and digest.
+     */
+    private NavigableSet<IndexEntry> entries = new ConcurrentSkipListSet<>();
+
+    /**
+     * Constructor.
+     *
+     * @param name the name of index.
+     * @param setName the name of set. <code>null</code> if all sets.
+     * @param binName the name of bin.
+     * @param type index type.
+     */
+    public SecondaryIndex(String name, String setName, String binName, IndexType type) {
+        this.name = name;
+        this.setName = setName;
+        this.binName = binName;
+        this.type = type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSetName() {
+        return setName;
+    }
+
+    public String getBinName() {
+        return binName;
+    }
+
+    public IndexType getType() {
+        return type;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Get the indexed value of bin value.
+     *
+     * @param value the value of bin.
+     * @return <code>Long</code> for numeric index, <code>String</code> for string index, {@link GeoShape} for
+     * geospatial index. <code>null</code> if the value is not indexed.
+     */
+    public Object getKey(Value value) {
+        if (value == null) {
+            return null;
+        }
+        if (this.type == IndexType.NUMERIC && value.getType() == ParticleType.INTEGER) {
+            return value.toLong();
+        } else if (this.type == IndexType.STRING && value.getType() == ParticleType.STRING) {
+            return value.toString();
+        } else if (this.type == IndexType.GEO2DSPHERE && value.getType() == ParticleType.GEOJSON) {
+            return GeoShape.parse(value.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Get the indexed value of record.
+     *
+     * @param record record.
+     * @return the indexed value. <code>null</code> if the record is not indexed.
+     */
+    public Object getKey(StoredRecord record) {
+        if (this.setName != null && !this.setName.equals(record.getSetName())) {
+            return null;
+        }
+        return getKey(record.getBin(this.binName));
+    }
+
+    /**
+     * Update entries for a change of record.
+     *
+     * @param digest the digest of record.
+     * @param previous the record before change. <code>null</code> if created.
+     * @param next the record after change. <code>null</code> if removed.
+     */
+    public void update(byte[] digest, StoredRecord previous, StoredRecord next) {
+        List<Object> previousKeys = toEntryKeys(previous != null ? getKey(previous) : null);
+        List<Object> nextKeys = toEntryKeys(next != null ? getKey(next) : null);
+        if (Objects.equals(previousKeys, nextKeys)) {
+            return;
+        }
+        for (Object key : previousKeys) {
+            this.entries.remove(new IndexEntry(key, digest));
+        }
+        byte[] copy = Arrays.copyOf(digest, DigestIndex.DIGEST_LENGTH);
+        for (Object key : nextKeys) {
+            this.entries.add(new IndexEntry(key, copy));
+        }
+    }
+
+    /**
+     * Get the keys of entries for an indexed value. Shapes are kept by cells.
+     */
+    private static List<Object> toEntryKeys(Object key) {
+        if (key == null) {
+            return Collections.emptyList();
+        } else if (!(key instanceof GeoShape)) {
+            return Collections.singletonList(key);
+        }
+        GeoShape shape = (GeoShape) key;
+        if (shape.isPoint()) {
+            GeoShape.Point point = (GeoShape.Point) shape;
+            return Collections.singletonList(GeoCell.fromPoint(point.getLongitude(), point.getLatitude()));
+        }
+        return new ArrayList<>(GeoCell.cover(shape.getBounds(), REGION_CELLS));
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * Get digests of records whose indexed value is in range, in the order of value.
+     * <p>
+     * The iterator is weakly consistent, so records may be changed after their entries are visited.
+     *
+     * @param begin the lowest value, inclusive.
+     * @param end the highest value, inclusive.
+     * @return iterator of digests.
+     */
+    public Iterator<byte[]> range(Object begin, Object end) {
+        IndexEntry from = new IndexEntry(begin, MIN_DIGEST);
+        IndexEntry to = new IndexEntry(end, MAX_DIGEST);
+        if (from.compareTo(to) > 0) {
+            return Collections.emptyIterator();
+        }
+        Iterator<IndexEntry> iterator = this.entries.subSet(from, true, to, true).iterator();
+        return new Iterator<byte[]>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public byte[] next() {
+                return iterator.next().digest;
+            }
+        };
+    }
+
+    /**
+     * Get digests of records which may match a geospatial query, points within the region or regions containing the
+     * point. A record may be visited more than once.
+     * <p>
+     * The iterator is weakly consistent, and records must be checked with {@link #matches(Object, GeoShape)}.
+     *
+     * @param query the region or the point of query.
+     * @return iterator of digests.
+     */
+    public Iterator<byte[]> query(GeoShape query) {
+        List<long[]> ranges = new ArrayList<>();
+        if (query.isPoint()) {
+            // regions are kept by the cells containing the point
+            GeoShape.Point point = (GeoShape.Point) query;
+            long leaf = GeoCell.fromPoint(point.getLongitude(), point.getLatitude());
+            for (int level = 0; level <= GeoCell.MAX_LEVEL; level++) {
+                long cell = GeoCell.parent(leaf, level);
+                ranges.add(new long[] { cell, cell });
+            }
+        } else {
+            for (long cell : GeoCell.cover(query.getBounds(), QUERY_CELLS)) {
+                ranges.add(new long[] { GeoCell.rangeMin(cell), GeoCell.rangeMax(cell) });
+            }
+        }
+        Iterator<long[]> rangeIterator = ranges.iterator();
+        return new Iterator<byte[]>() {
+            private Iterator<byte[]> iterator = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!this.iterator.hasNext() && rangeIterator.hasNext()) {
+                    long[] range = rangeIterator.next();
+                    this.iterator = range(range[0], range[1]);
+                }
+                return this.iterator.hasNext();
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return this.iterator.next();
+            }
+        };
+    }
+
+    /**
+     * Whether the indexed value matches a geospatial query.
+     *
+     * @param key the indexed value of record.
+     * @param query the region or the point of query.
+     * @return <code>true</code> if the value is a point within the region of query, or a region containing the point of
+     * query.
+     */
+    public boolean matches(Object key, GeoShape query) {
+        if (!(key instanceof GeoShape)) {
+            return false;
+        }
+        GeoShape shape = (GeoShape) key;
+        if (query.isPoint()) {
+            return !shape.isPoint() && shape.contains((GeoShape.Point) query);
+        }
+        return shape.isPoint() && query.contains((GeoShape.Point) shape);
+    }
+
+    /**
+     * Entry of index, the indexed value and the digest of record.
+     */
+    private static class IndexEntry implements Comparable<IndexEntry> {
+
+        private Object key;
+
+        private byte[] digest;
+
+        private IndexEntry(Object key, byte[] digest) {
+            this.key = key;
+            this.digest = digest;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compareTo(IndexEntry other) {
+            int result = ((Comparable<Object>) this.key).compareTo(other.key);
+            if (result != 0) {
+                return result;
+            }
+            for (int i = 0; i < DigestIndex.DIGEST_LENGTH; i++) {
+                result = (this.digest[i] & 0xff) - (other.digest[i] & 0xff);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+    }
+
+}
@@ -1,5 +1,12 @@
 package io.dogre.aerospike;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+import java.util.function.Consumer;
+
 /**
  * Service Handler that handles Aerospike Protocol.
  * <p>
@@ -16,8 +23,13 @@ package io.dogre.aerospike;
  * <li>Add</li>
  * <li>Touch</li>
  * <li>Delete</li>
+ * <li>Truncate</li>
+ * <li>Scan</li>
+ * <li>Create Index, Drop Index</li>
+ * <li>Query</li>
  * </ul>
- * And also this does not support functions for lifecycle (ttl, generation, expiration).
+ * Records expire by the expiration of write policy. Generation is increased by each write, and checked if the write
+ * policy expects it. Void time and generation are returned in responses.
  *
  * @author dogre
  */
@@ -25,10 +37,67 @@ public interface ServiceHandler {
 
     /**
      * Handle Aerospike Request
+     * <p>
+     * This is an adapter of {@link #handleRequest(ByteBuf, ByteBufAllocator)}, it copies the response to byte array.
      *
      * @param request request
      * @return response
      */
-    byte[] handleRequest(byte[] request);
+    default byte[] handleRequest(byte[] request) {
+        ByteBuf response = handleRequest(Unpooled.wrappedBuffer(request), UnpooledByteBufAllocator.DEFAULT);
+        try {
+            byte[] bytes = new byte[response.readableBytes()];
+            response.readBytes(bytes);
+            return bytes;
+        } finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Handle Aerospike Request
+     * <p>
+     * The request is parsed in place. It is not released by this method, the caller still owns it. The response is
+     * allocated by <code>allocator</code>, and the caller must release it.
+     *
+     * @param request request, its readable bytes are the message including size header.
+     * @param allocator allocator for response.
+     * @return response
+     */
+    ByteBuf handleRequest(ByteBuf request, ByteBufAllocator allocator);
+
+    /**
+     * Handle Aerospike Request, streaming the response.
+     * <p>
+     * A response of scan can be too large to be built at once, so it is passed to <code>output</code> in several
+     * messages, in order. The caller must release each message. By default, this passes the response of
+     * {@link #handleRequest(ByteBuf, ByteBufAllocator)} as a message.
+     *
+     * @param request request, its readable bytes are the message including size header.
+     * @param allocator allocator for response.
+     * @param output consumer of response messages, called by the calling thread.
+     */
+    default void handleRequest(ByteBuf request, ByteBufAllocator allocator, Consumer<ByteBuf> output) {
+        output.accept(handleRequest(request, allocator));
+    }
+
+    /**
+     * Whether the response of request may be streamed in several messages, or take long to be built.
+     * <p>
+     * The server handles such requests off the IO thread, and waits for the connection to be writable between
+     * messages. Other requests of the connection are handled after it, in order.
+     *
+     * @param request request, its readable bytes are the message including size header. it is not modified.
+     * @return <code>true</code> if the response may be streamed.
+     */
+    default boolean isStreaming(ByteBuf request) {
+        return false;
+    }
+
+    /**
+     * Release resources, such as background threads. Called when server stops.
+     */
+    default void close() {
+    }
 
 }
@@ -1,5 +1,6 @@
 package io.dogre.aerospike;
 
+import com.aerospike.client.AerospikeException;
 import com.aerospike.client.Key;
 import com.aerospike.client.Operation;
 import com.aerospike.client.Operation.Type;
@@ -9,9 +10,23 @@ import com.aerospike.client.command.Buffer;
 import com.aerospike.client.command.Command;
 import com.aerospike.client.command.FieldType;
 import com.aerospike.client.command.ParticleType;
+import com.aerospike.client.query.IndexType;
+import io.dogre.aerospike.StorageEngine.RecordEntry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import org.luaj.vm2.LuaError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Implementation of {@link ServiceHandler}.
@@ -20,15 +35,74 @@ import java.util.Map.Entry;
  */
 public class ServiceHandlerImpl implements ServiceHandler {
 
+    private static final Logger logger = LoggerFactory.getLogger(ServiceHandlerImpl.class);
+
     /**
      * The information of server.
      */
     protected Map<String, byte[]> infos = new HashMap<>();
 
     /**
-     * Records.
+     * Records, shared by {@link MemoryStorageEngine} of namespaces.
+     */
+    protected RecordStore records = new RecordStore();
+
+    /**
+     * Storage engines by the name of namespace.
+     */
+    protected ConcurrentMap<String, StorageEngine> storageEngines = new ConcurrentHashMap<>();
+
+    /**
+     * Registered UDF modules, shared by namespaces.
+     */
+    protected LuaUdfEngine udfEngine = new LuaUdfEngine();
+
+    /**
+     * The maximum length of a message of streamed response. A message may exceed it by the records of a partition of
+     * scan, or a window of batch get.
+     */
+    public static final int MESSAGE_LENGTH = 128 * 1024;
+
+    /**
+     * The number of keys of batch get resolved at once, and then written. Larger batches are streamed.
+     */
+    public static final int BATCH_WINDOW = 256;
+
+    /**
+     * The estimated time of serial batch get, over which keys are resolved in parallel. (100 us)
+     */
+    public static final long BATCH_PARALLEL_NANOS = 100_000;
+
+    /**
+     * The number of threads scanning partitions or resolving keys in parallel, per request.
+     */
+    protected int workerThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Estimated time to resolve a key of batch get, in nanoseconds.
      */
-    protected Map<Key, Map<String, Value>> records = new HashMap<>();
+    protected volatile long batchNanosPerKey = 1000;
+
+    /**
+     * Executor for scanning partitions and resolving keys of batch get. It has as many threads as processors, and
+     * tasks of concurrent requests wait in its queue, so that a burst of requests does not start threads unbounded.
+     */
+    protected ExecutorService workerExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Readers of requests, reused by each thread.
+     */
+    protected ThreadLocal<ByteReader> readers = ThreadLocal.withInitial(ByteReader::new);
+
+    /**
+     * Writers of responses, reused by each thread. A response is copied to a buffer of allocator at once.
+     */
+    protected ThreadLocal<ByteWriter> writers = ThreadLocal.withInitial(() -> new ByteWriter(0));
 
     /**
      * Constructor.
@@ -37,6 +111,20 @@ public class ServiceHandlerImpl implements ServiceHandler {
      * @param namespaces the names of namespace that Aerospike Server has.
      */
     public ServiceHandlerImpl(String service, String... namespaces) {
+        this(service, NamespaceConfig.of(namespaces));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param service the string for connecting this server. <code>host + ":" + port</code>
+     * @param namespaces configurations of namespace that Aerospike Server has.
+     */
+    public ServiceHandlerImpl(String service, NamespaceConfig... namespaces) {
+        for (NamespaceConfig namespace : namespaces) {
+            this.storageEngines.put(namespace.getName(), createStorageEngine(namespace));
+        }
+
         Map<String, String> map = new HashMap<>();
         map.put("node", "BB9E152A39B2100");
         map.put("partition-generation", "1");
@@ -47,11 +135,11 @@ public class ServiceHandlerImpl implements ServiceHandler {
         map.put("peers-clear-std", "1,,[]");
         // make namespaces to nodes map
         StringBuilder builder = new StringBuilder();
-        for (String namespace : namespaces) {
+        for (NamespaceConfig namespace : namespaces) {
             if (0 < builder.length()) {
                 builder.append(",");
             }
-            builder.append(namespace).append(":1,//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////8=");
+            builder.append(namespace.getName()).append(":1,//////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////8=");
         }
         map.put("replicas-all", builder.toString());
         map.put("service", service);
@@ -66,27 +154,144 @@ public class ServiceHandlerImpl implements ServiceHandler {
     }
 
     @Override
-    public byte[] handleRequest(byte[] request) {
-        ByteReader reader = new ByteReader(request);
+    public ByteBuf handleRequest(ByteBuf request, ByteBufAllocator allocator) {
+        List<ByteBuf> messages = new ArrayList<>(1);
+        handleRequest(request, allocator, messages::add);
+        if (messages.size() == 1) {
+            return messages.get(0);
+        }
+        CompositeByteBuf response = allocator.compositeBuffer(messages.size());
+        response.addComponents(true, messages);
+        return response;
+    }
 
+    @Override
+    public void handleRequest(ByteBuf request, ByteBufAllocator allocator, Consumer<ByteBuf> output) {
+        ByteReader reader = this.readers.get();
+        reader.wrap(request);
+        try {
+            handleRequest(reader, allocator, output);
+        } finally {
+            reader.clear();
+        }
+    }
+
+    /**
+     * Handle request.
+     *
+     * @param reader byte reader, wrapping the request including size header.
+     * @param allocator allocator for response.
+     * @param output consumer of response messages.
+     */
+    protected void handleRequest(ByteReader reader, ByteBufAllocator allocator, Consumer<ByteBuf> output) {
         long sizeHeader = reader.readLong();
         int type = (int) (sizeHeader >> 48) & 0xff;
 
-        ByteWriter writer = new ByteWriter(type);
+        ByteWriter writer = this.writers.get();
+        writer.reset(type);
 
         if (type == 1) {
             handleInfo(reader, writer);
         } else {
             Header header = reader.readHeader();
-            // If batch get, the structure of remaining message is different.
+            // If batch get or scan, the structure of remaining message is different.
             if (header.isInfo1Set(Command.INFO1_READ) && header.isInfo1Set(Command.INFO1_BATCH)) {
-                handleBatchGet(header, reader, writer);
+                // The response of batch get is streamed.
+                handleBatchGet(header, reader, allocator, output);
+                return;
+            } else if (header.isInfo1Set(Command.INFO1_READ) &&
+                    reader.hasField(header.getFieldCount(), FieldType.SCAN_OPTIONS)) {
+                // The response of scan is streamed.
+                handleScan(header, reader, allocator, output);
+                return;
+            } else if (header.isInfo1Set(Command.INFO1_READ) &&
+                    reader.hasField(header.getFieldCount(), FieldType.INDEX_RANGE)) {
+                handleQuery(header, reader, allocator, output);
+                return;
+            } else if (reader.hasField(header.getFieldCount(), FieldType.UDF_PACKAGE_NAME)) {
+                handleUdf(header, reader, writer);
             } else {
                 handleOperations(header, reader, writer);
             }
         }
 
-        return writer.toBytes();
+        output.accept(toMessage(writer, allocator));
+    }
+
+    /**
+     * Whether the response is streamed. Scans, queries and batch gets of more than {@link #BATCH_WINDOW} keys are
+     * streamed, and info messages of {@link #isBlockingInfoCommand(String) blocking commands} are handled off the IO
+     * thread too.
+     *
+     * @param request request, its readable bytes are the message including size header.
+     * @return <code>true</code> if the response may be streamed.
+     */
+    @Override
+    public boolean isStreaming(ByteBuf request) {
+        ByteReader reader = this.readers.get();
+        reader.wrap(request);
+        try {
+            long sizeHeader = reader.readLong();
+            int type = (int) (sizeHeader >> 48) & 0xff;
+            if (type == 1) {
+                StringTokenizer tokenizer = new StringTokenizer(reader.readUtf8String(reader.getLength() - 8), "\n");
+                while (tokenizer.hasMoreTokens()) {
+                    if (isBlockingInfoCommand(tokenizer.nextToken())) {
+                        return true;
+                    }
+                }
+                return false;
+            } else if (type != 3) {
+                return false;
+            }
+            Header header = reader.readHeader();
+            if (!header.isInfo1Set(Command.INFO1_READ)) {
+                return false;
+            } else if (header.isInfo1Set(Command.INFO1_BATCH)) {
+                reader.skip(5); // field size and type
+                return BATCH_WINDOW < reader.readInt();
+            }
+            return reader.hasField(header.getFieldCount(), FieldType.SCAN_OPTIONS) ||
+                    reader.hasField(header.getFieldCount(), FieldType.INDEX_RANGE);
+        } finally {
+            reader.clear();
+        }
+    }
+
+    /**
+     * Create storage engine of namespace. Override this to use another engine.
+     *
+     * @param config the configuration of namespace.
+     * @return storage engine.
+     */
+    protected StorageEngine createStorageEngine(NamespaceConfig config) {
+        return new MemoryStorageEngine(this.records, config);
+    }
+
+    /**
+     * Get storage engine of namespace.
+     * <p>
+     * A namespace not configured is created with the default configuration when the first record is written.
+     *
+     * @param namespace the name of namespace.
+     * @param create whether to create if not exists.
+     * @return storage engine. <code>null</code> if not exists.
+     */
+    protected StorageEngine getStorageEngine(String namespace, boolean create) {
+        StorageEngine engine = this.storageEngines.get(namespace);
+        if (engine == null && create) {
+            engine = this.storageEngines.computeIfAbsent(namespace,
+                    name -> createStorageEngine(new NamespaceConfig(name)));
+        }
+        return engine;
+    }
+
+    @Override
+    public void close() {
+        for (StorageEngine engine : this.storageEngines.values()) {
+            engine.close();
+        }
+        this.workerExecutor.shutdownNow();
     }
 
     /**
@@ -103,18 +308,279 @@ public class ServiceHandlerImpl implements ServiceHandler {
             String key = tokenizer.nextToken();
             if (this.infos.containsKey(key)) {
                 writer.writeInfo(key, this.infos.get(key));
+            } else {
+                String value = handleInfoCommand(key);
+                if (value != null) {
+                    writer.writeInfo(key, Buffer.stringToUtf8(value));
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle info command, which has dynamic value.
+     * <p>
+     * The info command consists of the name, colon(':') and parameters. Parameters are seperated by semicolon(';'), and
+     * each parameter is name + equal('=') + value. e.g. <code>truncate:namespace=test;set=test</code>
+     *
+     * @param command info command.
+     * @return the value of info. <code>null</code> if not supported.
+     */
+    protected String handleInfoCommand(String command) {
+        int index = command.indexOf(':');
+        String name = index < 0 ? command : command.substring(0, index);
+        Map<String, String> parameters = new HashMap<>();
+        if (0 <= index) {
+            for (String parameter : command.substring(index + 1).split(";")) {
+                int equal = parameter.indexOf('=');
+                if (0 < equal) {
+                    parameters.put(parameter.substring(0, equal), parameter.substring(equal + 1));
+                }
+            }
+        }
+
+        if (name.equals("truncate")) {
+            String namespace = parameters.get("namespace");
+            if (namespace == null) {
+                return "ERROR::namespace-required";
+            }
+            StorageEngine engine = getStorageEngine(namespace, false);
+            if (engine != null) {
+                engine.truncate(parameters.get("set"));
+            }
+            return "ok";
+        } else if (name.equals("sindex-create")) {
+            return createIndex(parameters);
+        } else if (name.equals("sindex-delete")) {
+            StorageEngine engine = getStorageEngine(parameters.get("ns"), false);
+            if (engine == null || !engine.dropIndex(parameters.get("indexname"))) {
+                return "FAIL:" + ResultCode.INDEX_NOTFOUND + ":Index does not exist";
+            }
+            return "OK";
+        } else if (name.startsWith("sindex/")) {
+            // sindex/<namespace>/<index name>, indexes are built at once
+            String[] names = name.split("/");
+            StorageEngine engine = names.length == 3 ? getStorageEngine(names[1], false) : null;
+            SecondaryIndex secondaryIndex = engine != null ? findIndex(engine, names[2]) : null;
+            if (secondaryIndex == null) {
+                return "FAIL:" + ResultCode.INDEX_NOTFOUND + ":Index does not exist";
+            }
+            return "keys=" + secondaryIndex.size() + ";load_pct=100;state=RW";
+        } else if (name.equals("udf-put")) {
+            return registerUdf(parameters);
+        } else if (name.equals("udf-list")) {
+            StringBuilder builder = new StringBuilder();
+            for (LuaUdfEngine.Module module : this.udfEngine.getModules()) {
+                builder.append("filename=").append(module.getFileName()).append(",hash=").append(module.getHash())
+                        .append(",type=LUA;");
+            }
+            return builder.toString();
+        } else if (name.equals("udf-get")) {
+            LuaUdfEngine.Module module = this.udfEngine.getModule(parameters.getOrDefault("filename", ""));
+            if (module == null) {
+                return "error=not_found";
+            }
+            return "gen=" + module.getHash() + ";type=LUA;content=" +
+                    Base64.getEncoder().encodeToString(module.getSource());
+        } else if (name.equals("udf-remove")) {
+            if (!this.udfEngine.remove(parameters.getOrDefault("filename", ""))) {
+                return "error=file_not_found";
             }
+            return "ok";
+        } else if (name.equals("snapshot-dump")) {
+            return dumpSnapshot(parameters);
+        } else if (name.equals("backup-export")) {
+            return exportBackup(parameters);
+        } else if (name.equals("backup-import")) {
+            return importBackup(parameters);
+        } else if (name.startsWith("namespace/")) {
+            StorageEngine engine = getStorageEngine(name.substring("namespace/".length()), false);
+            StorageStats stats = engine != null ? engine.getStats() : new StorageStats();
+            return "objects=" + stats.getObjects() + ";memory_used_bytes=" + stats.getMemoryUsedBytes() +
+                    ";memory-size=" + stats.getMemorySize() + ";expired_objects=" + stats.getExpiredObjects() +
+                    ";evicted_objects=" + stats.getEvictedObjects() + ";stop_writes=" + stats.isStopWrites();
         }
+        return null;
+    }
+
+    /**
+     * Whether the info command blocks for long, such as writing a file of all records.
+     *
+     * @param command info command.
+     * @return <code>true</code> if the command blocks.
+     */
+    protected boolean isBlockingInfoCommand(String command) {
+        int index = command.indexOf(':');
+        String name = index < 0 ? command : command.substring(0, index);
+        return name.equals("snapshot-dump") || name.equals("backup-export") || name.equals("backup-import");
+    }
+
+    /**
+     * Create secondary index by info command.
+     * <p>
+     * e.g. <code>sindex-create:ns=test;set=test;indexname=test;numbins=1;indexdata=bin,NUMERIC;priority=normal</code>
+     *
+     * @param parameters the parameters of info command.
+     * @return the value of info.
+     */
+    protected String createIndex(Map<String, String> parameters) {
+        String namespace = parameters.get("ns");
+        String indexName = parameters.get("indexname");
+        String[] indexData = parameters.getOrDefault("indexdata", "").split(",");
+        if (namespace == null || indexName == null || indexData.length != 2) {
+            return "FAIL:" + ResultCode.PARAMETER_ERROR + ":Invalid parameters";
+        }
+        IndexType type;
+        try {
+            type = IndexType.valueOf(indexData[1].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return "FAIL:" + ResultCode.PARAMETER_ERROR + ":Invalid index type";
+        }
+        if (parameters.containsKey("indextype")) {
+            // only bins of integer, string or GeoJSON are indexed, not elements of lists or maps
+            return "FAIL:" + ResultCode.INDEX_GENERIC + ":Index type is not supported";
+        }
+
+        // Namespace is created when the first index is created, like the first record is written.
+        StorageEngine engine = getStorageEngine(namespace, true);
+        if (!engine.createIndex(new SecondaryIndex(indexName, parameters.get("set"), indexData[0], type))) {
+            return "FAIL:" + ResultCode.INDEX_ALREADY_EXISTS + ":Index with the same name already exists";
+        }
+        return "OK";
+    }
+
+    /**
+     * Register UDF module by info command. The module is compiled, and the error of compile is returned.
+     * <p>
+     * e.g. <code>udf-put:filename=example.lua;content=(base64);content-len=(length);udf-type=LUA;</code>
+     *
+     * @param parameters the parameters of info command.
+     * @return the value of info. empty if registered.
+     */
+    protected String registerUdf(Map<String, String> parameters) {
+        String fileName = parameters.get("filename");
+        String content = parameters.get("content");
+        if (fileName == null || content == null ||
+                !"LUA".equalsIgnoreCase(parameters.getOrDefault("udf-type", "LUA"))) {
+            return "error=invalid_parameters";
+        }
+        byte[] source;
+        try {
+            source = Base64.getDecoder().decode(content);
+        } catch (IllegalArgumentException e) {
+            return "error=invalid_content";
+        }
+        try {
+            this.udfEngine.register(fileName, source);
+        } catch (LuaError e) {
+            // the message is "chunk name:line: message"
+            String message = e.getMessage() != null ? e.getMessage() : "";
+            String[] parts = message.split(":", 3);
+            String line = parts.length == 3 && parts[1].matches("\\d+") ? parts[1] : "0";
+            message = parts.length == 3 && parts[1].matches("\\d+") ? parts[2].trim() : message;
+            return "error=compile_error;file=" + fileName + ";line=" + line + ";message=" +
+                    Base64.getEncoder().encodeToString(Buffer.stringToUtf8(message));
+        }
+        return "";
+    }
+
+    /**
+     * Write the records of namespace to a snapshot file by info command.
+     * <p>
+     * e.g. <code>snapshot-dump:ns=test;file=/tmp/test.snapshot</code>
+     *
+     * @param parameters the parameters of info command.
+     * @return the value of info.
+     */
+    protected String dumpSnapshot(Map<String, String> parameters) {
+        String file = parameters.get("file");
+        StorageEngine engine = getStorageEngine(parameters.getOrDefault("ns", ""), false);
+        if (engine == null || file == null) {
+            return "FAIL:" + ResultCode.PARAMETER_ERROR + ":Invalid parameters";
+        }
+        try {
+            return "records=" + engine.writeSnapshot(Paths.get(file));
+        } catch (IOException e) {
+            logger.error("Failed to write snapshot {}", file, e);
+            return "FAIL:" + ResultCode.SERVER_ERROR + ":" + e.getMessage();
+        }
+    }
+
+    /**
+     * Export records of namespace to <code>asbackup</code> files by info command. <code>files</code> is the number of
+     * files written in parallel, 1 by default.
+     * <p>
+     * e.g. <code>backup-export:ns=test;directory=/tmp/backup;files=4</code>
+     *
+     * @param parameters the parameters of info command.
+     * @return the value of info.
+     */
+    protected String exportBackup(Map<String, String> parameters) {
+        String directory = parameters.get("directory");
+        StorageEngine engine = getStorageEngine(parameters.getOrDefault("ns", ""), false);
+        if (engine == null || directory == null) {
+            return "FAIL:" + ResultCode.PARAMETER_ERROR + ":Invalid parameters";
+        }
+        try {
+            int files = Integer.parseInt(parameters.getOrDefault("files", "1"));
+            return "records=" + AsBackup.write(engine, Paths.get(directory), files);
+        } catch (NumberFormatException e) {
+            return "FAIL:" + ResultCode.PARAMETER_ERROR + ":Invalid parameters";
+        } catch (IOException e) {
+            logger.error("Failed to export backup {}", directory, e);
+            return "FAIL:" + ResultCode.SERVER_ERROR + ":" + e.getMessage();
+        }
+    }
+
+    /**
+     * Import records from <code>asbackup</code> files into namespace by info command. <code>path</code> is a file, or
+     * a directory whose files are read in parallel.
+     * <p>
+     * e.g. <code>backup-import:ns=test;path=/tmp/backup</code>
+     *
+     * @param parameters the parameters of info command.
+     * @return the value of info.
+     */
+    protected String importBackup(Map<String, String> parameters) {
+        String path = parameters.get("path");
+        StorageEngine engine = getStorageEngine(parameters.getOrDefault("ns", ""), false);
+        if (engine == null || path == null) {
+            return "FAIL:" + ResultCode.PARAMETER_ERROR + ":Invalid parameters";
+        }
+        try {
+            return "records=" + AsBackup.read(engine, Paths.get(path), Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            logger.error("Failed to import backup {}", path, e);
+            return "FAIL:" + ResultCode.SERVER_ERROR + ":" + e.getMessage();
+        }
+    }
+
+    private static SecondaryIndex findIndex(StorageEngine engine, String indexName) {
+        for (SecondaryIndex index : engine.getIndexes()) {
+            if (index.getName().equals(indexName)) {
+                return index;
+            }
+        }
+        return null;
     }
 
     /**
      * Handle batch get.
+     * <p>
+     * Keys are parsed first, and then resolved by windows of {@link #BATCH_WINDOW} keys. Records of a window are
+     * written in the order of batch index, and passed to <code>output</code> in messages of about
+     * {@link #MESSAGE_LENGTH}, so that a large batch needs bounded memory. A window of a streamed batch is resolved in
+     * parallel by {@link #workerExecutor} and the calling thread, with keys grouped by partition, if the estimated time
+     * to resolve it serially is long. The time is measured per key. Batches not streamed are handled by the IO thread,
+     * so they are resolved serially, not to block the IO thread waiting for workers.
      *
      * @param header header.
      * @param reader byte reader.
-     * @param writer byte writer.
+     * @param allocator allocator for response.
+     * @param output consumer of response messages.
      */
-    protected void handleBatchGet(Header header, ByteReader reader, ByteWriter writer) {
+    protected void handleBatchGet(Header header, ByteReader reader, ByteBufAllocator allocator,
+            Consumer<ByteBuf> output) {
         reader.skip(4); // field size
         int fieldType = reader.readByte();
         boolean sendSetName = (fieldType == FieldType.BATCH_INDEX_WITH_SET);
@@ -123,12 +589,13 @@ public class ServiceHandlerImpl implements ServiceHandler {
         int keyCount = reader.readInt();
         reader.skip(1); // allowInline
 
+        BatchKey[] keys = new BatchKey[keyCount];
         String namespace = null;
-        String set = null;
+        StorageEngine engine = null;
         Set<String> binNames = null;
         for (int i = 0; i < keyCount; i++) {
             int index = reader.readInt();
-            byte[] digest = new byte[20];
+            byte[] digest = new byte[DigestIndex.DIGEST_LENGTH];
             reader.readBytes(digest);
             boolean repeat = (reader.readByte() == 1);
             if (!repeat) {
@@ -137,25 +604,391 @@ public class ServiceHandlerImpl implements ServiceHandler {
                 int operationCount = reader.readShort();
                 int fieldSize = reader.readInt() - 1;
                 reader.skip(1);
-                namespace = reader.readUtf8String(fieldSize);
+                namespace = reader.readName(fieldSize);
+                engine = getStorageEngine(namespace, false);
                 if (sendSetName) {
+                    // set name is not needed to find record
                     fieldSize = reader.readInt() - 1;
-                    reader.skip(1);
-                    set = reader.readUtf8String(fieldSize);
+                    reader.skip(1 + fieldSize);
                 }
                 binNames = null;
                 if (0 < operationCount) {
                     binNames = reader.readBinNames(operationCount);
                 }
             }
+            keys[i] = new BatchKey(index, digest, namespace, engine, binNames);
+        }
+
+        ByteWriter writer = this.writers.get();
+        writer.reset(3);
+        // same as isStreaming
+        boolean parallel = BATCH_WINDOW < keyCount;
+        for (int from = 0; from < keyCount; from += BATCH_WINDOW) {
+            resolveBatch(keys, from, Math.min(keyCount, from + BATCH_WINDOW), noBinData, parallel, writer);
+            if (MESSAGE_LENGTH <= writer.getLength()) {
+                output.accept(toMessage(writer, allocator));
+                writer.reset(3);
+            }
+        }
+
+        Header lastHeader = new Header();
+        lastHeader.setInfo3(Command.INFO3_LAST);
+        writer.writeHeader(lastHeader);
+        output.accept(toMessage(writer, allocator));
+    }
+
+    /**
+     * Resolve keys of batch get, and write records in order.
+     *
+     * @param keys keys.
+     * @param from the index of the first key, inclusive.
+     * @param to the index of the last key, exclusive.
+     * @param noBinData flag for exclude bins.
+     * @param parallel whether keys may be resolved in parallel. <code>false</code> if handled by the IO thread.
+     * @param writer byte writer.
+     */
+    protected void resolveBatch(BatchKey[] keys, int from, int to, boolean noBinData, boolean parallel,
+            ByteWriter writer) {
+        int keyCount = to - from;
+        long startTime = System.nanoTime();
+        int tasks = !parallel ? 1 : (int) Math.min(Math.min(this.workerThreads, keyCount),
+                keyCount * this.batchNanosPerKey / BATCH_PARALLEL_NANOS);
+        if (tasks <= 1) {
+            for (int i = from; i < to; i++) {
+                writeBatchRecord(writer, keys[i], noBinData);
+            }
+            tasks = 1;
+        } else {
+            // group keys by partition, and split them into ranges of tasks
+            Integer[] positions = new Integer[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                positions[i] = from + i;
+            }
+            Arrays.sort(positions, Comparator.comparingInt(position -> keys[position].partitionId));
+            // each task writes records into its own writer, and they are copied in order of keys
+            ByteWriter[] taskWriters = new ByteWriter[tasks];
+            int[] recordTasks = new int[keyCount];
+            int[] recordOffsets = new int[keyCount];
+            int[] recordLengths = new int[keyCount];
+            List<Future<?>> futures = new ArrayList<>(tasks - 1);
+            for (int task = 0; task < tasks; task++) {
+                int start = keyCount * task / tasks;
+                int end = keyCount * (task + 1) / tasks;
+                int taskIndex = task;
+                Runnable runnable = () -> {
+                    ByteWriter taskWriter = new ByteWriter(3);
+                    for (int i = start; i < end; i++) {
+                        int position = positions[i] - from;
+                        recordTasks[position] = taskIndex;
+                        recordOffsets[position] = taskWriter.getLength();
+                        writeBatchRecord(taskWriter, keys[positions[i]], noBinData);
+                        recordLengths[position] = taskWriter.getLength() - recordOffsets[position];
+                    }
+                    taskWriters[taskIndex] = taskWriter;
+                };
+                if (task < tasks - 1) {
+                    futures.add(this.workerExecutor.submit(runnable));
+                } else {
+                    // the calling thread resolves the last range
+                    runnable.run();
+                }
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Batch get is interrupted", e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Batch get failed", e.getCause());
+                }
+            }
+            for (int i = 0; i < keyCount; i++) {
+                writer.writeAll(taskWriters[recordTasks[i]], recordOffsets[i], recordLengths[i]);
+            }
+        }
+        if (0 < keyCount) {
+            // time per key in a thread, moving average
+            long nanosPerKey = (System.nanoTime() - startTime) * tasks / keyCount;
+            this.batchNanosPerKey = (this.batchNanosPerKey * 7 + Math.max(1, nanosPerKey)) / 8;
+        }
+    }
+
+    /**
+     * Write a record of batch get.
+     *
+     * @param writer byte writer.
+     * @param key the key of batch.
+     * @param noBinData flag for exclude bins.
+     */
+    private static void writeBatchRecord(ByteWriter writer, BatchKey key, boolean noBinData) {
+        if (key.engine == null) {
+            writer.writeRecord(key.index, key.namespace, key.digest, null, key.binNames, noBinData);
+        } else {
+            // The record is valid only in the function, so it is written there.
+            key.engine.operate(key.digest, false, entry -> {
+                writer.writeRecord(key.index, key.namespace, key.digest, entry.getRecord(), key.binNames, noBinData);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Handle scan.
+     * <p>
+     * Partitions are scanned in parallel by {@link #workerThreads} tasks. Each task encodes records into messages of
+     * about {@link #MESSAGE_LENGTH}, and hands them over through a bounded queue, so that memory is bounded even
+     * if the client reads slowly. The calling thread passes the messages to <code>output</code>, and finally the
+     * message with {@link Command#INFO3_LAST}.
+     *
+     * @param header header.
+     * @param reader byte reader.
+     * @param allocator allocator for response.
+     * @param output consumer of response messages.
+     */
+    protected void handleScan(Header header, ByteReader reader, ByteBufAllocator allocator,
+            Consumer<ByteBuf> output) {
+        Map<Integer, byte[]> fields = reader.readFields(header.getFieldCount());
+        String namespace = fieldToString(fields.get(FieldType.NAMESPACE));
+        String setName = fieldToString(fields.get(FieldType.TABLE));
+        byte[] options = fields.get(FieldType.SCAN_OPTIONS);
+        int percent = options.length < 2 || options[1] <= 0 ? 100 : Math.min(options[1], 100);
+        Set<String> binNames = 0 < header.getOperationCount() ? reader.readBinNames(header.getOperationCount()) : null;
+        boolean noBinData = header.isInfo1Set(Command.INFO1_NOBINDATA);
+
+        Header lastHeader = new Header();
+        lastHeader.setInfo3(Command.INFO3_LAST);
+        StorageEngine engine = getStorageEngine(namespace, false);
+        if (engine != null) {
+            int tasks = Math.max(1, Math.min(this.workerThreads, RecordStore.PARTITIONS));
+            ScanContext context = new ScanContext(engine, setName, percent, binNames, noBinData, allocator, tasks);
+            for (int i = 0; i < tasks; i++) {
+                this.workerExecutor.execute(() -> scanPartitions(context));
+            }
+
+            // messages are passed by the calling thread, in order
+            int finished = 0;
+            boolean interrupted = false;
+            RuntimeException failure = null;
+            while (finished < tasks) {
+                ByteBuf message;
+                try {
+                    message = context.messages.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    context.stopped = true;
+                    continue;
+                }
+                if (message == Unpooled.EMPTY_BUFFER) {
+                    finished++;
+                } else if (context.stopped) {
+                    // drain messages, so that tasks finish
+                    message.release();
+                } else {
+                    try {
+                        output.accept(message);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                        context.stopped = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (context.failed) {
+                lastHeader.setResultCode(ResultCode.SERVER_ERROR);
+            }
+        }
+
+        ByteWriter writer = this.writers.get();
+        writer.reset(3);
+        writer.writeHeader(lastHeader);
+        output.accept(toMessage(writer, allocator));
+    }
+
+    /**
+     * Handle query with filter.
+     * <p>
+     * Records are found by secondary index, the one of index name, or the one of filter bin otherwise. The response
+     * is streamed in messages of about {@link #MESSAGE_LENGTH}, like scan.
+     *
+     * @param header header.
+     * @param reader byte reader.
+     * @param allocator allocator for response.
+     * @param output consumer of response messages.
+     */
+    protected void handleQuery(Header header, ByteReader reader, ByteBufAllocator allocator,
+            Consumer<ByteBuf> output) {
+        Map<Integer, byte[]> fields = reader.readFields(header.getFieldCount());
+        String namespace = fieldToString(fields.get(FieldType.NAMESPACE));
+        String setName = fieldToString(fields.get(FieldType.TABLE));
+        String indexName = fieldToString(fields.get(FieldType.INDEX_NAME));
+        boolean noBinData = header.isInfo1Set(Command.INFO1_NOBINDATA);
+        Set<String> binNames = readBinList(fields.get(FieldType.QUERY_BINLIST));
+
+        // filter : count, bin name, particle type, begin and end
+        byte[] range = fields.get(FieldType.INDEX_RANGE);
+        int offset = 1;
+        int nameLength = range[offset] & 0xff;
+        String binName = Buffer.utf8ToString(range, offset + 1, nameLength);
+        offset += 1 + nameLength;
+        int particleType = range[offset++];
+        // GeoJSON of geospatial query is sent as a string, without the header of GeoJSON particle
+        int valueType = particleType == ParticleType.GEOJSON ? ParticleType.STRING : particleType;
+        int beginLength = Buffer.bytesToInt(range, offset);
+        Object begin = Buffer.bytesToParticle(valueType, range, offset + 4, beginLength);
+        offset += 4 + beginLength;
+        int endLength = Buffer.bytesToInt(range, offset);
+        Object end = Buffer.bytesToParticle(valueType, range, offset + 4, endLength);
+        // the region or the point of geospatial query
+        GeoShape shape = particleType == ParticleType.GEOJSON ? GeoShape.parse(begin.toString()) : null;
 
-            Key key = new Key(namespace, digest, set, null);
-            writer.writeRecord(index, key, this.records.get(key), binNames, noBinData);
+        StorageEngine engine = getStorageEngine(namespace, false);
+        SecondaryIndex index = null;
+        if (engine != null && !fields.containsKey(FieldType.INDEX_TYPE)) {
+            IndexType type = particleType == ParticleType.INTEGER ? IndexType.NUMERIC :
+                    particleType == ParticleType.STRING ? IndexType.STRING :
+                    particleType == ParticleType.GEOJSON ? IndexType.GEO2DSPHERE : null;
+            for (SecondaryIndex candidate : engine.getIndexes()) {
+                if (candidate.getBinName().equals(binName) && candidate.getType() == type &&
+                        (indexName == null || indexName.equals(candidate.getName())) &&
+                        (candidate.getSetName() == null || candidate.getSetName().equals(setName))) {
+                    index = candidate;
+                    break;
+                }
+            }
         }
 
         Header lastHeader = new Header();
         lastHeader.setInfo3(Command.INFO3_LAST);
+        if (index == null) {
+            lastHeader.setResultCode(ResultCode.INDEX_NOTFOUND);
+        } else if (particleType == ParticleType.GEOJSON && shape == null) {
+            lastHeader.setResultCode(ResultCode.PARAMETER_ERROR);
+        } else {
+            SecondaryIndex queryIndex = index;
+            ByteWriter writer = this.writers.get();
+            writer.reset(3);
+            Iterator<byte[]> digests = shape != null ? index.query(shape) : index.range(begin, end);
+            while (digests.hasNext()) {
+                byte[] digest = digests.next();
+                // The index is read without lock, so the record is checked again.
+                engine.operate(digest, false, entry -> {
+                    StoredRecord record = entry.getRecord();
+                    if (record == null || (setName != null && !setName.equals(record.getSetName()))) {
+                        return null;
+                    }
+                    Object key = queryIndex.getKey(record);
+                    if (key != null && (shape != null ? queryIndex.matches(key, shape) : isInRange(key, begin, end))) {
+                        writer.writeRecord(0, namespace, record.getSetName(), digest, record, binNames,
+                                noBinData);
+                    }
+                    return null;
+                });
+                if (MESSAGE_LENGTH <= writer.getLength()) {
+                    output.accept(toMessage(writer, allocator));
+                    writer.reset(3);
+                }
+            }
+            if (0 < writer.getLength()) {
+                output.accept(toMessage(writer, allocator));
+            }
+        }
+
+        ByteWriter writer = this.writers.get();
+        writer.reset(3);
         writer.writeHeader(lastHeader);
+        output.accept(toMessage(writer, allocator));
+    }
+
+    /**
+     * Read bin names of query : count, and the length and name of each bin.
+     *
+     * @param binList bin list field. <code>null</code> if all bins.
+     * @return bin names. <code>null</code> if all bins.
+     */
+    private static Set<String> readBinList(byte[] binList) {
+        if (binList == null) {
+            return null;
+        }
+        Set<String> binNames = new HashSet<>();
+        int offset = 1;
+        for (int i = 0; i < (binList[0] & 0xff); i++) {
+            int length = binList[offset] & 0xff;
+            binNames.add(Buffer.utf8ToString(binList, offset + 1, length));
+            offset += 1 + length;
+        }
+        return binNames;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isInRange(Object key, Object begin, Object end) {
+        return ((Comparable<Object>) key).compareTo(begin) >= 0 && ((Comparable<Object>) key).compareTo(end) <= 0;
+    }
+
+    /**
+     * Scan partitions until all partitions are taken by tasks. Run by {@link #workerExecutor}.
+     *
+     * @param context the context of scan.
+     */
+    protected void scanPartitions(ScanContext context) {
+        String namespace = context.engine.getNamespace();
+        ByteWriter writer = this.writers.get();
+        writer.reset(3);
+        try {
+            int partitionId;
+            while (!context.stopped &&
+                    (partitionId = context.nextPartition.getAndIncrement()) < RecordStore.PARTITIONS) {
+                context.engine.forEach(partitionId, (digest, record) -> {
+                    if (context.setName != null && !context.setName.equals(record.getSetName())) {
+                        return;
+                    }
+                    // sample records by digest, which is uniformly distributed
+                    if (context.percent < 100 &&
+                            context.percent <= (((digest[8] & 0xff) << 8) | (digest[9] & 0xff)) % 100) {
+                        return;
+                    }
+                    writer.writeRecord(0, namespace, record.getSetName(), digest, record, context.binNames,
+                            context.noBinData);
+                });
+                // messages are handed over after unlock, not to block writes to the partition
+                if (MESSAGE_LENGTH <= writer.getLength()) {
+                    context.messages.put(toMessage(writer, context.allocator));
+                    writer.reset(3);
+                }
+            }
+            if (0 < writer.getLength() && !context.stopped) {
+                context.messages.put(toMessage(writer, context.allocator));
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            logger.error("Scan failed : namespace = {}", namespace, e);
+            context.failed = true;
+        } finally {
+            // the calling thread waits for this, until all tasks finish
+            boolean finished = false;
+            while (!finished) {
+                try {
+                    context.messages.put(Unpooled.EMPTY_BUFFER);
+                    finished = true;
+                } catch (InterruptedException e) {
+                    context.failed = true;
+                }
+            }
+        }
+    }
+
+    private static ByteBuf toMessage(ByteWriter writer, ByteBufAllocator allocator) {
+        ByteBuf message = allocator.buffer(8 + writer.getLength());
+        writer.writeTo(message);
+        return message;
+    }
+
+    private static String fieldToString(byte[] field) {
+        return field != null ? Buffer.utf8ToString(field, 0, field.length) : null;
     }
 
     protected static final Operation GET_ALL_OPERATION = Operation.get();
@@ -168,16 +1001,15 @@ public class ServiceHandlerImpl implements ServiceHandler {
      * @param writer byte writer.
      */
     protected void handleOperations(Header header, ByteReader reader, ByteWriter writer) {
-        Key key = reader.readKey(header.getFieldCount());
-        Map<String, Value> current = this.records.get(key);
-        List<Operation> operations = reader.readOperations(header.getOperationCount());
+        reader.readKeyFields(header.getFieldCount());
+        reader.readOperations(header.getOperationCount());
         int remainds = reader.getLength() - reader.getOffset();
+        String namespace = reader.getNamespace();
+        byte[] digest = reader.getDigest();
 
         boolean hasRead = header.isInfo1Set(Command.INFO1_READ);
         boolean hasWrite = header.isInfo2Set(Command.INFO2_WRITE);
-        boolean createOnly = hasWrite && header.isInfo2Set(Command.INFO2_CREATE_ONLY);
-        boolean mustRecordExists = hasWrite && (header.isInfo3Set(Command.INFO3_UPDATE_ONLY) || header.isInfo3Set(Command.INFO3_REPLACE_ONLY));
-        boolean replace = hasWrite && (header.isInfo3Set(Command.INFO3_CREATE_OR_REPLACE) || header.isInfo3Set(Command.INFO3_REPLACE_ONLY));
+        boolean hasDelete = header.isInfo2Set(Command.INFO2_DELETE);
         boolean noBinData = header.isInfo1Set(Command.INFO1_NOBINDATA);
         // 'Get Header' message and 'Exists' message are very similar.
         // 'Exists' message consists of Header and Key.
@@ -185,6 +1017,121 @@ public class ServiceHandlerImpl implements ServiceHandler {
         // 'Get Header' response contains Key, But 'Exists' does not.
         boolean writeKey = hasRead && (!noBinData || 0 < remainds);
 
+        // Namespace is created when the first record is written.
+        StorageEngine engine = getStorageEngine(namespace, hasWrite);
+
+        // The results are written after the key, and the header is written after operations.
+        int headerOffset = writer.reserve(Command.MSG_REMAINING_HEADER_SIZE);
+        if (writeKey) {
+            writer.writeKey(namespace, digest);
+        }
+
+        // Read-modify-write must be atomic, so writing operates the record for write.
+        OperationResults results = new OperationResults(writer);
+        int resultCode;
+        if (engine == null) {
+            resultCode = ResultCode.KEY_NOT_FOUND_ERROR;
+        } else {
+            try {
+                resultCode = engine.operate(digest, hasWrite || hasDelete,
+                        entry -> applyOperations(entry, header, reader, results));
+            } catch (AerospikeException e) {
+                // e.g. a record too big to be logged
+                resultCode = e.getResultCode();
+            }
+        }
+
+        Header responseHeader = new Header();
+        responseHeader.setResultCode(resultCode);
+        if (resultCode == ResultCode.OK) {
+            responseHeader.setGeneration(results.getGeneration());
+            responseHeader.setExpiration(results.getVoidTime());
+            if (writeKey) {
+                responseHeader.setFieldCount(2);
+            }
+            responseHeader.setOperationCount(results.getCount());
+        } else {
+            // discard the key and results
+            writer.truncate(headerOffset + Command.MSG_REMAINING_HEADER_SIZE);
+        }
+        writer.writeHeader(headerOffset, responseHeader);
+    }
+
+    /**
+     * Handle record UDF execution.
+     * <p>
+     * The return value of UDF is responded by the bin <code>SUCCESS</code>. If failed, the result code is
+     * {@link ResultCode#UDF_BAD_RESPONSE} and the message is responded by the bin <code>FAILURE</code>.
+     *
+     * @param header header.
+     * @param reader byte reader.
+     * @param writer byte writer.
+     */
+    protected void handleUdf(Header header, ByteReader reader, ByteWriter writer) {
+        Map<Integer, byte[]> fields = reader.readFields(header.getFieldCount());
+        String namespace = fieldToString(fields.get(FieldType.NAMESPACE));
+        Key key = new Key(namespace, fields.get(FieldType.DIGEST_RIPE),
+                fieldToString(fields.get(FieldType.TABLE)), null);
+        String moduleName = fieldToString(fields.get(FieldType.UDF_PACKAGE_NAME));
+        String functionName = fieldToString(fields.get(FieldType.UDF_FUNCTION));
+        byte[] arguments = fields.get(FieldType.UDF_ARGLIST);
+
+        // Namespace is created when the first record is written.
+        StorageEngine engine = getStorageEngine(namespace, true);
+
+        int headerOffset = writer.reserve(Command.MSG_REMAINING_HEADER_SIZE);
+        OperationResults results = new OperationResults(writer);
+        int resultCode;
+        try {
+            resultCode = engine.operate(key.digest, true, entry -> {
+                Value value = this.udfEngine.execute(moduleName, functionName, arguments, entry, key,
+                        header.getExpiration());
+                results.add("SUCCESS", value);
+                StoredRecord record = entry.getRecord();
+                if (record != null) {
+                    results.setGeneration(record.getGeneration());
+                    results.setVoidTime(record.getVoidTime());
+                }
+                return ResultCode.OK;
+            });
+        } catch (AerospikeException e) {
+            resultCode = e.getResultCode();
+            if (resultCode == ResultCode.UDF_BAD_RESPONSE) {
+                results.add("FAILURE", Value.get(e.getMessage()));
+            }
+        }
+
+        Header responseHeader = new Header();
+        responseHeader.setResultCode(resultCode);
+        responseHeader.setGeneration(results.getGeneration());
+        responseHeader.setExpiration(results.getVoidTime());
+        responseHeader.setOperationCount(results.getCount());
+        writer.writeHeader(headerOffset, responseHeader);
+    }
+
+    /**
+     * Apply operations to record, while holding the lock of record.
+     * <p>
+     * If all operations are writes, bins are copied from the request in wire format, without decoding them.
+     *
+     * @param entry the entry of record.
+     * @param header header.
+     * @param reader byte reader, which has read the key fields and operations of request.
+     * @param results the results of read operations.
+     * @return result code.
+     */
+    protected int applyOperations(RecordEntry entry, Header header, ByteReader reader, OperationResults results) {
+        StoredRecord current = entry.getRecord();
+
+        boolean hasRead = header.isInfo1Set(Command.INFO1_READ);
+        boolean hasWrite = header.isInfo2Set(Command.INFO2_WRITE);
+        boolean hasDelete = header.isInfo2Set(Command.INFO2_DELETE);
+        boolean createOnly = hasWrite && header.isInfo2Set(Command.INFO2_CREATE_ONLY);
+        boolean mustRecordExists = hasWrite && (header.isInfo3Set(Command.INFO3_UPDATE_ONLY) || header.isInfo3Set(Command.INFO3_REPLACE_ONLY));
+        boolean replace = hasWrite && (header.isInfo3Set(Command.INFO3_CREATE_OR_REPLACE) || header.isInfo3Set(Command.INFO3_REPLACE_ONLY));
+        boolean noBinData = header.isInfo1Set(Command.INFO1_NOBINDATA);
+        boolean respondAllOps = header.isInfo2Set(Command.INFO2_RESPOND_ALL_OPS);
+
         int resultCode = ResultCode.OK;
         if (createOnly && current != null) {
             resultCode = ResultCode.KEY_EXISTS_ERROR;
@@ -192,42 +1139,69 @@ public class ServiceHandlerImpl implements ServiceHandler {
             resultCode = ResultCode.KEY_NOT_FOUND_ERROR;
         } else if (hasRead && !hasWrite && current == null) {
             resultCode = ResultCode.KEY_NOT_FOUND_ERROR;
+        } else if (current != null && header.isInfo2Set(Command.INFO2_GENERATION) &&
+                header.getGeneration() != current.getGeneration()) {
+            // check-and-set, under the lock of record
+            resultCode = ResultCode.GENERATION_ERROR;
+        } else if (current != null && header.isInfo2Set(Command.INFO2_GENERATION_GT) &&
+                header.getGeneration() <= current.getGeneration()) {
+            resultCode = ResultCode.GENERATION_ERROR;
         }
 
-        List<Operation> responseOperations = new ArrayList<>();
-        if (header.isInfo2Set(Command.INFO2_DELETE)) {
-            if (this.records.containsKey(key)) {
-                this.records.remove(key);
-            } else {
+        String setName = reader.getSetName() != null ? reader.getSetName() :
+                (current != null ? current.getSetName() : null);
+        if (hasDelete && resultCode == ResultCode.OK) {
+            if (!entry.delete()) {
                 resultCode = ResultCode.KEY_NOT_FOUND_ERROR;
             }
+        } else if (resultCode == ResultCode.OK && hasWrite && !header.isInfo1Set(Command.INFO1_GET_ALL) &&
+                isWriteOnly(reader)) {
+            if (!entry.put(setName, reader.getOperationBytes(), 0, reader.getOperationsLength(), replace,
+                    header.getExpiration())) {
+                resultCode = ResultCode.SERVER_MEM_ERROR;
+            } else {
+                StoredRecord record = entry.getRecord();
+                results.setGeneration(record.getGeneration());
+                results.setVoidTime(record.getVoidTime());
+            }
         } else if (resultCode == ResultCode.OK) {
-            Map<String, Value> next;
+            // If writing, bins are decoded to be modified. Otherwise, bins are read from wire format of record.
+            Map<String, Value> next = null;
             if (hasWrite) {
                 if (current == null || replace) {
-                    next = new HashMap<>();
+                    next = new LinkedHashMap<>();
                 } else {
-                    next = new HashMap<>(current);
+                    next = current.getBins();
                 }
-            } else {
-                next = current;
             }
 
-            if (header.isInfo1Set(Command.INFO1_GET_ALL)) {
-                operations.add(GET_ALL_OPERATION);
-            }
+            // get all is the last operation
+            boolean getAll = header.isInfo1Set(Command.INFO1_GET_ALL);
             boolean hasGetHeader = false;
             boolean hasFullGet = false;
-            for (Operation operation : operations) {
-                if (resultCode != ResultCode.OK) {
+            reader.rewindOperations();
+            while (resultCode == ResultCode.OK) {
+                Type type;
+                String binName;
+                if (reader.nextOperation()) {
+                    type = reader.getOperationType();
+                    binName = reader.getBinName();
+                } else if (getAll) {
+                    type = GET_ALL_OPERATION.type;
+                    binName = GET_ALL_OPERATION.binName;
+                    getAll = false;
+                } else {
                     break;
                 }
 
-                String binName = operation.binName;
-                Value opValue = operation.value;
+                // values are decoded only if used
+                Value opValue = null;
+                if (type == Type.WRITE || type == Type.ADD || type == Type.APPEND || type == Type.PREPEND) {
+                    opValue = reader.getValue();
+                }
                 int opType = opValue != null ? opValue.getType() : ParticleType.NULL;
 
-                switch (operation.type) {
+                switch (type) {
                     case READ:
                         if (hasFullGet) {
                             resultCode = ResultCode.PARAMETER_ERROR;
@@ -235,12 +1209,24 @@ public class ServiceHandlerImpl implements ServiceHandler {
                             resultCode = ResultCode.PARAMETER_ERROR;
                         } else if (!noBinData) {
                             if (binName != null) {
-                                if (next.containsKey(binName)) {
-                                    responseOperations.add(new Operation(Type.READ, binName, next.get(binName)));
+                                if (next != null) {
+                                    if (next.containsKey(binName)) {
+                                        results.add(binName, next.get(binName));
+                                    }
+                                } else {
+                                    byte[] name = reader.getBinNameBytes();
+                                    int offset = current.findBin(name);
+                                    if (0 <= offset) {
+                                        results.add(current, offset);
+                                    }
                                 }
                             } else {
-                                for (Entry<String, Value> entry : next.entrySet()) {
-                                    responseOperations.add(new Operation(Type.READ, entry.getKey(), entry.getValue()));
+                                if (next != null) {
+                                    for (Entry<String, Value> bin : next.entrySet()) {
+                                        results.add(bin.getKey(), bin.getValue());
+                                    }
+                                } else {
+                                    results.addAll(current);
                                 }
                                 hasFullGet = true;
                             }
@@ -250,7 +1236,7 @@ public class ServiceHandlerImpl implements ServiceHandler {
                         if (opType == ParticleType.NULL) {
                             next.remove(binName);
                         } else {
-                            next.put(binName, operation.value);
+                            next.put(binName, opValue);
                         }
                         break;
                     case ADD:
@@ -307,31 +1293,226 @@ public class ServiceHandlerImpl implements ServiceHandler {
                             resultCode = ResultCode.PARAMETER_ERROR;
                         }
                         break;
+                    case CDT_READ:
+                    case CDT_MODIFY: {
+                        // lists and maps are modified in place, in next
+                        int count = results.getCount();
+                        Operation operation = reader.getOperation();
+                        if (MapOperator.isMapOperation(operation)) {
+                            resultCode = MapOperator.apply(operation, next, current,
+                                    value -> results.add(binName, value));
+                        } else {
+                            resultCode = ListOperator.apply(operation, next, current,
+                                    value -> results.add(binName, value));
+                        }
+                        if (respondAllOps && results.getCount() == count) {
+                            // keep the results in the order of operations
+                            results.add(binName, Value.getAsNull());
+                        }
+                        break;
+                    }
                 }
             }
 
             if (resultCode == ResultCode.OK && hasWrite) {
-                this.records.put(key, next);
+                if (!entry.put(setName, next, header.getExpiration())) {
+                    resultCode = ResultCode.SERVER_MEM_ERROR;
+                }
+            }
+            if (resultCode == ResultCode.OK) {
+                StoredRecord record = hasWrite ? entry.getRecord() : current;
+                results.setGeneration(record.getGeneration());
+                results.setVoidTime(record.getVoidTime());
             }
         }
 
-        Header responseHeader = new Header();
-        responseHeader.setResultCode(resultCode);
-        if (resultCode == ResultCode.OK) {
-            if (writeKey) {
-                responseHeader.setFieldCount(2);
-            }
-            responseHeader.setOperationCount(responseOperations.size());
-            writer.writeHeader(responseHeader);
-            if (writeKey) {
-                writer.writeKey(key);
-            }
-            for (Operation operation : responseOperations) {
-                writer.writeOperation(operation);
+        return resultCode;
+    }
+
+    /**
+     * Whether all operations of request are writes.
+     *
+     * @param reader byte reader, which has read the operations of request.
+     * @return <code>true</code> if all operations are writes.
+     */
+    private static boolean isWriteOnly(ByteReader reader) {
+        reader.rewindOperations();
+        while (reader.nextOperation()) {
+            if (reader.getOperationType() != Type.WRITE) {
+                return false;
             }
-        } else {
-            writer.writeHeader(responseHeader);
         }
+        return true;
+    }
+
+    /**
+     * The results of read operations, written to response in wire format.
+     */
+    protected static class OperationResults {
+
+        /**
+         * Writer of response.
+         */
+        private ByteWriter writer;
+
+        /**
+         * The number of operations.
+         */
+        private int count;
+
+        /**
+         * The generation of record.
+         */
+        private int generation;
+
+        /**
+         * The void time of record.
+         */
+        private int voidTime;
+
+        /**
+         * Constructor.
+         *
+         * @param writer writer of response, to which operations are written.
+         */
+        public OperationResults(ByteWriter writer) {
+            this.writer = writer;
+        }
+
+        /**
+         * Add a bin of record in wire format.
+         *
+         * @param record record.
+         * @param offset the offset of bin in record.
+         */
+        public void add(StoredRecord record, int offset) {
+            this.writer.writeBin(record, offset);
+            this.count++;
+        }
+
+        /**
+         * Add all bins of record in wire format.
+         *
+         * @param record record.
+         */
+        public void addAll(StoredRecord record) {
+            this.writer.writeBins(record);
+            this.count += record.getBinCount();
+        }
+
+        /**
+         * Add an operation, encoding it in wire format.
+         *
+         * @param binName bin name.
+         * @param value value.
+         */
+        public void add(String binName, Value value) {
+            this.writer.writeOperation(Type.READ, binName, value);
+            this.count++;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getGeneration() {
+            return generation;
+        }
+
+        public void setGeneration(int generation) {
+            this.generation = generation;
+        }
+
+        public int getVoidTime() {
+            return voidTime;
+        }
+
+        public void setVoidTime(int voidTime) {
+            this.voidTime = voidTime;
+        }
+
+    }
+
+    /**
+     * A key of batch get.
+     */
+    protected static class BatchKey {
+
+        private int index;
+
+        private byte[] digest;
+
+        private int partitionId;
+
+        private String namespace;
+
+        /**
+         * Storage engine of namespace. <code>null</code> if namespace not exists.
+         */
+        private StorageEngine engine;
+
+        private Set<String> binNames;
+
+        public BatchKey(int index, byte[] digest, String namespace, StorageEngine engine, Set<String> binNames) {
+            this.index = index;
+            this.digest = digest;
+            this.partitionId = RecordStore.getPartitionId(digest);
+            this.namespace = namespace;
+            this.engine = engine;
+            this.binNames = binNames;
+        }
+
+    }
+
+    /**
+     * The state of a scan, shared by the tasks scanning partitions.
+     */
+    protected static class ScanContext {
+
+        private StorageEngine engine;
+
+        private String setName;
+
+        private int percent;
+
+        private Set<String> binNames;
+
+        private boolean noBinData;
+
+        private ByteBufAllocator allocator;
+
+        /**
+         * The next partition to be scanned.
+         */
+        private AtomicInteger nextPartition = new AtomicInteger();
+
+        /**
+         * Encoded messages, and an empty buffer from each task when it finishes.
+         */
+        private BlockingQueue<ByteBuf> messages;
+
+        /**
+         * Whether the scan is stopped, and tasks should finish.
+         */
+        private volatile boolean stopped;
+
+        /**
+         * Whether any task failed.
+         */
+        private volatile boolean failed;
+
+        public ScanContext(StorageEngine engine, String setName, int percent, Set<String> binNames,
+                boolean noBinData, ByteBufAllocator allocator, int tasks) {
+            this.engine = engine;
+            this.setName = setName;
+            this.percent = percent;
+            this.binNames = binNames;
+            this.noBinData = noBinData;
+            this.allocator = allocator;
+            // room for a message per task, and their finishes
+            this.messages = new ArrayBlockingQueue<>(tasks * 2);
+        }
+
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,451 @@
+package io.dogre.aerospike;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.internal.PlatformDependent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Allocator of direct memory for record bodies, with memory budget.
+ * <p>
+ * Memory is allocated in slabs of {@link #SLAB_SIZE 1 MiB}. Each slab is divided into slots of one size class. There
+ * are two size classes per power of two, so at most a third of slot is wasted. A body larger than slab gets a
+ * dedicated slab. Allocated memory is identified by handle, which consists of slab id and offset. Free slots are
+ * linked through their own first 4 bytes, so slabs cost almost nothing on Java heap.
+ * <p>
+ * An empty slab is released, unless it is the only slab of its size class. The empty slabs kept are released when the
+ * memory budget is exhausted. To reclaim slabs that are partially used,
+ * {@link #beginCompaction()} marks sparse slabs as evacuating. Then the owner of memory moves bodies out of those
+ * slabs by {@link #relocate(long, int)}, and calls {@link #endCompaction()}.
+ *
+ * @author dogre
+ */
+public class SlabAllocator {
+
+    /**
+     * The size of slab.
+     */
+    public static final int SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * The size of the smallest size class.
+     */
+    public static final int MIN_SLOT_SIZE = 32;
+
+    /**
+     * Slot sizes of size classes.
+     */
+    private static final int[] SLOT_SIZES;
+
+    static {
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_SLOT_SIZE; size <= SLAB_SIZE; size *= 2) {
+            sizes.add(size);
+            if (size + size / 2 <= SLAB_SIZE) {
+                sizes.add(size + size / 2);
+            }
+        }
+        SLOT_SIZES = new int[sizes.size()];
+        for (int i = 0; i < SLOT_SIZES.length; i++) {
+            SLOT_SIZES[i] = sizes.get(i);
+        }
+    }
+
+    /**
+     * Memory budget in bytes.
+     */
+    private long memorySize;
+
+    /**
+     * Allocated bytes of slabs.
+     */
+    private long allocatedBytes;
+
+    /**
+     * Used bytes, the sum of requested lengths.
+     */
+    private long usedBytes;
+
+    /**
+     * Slabs, indexed by slab id. <code>null</code> if released. The array is replaced when it grows, so that reading
+     * bytes does not need lock.
+     */
+    private volatile Slab[] slabs = new Slab[16];
+
+    /**
+     * The number of slab ids ever used.
+     */
+    private int slabIdCount;
+
+    /**
+     * Released slab ids, to be reused.
+     */
+    private List<Integer> freeSlabIds = new ArrayList<>();
+
+    /**
+     * Slabs having free slots, per size class.
+     */
+    private List<List<Slab>> partialSlabs = new ArrayList<>();
+
+    /**
+     * The number of slabs, per size class.
+     */
+    private int[] slabCounts = new int[SLOT_SIZES.length];
+
+    /**
+     * Constructor.
+     *
+     * @param memorySize memory budget in bytes, limited by the maximum direct memory of JVM. <code>0</code> if
+     * unlimited.
+     */
+    public SlabAllocator(long memorySize) {
+        if (memorySize <= 0) {
+            memorySize = Long.MAX_VALUE;
+        }
+        long maxDirectMemory = PlatformDependent.maxDirectMemory();
+        this.memorySize = 0 < maxDirectMemory ? Math.min(memorySize, maxDirectMemory) : memorySize;
+        for (int i = 0; i < SLOT_SIZES.length; i++) {
+            this.partialSlabs.add(new ArrayList<>());
+        }
+    }
+
+    private static int sizeClass(int length) {
+        for (int i = 0; i < SLOT_SIZES.length; i++) {
+            if (length <= SLOT_SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long handle(int slabId, int offset) {
+        return ((long) slabId << 32) | offset;
+    }
+
+    private static int slabId(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * Allocate memory, and copy bytes into it.
+     *
+     * @param bytes bytes.
+     * @return handle. <code>-1</code> if the memory budget is exhausted.
+     */
+    public synchronized long allocate(byte[] bytes) {
+        long handle = allocate(bytes.length);
+        if (0 <= handle) {
+            getBuffer(handle).setBytes(offset(handle), bytes);
+        }
+        return handle;
+    }
+
+    private long allocate(int length) {
+        int sizeClass = sizeClass(length);
+        Slab slab = null;
+        if (0 <= sizeClass) {
+            for (Slab partial : this.partialSlabs.get(sizeClass)) {
+                if (!partial.evacuating) {
+                    slab = partial;
+                    break;
+                }
+            }
+        }
+        if (slab == null) {
+            int size = 0 <= sizeClass ? SLAB_SIZE : length;
+            if (this.memorySize < this.allocatedBytes + size) {
+                releaseEmptySlabs();
+                if (this.memorySize < this.allocatedBytes + size) {
+                    return -1;
+                }
+            }
+            slab = newSlab(sizeClass, size);
+            if (slab == null) {
+                return -1;
+            }
+        }
+
+        int offset = slab.take();
+        if (slab.isFull() && 0 <= sizeClass) {
+            this.partialSlabs.get(sizeClass).remove(slab);
+        }
+        this.usedBytes += length;
+        return handle(slab.id, offset);
+    }
+
+    /**
+     * Create a slab.
+     *
+     * @param sizeClass size class. <code>-1</code> if dedicated.
+     * @param size the size of slab.
+     * @return slab. <code>null</code> if direct memory is exhausted, shared with other buffers of JVM.
+     */
+    private Slab newSlab(int sizeClass, int size) {
+        ByteBuf buffer;
+        try {
+            buffer = UnpooledByteBufAllocator.DEFAULT.directBuffer(size, size);
+        } catch (OutOfMemoryError e) {
+            return null;
+        }
+        int id;
+        if (this.freeSlabIds.isEmpty()) {
+            id = this.slabIdCount++;
+            if (this.slabs.length <= id) {
+                this.slabs = Arrays.copyOf(this.slabs, this.slabs.length * 2);
+            }
+        } else {
+            id = this.freeSlabIds.remove(this.freeSlabIds.size() - 1);
+        }
+        int slotSize = 0 <= sizeClass ? SLOT_SIZES[sizeClass] : size;
+        Slab slab = new Slab(id, sizeClass, slotSize, size / slotSize, buffer);
+        this.slabs[id] = slab;
+        this.allocatedBytes += size;
+        if (0 <= sizeClass) {
+            this.slabCounts[sizeClass]++;
+            this.partialSlabs.get(sizeClass).add(slab);
+        }
+        return slab;
+    }
+
+    /**
+     * Free memory.
+     *
+     * @param handle handle.
+     * @param length the length of allocated bytes.
+     */
+    public synchronized void free(long handle, int length) {
+        Slab slab = this.slabs[slabId(handle)];
+        boolean wasFull = slab.isFull();
+        slab.put(offset(handle));
+        this.usedBytes -= length;
+
+        if (slab.sizeClass < 0) {
+            releaseSlab(slab);
+        } else if (slab.used == 0 && (1 < this.slabCounts[slab.sizeClass] || slab.evacuating)) {
+            releaseSlab(slab);
+        } else if (wasFull) {
+            this.partialSlabs.get(slab.sizeClass).add(slab);
+        }
+    }
+
+    private void releaseSlab(Slab slab) {
+        if (0 <= slab.sizeClass) {
+            this.slabCounts[slab.sizeClass]--;
+            this.partialSlabs.get(slab.sizeClass).remove(slab);
+        }
+        this.allocatedBytes -= slab.buffer.capacity();
+        slab.buffer.release();
+        this.slabs[slab.id] = null;
+        this.freeSlabIds.add(slab.id);
+    }
+
+    private void releaseEmptySlabs() {
+        for (List<Slab> partials : this.partialSlabs) {
+            for (Slab slab : new ArrayList<>(partials)) {
+                if (slab.used == 0) {
+                    releaseSlab(slab);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy allocated bytes.
+     *
+     * @param handle handle.
+     * @param offset offset from the start of allocated bytes.
+     * @param bytes destination.
+     * @param bytesOffset the offset of destination.
+     * @param length the length to copy.
+     */
+    public void getBytes(long handle, int offset, byte[] bytes, int bytesOffset, int length) {
+        getBuffer(handle).getBytes(offset(handle) + offset, bytes, bytesOffset, length);
+    }
+
+    /**
+     * Read an int of allocated bytes.
+     *
+     * @param handle handle.
+     * @param offset offset from the start of allocated bytes.
+     * @return int value.
+     */
+    public int getInt(long handle, int offset) {
+        return getBuffer(handle).getInt(offset(handle) + offset);
+    }
+
+    /**
+     * Read a byte of allocated bytes.
+     *
+     * @param handle handle.
+     * @param offset offset from the start of allocated bytes.
+     * @return byte value.
+     */
+    public byte getByte(long handle, int offset) {
+        return getBuffer(handle).getByte(offset(handle) + offset);
+    }
+
+    private ByteBuf getBuffer(long handle) {
+        return this.slabs[slabId(handle)].buffer;
+    }
+
+    /**
+     * Mark sparse slabs as evacuating, so that they are released after their bodies are relocated.
+     * <p>
+     * For each size class, slabs are marked from the sparsest one while the free slots of other slabs can hold the
+     * bodies of marked slabs.
+     *
+     * @return <code>true</code> if any slab is marked.
+     */
+    public synchronized boolean beginCompaction() {
+        boolean marked = false;
+        for (List<Slab> partials : this.partialSlabs) {
+            List<Slab> candidates = new ArrayList<>(partials);
+            candidates.sort(Comparator.comparingInt(slab -> slab.used));
+            int free = 0;
+            for (Slab slab : candidates) {
+                free += slab.slotCount - slab.used;
+            }
+            for (Slab slab : candidates) {
+                // the free slots of the rest must hold the bodies of this slab
+                int slabFree = slab.slotCount - slab.used;
+                if (slab.used == 0 || free - slabFree < slab.used) {
+                    break;
+                }
+                free -= slabFree + slab.used;
+                slab.evacuating = true;
+                marked = true;
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Whether the memory is in an evacuating slab.
+     *
+     * @param handle handle.
+     * @return <code>true</code> if evacuating.
+     */
+    public synchronized boolean isEvacuating(long handle) {
+        return this.slabs[slabId(handle)].evacuating;
+    }
+
+    /**
+     * Move the memory to another slab.
+     *
+     * @param handle handle.
+     * @param length the length of allocated bytes.
+     * @return new handle. <code>-1</code> if no space, then the memory is not moved.
+     */
+    public synchronized long relocate(long handle, int length) {
+        long newHandle = allocate(length);
+        if (newHandle < 0) {
+            return -1;
+        }
+        ByteBuf source = getBuffer(handle);
+        getBuffer(newHandle).setBytes(offset(newHandle), source, offset(handle), length);
+        free(handle, length);
+        return newHandle;
+    }
+
+    /**
+     * Finish compaction. Slabs still having bodies are not evacuating anymore.
+     */
+    public synchronized void endCompaction() {
+        for (Slab slab : this.slabs) {
+            if (slab != null) {
+                slab.evacuating = false;
+            }
+        }
+    }
+
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Slab, direct memory divided into slots of the same size.
+     * <p>
+     * Slots below {@link #top} have been used. Free slots among them are linked from {@link #freeHead}, each free slot
+     * holds the offset of next free slot in its first 4 bytes.
+     */
+    private static class Slab {
+
+        private final int id;
+
+        /**
+         * Size class. <code>-1</code> if dedicated to a large body.
+         */
+        private final int sizeClass;
+
+        private final int slotSize;
+
+        private final int slotCount;
+
+        private final ByteBuf buffer;
+
+        /**
+         * The offset of the first free slot. <code>-1</code> if none.
+         */
+        private int freeHead = -1;
+
+        /**
+         * The offset of the slot never used.
+         */
+        private int top;
+
+        private int used;
+
+        private boolean evacuating;
+
+        private Slab(int id, int sizeClass, int slotSize, int slotCount, ByteBuf buffer) {
+            this.id = id;
+            this.sizeClass = sizeClass;
+            this.slotSize = slotSize;
+            this.slotCount = slotCount;
+            this.buffer = buffer;
+        }
+
+        private boolean isFull() {
+            return this.used == this.slotCount;
+        }
+
+        private int take() {
+            int offset;
+            if (0 <= this.freeHead) {
+                offset = this.freeHead;
+                this.freeHead = this.buffer.getInt(offset);
+            } else {
+                offset = this.top;
+                this.top += this.slotSize;
+            }
+            this.used++;
+            return offset;
+        }
+
+        private void put(int offset) {
+            if (4 <= this.slotSize) {
+                this.buffer.setInt(offset, this.freeHead);
+                this.freeHead = offset;
+            }
+            this.used--;
+        }
+
+    }
+
+}
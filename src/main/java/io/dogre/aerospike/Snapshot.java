@@ -0,0 +1,248 @@
+package io.dogre.aerospike;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshot of the records of a namespace in a file, loaded by memory mapping in parallel.
+ * <p>
+ * The file consists of the header, records grouped by partition and the table of set names. The header has the offsets
+ * of partitions, so that ranges of partitions are mapped and loaded by threads independently. Bins are kept in wire
+ * format, so records are restored without decoding bins.
+ * <ul>
+ * <li>header : magic, version, the number of partitions, the length and name of namespace, the offset of set table,
+ * and the offsets of partitions and the end of records</li>
+ * <li>record : digest, set index (<code>-1</code> if no set), generation, void time, bin count, the length of bins and
+ * bins in wire format</li>
+ * <li>set table : the number of sets, and the length and name of each set</li>
+ * </ul>
+ * A snapshot is written partition by partition, from the records copied while holding the lock of each partition, so
+ * it is consistent per partition.
+ *
+ * @author dogre
+ */
+public class Snapshot {
+
+    /**
+     * Magic number of snapshot file, "ASSN".
+     */
+    public static final int MAGIC = 0x4153534e;
+
+    public static final int VERSION = 1;
+
+    /**
+     * The maximum length of a mapped range of partitions.
+     */
+    public static final long MAX_MAPPED_LENGTH = 1L << 30;
+
+    private static final int RECORD_HEADER_LENGTH = DigestIndex.DIGEST_LENGTH + 4 + 4 + 4 + 2 + 4;
+
+    /**
+     * Write records of the engine to a file. The file is replaced when all records are written.
+     *
+     * @param engine storage engine.
+     * @param file snapshot file.
+     * @return the number of records.
+     * @throws IOException if failed to write.
+     */
+    public static long write(StorageEngine engine, Path file) throws IOException {
+        byte[] namespace = engine.getNamespace().getBytes(StandardCharsets.UTF_8);
+        int headerLength = 4 + 4 + 4 + 2 + namespace.length + 8 + 8 * (RecordStore.PARTITIONS + 1);
+        long[] offsets = new long[RecordStore.PARTITIONS + 1];
+        Map<String, Integer> sets = new LinkedHashMap<>();
+        long[] position = { headerLength };
+        long[] count = { 0 };
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(headerLength);
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1024 * 1024));
+            try {
+                for (int i = 0; i < RecordStore.PARTITIONS; i++) {
+                    offsets[i] = position[0];
+                    // records are copied, not to write the file while holding the lock of partition
+                    engine.forEachCopied(i, (digest, record) -> {
+                        byte[] wireBins = record.getWireBins();
+                        int setIndex = record.getSetName() == null ? -1 :
+                                sets.computeIfAbsent(record.getSetName(), name -> sets.size());
+                        try {
+                            output.write(digest, 0, DigestIndex.DIGEST_LENGTH);
+                            output.writeInt(setIndex);
+                            output.writeInt(record.getGeneration());
+                            output.writeInt(record.getVoidTime());
+                            output.writeShort(record.getBinCount());
+                            output.writeInt(wireBins.length);
+                            output.write(wireBins);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        position[0] += RECORD_HEADER_LENGTH + wireBins.length;
+                        count[0]++;
+                    });
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            offsets[RecordStore.PARTITIONS] = position[0];
+            output.writeInt(sets.size());
+            for (String set : sets.keySet()) {
+                byte[] name = set.getBytes(StandardCharsets.UTF_8);
+                output.writeShort(name.length);
+                output.write(name);
+            }
+            output.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RecordStore.PARTITIONS);
+            header.putShort((short) namespace.length).put(namespace);
+            header.putLong(offsets[RecordStore.PARTITIONS]);
+            for (long offset : offsets) {
+                header.putLong(offset);
+            }
+            header.flip();
+            long offset = 0;
+            while (header.hasRemaining()) {
+                offset += channel.write(header, offset);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /**
+     * Load records from a file into the engine, by threads. Expired records are skipped.
+     *
+     * @param engine storage engine.
+     * @param file snapshot file.
+     * @param threads the number of threads.
+     * @return the number of records loaded.
+     * @throws IOException if failed to read, or the file is not a snapshot.
+     */
+    public static long load(StorageEngine engine, Path file, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer fixed = read(channel, 0, 14);
+            if (fixed.getInt() != MAGIC || fixed.getInt() != VERSION ||
+                    fixed.getInt() != RecordStore.PARTITIONS) {
+                throw new IOException("Not a snapshot of this version: " + file);
+            }
+            int namespaceLength = fixed.getShort() & 0xffff;
+            ByteBuffer header = read(channel, 14 + namespaceLength, 8 + 8 * (RecordStore.PARTITIONS + 1));
+            long setTableOffset = header.getLong();
+            long[] offsets = new long[RecordStore.PARTITIONS + 1];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = header.getLong();
+            }
+
+            ByteBuffer setTable = read(channel, setTableOffset, (int) (channel.size() - setTableOffset));
+            String[] sets = new String[setTable.getInt()];
+            for (int i = 0; i < sets.length; i++) {
+                byte[] name = new byte[setTable.getShort() & 0xffff];
+                setTable.get(name);
+                sets[i] = name.length == 0 ? "" : new String(name, StandardCharsets.UTF_8);
+            }
+
+            // ranges of partitions, a few per thread for balance
+            long target = Math.max(1, (offsets[RecordStore.PARTITIONS] - offsets[0]) / (threads * 4L));
+            List<int[]> ranges = new ArrayList<>();
+            int from = 0;
+            for (int i = 1; i <= RecordStore.PARTITIONS; i++) {
+                long length = offsets[i] - offsets[from];
+                if (i == RecordStore.PARTITIONS || target <= length ||
+                        MAX_MAPPED_LENGTH < offsets[i + 1] - offsets[from]) {
+                    ranges.add(new int[] { from, i });
+                    from = i;
+                }
+            }
+
+            AtomicLong count = new AtomicLong();
+            int time = engine.currentTime();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int[] range : ranges) {
+                    long begin = offsets[range[0]];
+                    long end = offsets[range[1]];
+                    if (begin == end) {
+                        continue;
+                    }
+                    futures.add(executor.submit(() -> {
+                        MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, begin, end - begin);
+                        count.addAndGet(loadRecords(engine, buffer, sets, time));
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + file, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to load " + file, e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+            return count.get();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long loadRecords(StorageEngine engine, ByteBuffer buffer, String[] sets, int time) {
+        long count = 0;
+        while (buffer.hasRemaining()) {
+            byte[] digest = new byte[DigestIndex.DIGEST_LENGTH];
+            buffer.get(digest);
+            int setIndex = buffer.getInt();
+            int generation = buffer.getInt();
+            int voidTime = buffer.getInt();
+            int binCount = buffer.getShort() & 0xffff;
+            byte[] wireBins = new byte[buffer.getInt()];
+            buffer.get(wireBins);
+            if (voidTime != 0 && voidTime <= time) {
+                continue;
+            }
+            String setName = setIndex < 0 ? null : sets[setIndex];
+            engine.restore(digest, new StoredRecord(setName, wireBins, binCount, generation, voidTime));
+            count++;
+        }
+        return count;
+    }
+
+}
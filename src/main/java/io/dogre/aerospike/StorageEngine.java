@@ -0,0 +1,292 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Value;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of records in a namespace.
+ * <p>
+ * {@link ServiceHandlerImpl} handles Aerospike Protocol, and leaves storing records to this. Each namespace has its own
+ * engine, so engines can be swapped per namespace. {@link MemoryStorageEngine} is the default implementation.
+ * <p>
+ * Records are split into {@link RecordStore#PARTITIONS} partitions by digest, same as Aerospike Client. A record read
+ * by {@link #operate(byte[], boolean, RecordFunction)} is valid only in the function, because engines may keep bins
+ * out of Java heap, or reuse the memory after the function returns.
+ * <p>
+ * Expiration of write follows the write policy of Aerospike Client. It is time to live in seconds, or one of
+ * {@link #EXPIRATION_NAMESPACE_DEFAULT}, {@link #EXPIRATION_NEVER_EXPIRE} and {@link #EXPIRATION_DONT_UPDATE}. Expired
+ * records are not visible.
+ * <p>
+ * Engines keep {@link SecondaryIndex secondary indexes} up to date with every change of records, including expiration,
+ * eviction and truncation.
+ *
+ * @author dogre
+ */
+public interface StorageEngine {
+
+    /**
+     * Expiration of write, to use the default time to live of namespace.
+     */
+    int EXPIRATION_NAMESPACE_DEFAULT = 0;
+
+    /**
+     * Expiration of write, for the record never to expire.
+     */
+    int EXPIRATION_NEVER_EXPIRE = -1;
+
+    /**
+     * Expiration of write, not to change the void time of existing record.
+     */
+    int EXPIRATION_DONT_UPDATE = -2;
+
+    /**
+     * Get the name of namespace.
+     *
+     * @return the name of namespace.
+     */
+    String getNamespace();
+
+    /**
+     * Get record.
+     *
+     * @param digest the digest of record.
+     * @return record, which is valid after return. <code>null</code> if not exists.
+     */
+    StoredRecord get(byte[] digest);
+
+    /**
+     * Put record. The generation of record is increased.
+     *
+     * @param digest the digest of record.
+     * @param setName the name of set.
+     * @param bins bins.
+     * @param expiration expiration.
+     * @return <code>false</code> if there is no space for the record.
+     */
+    boolean put(byte[] digest, String setName, Map<String, Value> bins, int expiration);
+
+    /**
+     * Delete record.
+     *
+     * @param digest the digest of record.
+     * @return <code>false</code> if not exists.
+     */
+    boolean delete(byte[] digest);
+
+    /**
+     * Get current time, by which records expire.
+     *
+     * @return current time, in seconds since citrus epoch.
+     */
+    default int currentTime() {
+        return StoredRecord.currentTime();
+    }
+
+    /**
+     * Restore record as it was, keeping its generation and void time, such as from a snapshot. The engine replaces the
+     * existing record without counting a new generation.
+     *
+     * @param digest the digest of record.
+     * @param record record on Java heap.
+     */
+    default void restore(byte[] digest, StoredRecord record) {
+        int ttl = record.getVoidTime() == 0 ? EXPIRATION_NEVER_EXPIRE :
+                record.getVoidTime() - currentTime();
+        if (0 < ttl || ttl == EXPIRATION_NEVER_EXPIRE) {
+            put(digest, record.getSetName(), record.getBins(), ttl);
+        }
+    }
+
+    /**
+     * Write the records to a snapshot file.
+     *
+     * @param file snapshot file.
+     * @return the number of records.
+     * @throws IOException if failed to write.
+     */
+    default long writeSnapshot(Path file) throws IOException {
+        return Snapshot.write(this, file);
+    }
+
+    /**
+     * Apply the function to record, while holding the lock of record.
+     * <p>
+     * Read-modify-write in the function is atomic if <code>write</code> is <code>true</code>.
+     *
+     * @param digest the digest of record.
+     * @param write <code>true</code> if the function modifies record.
+     * @param function function.
+     * @param <T> the type of result.
+     * @return the result of function.
+     */
+    <T> T operate(byte[] digest, boolean write, RecordFunction<T> function);
+
+    /**
+     * Perform the action for each record in partition, while holding the lock of partition.
+     *
+     * @param partitionId partition id.
+     * @param action action.
+     */
+    void forEach(int partitionId, RecordConsumer action);
+
+    /**
+     * Perform the action for each record in partition, after copying the records out of the lock of partition. Writes
+     * to the partition are not blocked by the action, which may block such as writing a file.
+     *
+     * @param partitionId partition id.
+     * @param action action. the digest is not reused, and the record is on Java heap.
+     */
+    default void forEachCopied(int partitionId, RecordConsumer action) {
+        List<byte[]> digests = new ArrayList<>();
+        List<StoredRecord> records = new ArrayList<>();
+        forEach(partitionId, (digest, record) -> {
+            digests.add(Arrays.copyOf(digest, DigestIndex.DIGEST_LENGTH));
+            records.add(new StoredRecord(record.getSetName(), record.getWireBins(), record.getBinCount(),
+                    record.getGeneration(), record.getVoidTime()));
+        });
+        for (int i = 0; i < digests.size(); i++) {
+            action.accept(digests.get(i), records.get(i));
+        }
+    }
+
+    /**
+     * Remove all records of set.
+     *
+     * @param setName the name of set. if <code>null</code>, remove records of all sets.
+     * @return the number of removed records.
+     */
+    long truncate(String setName);
+
+    /**
+     * Create secondary index, and index existing records.
+     *
+     * @param index secondary index.
+     * @return <code>false</code> if an index of the same name exists.
+     */
+    boolean createIndex(SecondaryIndex index);
+
+    /**
+     * Drop secondary index.
+     *
+     * @param indexName the name of index.
+     * @return <code>false</code> if not exists.
+     */
+    boolean dropIndex(String indexName);
+
+    /**
+     * Get secondary indexes.
+     *
+     * @return secondary indexes.
+     */
+    Collection<SecondaryIndex> getIndexes();
+
+    /**
+     * Get statistics.
+     *
+     * @return statistics.
+     */
+    StorageStats getStats();
+
+    /**
+     * Release resources, such as background threads.
+     */
+    default void close() {
+    }
+
+    /**
+     * Record being operated by {@link RecordFunction}.
+     */
+    interface RecordEntry {
+
+        /**
+         * Get record.
+         *
+         * @return record. <code>null</code> if not exists.
+         */
+        StoredRecord getRecord();
+
+        /**
+         * Get current time of the engine, by which records expire.
+         *
+         * @return current time, in seconds since citrus epoch.
+         */
+        default int currentTime() {
+            return StoredRecord.currentTime();
+        }
+
+        /**
+         * Put record. Only for write. The generation of record is increased.
+         *
+         * @param setName the name of set.
+         * @param bins bins.
+         * @param expiration expiration.
+         * @return <code>false</code> if there is no space for the record.
+         */
+        boolean put(String setName, Map<String, Value> bins, int expiration);
+
+        /**
+         * Put record, writing bins in wire format over the bins of current record. Only for write. The generation of
+         * record is increased. A bin of {@link com.aerospike.client.command.ParticleType#NULL} removes the bin.
+         * <p>
+         * This is for write operations copied from a request. Bins are merged by
+         * {@link StoredRecord#merge(StoredRecord, String, byte[], int, int, int, int)}, and engines should override
+         * this to store the merged bins without decoding them.
+         *
+         * @param setName the name of set.
+         * @param bins bins in wire format.
+         * @param offset the offset of bins.
+         * @param length the length of bins.
+         * @param replace <code>true</code> to replace all bins of current record.
+         * @param expiration expiration.
+         * @return <code>false</code> if there is no space for the record.
+         */
+        default boolean put(String setName, byte[] bins, int offset, int length, boolean replace, int expiration) {
+            StoredRecord merged = StoredRecord.merge(replace ? null : getRecord(), setName, bins, offset, length, 0, 0);
+            return put(setName, merged.getBins(), expiration);
+        }
+
+        /**
+         * Delete record. Only for write.
+         *
+         * @return <code>false</code> if not exists.
+         */
+        boolean delete();
+
+    }
+
+    /**
+     * Function applied to a record while holding the lock of record.
+     *
+     * @param <T> the type of result.
+     */
+    @FunctionalInterface
+    interface RecordFunction<T> {
+
+        T apply(RecordEntry entry);
+
+    }
+
+    /**
+     * Action for a record.
+     */
+    @FunctionalInterface
+    interface RecordConsumer {
+
+        /**
+         * Perform action.
+         *
+         * @param digest the digest of record. the array is reused, copy it to keep.
+         * @param record record.
+         */
+        void accept(byte[] digest, StoredRecord record);
+
+    }
+
+}
@@ -0,0 +1,114 @@
+package io.dogre.aerospike;
+
+/**
+ * Statistics of {@link StorageEngine}.
+ *
+ * @author dogre
+ */
+public class StorageStats {
+
+    /**
+     * The number of records.
+     */
+    private long objects;
+
+    /**
+     * The bytes of bins in wire format.
+     */
+    private long usedBytes;
+
+    /**
+     * The bytes of memory allocated for bins. <code>0</code> if not managed by storage engine.
+     */
+    private long allocatedBytes;
+
+    /**
+     * Estimated memory usage in bytes.
+     */
+    private long memoryUsedBytes;
+
+    /**
+     * Memory size in bytes.
+     */
+    private long memorySize;
+
+    /**
+     * Whether writes are stopped for memory usage.
+     */
+    private boolean stopWrites;
+
+    /**
+     * The number of records removed by expiration.
+     */
+    private long expiredObjects;
+
+    /**
+     * The number of records removed by eviction.
+     */
+    private long evictedObjects;
+
+    public long getObjects() {
+        return objects;
+    }
+
+    public void setObjects(long objects) {
+        this.objects = objects;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public void setUsedBytes(long usedBytes) {
+        this.usedBytes = usedBytes;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public void setAllocatedBytes(long allocatedBytes) {
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public long getMemoryUsedBytes() {
+        return memoryUsedBytes;
+    }
+
+    public void setMemoryUsedBytes(long memoryUsedBytes) {
+        this.memoryUsedBytes = memoryUsedBytes;
+    }
+
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    public void setMemorySize(long memorySize) {
+        this.memorySize = memorySize;
+    }
+
+    public boolean isStopWrites() {
+        return stopWrites;
+    }
+
+    public void setStopWrites(boolean stopWrites) {
+        this.stopWrites = stopWrites;
+    }
+
+    public long getExpiredObjects() {
+        return expiredObjects;
+    }
+
+    public void setExpiredObjects(long expiredObjects) {
+        this.expiredObjects = expiredObjects;
+    }
+
+    public long getEvictedObjects() {
+        return evictedObjects;
+    }
+
+    public void setEvictedObjects(long evictedObjects) {
+        this.evictedObjects = evictedObjects;
+    }
+
+}
@@ -0,0 +1,580 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Operation;
+import com.aerospike.client.Value;
+import com.aerospike.client.command.Buffer;
+import com.aerospike.client.command.ParticleType;
+
+import java.time.Clock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Record stored in {@link RecordStore}.
+ * <p>
+ * Bins are kept in the wire format of Aerospike Protocol, as read operations laid out contiguously. So a full record
+ * read is a bulk copy of {@link #getWireBins()}, and a bin read is a slice copy by {@link #getWireBin(String)}.
+ * <p>
+ * <table>
+ * <thead>
+ * <tr>
+ * <th>Size</th>
+ * <th>Description</th>
+ * </tr>
+ * </thead>
+ * <tbody>
+ * <tr>
+ * <td>4</td>
+ * <td>The length of rest bytes, <code>4 + name length + value length</code></td>
+ * </tr>
+ * <tr>
+ * <td>1</td>
+ * <td>Operation type, fixed to READ</td>
+ * </tr>
+ * <tr>
+ * <td>1</td>
+ * <td>Particle type</td>
+ * </tr>
+ * <tr>
+ * <td>1</td>
+ * <td>unused</td>
+ * </tr>
+ * <tr>
+ * <td>1</td>
+ * <td>Name length</td>
+ * </tr>
+ * <tr>
+ * <td>name length</td>
+ * <td>Name encoded in UTF-8</td>
+ * </tr>
+ * <tr>
+ * <td>value length</td>
+ * <td>Value</td>
+ * </tr>
+ * </tbody>
+ * </table>
+ * This is immutable, except last access time. To modify a record, put a new instance.
+ * <p>
+ * Bins are kept on Java heap. {@link OffHeapRecord} keeps them in direct memory instead, so subclasses override the
+ * methods accessing wire format.
+ * <p>
+ * Map bins are decoded to {@link PackedMap}, and kept with their index, so map operations on the record don't index
+ * them again. Records in direct memory don't keep them, not to keep bins on Java heap.
+ *
+ * @author dogre
+ */
+public class StoredRecord {
+
+    /**
+     * Citrus epoch, 2010-01-01T00:00:00Z in seconds since Unix epoch. Aerospike measures void time from this.
+     */
+    public static final long CITRUS_EPOCH = 1262304000L;
+
+    /**
+     * The maximum generation. Generation wraps around to 1 after this, same as Aerospike Server.
+     */
+    public static final int MAX_GENERATION = 0xffff;
+
+    /**
+     * The name of set. <code>null</code> if the record does not belong to any set.
+     */
+    private String setName;
+
+    /**
+     * Bins in wire format.
+     */
+    private byte[] wireBins;
+
+    /**
+     * The number of bins.
+     */
+    private int binCount;
+
+    /**
+     * Generation, the number of modifications.
+     */
+    private int generation;
+
+    /**
+     * Void time, in seconds since citrus epoch. <code>0</code> if never expires.
+     */
+    private int voidTime;
+
+    /**
+     * The void time of the entry of {@link TimingWheel} live for this record, carried over updates by the engine.
+     * <code>0</code> if not scheduled.
+     */
+    private int scheduledTime;
+
+    /**
+     * Last access time, in seconds since citrus epoch. This is updated by reads, only for LRU eviction. Reads hold only
+     * the read lock of partition, so this is volatile.
+     */
+    private volatile int lastAccessTime;
+
+    /**
+     * Map bins decoded and indexed, by name. <code>null</code> until a map bin is decoded.
+     */
+    private volatile Map<String, PackedMap> maps;
+
+    /**
+     * Constructor.
+     *
+     * @param setName the name of set.
+     * @param wireBins bins in wire format.
+     * @param binCount the number of bins.
+     * @param generation generation.
+     * @param voidTime void time. <code>0</code> if never expires.
+     */
+    public StoredRecord(String setName, byte[] wireBins, int binCount, int generation, int voidTime) {
+        this.setName = setName;
+        this.wireBins = wireBins;
+        this.binCount = binCount;
+        this.generation = generation;
+        this.voidTime = voidTime;
+    }
+
+    /**
+     * Get current time.
+     *
+     * @return current time, in seconds since citrus epoch.
+     */
+    public static int currentTime() {
+        return (int) (System.currentTimeMillis() / 1000 - CITRUS_EPOCH);
+    }
+
+    /**
+     * Get current time of clock.
+     *
+     * @param clock clock.
+     * @return current time, in seconds since citrus epoch.
+     */
+    public static int currentTime(Clock clock) {
+        return (int) (clock.millis() / 1000 - CITRUS_EPOCH);
+    }
+
+    /**
+     * Create record, encoding bins in wire format.
+     *
+     * @param setName the name of set.
+     * @param bins bins.
+     * @param generation generation.
+     * @param voidTime void time. <code>0</code> if never expires.
+     * @return record.
+     */
+    public static StoredRecord of(String setName, Map<String, Value> bins, int generation, int voidTime) {
+        int length = 0;
+        for (Entry<String, Value> entry : bins.entrySet()) {
+            length += 8 + Buffer.estimateSizeUtf8(entry.getKey()) + entry.getValue().estimateSize();
+        }
+
+        byte[] wireBins = new byte[length];
+        int offset = 0;
+        for (Entry<String, Value> entry : bins.entrySet()) {
+            offset += ByteWriter.writeOperation(Operation.Type.READ, entry.getKey(), entry.getValue(), wireBins,
+                    offset);
+        }
+        StoredRecord record = new StoredRecord(setName, wireBins, bins.size(), generation, voidTime);
+        for (Entry<String, Value> entry : bins.entrySet()) {
+            if (entry.getValue() instanceof PackedMap && ((PackedMap) entry.getValue()).isIndexed()) {
+                // keep the index built by map operations
+                record.getMaps().put(entry.getKey(), ((PackedMap) entry.getValue()).snapshot());
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Create record by writing bins in wire format over the bins of current record, without decoding values.
+     * <p>
+     * The result is the same as putting the bins to {@link #getBins()} of current record in order. Replaced bins keep
+     * their positions, new bins follow in the order of first write, and a bin of {@link ParticleType#NULL} removes the
+     * bin. Map bins kept by current record are kept, unless replaced.
+     *
+     * @param current current record. <code>null</code> if not exists, or to replace all bins.
+     * @param setName the name of set.
+     * @param bins bins in wire format, such as write operations. Operation types are ignored.
+     * @param offset the offset of bins.
+     * @param length the length of bins.
+     * @param generation generation.
+     * @param voidTime void time. <code>0</code> if never expires.
+     * @return record.
+     */
+    public static StoredRecord merge(StoredRecord current, String setName, byte[] bins, int offset, int length,
+            int generation, int voidTime) {
+        int end = offset + length;
+        int currentEnd = current != null ? current.getWireLength() : 0;
+        byte[] wireBins = null;
+        int position = 0;
+        int binCount = 0;
+        // the length is counted first, and then bins are copied
+        for (int pass = 0; pass < 2; pass++) {
+            position = 0;
+            binCount = 0;
+            for (int c = 0; c < currentEnd; c += 4 + current.getWireInt(c)) {
+                int written = -1;
+                for (int b = offset; b < end; b += 4 + Buffer.bytesToInt(bins, b)) {
+                    if (current.isSameName(c, bins, b)) {
+                        written = b;
+                    }
+                }
+                if (written < 0) {
+                    int binLength = 4 + current.getWireInt(c);
+                    if (wireBins != null) {
+                        current.getWireBytes(c, wireBins, position, binLength);
+                    }
+                    position += binLength;
+                    binCount++;
+                } else if (bins[written + 5] != ParticleType.NULL) {
+                    position += copyBin(bins, written, wireBins, position);
+                    binCount++;
+                }
+            }
+            for (int b = offset; b < end; b += 4 + Buffer.bytesToInt(bins, b)) {
+                int nameLength = bins[b + 7] & 0xff;
+                boolean first = current == null || current.findBin(bins, b + 8, nameLength) < 0;
+                int written = b;
+                for (int other = offset; first && other < end; other += 4 + Buffer.bytesToInt(bins, other)) {
+                    if (other != b && isSameName(bins, other, bins, b)) {
+                        if (other < b) {
+                            first = false;
+                        } else {
+                            written = other;
+                        }
+                    }
+                }
+                if (first && bins[written + 5] != ParticleType.NULL) {
+                    position += copyBin(bins, written, wireBins, position);
+                    binCount++;
+                }
+            }
+            if (wireBins == null) {
+                wireBins = new byte[position];
+            }
+        }
+
+        StoredRecord record = new StoredRecord(setName, wireBins, binCount, generation, voidTime);
+        Map<String, PackedMap> maps = current != null ? current.maps : null;
+        if (maps != null) {
+            for (Entry<String, PackedMap> entry : maps.entrySet()) {
+                byte[] name = Buffer.stringToUtf8(entry.getKey());
+                boolean written = false;
+                for (int b = offset; !written && b < end; b += 4 + Buffer.bytesToInt(bins, b)) {
+                    written = (bins[b + 7] & 0xff) == name.length &&
+                            Buffer.utf8ToString(bins, b + 8, name.length).equals(entry.getKey());
+                }
+                if (!written && 0 <= record.findBin(name)) {
+                    record.getMaps().put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Copy a bin in wire format, as a read operation.
+     *
+     * @return the length of bin.
+     */
+    private static int copyBin(byte[] bins, int offset, byte[] destination, int position) {
+        int length = 4 + Buffer.bytesToInt(bins, offset);
+        if (destination != null) {
+            System.arraycopy(bins, offset, destination, position, length);
+            destination[position + 4] = (byte) Operation.Type.READ.protocolType;
+        }
+        return length;
+    }
+
+    private static boolean isSameName(byte[] bins1, int offset1, byte[] bins2, int offset2) {
+        int nameLength = bins1[offset1 + 7] & 0xff;
+        if ((bins2[offset2 + 7] & 0xff) != nameLength) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (bins1[offset1 + 8 + i] != bins2[offset2 + 8 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a bin of this record has the same name as a bin in wire format.
+     */
+    private boolean isSameName(int offset, byte[] bins, int binOffset) {
+        int nameLength = getWireByte(offset + 7) & 0xff;
+        if ((bins[binOffset + 7] & 0xff) != nameLength) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (getWireByte(offset + 8 + i) != bins[binOffset + 8 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getSetName() {
+        return setName;
+    }
+
+    /**
+     * Get bins in wire format. The returned array must not be modified.
+     *
+     * @return bins in wire format.
+     */
+    public byte[] getWireBins() {
+        return wireBins;
+    }
+
+    public int getBinCount() {
+        return binCount;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Get the generation of record after modified.
+     *
+     * @return the next generation.
+     */
+    public int nextGeneration() {
+        return this.generation < MAX_GENERATION ? this.generation + 1 : 1;
+    }
+
+    public int getVoidTime() {
+        return voidTime;
+    }
+
+    public int getScheduledTime() {
+        return scheduledTime;
+    }
+
+    public void setScheduledTime(int scheduledTime) {
+        this.scheduledTime = scheduledTime;
+    }
+
+    public int getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    public void setLastAccessTime(int lastAccessTime) {
+        this.lastAccessTime = lastAccessTime;
+    }
+
+    /**
+     * Whether expired.
+     *
+     * @param time current time, in seconds since citrus epoch.
+     * @return <code>true</code> if expired.
+     */
+    public boolean isExpired(int time) {
+        return this.voidTime != 0 && this.voidTime <= time;
+    }
+
+    /**
+     * Get the length of bins in wire format.
+     *
+     * @return the length of bins in wire format.
+     */
+    public int getWireLength() {
+        return this.wireBins.length;
+    }
+
+    /**
+     * Read an int of bins in wire format.
+     *
+     * @param offset the offset in bins.
+     * @return int value.
+     */
+    public int getWireInt(int offset) {
+        return Buffer.bytesToInt(this.wireBins, offset);
+    }
+
+    /**
+     * Read a byte of bins in wire format.
+     *
+     * @param offset the offset in bins.
+     * @return byte value.
+     */
+    protected byte getWireByte(int offset) {
+        return this.wireBins[offset];
+    }
+
+    /**
+     * Copy bytes of bins in wire format.
+     *
+     * @param offset the offset in bins.
+     * @param bytes destination.
+     * @param bytesOffset the offset of destination.
+     * @param length the length to copy.
+     */
+    protected void getWireBytes(int offset, byte[] bytes, int bytesOffset, int length) {
+        System.arraycopy(this.wireBins, offset, bytes, bytesOffset, length);
+    }
+
+    /**
+     * Find bin.
+     *
+     * @param name the name of bin encoded in UTF-8.
+     * @return the offset of bin in {@link #getWireBins()}. <code>-1</code> if not exists.
+     */
+    public int findBin(byte[] name) {
+        return findBin(name, 0, name.length);
+    }
+
+    /**
+     * Find bin.
+     *
+     * @param name bytes containing the name of bin encoded in UTF-8.
+     * @param nameOffset the offset of name.
+     * @param nameLength the length of name.
+     * @return the offset of bin in {@link #getWireBins()}. <code>-1</code> if not exists.
+     */
+    public int findBin(byte[] name, int nameOffset, int nameLength) {
+        int end = getWireLength();
+        int offset = 0;
+        while (offset < end) {
+            int length = getWireInt(offset);
+            if ((getWireByte(offset + 7) & 0xff) == nameLength) {
+                int i = 0;
+                while (i < nameLength && getWireByte(offset + 8 + i) == name[nameOffset + i]) {
+                    i++;
+                }
+                if (i == nameLength) {
+                    return offset;
+                }
+            }
+            offset += 4 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Get bin in wire format.
+     *
+     * @param name the name of bin.
+     * @return copy of bin in wire format. <code>null</code> if not exists.
+     */
+    public byte[] getWireBin(String name) {
+        return getWireBin(Buffer.stringToUtf8(name));
+    }
+
+    /**
+     * Get bin in wire format.
+     *
+     * @param name the name of bin encoded in UTF-8.
+     * @return copy of bin in wire format. <code>null</code> if not exists.
+     */
+    public byte[] getWireBin(byte[] name) {
+        int offset = findBin(name);
+        if (offset < 0) {
+            return null;
+        }
+        byte[] bin = new byte[4 + getWireInt(offset)];
+        getWireBytes(offset, bin, 0, bin.length);
+        return bin;
+    }
+
+    /**
+     * Decode a bin.
+     *
+     * @param name the name of bin.
+     * @return the value of bin. <code>null</code> if not exists.
+     */
+    public Value getBin(String name) {
+        int offset = findBin(Buffer.stringToUtf8(name));
+        if (offset < 0) {
+            return null;
+        }
+        int length = getWireInt(offset);
+        int particleType = getWireByte(offset + 5);
+        int nameLength = getWireByte(offset + 7) & 0xff;
+        int valueLength = length - 4 - nameLength;
+        Map<String, PackedMap> maps = this.maps;
+        if (maps != null && maps.containsKey(name)) {
+            return maps.get(name).snapshot();
+        }
+        byte[] bytes = new byte[valueLength];
+        getWireBytes(offset + 8 + nameLength, bytes, 0, valueLength);
+        return decodeBin(name, particleType, bytes, 0, valueLength);
+    }
+
+    /**
+     * Decode the value of bin. Lists are not decoded, but wrapped by {@link PackedList}, and maps by {@link PackedMap}.
+     *
+     * @param name the name of bin.
+     * @param particleType particle type.
+     * @param bytes bytes.
+     * @param offset the offset of value.
+     * @param length the length of value.
+     * @return value.
+     */
+    private Value decodeBin(String name, int particleType, byte[] bytes, int offset, int length) {
+        if (particleType == ParticleType.LIST && 0 < length) {
+            return PackedList.wrap(bytes, offset, length);
+        } else if (particleType == ParticleType.MAP && 0 < length) {
+            return decodeMap(name, bytes, offset, length);
+        }
+        return Value.get(Buffer.bytesToParticle(particleType, bytes, offset, length));
+    }
+
+    /**
+     * Decode a map bin. The map is kept, and a snapshot of it is returned.
+     *
+     * @param name the name of bin.
+     * @param bytes bytes, not modified afterwards.
+     * @param offset the offset of map.
+     * @param length the length of map.
+     * @return map.
+     */
+    protected PackedMap decodeMap(String name, byte[] bytes, int offset, int length) {
+        return getMaps().computeIfAbsent(name, n -> PackedMap.wrap(bytes, offset, length)).snapshot();
+    }
+
+    private Map<String, PackedMap> getMaps() {
+        Map<String, PackedMap> maps = this.maps;
+        if (maps == null) {
+            synchronized (this) {
+                if (this.maps == null) {
+                    this.maps = new ConcurrentHashMap<>();
+                }
+                maps = this.maps;
+            }
+        }
+        return maps;
+    }
+
+    /**
+     * Decode bins. Lists and maps share the bytes of record until modified.
+     *
+     * @return new map of bins, in the order of stored.
+     */
+    public Map<String, Value> getBins() {
+        byte[] wireBins = getWireBins();
+        Map<String, Value> bins = new LinkedHashMap<>();
+        int offset = 0;
+        while (offset < wireBins.length) {
+            int length = Buffer.bytesToInt(wireBins, offset);
+            int particleType = wireBins[offset + 5];
+            int nameLength = wireBins[offset + 7] & 0xff;
+            String name = Buffer.utf8ToString(wireBins, offset + 8, nameLength);
+            int valueLength = length - 4 - nameLength;
+            bins.put(name, decodeBin(name, particleType, wireBins, offset + 8 + nameLength, valueLength));
+            offset += 4 + length;
+        }
+        return bins;
+    }
+
+    /**
+     * Release the memory of bins. This is called when the record is replaced or removed, and then the record must not
+     * be read anymore. Bins on Java heap are left to garbage collector.
+     */
+    public void release() {
+    }
+
+}
@@ -0,0 +1,207 @@
+package io.dogre.aerospike;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel of record expirations, with a resolution of a second.
+ * <p>
+ * Each entry is the digest and the void time of a record. Level 0 has 256 slots of a second, and the upper levels have
+ * 64 slots each covering a whole lower level. An entry is put into the lowest level whose slots reach its void time,
+ * and is moved down a level when the wheel reaches its slot. So advancing the wheel costs the number of entries due,
+ * not the number of records.
+ * <p>
+ * Entries are not removed when a record is updated or deleted. The owner must check the record again when its entry
+ * is due, and should keep one live entry per record, scheduling again when it is due rather than on every update.
+ *
+ * @author dogre
+ */
+public class TimingWheel {
+
+    /**
+     * The bits of slot index per level, from level 0.
+     */
+    private static final int[] LEVEL_BITS = { 8, 6, 6, 6, 6 };
+
+    /**
+     * Slots per level.
+     */
+    private Entries[][] levels = new Entries[LEVEL_BITS.length][];
+
+    /**
+     * The shift of time for each level.
+     */
+    private int[] shifts = new int[LEVEL_BITS.length];
+
+    /**
+     * Entries whose void time has already passed when scheduled.
+     */
+    private Entries due = new Entries();
+
+    /**
+     * The time processed last.
+     */
+    private int currentTime;
+
+    /**
+     * Constructor.
+     *
+     * @param currentTime current time, in seconds since citrus epoch.
+     */
+    public TimingWheel(int currentTime) {
+        int shift = 0;
+        for (int level = 0; level < LEVEL_BITS.length; level++) {
+            this.levels[level] = new Entries[1 << LEVEL_BITS[level]];
+            this.shifts[level] = shift;
+            shift += LEVEL_BITS[level];
+        }
+        this.currentTime = currentTime;
+    }
+
+    private int slot(int level, int time) {
+        return (time >>> this.shifts[level]) & (this.levels[level].length - 1);
+    }
+
+    /**
+     * Schedule expiration.
+     *
+     * @param digest the digest of record.
+     * @param offset the offset of digest.
+     * @param voidTime the void time of record, in seconds since citrus epoch.
+     */
+    public synchronized void schedule(byte[] digest, int offset, int voidTime) {
+        Entries entries;
+        if (voidTime <= this.currentTime) {
+            entries = this.due;
+        } else {
+            // the lowest level, in which the void time and current time share the upper slots
+            int level = 0;
+            while (level < LEVEL_BITS.length - 1 &&
+                    (voidTime >>> this.shifts[level + 1]) != (this.currentTime >>> this.shifts[level + 1])) {
+                level++;
+            }
+            int slot = slot(level, voidTime);
+            entries = this.levels[level][slot];
+            if (entries == null) {
+                entries = new Entries();
+                this.levels[level][slot] = entries;
+            }
+        }
+        entries.add(digest, offset, voidTime);
+    }
+
+    /**
+     * Advance the wheel to the time, and take entries due.
+     *
+     * @param time current time, in seconds since citrus epoch.
+     * @return entries due.
+     */
+    public synchronized Entries advance(int time) {
+        Entries expired = this.due;
+        this.due = new Entries();
+        while (this.currentTime < time) {
+            this.currentTime++;
+            // move entries of upper levels down, from the top
+            for (int level = LEVEL_BITS.length - 1; 0 < level; level--) {
+                if ((this.currentTime & ((1 << this.shifts[level]) - 1)) == 0) {
+                    cascade(level);
+                }
+            }
+            int slot = slot(0, this.currentTime);
+            Entries entries = this.levels[0][slot];
+            if (entries != null) {
+                this.levels[0][slot] = null;
+                expired.addAll(entries);
+            }
+        }
+        expired.addAll(this.due);
+        this.due.clear();
+        return expired;
+    }
+
+    /**
+     * Get the number of entries scheduled and not taken.
+     *
+     * @return the number of entries.
+     */
+    public synchronized int size() {
+        int size = this.due.size();
+        for (Entries[] slots : this.levels) {
+            for (Entries entries : slots) {
+                if (entries != null) {
+                    size += entries.size();
+                }
+            }
+        }
+        return size;
+    }
+
+    private void cascade(int level) {
+        int slot = slot(level, this.currentTime);
+        Entries entries = this.levels[level][slot];
+        if (entries == null) {
+            return;
+        }
+        this.levels[level][slot] = null;
+        for (int i = 0; i < entries.size(); i++) {
+            schedule(entries.digests, i * DigestIndex.DIGEST_LENGTH, entries.voidTimes[i]);
+        }
+    }
+
+    /**
+     * Entries of the wheel, digests and void times in arrays.
+     */
+    public static class Entries {
+
+        private byte[] digests = new byte[DigestIndex.DIGEST_LENGTH * 4];
+
+        private int[] voidTimes = new int[4];
+
+        private int size;
+
+        private void add(byte[] digest, int offset, int voidTime) {
+            if (this.size == this.voidTimes.length) {
+                this.voidTimes = Arrays.copyOf(this.voidTimes, this.size * 2);
+                this.digests = Arrays.copyOf(this.digests, this.size * 2 * DigestIndex.DIGEST_LENGTH);
+            }
+            System.arraycopy(digest, offset, this.digests, this.size * DigestIndex.DIGEST_LENGTH,
+                    DigestIndex.DIGEST_LENGTH);
+            this.voidTimes[this.size++] = voidTime;
+        }
+
+        private void addAll(Entries entries) {
+            for (int i = 0; i < entries.size; i++) {
+                add(entries.digests, i * DigestIndex.DIGEST_LENGTH, entries.voidTimes[i]);
+            }
+        }
+
+        private void clear() {
+            this.size = 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Copy digest.
+         *
+         * @param index the index of entry.
+         * @param digest destination.
+         */
+        public void getDigest(int index, byte[] digest) {
+            System.arraycopy(this.digests, index * DigestIndex.DIGEST_LENGTH, digest, 0, DigestIndex.DIGEST_LENGTH);
+        }
+
+        /**
+         * Get void time.
+         *
+         * @param index the index of entry.
+         * @return void time.
+         */
+        public int getVoidTime(int index) {
+            return this.voidTimes[index];
+        }
+
+    }
+
+}
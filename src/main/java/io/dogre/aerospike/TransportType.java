@@ -0,0 +1,42 @@
+package io.dogre.aerospike;
+
+import io.netty.channel.epoll.Epoll;
+
+/**
+ * Transport type of {@link NettyAerospikeServer}.
+ *
+ * @author dogre
+ */
+public enum TransportType {
+
+    /**
+     * Use native epoll transport if it is available, otherwise use NIO transport.
+     */
+    AUTO,
+
+    /**
+     * Java NIO transport. Available on every platform.
+     */
+    NIO,
+
+    /**
+     * Native epoll transport. Available on Linux only. With this transport, the server binds as many acceptors as IO
+     * threads on the same port by <code>SO_REUSEPORT</code>.
+     */
+    EPOLL;
+
+    /**
+     * Resolve the transport type that is actually used.
+     * <p>
+     * {@link #AUTO} and {@link #EPOLL} fall back to {@link #NIO} when native epoll transport is not available.
+     *
+     * @return {@link #NIO} or {@link #EPOLL}.
+     */
+    public TransportType resolve() {
+        if (this == NIO) {
+            return NIO;
+        }
+        return Epoll.isAvailable() ? EPOLL : NIO;
+    }
+
+}
@@ -0,0 +1,550 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.command.Buffer;
+import io.dogre.aerospike.NamespaceConfig.SyncPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of a namespace, the committed writes and deletes of records in segment files.
+ * <p>
+ * The owner appends an entry while holding the write lock of record, so entries of a record are in the order of
+ * changes. Entries are buffered in memory, and written to the current segment by {@link #sync(long)} or periodically.
+ * Appending never writes the segment nor waits for a sync, because it holds the lock of record. If buffered entries
+ * exceed {@link #FLUSH_SIZE}, the sync thread is signaled to write them. A segment is closed when it exceeds the
+ * segment size, and a new segment is started.
+ * <p>
+ * Segments are dropped when a snapshot covers them. {@link #rotate()} starts a new segment before the snapshot is
+ * written, and the segments before it are deleted by {@link #deleteSegmentsBefore(long)} after the snapshot is
+ * durable.
+ * <p>
+ * Syncs are group commits. A thread syncing writes and forces all entries appended until then, while other threads
+ * wait for it, and then those threads find their entries already durable, or sync the entries appended meanwhile at
+ * once. So durability of each commit costs a part of one fsync. By {@link SyncPolicy}, commits wait for sync, or the
+ * log is synced at intervals, or the log is only written to the file system at intervals.
+ * <p>
+ * An entry is the length, the type, the digest, the payload and CRC32 of them. The length of an entry is at most
+ * {@link #MAX_ENTRY_LENGTH}, regardless of the segment size. At startup, segments are replayed in order, and a torn
+ * entry at the end of a segment, written partially by a crash, is discarded.
+ *
+ * @author dogre
+ */
+public class WriteAheadLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    /**
+     * Entry type of a put. The payload is generation, void time, bin count, the length and name of set, and bins in
+     * wire format.
+     */
+    public static final int TYPE_PUT = 1;
+
+    /**
+     * Entry type of a delete. No payload.
+     */
+    public static final int TYPE_DELETE = 2;
+
+    /**
+     * Buffered bytes, over which appending writes them to the segment without waiting for the next interval.
+     */
+    public static final int FLUSH_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The maximum length of an entry, without the length and CRC32. Larger records are rejected.
+     */
+    public static final int MAX_ENTRY_LENGTH = NettyAerospikeServer.AerospikeMessageDecoder.MAX_MESSAGE_LENGTH;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * The directory of segments.
+     */
+    private Path directory;
+
+    private SyncPolicy syncPolicy;
+
+    /**
+     * The size of segment in bytes, over which a new segment is started.
+     */
+    private long segmentSize;
+
+    /**
+     * Entries appended but not written to segment. Guarded by this.
+     */
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    /**
+     * The total length of entries appended. Guarded by this.
+     */
+    private long appended;
+
+    /**
+     * Lock of writing segments, held by the thread syncing.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * The total length of entries written to segments. Guarded by {@link #writeLock}.
+     */
+    private long written;
+
+    /**
+     * The total length of entries forced to storage.
+     */
+    private volatile long durable;
+
+    /**
+     * The sequence of current segment. Guarded by {@link #writeLock}.
+     */
+    private long segmentSequence;
+
+    /**
+     * The current segment. <code>null</code> until opened. Guarded by {@link #writeLock}.
+     */
+    private FileChannel segment;
+
+    /**
+     * Executor syncing at intervals.
+     */
+    private ScheduledExecutorService syncExecutor;
+
+    /**
+     * Whether the sync thread is signaled to write buffered entries.
+     */
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    /**
+     * Constructor. The log is replayed by {@link #replay(EntryConsumer)}, and then opened by {@link #open(long)}.
+     *
+     * @param directory the directory of segments, created if not exists.
+     * @param syncPolicy sync policy.
+     * @param segmentSize the size of segment in bytes.
+     */
+    public WriteAheadLog(Path directory, SyncPolicy syncPolicy, long segmentSize) {
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Replay segments in order.
+     *
+     * @param consumer consumer of entries.
+     * @return the number of entries.
+     */
+    public long replay(EntryConsumer consumer) {
+        long count = 0;
+        try {
+            Files.createDirectories(this.directory);
+            for (Path path : listSegments()) {
+                this.segmentSequence = Math.max(this.segmentSequence, parseSequence(path));
+                count += replaySegment(path, consumer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return count;
+    }
+
+    private long replaySegment(Path path, EntryConsumer consumer) throws IOException {
+        long count = 0;
+        long valid = 0;
+        long size = Files.size(path);
+        CRC32 crc = new CRC32();
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(path), 64 * 1024)) {
+            DataInputStream input = new DataInputStream(stream);
+            while (true) {
+                int length;
+                byte[] entry;
+                try {
+                    length = input.readInt();
+                    // a torn length may exceed the bytes left in the segment
+                    if (length < 1 + DigestIndex.DIGEST_LENGTH || MAX_ENTRY_LENGTH < length ||
+                            size - valid - 8 < length) {
+                        break;
+                    }
+                    entry = new byte[length];
+                    input.readFully(entry);
+                    crc.reset();
+                    crc.update(entry, 0, length);
+                    if (input.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                int type = entry[0];
+                byte[] digest = new byte[DigestIndex.DIGEST_LENGTH];
+                System.arraycopy(entry, 1, digest, 0, DigestIndex.DIGEST_LENGTH);
+                if (type == TYPE_PUT) {
+                    int offset = 1 + DigestIndex.DIGEST_LENGTH;
+                    int generation = Buffer.bytesToInt(entry, offset);
+                    int voidTime = Buffer.bytesToInt(entry, offset + 4);
+                    int binCount = Buffer.bytesToShort(entry, offset + 8);
+                    int setNameLength = Buffer.bytesToShort(entry, offset + 10);
+                    offset += 12;
+                    String setName = setNameLength == 0 ? null : Buffer.utf8ToString(entry, offset, setNameLength);
+                    offset += setNameLength;
+                    byte[] wireBins = new byte[length - offset];
+                    System.arraycopy(entry, offset, wireBins, 0, wireBins.length);
+                    consumer.accept(digest, new StoredRecord(setName, wireBins, binCount, generation, voidTime));
+                } else {
+                    consumer.accept(digest, null);
+                }
+                valid += 4 + length + 4;
+                count++;
+            }
+        }
+        if (valid < size) {
+            logger.warn("Discard torn entry of write-ahead log: {} at {}", path, valid);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        return count;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        segments.sort((a, b) -> Long.compare(parseSequence(a), parseSequence(b)));
+        return segments;
+    }
+
+    private static long parseSequence(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Open a new segment for appending, and start syncing at intervals.
+     *
+     * @param syncInterval the interval of sync in milliseconds.
+     */
+    public void open(long syncInterval) {
+        synchronized (this.writeLock) {
+            openSegment();
+        }
+        this.syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-" + this.directory.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                if (this.syncPolicy == SyncPolicy.NONE) {
+                    write();
+                } else {
+                    sync(Long.MAX_VALUE);
+                }
+            } catch (UncheckedIOException e) {
+                logger.error("Failed to sync write-ahead log", e);
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void openSegment() {
+        try {
+            if (this.segment != null) {
+                this.segment.force(false);
+                this.segment.close();
+            }
+            this.segmentSequence++;
+            Path path = this.directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, this.segmentSequence,
+                    SEGMENT_SUFFIX));
+            this.segment = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Check that a put of record can be logged.
+     *
+     * @param record record.
+     * @throws AerospikeException if the entry of record is longer than {@link #MAX_ENTRY_LENGTH}.
+     */
+    public static void checkPut(StoredRecord record) {
+        long length = 1 + DigestIndex.DIGEST_LENGTH + 12 + Buffer.estimateSizeUtf8(record.getSetName()) +
+                (long) record.getWireLength();
+        if (MAX_ENTRY_LENGTH < length) {
+            throw new AerospikeException(ResultCode.RECORD_TOO_BIG,
+                    "Record is too big to be logged : " + length + " bytes");
+        }
+    }
+
+    /**
+     * Append a put of record.
+     *
+     * @param digest the digest of record.
+     * @param record record.
+     * @return the position of log after the entry.
+     * @throws AerospikeException if the entry of record is longer than {@link #MAX_ENTRY_LENGTH}.
+     */
+    public long appendPut(byte[] digest, StoredRecord record) {
+        checkPut(record);
+        byte[] wireBins = record.getWireBins();
+        byte[] setName = record.getSetName() != null ? Buffer.stringToUtf8(record.getSetName()) : new byte[0];
+        byte[] entry = new byte[4 + 1 + DigestIndex.DIGEST_LENGTH + 12 + setName.length + wireBins.length + 4];
+        int offset = writeHeader(entry, TYPE_PUT, digest);
+        Buffer.intToBytes(record.getGeneration(), entry, offset);
+        Buffer.intToBytes(record.getVoidTime(), entry, offset + 4);
+        Buffer.shortToBytes(record.getBinCount(), entry, offset + 8);
+        Buffer.shortToBytes(setName.length, entry, offset + 10);
+        offset += 12;
+        System.arraycopy(setName, 0, entry, offset, setName.length);
+        offset += setName.length;
+        System.arraycopy(wireBins, 0, entry, offset, wireBins.length);
+        return append(entry);
+    }
+
+    /**
+     * Append a delete of record.
+     *
+     * @param digest the digest of record.
+     * @return the position of log after the entry.
+     */
+    public long appendDelete(byte[] digest) {
+        byte[] entry = new byte[4 + 1 + DigestIndex.DIGEST_LENGTH + 4];
+        writeHeader(entry, TYPE_DELETE, digest);
+        return append(entry);
+    }
+
+    private static int writeHeader(byte[] entry, int type, byte[] digest) {
+        Buffer.intToBytes(entry.length - 8, entry, 0);
+        entry[4] = (byte) type;
+        System.arraycopy(digest, 0, entry, 5, DigestIndex.DIGEST_LENGTH);
+        return 5 + DigestIndex.DIGEST_LENGTH;
+    }
+
+    private long append(byte[] entry) {
+        CRC32 crc = new CRC32();
+        crc.update(entry, 4, entry.length - 8);
+        Buffer.intToBytes((int) crc.getValue(), entry, entry.length - 4);
+        long position;
+        boolean flush;
+        synchronized (this) {
+            this.buffer.write(entry, 0, entry.length);
+            this.appended += entry.length;
+            position = this.appended;
+            flush = FLUSH_SIZE <= this.buffer.size();
+        }
+        if (flush && this.syncExecutor != null && this.flushing.compareAndSet(false, true)) {
+            // written by the sync thread, not to wait for a sync while holding the lock of record
+            try {
+                this.syncExecutor.execute(() -> {
+                    this.flushing.set(false);
+                    write();
+                });
+            } catch (RejectedExecutionException e) {
+                // closing, and buffered entries are synced by close
+                this.flushing.set(false);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Wait until the entries appended until the position are durable, if commits wait for sync.
+     *
+     * @param position the position of log returned by append.
+     */
+    public void commit(long position) {
+        if (this.syncPolicy == SyncPolicy.EVERY_COMMIT) {
+            sync(position);
+        }
+    }
+
+    /**
+     * Write and force entries, until the position is durable. A group of entries appended by many threads is forced at
+     * once.
+     *
+     * @param position the position of log. {@link Long#MAX_VALUE} to force all appended entries.
+     */
+    public void sync(long position) {
+        if (position <= this.durable) {
+            return;
+        }
+        synchronized (this.writeLock) {
+            // synced by the previous holder of lock
+            if (position <= this.durable) {
+                return;
+            }
+            long end = writeBuffered();
+            if (end <= this.durable) {
+                return;
+            }
+            try {
+                if (this.segment != null) {
+                    this.segment.force(false);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.durable = end;
+        }
+    }
+
+    /**
+     * Write buffered entries to the segment, without forcing.
+     */
+    public void write() {
+        synchronized (this.writeLock) {
+            writeBuffered();
+        }
+    }
+
+    /**
+     * Write buffered entries while holding {@link #writeLock}.
+     *
+     * @return the position of log written.
+     */
+    private long writeBuffered() {
+        if (this.segment == null) {
+            return this.written;
+        }
+        ByteArrayOutputStream entries;
+        long end;
+        synchronized (this) {
+            if (this.buffer.size() == 0) {
+                return this.written;
+            }
+            // appending continues to a new buffer, while the entries are written
+            entries = this.buffer;
+            this.buffer = new ByteArrayOutputStream();
+            end = this.appended;
+        }
+        try {
+            entries.writeTo(Channels.newOutputStream(this.segment));
+            this.written = end;
+            if (this.segmentSize <= this.segment.size()) {
+                openSegment();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return end;
+    }
+
+    /**
+     * Sync entries appended until now, and start a new segment. The entries appended after this are in the new segment
+     * or later.
+     *
+     * @return the sequence of the new segment.
+     */
+    public long rotate() {
+        synchronized (this.writeLock) {
+            long end = writeBuffered();
+            // the current segment is forced when closed
+            openSegment();
+            this.durable = Math.max(this.durable, end);
+            return this.segmentSequence;
+        }
+    }
+
+    /**
+     * Delete segments before a segment, whose entries are covered by a snapshot.
+     *
+     * @param sequence the sequence of segment returned by {@link #rotate()}.
+     * @return the number of deleted segments.
+     */
+    public int deleteSegmentsBefore(long sequence) {
+        int deleted = 0;
+        try {
+            for (Path path : listSegments()) {
+                if (parseSequence(path) < sequence) {
+                    Files.delete(path);
+                    deleted++;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return deleted;
+    }
+
+    /**
+     * Get the paths of segments, in order.
+     *
+     * @return the paths of segments.
+     */
+    public List<Path> getSegments() {
+        try {
+            return listSegments();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sync all entries and close the current segment.
+     */
+    public void close() {
+        if (this.syncExecutor != null) {
+            // not interrupted, because interrupting a write closes the segment
+            this.syncExecutor.shutdown();
+            try {
+                this.syncExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this.writeLock) {
+            sync(Long.MAX_VALUE);
+            try {
+                if (this.segment != null) {
+                    this.segment.close();
+                    this.segment = null;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Consumer of replayed entries.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+
+        /**
+         * Apply an entry.
+         *
+         * @param digest the digest of record.
+         * @param record the record put. <code>null</code> if deleted.
+         */
+        void accept(byte[] digest, StoredRecord record);
+
+    }
+
+}
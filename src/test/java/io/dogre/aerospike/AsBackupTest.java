@@ -0,0 +1,164 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import io.netty.buffer.Unpooled;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AsBackupTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] digest(int i) {
+        return new Key("test", "set", i).digest;
+    }
+
+    private static String encodedDigest(int i) {
+        return Base64.getEncoder().encodeToString(digest(i));
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        String backup = "Version 3.1\n" +
+                "# namespace test\n" +
+                "# first-file\n" +
+                "* i test set index_name N 1 bin N\n" +
+                "* u L test.lua 13 return 1\nend\n\n" +
+                "+ k I 1\n" +
+                "+ n test\n" +
+                "+ d " + encodedDigest(1) + "\n" +
+                "+ s set\n" +
+                "+ g 3\n" +
+                "+ t 0\n" +
+                "+ b 9\n" +
+                "- I int -42\n" +
+                "- D double 1.5\n" +
+                "- S str 11 line1\nline2\n" +
+                "- S with\\ space 0 \n" +
+                "- B blob 8 AAEC//4=\n" +
+                "- L list 8 kgGiA2E=\n" +
+                "- M map 8 gaIDYQE=\n" +
+                "- G geo 37 {\"type\":\"Point\",\"coordinates\":[1, 2]}\n" +
+                "- N nil\n" +
+                "+ n test\n" +
+                "+ d " + encodedDigest(2) + "\n" +
+                "+ g 1\n" +
+                "+ t 1\n" +
+                "+ b 1\n" +
+                "- I int 2\n";
+        Path file = this.folder.newFile("test.asb").toPath();
+        Files.write(file, backup.getBytes(StandardCharsets.UTF_8));
+
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            // the second record is expired
+            assertThat(AsBackup.read(engine, file, 2)).isEqualTo(1);
+            StoredRecord record = engine.get(digest(1));
+            assertThat(record.getSetName()).isEqualTo("set");
+            assertThat(record.getGeneration()).isEqualTo(3);
+            assertThat(record.getVoidTime()).isZero();
+            assertThat(record.getBinCount()).isEqualTo(9);
+            assertThat(record.getBin("int").toLong()).isEqualTo(-42);
+            assertThat(record.getBin("double").getObject()).isEqualTo(1.5);
+            assertThat(record.getBin("str").toString()).isEqualTo("line1\nline2");
+            assertThat(record.getBin("with space").toString()).isEmpty();
+            assertThat((byte[]) record.getBin("blob").getObject()).containsExactly(0, 1, 2, -1, -2);
+            assertThat(record.getBin("list").getObject()).isEqualTo(Arrays.asList(1L, "a"));
+            assertThat(record.getBin("map").getObject()).isEqualTo(Collections.singletonMap("a", 1L));
+            assertThat(record.getBin("geo").toString()).isEqualTo("{\"type\":\"Point\",\"coordinates\":[1, 2]}");
+            assertThat(record.getBin("nil").getObject()).isNull();
+            assertThat(engine.get(digest(2))).isNull();
+        } finally {
+            engine.close();
+        }
+
+        Files.write(file, Arrays.asList("Version 3.1", "+ n test", "+ d " + encodedDigest(1), "+ b 1", "- X x 1"));
+        MemoryStorageEngine other = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            assertThatThrownBy(() -> AsBackup.read(other, file, 1)).hasMessageContaining("Unsupported bin type X");
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Path directory = this.folder.getRoot().toPath().resolve("backup");
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            for (int i = 0; i < 1000; i++) {
+                Map<String, Value> bins = new HashMap<>();
+                bins.put("id", Value.get(i));
+                bins.put("name with space", Value.get("name\n" + i));
+                bins.put("bytes", Value.get(new byte[] { (byte) i, 1, 2, 3 }));
+                bins.put("list", Value.get(Arrays.asList(i, "a")));
+                bins.put("geo", Value.getAsGeoJSON("{\"type\":\"Point\",\"coordinates\":[" + i % 180 + ", 0]}"));
+                engine.put(digest(i), i % 2 == 0 ? null : "set", bins, i % 10 == 0 ? 1000 : 0);
+            }
+            assertThat(AsBackup.write(engine, directory, 4)).isEqualTo(1000);
+        } finally {
+            engine.close();
+        }
+        assertThat(directory.resolve("test_00003.asb")).exists();
+
+        MemoryStorageEngine loaded = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            assertThat(AsBackup.read(loaded, directory, 4)).isEqualTo(1000);
+            assertThat(loaded.getStats().getObjects()).isEqualTo(1000);
+            StoredRecord record = loaded.get(digest(7));
+            assertThat(record.getSetName()).isEqualTo("set");
+            assertThat(record.getBin("id").toLong()).isEqualTo(7);
+            assertThat(record.getBin("name with space").toString()).isEqualTo("name\n7");
+            assertThat((byte[]) record.getBin("bytes").getObject()).containsExactly(7, 1, 2, 3);
+            assertThat(record.getBin("list").getObject()).isEqualTo(Arrays.asList(7L, "a"));
+            assertThat(record.getBin("geo").toString()).contains("[7, 0]");
+            assertThat(loaded.get(digest(10)).getVoidTime()).isNotZero();
+            assertThat(loaded.get(digest(10)).getSetName()).isNull();
+        } finally {
+            loaded.close();
+        }
+    }
+
+    @Test
+    public void testInfoCommands() {
+        Path directory = this.folder.getRoot().toPath().resolve("info");
+        ServiceHandlerImpl handler = new ServiceHandlerImpl("localhost:3000", "test");
+        try {
+            StorageEngine engine = handler.getStorageEngine("test", false);
+            for (int i = 0; i < 100; i++) {
+                engine.put(digest(i), "set", Collections.singletonMap("id", Value.get(i)), 0);
+            }
+            assertThat(handler.handleInfoCommand("backup-export:ns=test;directory=" + directory + ";files=2"))
+                    .isEqualTo("records=100");
+            engine.truncate(null);
+            assertThat(handler.handleInfoCommand("backup-import:ns=test;path=" + directory)).isEqualTo("records=100");
+            assertThat(engine.get(digest(99)).getBin("id").toLong()).isEqualTo(99);
+            assertThat(handler.handleInfoCommand("backup-import:ns=none;path=" + directory)).startsWith("FAIL:");
+            assertThat(handler.handleInfoCommand("backup-import:ns=test;path=" + directory.resolve("none.asb")))
+                    .startsWith("FAIL:");
+            // handled off the IO thread
+            assertThat(handler.isStreaming(Unpooled.wrappedBuffer(
+                    TestCommand.info("backup-export:ns=test;directory=" + directory)))).isTrue();
+            assertThat(handler.isStreaming(Unpooled.wrappedBuffer(
+                    TestCommand.info("backup-import:ns=test;path=" + directory)))).isTrue();
+        } finally {
+            handler.close();
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.command.Buffer;
+import com.aerospike.client.command.Command;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchGetTest {
+
+    /**
+     * Parse the response of batch get into the batch index and result code of each record.
+     */
+    private static List<int[]> parse(byte[] response) {
+        List<int[]> records = new ArrayList<>();
+        int offset = 0;
+        int end = 0;
+        while (offset < response.length) {
+            if (offset == end) {
+                // size header of the next message
+                end = offset + 8 + (int) (Buffer.bytesToLong(response, offset) & 0xffffffffffffL);
+                offset += 8;
+            }
+            int info3 = response[offset + 3];
+            if ((info3 & Command.INFO3_LAST) != 0) {
+                assertThat(offset + Command.MSG_REMAINING_HEADER_SIZE).isEqualTo(response.length);
+                break;
+            }
+            int resultCode = response[offset + 5];
+            int batchIndex = Buffer.bytesToInt(response, offset + 14);
+            int fieldCount = Buffer.bytesToShort(response, offset + 18);
+            int operationCount = Buffer.bytesToShort(response, offset + 20);
+            offset += Command.MSG_REMAINING_HEADER_SIZE;
+            for (int i = 0; i < fieldCount + operationCount; i++) {
+                offset += 4 + Buffer.bytesToInt(response, offset);
+            }
+            records.add(new int[] { batchIndex, resultCode, operationCount });
+        }
+        return records;
+    }
+
+    @Test
+    public void testParallel() {
+        ServiceHandlerImpl handler = new ServiceHandlerImpl("localhost:3000", "test");
+        try {
+            int count = 5000;
+            Key[] keys = new Key[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = new Key("test", "test", i);
+                if (i % 3 != 0) {
+                    handler.handleRequest(TestCommand.operate(null, keys[i], Operation.put(new Bin("a", i)),
+                            Operation.put(new Bin("b", i))));
+                }
+            }
+            byte[] request = TestCommand.batchGet(keys);
+            byte[] serial = handler.handleRequest(request);
+
+            // force parallel
+            handler.workerThreads = 4;
+            handler.batchNanosPerKey = ServiceHandlerImpl.BATCH_PARALLEL_NANOS;
+            byte[] parallel = handler.handleRequest(request);
+            assertThat(parallel).isEqualTo(serial);
+            // streamed in several messages
+            assertThat(parallel.length).isGreaterThan(ServiceHandlerImpl.MESSAGE_LENGTH);
+            assertThat(handler.isStreaming(Unpooled.wrappedBuffer(request))).isTrue();
+
+            List<int[]> records = parse(parallel);
+            assertThat(records).hasSize(count);
+            for (int i = 0; i < count; i++) {
+                assertThat(records.get(i)[0]).isEqualTo(i);
+                assertThat(records.get(i)[1]).isEqualTo(i % 3 != 0 ? ResultCode.OK : ResultCode.KEY_NOT_FOUND_ERROR);
+            }
+
+            // selected bins
+            handler.batchNanosPerKey = ServiceHandlerImpl.BATCH_PARALLEL_NANOS;
+            records = parse(handler.handleRequest(TestCommand.batchGet(keys, "a")));
+            assertThat(records.get(1)[2]).isEqualTo(1);
+        } finally {
+            handler.close();
+        }
+    }
+
+    @Test
+    public void testSerialNotStreamed() {
+        ServiceHandlerImpl handler = new ServiceHandlerImpl("localhost:3000", "test");
+        try {
+            Key[] keys = new Key[ServiceHandlerImpl.BATCH_WINDOW];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = new Key("test", "test", i);
+                handler.handleRequest(TestCommand.operate(null, keys[i], Operation.put(new Bin("a", i))));
+            }
+            byte[] request = TestCommand.batchGet(keys);
+            assertThat(handler.isStreaming(Unpooled.wrappedBuffer(request))).isFalse();
+
+            // handled by the IO thread, so not resolved by workers even if it takes long
+            handler.workerThreads = 4;
+            handler.batchNanosPerKey = ServiceHandlerImpl.BATCH_PARALLEL_NANOS;
+            handler.workerExecutor.shutdown();
+            List<int[]> records = parse(handler.handleRequest(request));
+            assertThat(records).hasSize(keys.length);
+            assertThat(records.get(keys.length - 1)[1]).isEqualTo(ResultCode.OK);
+        } finally {
+            handler.close();
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Operation.Type;
+import com.aerospike.client.Value;
+import com.aerospike.client.command.Buffer;
+import com.aerospike.client.command.ParticleType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ByteReaderTest {
+
+    @Test
+    public void testOperations() {
+        Key key = new Key("test", "set", 1);
+        ByteReader reader = new ByteReader(TestCommand.operate(null, key, Operation.put(new Bin("name", "value")),
+                Operation.add(new Bin("count", 1)), Operation.get("name")));
+        reader.readLong();
+        Header header = reader.readHeader();
+        reader.readKeyFields(header.getFieldCount());
+        reader.readOperations(header.getOperationCount());
+        assertThat(reader.getOffset()).isEqualTo(reader.getLength());
+        assertThat(reader.getNamespace()).isEqualTo("test");
+        assertThat(reader.getSetName()).isEqualTo("set");
+        assertThat(reader.getDigest()).isEqualTo(key.digest);
+
+        for (int pass = 0; pass < 2; pass++) {
+            reader.rewindOperations();
+            assertThat(reader.nextOperation()).isTrue();
+            assertThat(reader.getOperationType()).isEqualTo(Type.WRITE);
+            assertThat(reader.getBinName()).isEqualTo("name");
+            assertThat(reader.getBinNameBytes()).isEqualTo(Buffer.stringToUtf8("name"));
+            assertThat(reader.getParticleType()).isEqualTo(ParticleType.STRING);
+            assertThat(reader.getValue().toString()).isEqualTo("value");
+            assertThat(reader.nextOperation()).isTrue();
+            assertThat(reader.getOperation().type).isEqualTo(Type.ADD);
+            assertThat(reader.getOperation().value.toLong()).isEqualTo(1);
+            assertThat(reader.nextOperation()).isTrue();
+            assertThat(reader.getOperationType()).isEqualTo(Type.READ);
+            assertThat(reader.getValue()).isNull();
+            assertThat(reader.nextOperation()).isFalse();
+        }
+        // proto, message header and the namespace, set and digest fields precede the operations
+        assertThat(reader.getOperationsLength()).isEqualTo(reader.getLength() - 8 - 22 - 3 * 5 - 4 - 3 - 20);
+    }
+
+    @Test
+    public void testMerge() {
+        Map<String, Value> bins = new LinkedHashMap<>();
+        bins.put("a", Value.get(1));
+        bins.put("b", Value.get(2));
+        bins.put("c", Value.get(3));
+        StoredRecord current = StoredRecord.of("set", bins, 1, 0);
+
+        ByteReader reader = new ByteReader(TestCommand.operate(null, new Key("test", "set", 1),
+                Operation.put(new Bin("b", "x")), Operation.put(new Bin("d", 4)), Operation.put(Bin.asNull("c")),
+                Operation.put(new Bin("d", 5)), Operation.put(Bin.asNull("e"))));
+        reader.readLong();
+        Header header = reader.readHeader();
+        reader.readKeyFields(header.getFieldCount());
+        reader.readOperations(header.getOperationCount());
+        byte[] operations = reader.getOperationBytes();
+        int length = reader.getOperationsLength();
+
+        // same as putting to the map of bins in order
+        StoredRecord merged = StoredRecord.merge(current, "set", operations, 0, length, 2, 0);
+        assertThat(merged.getBinCount()).isEqualTo(3);
+        assertThat(merged.getBins().keySet()).containsExactly("a", "b", "d");
+        assertThat(merged.getBin("b").toString()).isEqualTo("x");
+        assertThat(merged.getBin("d").toLong()).isEqualTo(5);
+        assertThat(merged.getWireBins()).isEqualTo(StoredRecord.of("set", merged.getBins(), 2, 0).getWireBins());
+
+        StoredRecord replaced = StoredRecord.merge(null, "set", operations, 0, length, 2, 0);
+        assertThat(replaced.getBins().keySet()).containsExactly("b", "d");
+
+        // engines without their own merge decode the merged bins
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            byte[] digest = new Key("test", "set", 1).digest;
+            engine.put(digest, "set", bins, 0);
+            engine.operate(digest, true, entry -> entry.put("set", operations, 0, length, false, 0));
+            assertThat(engine.get(digest).getBins().keySet()).containsExactly("a", "b", "d");
+            assertThat(engine.get(digest).getGeneration()).isEqualTo(2);
+            List<Map<String, Value>> decoded = new ArrayList<>();
+            StorageEngine.RecordEntry decoding = new StorageEngine.RecordEntry() {
+
+                @Override
+                public StoredRecord getRecord() {
+                    return current;
+                }
+
+                @Override
+                public boolean put(String setName, Map<String, Value> bins, int expiration) {
+                    decoded.add(bins);
+                    return true;
+                }
+
+                @Override
+                public boolean delete() {
+                    return false;
+                }
+
+            };
+            assertThat(decoding.put("set", operations, 0, length, true, 0)).isTrue();
+            assertThat(decoded.get(0).keySet()).containsExactly("b", "d");
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testNoAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        ByteBuf[] buffers = {
+                Unpooled.wrappedBuffer(TestCommand.operate(null, new Key("test", "set", 1), Operation.get("name"))),
+                Unpooled.wrappedBuffer(TestCommand.operate(null, new Key("test", "set", 2),
+                        Operation.put(new Bin("name", "value")), Operation.put(new Bin("count", 1)))) };
+        ByteReader reader = new ByteReader();
+        long[] sum = new long[1];
+
+        // names are cached and buffers are reused after the first requests
+        for (int i = 0; i < 20000; i++) {
+            read(reader, buffers[i % 2], sum);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++) {
+            read(reader, buffers[i % 2], sum);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertThat(sum[0]).isNotZero();
+        assertThat(allocated).isLessThan(1024);
+    }
+
+    private static void read(ByteReader reader, ByteBuf buffer, long[] sum) {
+        reader.wrap(buffer);
+        reader.readLong();
+        Header header = reader.readHeader();
+        reader.readKeyFields(header.getFieldCount());
+        reader.readOperations(header.getOperationCount());
+        sum[0] += reader.getNamespace().length() + reader.getSetName().length() + reader.getDigest()[0];
+        while (reader.nextOperation()) {
+            sum[0] += reader.getOperationType().protocolType + reader.getBinName().length() +
+                    reader.getBinNameBytes().length + reader.getParticleType();
+        }
+        sum[0] += reader.getOperationBytes()[0] + reader.getOperationsLength();
+        reader.clear();
+    }
+
+}
@@ -0,0 +1,132 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Key;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.Value;
+import com.aerospike.client.command.Buffer;
+import com.aerospike.client.command.Command;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ByteWriterTest {
+
+    private static StoredRecord record() {
+        Map<String, Value> bins = new LinkedHashMap<>();
+        bins.put("a", Value.get(1));
+        bins.put("b", Value.get("value"));
+        bins.put("c", Value.get(new byte[100]));
+        return StoredRecord.of("set", bins, 3, 0);
+    }
+
+    @Test
+    public void testRecord() {
+        StoredRecord record = record();
+        byte[] digest = new Key("test", "set", 1).digest;
+        ByteWriter writer = new ByteWriter(3, 16);
+        writer.writeRecord(7, "test", "set", digest, record, new HashSet<>(Arrays.asList("c", "x", "a")), false);
+        byte[] bytes = writer.toBytes();
+
+        // size header is back-patched
+        assertThat(bytes.length).isEqualTo(8 + writer.getLength());
+        assertThat(Buffer.bytesToLong(bytes, 0)).isEqualTo((2L << 56) | (3L << 48) | writer.getLength());
+
+        ByteReader reader = new ByteReader(bytes);
+        reader.readLong();
+        Header header = reader.readHeader();
+        assertThat(header.getResultCode()).isEqualTo(ResultCode.OK);
+        assertThat(header.getGeneration()).isEqualTo(3);
+        assertThat(header.getTtl()).isEqualTo(7);
+        assertThat(header.getFieldCount()).isEqualTo(3);
+        // operation count is back-patched after bins are found
+        assertThat(header.getOperationCount()).isEqualTo(2);
+        reader.readKeyFields(header.getFieldCount());
+        assertThat(reader.getNamespace()).isEqualTo("test");
+        assertThat(reader.getSetName()).isEqualTo("set");
+        assertThat(reader.getDigest()).isEqualTo(digest);
+        reader.readOperations(header.getOperationCount());
+        assertThat(reader.getOffset()).isEqualTo(bytes.length);
+        reader.rewindOperations();
+        int count = 0;
+        while (reader.nextOperation()) {
+            assertThat(reader.getValue()).isEqualTo(record.getBin(reader.getBinName()));
+            count++;
+        }
+        assertThat(count).isEqualTo(2);
+    }
+
+    @Test
+    public void testWriteAllAndReset() {
+        StoredRecord record = record();
+        ByteWriter other = new ByteWriter(3);
+        other.writeHeader(new Header());
+        int offset = other.getLength();
+        other.writeBins(record);
+
+        ByteWriter writer = new ByteWriter(3, 16);
+        writer.writeAll(other, offset, other.getLength() - offset);
+        assertThat(Arrays.copyOfRange(writer.toBytes(), 8, 8 + writer.getLength())).isEqualTo(record.getWireBins());
+
+        // reserved header is written later, and truncated bytes are discarded
+        writer.reset(1);
+        int headerOffset = writer.reserve(Command.MSG_REMAINING_HEADER_SIZE);
+        writer.writeInfo("name", Buffer.stringToUtf8("value"));
+        writer.truncate(headerOffset + Command.MSG_REMAINING_HEADER_SIZE);
+        Header header = new Header();
+        header.setResultCode(ResultCode.KEY_NOT_FOUND_ERROR);
+        writer.writeHeader(headerOffset, header);
+        ByteBuf buffer = Unpooled.buffer();
+        writer.writeTo(buffer);
+        assertThat(buffer.readableBytes()).isEqualTo(8 + Command.MSG_REMAINING_HEADER_SIZE);
+        assertThat(buffer.getLong(0)).isEqualTo((2L << 56) | (1L << 48) | Command.MSG_REMAINING_HEADER_SIZE);
+        assertThat(buffer.getByte(8 + 5)).isEqualTo((byte) ResultCode.KEY_NOT_FOUND_ERROR);
+    }
+
+    @Test
+    public void testNoAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        StoredRecord record = record();
+        byte[] digest = new Key("test", "set", 1).digest;
+        ByteWriter writer = new ByteWriter(3);
+        ByteBuf buffer = Unpooled.buffer(4096);
+        long[] sum = new long[1];
+
+        for (int i = 0; i < 20000; i++) {
+            write(writer, digest, record, buffer, sum);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++) {
+            write(writer, digest, record, buffer, sum);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        assertThat(sum[0]).isPositive();
+        // only the iterator of bin names is allocated for selected bins
+        assertThat(allocated).as("allocated %d", allocated).isLessThan(10000 * 64 + 1024);
+    }
+
+    private static void write(ByteWriter writer, byte[] digest, StoredRecord record, ByteBuf buffer, long[] sum) {
+        writer.reset(3);
+        writer.writeRecord(0, "test", "set", digest, record, null, false);
+        writer.writeRecord(1, "test", "set", digest, record, Collections.singleton("b"), false);
+        buffer.clear();
+        writer.writeTo(buffer);
+        sum[0] += buffer.readableBytes();
+    }
+
+}
@@ -1,15 +1,37 @@
 package io.dogre.aerospike;
 
 import com.aerospike.client.*;
+import com.aerospike.client.cdt.ListOperation;
+import com.aerospike.client.cdt.ListOrder;
+import com.aerospike.client.cdt.ListPolicy;
+import com.aerospike.client.cdt.ListReturnType;
+import com.aerospike.client.cdt.ListWriteFlags;
+import com.aerospike.client.cdt.MapOperation;
+import com.aerospike.client.cdt.MapOrder;
+import com.aerospike.client.cdt.MapPolicy;
+import com.aerospike.client.cdt.MapReturnType;
+import com.aerospike.client.cdt.MapWriteFlags;
 import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.GenerationPolicy;
 import com.aerospike.client.policy.Policy;
 import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.client.query.Filter;
+import com.aerospike.client.query.IndexType;
+import com.aerospike.client.query.RecordSet;
+import com.aerospike.client.query.Statement;
 import com.aerospike.client.policy.WritePolicy;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.ThrowableAssert.catchThrowable;
@@ -25,7 +47,13 @@ public class CommandTest {
 
     private static Thread thread;
 
-    private static void runAerospikeServer(String host, int port, String... namespaces) {
+    /**
+     * The clock of namespace <code>expiring</code>. Other namespaces keep the system clock, because clients measure
+     * time to live by it.
+     */
+    private static TestClock clock = new TestClock();
+
+    private static void runAerospikeServer(String host, int port, NamespaceConfig... namespaces) {
         ServiceHandler serviceHandler = new ServiceHandlerImpl(host + ":" + port, namespaces);
         AerospikeServer server = new NettyAerospikeServer(1, 10);
         thread = new Thread() {
@@ -56,7 +84,9 @@ public class CommandTest {
         String namespace = "test";
         String set = "test";
 
-        runAerospikeServer(host, port, namespace);
+        NamespaceConfig expiring = new NamespaceConfig("expiring");
+        expiring.setClock(clock);
+        runAerospikeServer(host, port, new NamespaceConfig(namespace), expiring);
 
         client = new AerospikeClient(host, port);
         key = new Key(namespace, set, "test");
@@ -435,6 +465,37 @@ public class CommandTest {
         client.delete(null, key);
     }
 
+    @Test
+    public void testGetValueTypes() {
+        // initialize : delete record
+        client.delete(null, key);
+
+        List<Object> list = Arrays.asList(1L, "a", 2.5);
+        Map<Object, Object> map = new HashMap<>();
+        map.put("a", 1L);
+        map.put("b", "c");
+        client.put(null, key, new Bin("double", 1.5), new Bin("bytes", new byte[] { 1, 2, 3 }),
+                new Bin("list", list), new Bin("map", map));
+
+        // get all bins
+        Record record = client.get(null, key);
+        assertThat(record.bins).hasSize(4);
+        assertThat(record.getDouble("double")).isEqualTo(1.5);
+        assertThat((byte[]) record.getValue("bytes")).containsExactly(1, 2, 3);
+        assertThat(record.getList("list")).isEqualTo(list);
+        assertThat(record.getMap("map")).isEqualTo(map);
+
+        // get bins with bin names, after modifying other bin
+        client.put(null, key, new Bin("double", 2.5));
+        record = client.get(null, key, "double", "list");
+        assertThat(record.bins).hasSize(2);
+        assertThat(record.getDouble("double")).isEqualTo(2.5);
+        assertThat(record.getList("list")).isEqualTo(list);
+
+        // finalize : delete record
+        client.delete(null, key);
+    }
+
     @Test
     public void testGetHeader() {
         Policy policy = new Policy();
@@ -634,4 +695,535 @@ public class CommandTest {
         client.delete(null, key);
     }
 
+    @Test
+    public void testTruncate() {
+        // initialize : put records
+        for (Key key : keys) {
+            client.put(null, key, new Bin("name", "test"));
+        }
+        Key otherSetKey = new Key(key.namespace, "other", "test");
+        client.put(null, otherSetKey, new Bin("name", "test"));
+
+        // truncate set
+        client.truncate(null, key.namespace, key.setName, null);
+        for (Key key : keys) {
+            assertThat(client.exists(null, key)).isFalse();
+        }
+        assertThat(client.exists(null, otherSetKey)).isTrue();
+
+        // truncate namespace
+        client.truncate(null, key.namespace, null, null);
+        assertThat(client.exists(null, otherSetKey)).isFalse();
+    }
+
+    @Test
+    public void testScan() {
+        // initialize : put records, enough to be streamed in several messages
+        String set = "scan";
+        client.truncate(null, key.namespace, set, null);
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'a');
+        String value = new String(chars);
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            client.put(null, new Key(key.namespace, set, i), new Bin("index", i), new Bin("value", value));
+        }
+        client.put(null, new Key(key.namespace, "other", "scan"), new Bin("index", -1));
+
+        // all bins
+        Map<Long, Record> records = new ConcurrentHashMap<>();
+        client.scanAll(null, key.namespace, set, (scanKey, record) -> {
+            assertThat(scanKey.setName).isEqualTo(set);
+            records.put(record.getLong("index"), record);
+        });
+        assertThat(records).hasSize(count);
+        assertThat(records.get(0L).getString("value")).isEqualTo(value);
+        assertThat(records.get(0L).generation).isEqualTo(1);
+
+        // selected bins
+        records.clear();
+        client.scanAll(null, key.namespace, set, (scanKey, record) -> records.put(record.getLong("index"), record),
+                "index");
+        assertThat(records).hasSize(count);
+        assertThat(records.get(0L).bins).containsOnlyKeys("index");
+
+        // no bin data
+        ScanPolicy policy = new ScanPolicy();
+        policy.includeBinData = false;
+        List<Key> keys = new CopyOnWriteArrayList<>();
+        client.scanAll(policy, key.namespace, set, (scanKey, record) -> {
+            assertThat(record.bins).isNull();
+            keys.add(scanKey);
+        });
+        assertThat(keys).hasSize(count);
+
+        // percent
+        policy = new ScanPolicy();
+        policy.scanPercent = 50;
+        records.clear();
+        client.scanAll(policy, key.namespace, set, (scanKey, record) -> records.put(record.getLong("index"), record));
+        assertThat(records.size()).isBetween(count * 40 / 100, count * 60 / 100);
+
+        // all sets, and not existing namespace
+        records.clear();
+        client.scanAll(null, key.namespace, null, (scanKey, record) -> records.put(record.getLong("index"), record),
+                "index");
+        assertThat(records).containsKey(-1L);
+        client.scanAll(null, "none", null, (scanKey, record) -> records.clear());
+        assertThat(records).isNotEmpty();
+
+        client.truncate(null, key.namespace, set, null);
+    }
+
+    @Test
+    public void testQuery() {
+        // initialize : put records and create indexes
+        String set = "query";
+        client.truncate(null, key.namespace, set, null);
+        for (int i = 0; i < 1000; i++) {
+            client.put(null, new Key(key.namespace, set, i), new Bin("age", i), new Bin("name", "name" + (i % 10)));
+        }
+        client.createIndex(null, key.namespace, set, "query_age", "age", IndexType.NUMERIC).waitTillComplete();
+        client.createIndex(null, key.namespace, set, "query_name", "name", IndexType.STRING).waitTillComplete();
+        Throwable thrown = catchThrowable(() -> {
+            client.createIndex(null, key.namespace, set, "query_age", "age", IndexType.NUMERIC);
+        });
+        assertThat(thrown).isInstanceOf(AerospikeException.class)
+                .hasFieldOrPropertyWithValue("resultCode", ResultCode.INDEX_ALREADY_EXISTS);
+
+        // range
+        Statement statement = new Statement();
+        statement.setNamespace(key.namespace);
+        statement.setSetName(set);
+        statement.setFilter(Filter.range("age", 100, 199));
+        List<Record> records = new ArrayList<>();
+        try (RecordSet recordSet = client.query(null, statement)) {
+            while (recordSet.next()) {
+                records.add(recordSet.getRecord());
+            }
+        }
+        assertThat(records).hasSize(100);
+        assertThat(records.get(0).getLong("age")).isBetween(100L, 199L);
+
+        // writes update indexes
+        client.put(null, new Key(key.namespace, set, 100), new Bin("age", 5000));
+        client.delete(null, new Key(key.namespace, set, 101));
+        records.clear();
+        try (RecordSet recordSet = client.query(null, statement)) {
+            while (recordSet.next()) {
+                records.add(recordSet.getRecord());
+            }
+        }
+        assertThat(records).hasSize(98);
+
+        // equality with selected bins
+        statement = new Statement();
+        statement.setNamespace(key.namespace);
+        statement.setSetName(set);
+        statement.setBinNames("name");
+        statement.setFilter(Filter.equal("name", "name3"));
+        records.clear();
+        try (RecordSet recordSet = client.query(null, statement)) {
+            while (recordSet.next()) {
+                records.add(recordSet.getRecord());
+            }
+        }
+        assertThat(records).hasSize(100);
+        assertThat(records.get(0).bins).containsOnlyKeys("name");
+
+        // dropped index
+        client.dropIndex(null, key.namespace, set, "query_name").waitTillComplete();
+        Statement dropped = statement;
+        thrown = catchThrowable(() -> {
+            try (RecordSet recordSet = client.query(null, dropped)) {
+                recordSet.next();
+            }
+        });
+        assertThat(thrown).isInstanceOf(AerospikeException.class);
+
+        client.dropIndex(null, key.namespace, set, "query_age");
+        client.truncate(null, key.namespace, set, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> getList(Record record, String name) {
+        return (List<Object>) record.getValue(name);
+    }
+
+    @Test
+    public void testGeoQuery() {
+        String set = "geo";
+        client.truncate(null, key.namespace, set, null);
+        for (int i = 0; i < 100; i++) {
+            // points on a line to the east, 0.01 degree apart
+            String point = String.format("{\"type\": \"Point\", \"coordinates\": [%.2f, 0.0]}", i * 0.01);
+            client.put(null, new Key(key.namespace, set, i), new Bin("id", i),
+                    new Bin("location", Value.getAsGeoJSON(point)));
+        }
+        client.put(null, new Key(key.namespace, set, "area"), new Bin("id", -1), new Bin("location",
+                Value.getAsGeoJSON("{\"type\": \"Polygon\", \"coordinates\": " +
+                        "[[[0.095, -0.1], [0.195, -0.1], [0.195, 0.1], [0.095, 0.1], [0.095, -0.1]]]}")));
+        client.createIndex(null, key.namespace, set, "geo_location", "location", IndexType.GEO2DSPHERE)
+                .waitTillComplete();
+
+        Statement statement = new Statement();
+        statement.setNamespace(key.namespace);
+        statement.setSetName(set);
+        statement.setFilter(Filter.geoWithinRegion("location", "{\"type\": \"Polygon\", \"coordinates\": " +
+                "[[[0.095, -0.1], [0.195, -0.1], [0.195, 0.1], [0.095, 0.1], [0.095, -0.1]]]}"));
+        assertThat(queryIds(statement)).containsExactlyInAnyOrder(10L, 11L, 12L, 13L, 14L, 15L, 16L, 17L, 18L, 19L);
+
+        // 0.01 degree is about 1112 meters on the equator
+        statement.setFilter(Filter.geoWithinRadius("location", 0.5, 0.0, 2500));
+        assertThat(queryIds(statement)).containsExactlyInAnyOrder(48L, 49L, 50L, 51L, 52L);
+
+        statement.setFilter(Filter.geoContains("location", "{\"type\": \"Point\", \"coordinates\": [0.15, 0.05]}"));
+        assertThat(queryIds(statement)).containsExactly(-1L);
+
+        client.dropIndex(null, key.namespace, set, "geo_location");
+        client.truncate(null, key.namespace, set, null);
+    }
+
+    private static List<Long> queryIds(Statement statement) {
+        List<Long> ids = new ArrayList<>();
+        try (RecordSet recordSet = client.query(null, statement)) {
+            while (recordSet.next()) {
+                ids.add(recordSet.getRecord().getLong("id"));
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void testListOperations() {
+        Key listKey = new Key(key.namespace, "list", "timeline");
+        client.delete(null, listKey);
+
+        // append creates the list, and returns the size
+        Record record = client.operate(null, listKey, ListOperation.append("events", Value.get(1)),
+                ListOperation.append("events", Value.get("two")),
+                ListOperation.appendItems("events", Arrays.asList(Value.get(3), Value.get(4.5))));
+        assertThat(getList(record, "events")).containsExactly(1L, 2L, 4L);
+        assertThat(getList(client.get(null, listKey), "events")).containsExactly(1L, "two", 3L, 4.5);
+
+        record = client.operate(null, listKey, ListOperation.insert("events", 1, Value.get("one")),
+                ListOperation.size("events"), ListOperation.get("events", -1),
+                ListOperation.getRange("events", 1, 2));
+        assertThat(getList(record, "events")).containsExactly(5L, 5L, 4.5, Arrays.asList("one", "two"));
+
+        record = client.operate(null, listKey, ListOperation.increment("events", 3, Value.get(10)),
+                ListOperation.remove("events", 0), ListOperation.pop("events", -1),
+                ListOperation.getByIndexRange("events", 0, 2, ListReturnType.VALUE));
+        assertThat(getList(record, "events")).containsExactly(13L, 1L, 4.5, Arrays.asList("one", "two"));
+        assertThat(getList(client.get(null, listKey), "events")).containsExactly("one", "two", 13L);
+
+        // insert beyond the end pads nils
+        client.operate(null, listKey, ListOperation.insert("events", 4, Value.get("five")));
+        assertThat(getList(client.get(null, listKey), "events")).containsExactly("one", "two", 13L, null, "five");
+
+        record = client.operate(null, listKey,
+                ListOperation.removeByIndexRange("events", 3, ListReturnType.COUNT),
+                ListOperation.getByIndex("events", 0, ListReturnType.REVERSE_INDEX),
+                ListOperation.getByRank("events", 0, ListReturnType.VALUE));
+        assertThat(getList(record, "events")).containsExactly(2L, 2L, 13L);
+
+        // index out of range
+        Throwable thrown = catchThrowable(() -> client.operate(null, listKey, ListOperation.get("events", 10)));
+        assertThat(thrown).isInstanceOf(AerospikeException.class);
+        assertThat(((AerospikeException) thrown).getResultCode()).isEqualTo(ListOperator.OP_NOT_APPLICABLE);
+
+        // not a list
+        client.put(null, listKey, new Bin("name", "timeline"));
+        thrown = catchThrowable(() -> client.operate(null, listKey, ListOperation.append("name", Value.get(1))));
+        assertThat(((AerospikeException) thrown).getResultCode()).isEqualTo(ResultCode.BIN_TYPE_ERROR);
+
+        // ordered list
+        ListPolicy ordered = new ListPolicy(ListOrder.ORDERED, ListWriteFlags.ADD_UNIQUE | ListWriteFlags.NO_FAIL);
+        for (int value : new int[] { 5, 1, 4, 1, 3 }) {
+            client.operate(null, listKey, ListOperation.append(ordered, "scores", Value.get(value)));
+        }
+        assertThat(getList(client.get(null, listKey), "scores")).containsExactly(1L, 3L, 4L, 5L);
+        record = client.operate(null, listKey,
+                ListOperation.getByValueRange("scores", Value.get(3), Value.get(5), ListReturnType.VALUE),
+                ListOperation.removeByValue("scores", Value.get(4), ListReturnType.INDEX));
+        assertThat(getList(record, "scores")).containsExactly(Arrays.asList(3L, 4L), Arrays.asList(2L));
+        thrown = catchThrowable(() -> client.operate(null, listKey, ListOperation.insert("scores", 0, Value.get(0))));
+        assertThat(((AerospikeException) thrown).getResultCode()).isEqualTo(ListOperator.OP_NOT_APPLICABLE);
+
+        // set order of existing list sorts it
+        client.put(null, listKey, new Bin("unsorted", Arrays.asList(3, 1, 2)));
+        client.operate(null, listKey, ListOperation.setOrder("unsorted", ListOrder.ORDERED));
+        assertThat(getList(client.get(null, listKey), "unsorted")).containsExactly(1L, 2L, 3L);
+
+        // read of a missing bin has no result
+        record = client.operate(null, listKey, ListOperation.size("missing"));
+        assertThat(record.getValue("missing")).isNull();
+
+        client.delete(null, listKey);
+    }
+
+    @Test
+    public void testMapOperations() {
+        Key mapKey = new Key(key.namespace, "map", "leaderboard");
+        client.delete(null, mapKey);
+
+        // put items creates the map, and returns the size
+        MapPolicy ordered = new MapPolicy(MapOrder.KEY_ORDERED, MapWriteFlags.DEFAULT);
+        Map<Value, Value> scores = new HashMap<>();
+        scores.put(Value.get("alice"), Value.get(30));
+        scores.put(Value.get("bob"), Value.get(10));
+        scores.put(Value.get("carol"), Value.get(20));
+        scores.put(Value.get("dave"), Value.get(40));
+        Record record = client.operate(null, mapKey, MapOperation.putItems(ordered, "scores", scores));
+        assertThat(record.getLong("scores")).isEqualTo(4);
+
+        // results are in the order of operations
+        record = client.operate(null, mapKey, MapOperation.increment(ordered, "scores", Value.get("bob"), Value.get(25)),
+                MapOperation.getByRankRange("scores", -3, 3, MapReturnType.KEY),
+                MapOperation.getByRank("scores", -1, MapReturnType.KEY),
+                MapOperation.getByKey("scores", Value.get("carol"), MapReturnType.RANK),
+                MapOperation.getByValueRange("scores", Value.get(20), Value.get(35), MapReturnType.KEY),
+                MapOperation.getByKeyRange("scores", Value.get("b"), Value.get("d"), MapReturnType.VALUE),
+                MapOperation.getByKey("scores", Value.get("bob"), MapReturnType.KEY | MapReturnType.INVERTED));
+        assertThat(getList(record, "scores")).containsExactly(35L, Arrays.asList("alice", "bob", "dave"), "dave", 0L,
+                Arrays.asList("carol", "alice"), Arrays.asList(35L, 20L), Arrays.asList("alice", "carol", "dave"));
+
+        // remove by rank range, and no result of put is kept in its place
+        record = client.operate(null, mapKey,
+                MapOperation.removeByRankRange("scores", 0, 2, MapReturnType.KEY_VALUE),
+                MapOperation.put(ordered, "scores", Value.get("erin"), Value.get(50)),
+                MapOperation.removeByKey("scores", Value.get("erin"), MapReturnType.NONE),
+                MapOperation.size("scores"));
+        Map<Object, Object> removed = new HashMap<>();
+        removed.put("carol", 20L);
+        removed.put("alice", 30L);
+        assertThat(getList(record, "scores")).containsExactly(removed, 3L, null, 2L);
+        Map<Object, Object> expected = new HashMap<>();
+        expected.put("bob", 35L);
+        expected.put("dave", 40L);
+        assertThat(client.get(null, mapKey).getMap("scores")).isEqualTo(expected);
+
+        // write flags
+        Throwable thrown = catchThrowable(() -> client.operate(null, mapKey,
+                MapOperation.put(new MapPolicy(MapOrder.KEY_ORDERED, MapWriteFlags.CREATE_ONLY), "scores",
+                        Value.get("bob"), Value.get(0))));
+        assertThat(((AerospikeException) thrown).getResultCode()).isEqualTo(ResultCode.ELEMENT_EXISTS);
+        client.operate(null, mapKey, MapOperation.put(
+                new MapPolicy(MapOrder.KEY_ORDERED, MapWriteFlags.UPDATE_ONLY | MapWriteFlags.NO_FAIL), "scores",
+                Value.get("frank"), Value.get(0)));
+        assertThat(client.get(null, mapKey).getMap("scores")).isEqualTo(expected);
+
+        // map put by a bin
+        Map<String, Integer> plain = new HashMap<>();
+        plain.put("y", 2);
+        plain.put("x", 1);
+        client.put(null, mapKey, new Bin("plain", plain));
+        record = client.operate(null, mapKey, MapOperation.getByIndex("plain", 0, MapReturnType.KEY));
+        assertThat(record.getString("plain")).isEqualTo("x");
+
+        // not a map
+        client.put(null, mapKey, new Bin("name", "leaderboard"));
+        thrown = catchThrowable(() -> client.operate(null, mapKey,
+                MapOperation.put(ordered, "name", Value.get("a"), Value.get(1))));
+        assertThat(((AerospikeException) thrown).getResultCode()).isEqualTo(ResultCode.BIN_TYPE_ERROR);
+
+        client.delete(null, mapKey);
+    }
+
+    @Test
+    public void testUdf() {
+        Key udfKey = new Key(key.namespace, "udf", "account");
+        client.delete(null, udfKey);
+
+        String code = "local function total(rec)\n" +
+                "  return rec['checking'] + rec['savings']\n" +
+                "end\n" +
+                "function open(rec, amount)\n" +
+                "  if aerospike:exists(rec) then return 1 end\n" +
+                "  rec['checking'] = amount\n" +
+                "  rec['savings'] = 0\n" +
+                "  aerospike:create(rec)\n" +
+                "  return 0\n" +
+                "end\n" +
+                "function transfer(rec, amount)\n" +
+                "  rec['checking'] = rec['checking'] - amount\n" +
+                "  rec['savings'] = rec['savings'] + amount\n" +
+                "  if rec['checking'] < 0 then error('insufficient funds') end\n" +
+                "  aerospike:update(rec)\n" +
+                "  return total(rec)\n" +
+                "end\n";
+        client.registerUdfString(null, code, "bank.lua", Language.LUA).waitTillComplete(10, 1000);
+
+        assertThat(client.execute(null, udfKey, "bank", "open", Value.get(100))).isEqualTo(0L);
+        assertThat(client.execute(null, udfKey, "bank", "open", Value.get(100))).isEqualTo(1L);
+        Record record = client.get(null, udfKey);
+        assertThat(record.getLong("checking")).isEqualTo(100);
+        assertThat(record.getLong("savings")).isEqualTo(0);
+        assertThat(record.generation).isEqualTo(1);
+
+        // bins are changed together
+        assertThat(client.execute(null, udfKey, "bank", "transfer", Value.get(30))).isEqualTo(100L);
+        record = client.get(null, udfKey);
+        assertThat(record.getLong("checking")).isEqualTo(70);
+        assertThat(record.getLong("savings")).isEqualTo(30);
+
+        // an error changes nothing
+        Throwable thrown = catchThrowable(() -> client.execute(null, udfKey, "bank", "transfer", Value.get(80)));
+        assertThat(((AerospikeException) thrown).getResultCode()).isEqualTo(ResultCode.UDF_BAD_RESPONSE);
+        assertThat(thrown.getMessage()).contains("insufficient funds");
+        record = client.get(null, udfKey);
+        assertThat(record.getLong("checking")).isEqualTo(70);
+        assertThat(record.generation).isEqualTo(2);
+
+        thrown = catchThrowable(() -> client.execute(null, udfKey, "bank", "close"));
+        assertThat(((AerospikeException) thrown).getResultCode()).isEqualTo(ResultCode.UDF_BAD_RESPONSE);
+
+        // not compiled
+        thrown = catchThrowable(() -> client.registerUdfString(null, "function (", "broken.lua", Language.LUA));
+        assertThat(thrown).isInstanceOf(AerospikeException.class);
+
+        // registered again
+        client.registerUdfString(null, code.replace("return total(rec)", "return 0"), "bank.lua", Language.LUA)
+                .waitTillComplete(10, 1000);
+        assertThat(client.execute(null, udfKey, "bank", "transfer", Value.get(10))).isEqualTo(0L);
+
+        client.removeUdf(null, "bank.lua");
+        thrown = catchThrowable(() -> client.execute(null, udfKey, "bank", "transfer", Value.get(10)));
+        assertThat(((AerospikeException) thrown).getResultCode()).isEqualTo(ResultCode.UDF_BAD_RESPONSE);
+
+        client.delete(null, udfKey);
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        WritePolicy policy = new WritePolicy();
+
+        // initialize : delete record
+        client.delete(null, key);
+
+        // never expire by default
+        client.put(policy, key, new Bin("name", "test"));
+        Record record = client.get(null, key);
+        assertThat(record.expiration).isEqualTo(0);
+        assertThat(record.getTimeToLive()).isEqualTo(-1);
+
+        // ttl
+        policy.expiration = 100;
+        client.put(policy, key, new Bin("name", "test"));
+        record = client.get(null, key);
+        assertThat(record.getTimeToLive()).isBetween(99, 100);
+
+        // touch with ttl
+        policy.expiration = 200;
+        client.touch(policy, key);
+        record = client.getHeader(null, key);
+        assertThat(record.getTimeToLive()).isBetween(199, 200);
+
+        // not to update ttl
+        policy.expiration = -2;
+        client.put(policy, key, new Bin("age", 10));
+        record = client.get(null, key);
+        assertThat(record.getTimeToLive()).isBetween(199, 200);
+        assertThat(client.get(null, new Key[] { key })[0].getTimeToLive()).isBetween(199, 200);
+
+        // never expire
+        policy.expiration = -1;
+        client.put(policy, key, new Bin("name", "test"));
+        record = client.get(null, key);
+        assertThat(record.getTimeToLive()).isEqualTo(-1);
+
+        // expire
+        Key expiringKey = new Key("expiring", key.setName, key.userKey);
+        policy.expiration = 1;
+        client.put(policy, expiringKey, new Bin("name", "test"));
+        assertThat(client.get(null, expiringKey)).isNotNull();
+        clock.advance(2);
+        assertThat(client.get(null, expiringKey)).isNull();
+        assertThat(client.exists(null, expiringKey)).isFalse();
+        assertThat(client.get(null, new Key[] { expiringKey })[0]).isNull();
+    }
+
+    @Test
+    public void testGeneration() throws InterruptedException {
+        WritePolicy policy = new WritePolicy();
+
+        // initialize : delete record
+        client.delete(null, key);
+
+        client.put(policy, key, new Bin("count", 0));
+        assertThat(client.get(null, key).generation).isEqualTo(1);
+        client.put(policy, key, new Bin("count", 0));
+        assertThat(client.getHeader(null, key).generation).isEqualTo(2);
+        assertThat(client.get(null, new Key[] { key })[0].generation).isEqualTo(2);
+
+        // expect equal
+        policy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+        policy.generation = 1;
+        Throwable thrown = catchThrowable(() -> {
+            client.put(policy, key, new Bin("count", 1));
+        });
+        assertThat(thrown).isInstanceOf(AerospikeException.class)
+                .hasFieldOrPropertyWithValue("resultCode", ResultCode.GENERATION_ERROR);
+        policy.generation = 2;
+        Record record = client.operate(policy, key, Operation.add(new Bin("count", 1)), Operation.get("count"));
+        assertThat(record.generation).isEqualTo(3);
+        assertThat(record.getInt("count")).isEqualTo(1);
+
+        // expect greater
+        policy.generationPolicy = GenerationPolicy.EXPECT_GEN_GT;
+        policy.generation = 3;
+        thrown = catchThrowable(() -> {
+            client.put(policy, key, new Bin("count", 1));
+        });
+        assertThat(thrown).isInstanceOf(AerospikeException.class)
+                .hasFieldOrPropertyWithValue("resultCode", ResultCode.GENERATION_ERROR);
+        policy.generation = 10;
+        client.put(policy, key, new Bin("count", 1));
+
+        // delete
+        policy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+        policy.generation = 1;
+        thrown = catchThrowable(() -> {
+            client.delete(policy, key);
+        });
+        assertThat(thrown).isInstanceOf(AerospikeException.class)
+                .hasFieldOrPropertyWithValue("resultCode", ResultCode.GENERATION_ERROR);
+        policy.generation = 4;
+        assertThat(client.delete(policy, key)).isTrue();
+
+        // optimistic concurrency loops
+        client.put(null, key, new Bin("count", 0));
+        int threads = 4;
+        int increments = 50;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                WritePolicy casPolicy = new WritePolicy();
+                casPolicy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+                for (int j = 0; j < increments; j++) {
+                    while (true) {
+                        Record current = client.get(null, key);
+                        casPolicy.generation = current.generation;
+                        try {
+                            client.put(casPolicy, key, new Bin("count", current.getInt("count") + 1));
+                            break;
+                        } catch (AerospikeException e) {
+                            assertThat(e.getResultCode()).isEqualTo(ResultCode.GENERATION_ERROR);
+                        }
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        record = client.get(null, key);
+        assertThat(record.getInt("count")).isEqualTo(threads * increments);
+        assertThat(record.generation).isEqualTo(1 + threads * increments);
+
+        // finalize : delete record
+        client.delete(null, key);
+    }
+
 }
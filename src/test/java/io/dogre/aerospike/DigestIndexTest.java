@@ -0,0 +1,73 @@
+package io.dogre.aerospike;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DigestIndexTest {
+
+    private static byte[] digest(int value) {
+        // the same first bytes, like digests in a partition
+        byte[] digest = new byte[DigestIndex.DIGEST_LENGTH];
+        ByteBuffer.wrap(digest).putShort((short) 7).putInt(value * 31).putInt(value).putLong(~value);
+        return digest;
+    }
+
+    @Test
+    public void testRandomOperations() {
+        DigestIndex<Integer> index = new DigestIndex<>();
+        Map<String, Integer> expected = new HashMap<>();
+        Random random = new Random(0);
+
+        for (int i = 0; i < 100000; i++) {
+            int namespaceId = random.nextInt(2);
+            int value = random.nextInt(2000);
+            byte[] digest = digest(value);
+            String key = namespaceId + ":" + value;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertThat(index.put(namespaceId, digest, 0, i)).isEqualTo(expected.put(key, i));
+                    break;
+                case 1:
+                    assertThat(index.remove(namespaceId, digest, 0)).isEqualTo(expected.remove(key));
+                    break;
+                default:
+                    assertThat(index.get(namespaceId, digest, 0)).isEqualTo(expected.get(key));
+                    break;
+            }
+            assertThat(index.size()).isEqualTo(expected.size());
+        }
+
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            String[] tokens = entry.getKey().split(":");
+            byte[] digest = digest(Integer.parseInt(tokens[1]));
+            assertThat(index.get(Integer.parseInt(tokens[0]), digest, 0)).isEqualTo(entry.getValue());
+        }
+    }
+
+    @Test
+    public void testRemoveIf() {
+        DigestIndex<Integer> index = new DigestIndex<>();
+        for (int i = 0; i < 1000; i++) {
+            index.put(i % 2, digest(i), 0, i);
+        }
+        assertThat(index.size(0)).isEqualTo(500);
+
+        // remove namespace 0 and the digests of multiple of 3
+        int removed = index.removeIf((namespaceId, digest, value) -> namespaceId == 0 || value % 3 == 0);
+        assertThat(removed).isEqualTo(500 + 167);
+        assertThat(index.size()).isEqualTo(1000 - removed);
+        for (int i = 0; i < 1000; i++) {
+            boolean exists = i % 2 == 1 && i % 3 != 0;
+            assertThat(index.get(i % 2, digest(i), 0)).isEqualTo(exists ? i : null);
+        }
+
+        index.forEach((namespaceId, digest, value) -> assertThat(digest).isEqualTo(digest(value)));
+    }
+
+}
@@ -0,0 +1,290 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import io.dogre.aerospike.NamespaceConfig.EvictionPolicy;
+import io.dogre.aerospike.NamespaceConfig.StorageType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.ThrowableAssert.catchThrowable;
+
+public class MemoryStorageEngineTest {
+
+    private static void testEngine(StorageEngine engine) {
+        byte[] digest = new Key(engine.getNamespace(), "set1", "key").digest;
+        assertThat(engine.get(digest)).isNull();
+        assertThat(engine.delete(digest)).isFalse();
+
+        assertThat(engine.put(digest, "set1", Collections.singletonMap("bin", Value.get(1)), 0)).isTrue();
+        assertThat(engine.get(digest).getBins().get("bin").toLong()).isEqualTo(1);
+
+        // read-modify-write
+        long result = engine.operate(digest, true, entry -> {
+            Map<String, Value> bins = entry.getRecord().getBins();
+            long value = bins.get("bin").toLong() + 1;
+            bins.put("bin", Value.get(value));
+            entry.put(entry.getRecord().getSetName(), bins, 0);
+            return value;
+        });
+        assertThat(result).isEqualTo(2);
+        assertThat(engine.get(digest).getBins().get("bin").toLong()).isEqualTo(2);
+        assertThat(engine.get(digest).getSetName()).isEqualTo("set1");
+
+        // read only
+        Throwable throwable = catchThrowable(() -> engine.operate(digest, false, StorageEngine.RecordEntry::delete));
+        assertThat(throwable).isInstanceOf(IllegalStateException.class);
+
+        for (int i = 0; i < 100; i++) {
+            String setName = i % 2 == 0 ? "set1" : "set2";
+            engine.put(new Key(engine.getNamespace(), setName, i).digest, setName,
+                    Collections.singletonMap("bin", Value.get(i)), 0);
+        }
+        List<Object> values = new ArrayList<>();
+        for (int i = 0; i < RecordStore.PARTITIONS; i++) {
+            engine.forEach(i, (recordDigest, record) -> values.add(record.getBins().get("bin").getObject()));
+        }
+        assertThat(values).hasSize(101);
+        assertThat(engine.getStats().getObjects()).isEqualTo(101);
+
+        assertThat(engine.truncate("set2")).isEqualTo(50);
+        assertThat(engine.getStats().getObjects()).isEqualTo(51);
+        assertThat(engine.delete(digest)).isTrue();
+        assertThat(engine.get(digest)).isNull();
+        assertThat(engine.truncate(null)).isEqualTo(50);
+        assertThat(engine.getStats().getObjects()).isEqualTo(0);
+        assertThat(engine.getStats().getMemoryUsedBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testMemory() {
+        RecordStore records = new RecordStore();
+        StorageEngine engine = new MemoryStorageEngine(records, new NamespaceConfig("test"));
+        // records of other namespace are not affected
+        StorageEngine other = new MemoryStorageEngine(records, new NamespaceConfig("other"));
+        byte[] digest = new Key("other", null, "key").digest;
+        other.put(digest, null, Collections.singletonMap("bin", Value.get("value")), 0);
+
+        testEngine(engine);
+
+        assertThat(other.get(digest)).isNotNull();
+        assertThat(other.getStats().getObjects()).isEqualTo(1);
+    }
+
+    @Test
+    public void testOffHeap() {
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setStorageType(StorageType.OFF_HEAP);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            testEngine(engine);
+            assertThat(engine.getStats().getUsedBytes()).isEqualTo(0);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testExpire() {
+        TestClock clock = new TestClock();
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setClock(clock);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            for (int i = 0; i < 100; i++) {
+                engine.put(new Key("test", null, i).digest, null, Collections.singletonMap("bin", Value.get(i)),
+                        i % 2 == 0 ? 1 : StorageEngine.EXPIRATION_NEVER_EXPIRE);
+            }
+            assertThat(engine.getStats().getObjects()).isEqualTo(100);
+
+            clock.advance(2);
+            // expired records are not visible, even before removed
+            assertThat(engine.get(new Key("test", null, 0).digest)).isNull();
+
+            engine.expire();
+            assertThat(engine.getStats().getExpiredObjects()).isEqualTo(50);
+            assertThat(engine.getStats().getObjects()).isEqualTo(50);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testScheduleOnce() {
+        TestClock clock = new TestClock();
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setClock(clock);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            byte[] digest = new Key("test", null, 1).digest;
+            // rewrites moving the void time later keep the live entry
+            for (int i = 0; i < 1000; i++) {
+                engine.put(digest, null, Collections.singletonMap("bin", Value.get(i)), 100 + i);
+            }
+            assertThat(engine.getScheduledExpirations()).isEqualTo(1);
+            engine.put(digest, null, Collections.singletonMap("bin", Value.get(0)),
+                    StorageEngine.EXPIRATION_NEVER_EXPIRE);
+            assertThat(engine.getScheduledExpirations()).isEqualTo(1);
+            // an earlier void time is scheduled
+            engine.put(digest, null, Collections.singletonMap("bin", Value.get(0)), 10);
+            assertThat(engine.getScheduledExpirations()).isEqualTo(2);
+            engine.put(digest, null, Collections.singletonMap("bin", Value.get(0)), 20);
+            assertThat(engine.getScheduledExpirations()).isEqualTo(2);
+
+            // the record living longer than the entry due is scheduled again
+            clock.advance(11);
+            engine.expire();
+            assertThat(engine.get(digest)).isNotNull();
+            assertThat(engine.getScheduledExpirations()).isEqualTo(2);
+            clock.advance(10);
+            engine.expire();
+            assertThat(engine.get(digest)).isNull();
+            assertThat(engine.getStats().getExpiredObjects()).isEqualTo(1);
+            // the entry left by the first write is ignored when due
+            assertThat(engine.getScheduledExpirations()).isEqualTo(1);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testEvict() {
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setMemorySize(100 * 1024);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            byte[] value = new byte[1000];
+            // records without ttl are never evicted
+            for (int i = 0; i < 20; i++) {
+                engine.put(new Key("test", null, i).digest, null, Collections.singletonMap("bin", Value.get(value)),
+                        StorageEngine.EXPIRATION_NEVER_EXPIRE);
+            }
+            for (int i = 20; i < 80; i++) {
+                engine.put(new Key("test", null, i).digest, null, Collections.singletonMap("bin", Value.get(value)),
+                        1000 + i);
+            }
+            StorageStats stats = engine.getStats();
+            assertThat(stats.getMemoryUsedBytes()).isGreaterThan(config.getMemorySize() * 60 / 100);
+            assertThat(stats.isStopWrites()).isFalse();
+
+            engine.evict();
+            stats = engine.getStats();
+            assertThat(stats.getMemoryUsedBytes()).isLessThanOrEqualTo(config.getMemorySize() * 60 / 100);
+            assertThat(stats.getEvictedObjects()).isEqualTo(80 - stats.getObjects());
+            // soonest expiring records are evicted first
+            assertThat(engine.get(new Key("test", null, 0).digest)).isNotNull();
+            assertThat(engine.get(new Key("test", null, 20).digest)).isNull();
+            assertThat(engine.get(new Key("test", null, 79).digest)).isNotNull();
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testEvictNothing() {
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setMemorySize(100 * 1024);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            byte[] value = new byte[1000];
+            for (int i = 0; i < 80; i++) {
+                engine.put(new Key("test", null, i).digest, null, Collections.singletonMap("bin", Value.get(value)),
+                        StorageEngine.EXPIRATION_NEVER_EXPIRE);
+            }
+            engine.evict();
+            engine.evict();
+            assertThat(engine.getStats().getEvictedObjects()).isEqualTo(0);
+
+            // a record with ttl is evictable again
+            engine.put(new Key("test", null, 80).digest, null, Collections.singletonMap("bin", Value.get(value)), 100);
+            engine.evict();
+            assertThat(engine.getStats().getEvictedObjects()).isEqualTo(1);
+            assertThat(engine.getStats().getObjects()).isEqualTo(80);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testEvictLru() {
+        TestClock clock = new TestClock();
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setMemorySize(100 * 1024);
+        config.setEvictionPolicy(EvictionPolicy.LRU);
+        config.setClock(clock);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            byte[] value = new byte[1000];
+            // records are accessed in order of keys, a second apart
+            for (int i = 0; i < 80; i++) {
+                clock.advance(1);
+                engine.put(new Key("test", null, i).digest, null, Collections.singletonMap("bin", Value.get(value)),
+                        0);
+            }
+            // an access time out of the range of histogram is counted in the first bucket
+            engine.operate(new Key("test", null, 1).digest, false, entry -> {
+                entry.getRecord().setLastAccessTime(0);
+                return null;
+            });
+
+            engine.evict();
+            StorageStats stats = engine.getStats();
+            assertThat(stats.getMemoryUsedBytes()).isLessThanOrEqualTo(config.getMemorySize() * 60 / 100);
+            assertThat(stats.getEvictedObjects()).isEqualTo(80 - stats.getObjects());
+            assertThat(engine.get(new Key("test", null, 0).digest)).isNull();
+            assertThat(engine.get(new Key("test", null, 1).digest)).isNull();
+            assertThat(engine.get(new Key("test", null, 79).digest)).isNotNull();
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testUnlimitedMemory() {
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            byte[] value = new byte[1000];
+            for (int i = 0; i < 100; i++) {
+                assertThat(engine.put(new Key("test", null, i).digest, null,
+                        Collections.singletonMap("bin", Value.get(value)), 100)).isTrue();
+            }
+            engine.evict();
+            StorageStats stats = engine.getStats();
+            assertThat(stats.getMemorySize()).isEqualTo(0);
+            assertThat(stats.isStopWrites()).isFalse();
+            assertThat(stats.getEvictedObjects()).isEqualTo(0);
+            assertThat(stats.getObjects()).isEqualTo(100);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testStopWrites() {
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setMemorySize(10 * 1024);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            byte[] value = new byte[1000];
+            int written = 0;
+            while (engine.put(new Key("test", null, written).digest, null,
+                    Collections.singletonMap("bin", Value.get(value)), 0)) {
+                written++;
+            }
+            assertThat(written).isBetween(8, 10);
+            assertThat(engine.getStats().isStopWrites()).isTrue();
+
+            // deletes are allowed, and free memory
+            assertThat(engine.delete(new Key("test", null, 0).digest)).isTrue();
+            assertThat(engine.getStats().isStopWrites()).isFalse();
+        } finally {
+            engine.close();
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import io.dogre.aerospike.NettyAerospikeServer.AerospikeMessageDecoder;
+import io.dogre.aerospike.NettyAerospikeServer.AerospikeServiceChannelHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.epoll.Epoll;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NettyAerospikeServerTest {
+
+    private static byte[] message(int type, String body) {
+        byte[] bytes = new byte[8 + body.length()];
+        long sizeHeader = body.length() | (2L << 56) | (((long) type) << 48);
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (sizeHeader >> (56 - 8 * i));
+        }
+        for (int i = 0; i < body.length(); i++) {
+            bytes[8 + i] = (byte) body.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static EmbeddedChannel newChannel() {
+        // echo the request
+        ServiceHandler serviceHandler = (request, allocator) -> allocator.buffer().writeBytes(request);
+        return new EmbeddedChannel(new AerospikeMessageDecoder(), new AerospikeServiceChannelHandler(serviceHandler));
+    }
+
+    private static byte[] readOutbound(EmbeddedChannel channel) {
+        ByteBuf byteBuf = channel.readOutbound();
+        if (byteBuf == null) {
+            return null;
+        }
+        byte[] bytes = new byte[byteBuf.readableBytes()];
+        byteBuf.readBytes(bytes);
+        byteBuf.release();
+        return bytes;
+    }
+
+    @Test
+    public void testPipelinedMessages() {
+        EmbeddedChannel channel = newChannel();
+        byte[] first = message(1, "node\n");
+        byte[] second = message(1, "features\n");
+        byte[] third = message(1, "version\n");
+
+        // two messages and the half of third message in one read
+        ByteBuf byteBuf = Unpooled.buffer();
+        byteBuf.writeBytes(first).writeBytes(second).writeBytes(third, 0, 5);
+        channel.writeInbound(byteBuf);
+
+        assertThat(readOutbound(channel)).isEqualTo(first);
+        assertThat(readOutbound(channel)).isEqualTo(second);
+        assertThat(readOutbound(channel)).isNull();
+
+        // the rest of third message
+        channel.writeInbound(Unpooled.wrappedBuffer(third, 5, third.length - 5));
+        assertThat(readOutbound(channel)).isEqualTo(third);
+        assertThat(readOutbound(channel)).isNull();
+
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testChannelsDoNotShareBuffer() {
+        EmbeddedChannel channel1 = newChannel();
+        EmbeddedChannel channel2 = newChannel();
+        byte[] first = message(1, "node\n");
+        byte[] second = message(1, "version\n");
+
+        channel1.writeInbound(Unpooled.wrappedBuffer(first, 0, 10));
+        channel2.writeInbound(Unpooled.wrappedBuffer(second));
+        channel1.writeInbound(Unpooled.wrappedBuffer(first, 10, first.length - 10));
+
+        assertThat(readOutbound(channel2)).isEqualTo(second);
+        assertThat(readOutbound(channel1)).isEqualTo(first);
+
+        channel1.finishAndReleaseAll();
+        channel2.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testResolveTransport() {
+        assertThat(TransportType.NIO.resolve()).isEqualTo(TransportType.NIO);
+        TransportType available = Epoll.isAvailable() ? TransportType.EPOLL : TransportType.NIO;
+        assertThat(TransportType.AUTO.resolve()).isEqualTo(available);
+        assertThat(TransportType.EPOLL.resolve()).isEqualTo(available);
+    }
+
+    @Test
+    public void testEpollServer() throws InterruptedException {
+        Assume.assumeTrue(Epoll.isAvailable());
+        String host = "localhost";
+        int port = 3100;
+        // an acceptor per IO thread, bound by SO_REUSEPORT
+        AerospikeServer server = new NettyAerospikeServer(4, 4, TransportType.EPOLL);
+        Thread thread = new Thread(() -> server.start(host, port, "test"));
+        thread.start();
+        List<IAerospikeClient> clients = new ArrayList<>();
+        try {
+            while (!server.isStarted()) {
+                Thread.sleep(100);
+            }
+            for (int i = 0; i < 8; i++) {
+                clients.add(new AerospikeClient(host, port));
+            }
+            for (int i = 0; i < 100; i++) {
+                clients.get(i % clients.size()).put(null, new Key("test", "test", i), new Bin("bin", i));
+            }
+            for (int i = 0; i < 100; i++) {
+                Record record = clients.get((i + 1) % clients.size()).get(null, new Key("test", "test", i));
+                assertThat(record.getInt("bin")).isEqualTo(i);
+            }
+        } finally {
+            for (IAerospikeClient client : clients) {
+                client.close();
+            }
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testStreamedResponse() {
+        // stream the request three times for command, echo the request for info
+        ServiceHandler serviceHandler = new ServiceHandler() {
+            @Override
+            public ByteBuf handleRequest(ByteBuf request, ByteBufAllocator allocator) {
+                return allocator.buffer().writeBytes(request);
+            }
+
+            @Override
+            public void handleRequest(ByteBuf request, ByteBufAllocator allocator, Consumer<ByteBuf> output) {
+                int count = isStreaming(request) ? 3 : 1;
+                for (int i = 0; i < count; i++) {
+                    output.accept(allocator.buffer().writeBytes(request, request.readerIndex(),
+                            request.readableBytes()));
+                }
+            }
+
+            @Override
+            public boolean isStreaming(ByteBuf request) {
+                return request.getByte(request.readerIndex() + 1) == 3;
+            }
+        };
+        // the streamed request is run by the test
+        List<Runnable> tasks = new ArrayList<>();
+        EmbeddedChannel channel = new EmbeddedChannel(new AerospikeMessageDecoder(),
+                new AerospikeServiceChannelHandler(serviceHandler, tasks::add));
+        byte[] first = message(1, "node\n");
+        byte[] second = message(3, "scan");
+        byte[] third = message(1, "version\n");
+
+        ByteBuf byteBuf = Unpooled.buffer();
+        byteBuf.writeBytes(first).writeBytes(second).writeBytes(third);
+        channel.writeInbound(byteBuf);
+
+        // reading is suspended until the streamed request is done
+        assertThat(channel.config().isAutoRead()).isFalse();
+        assertThat(readOutbound(channel)).isEqualTo(first);
+        assertThat(readOutbound(channel)).isNull();
+
+        assertThat(tasks).hasSize(1);
+        tasks.get(0).run();
+        for (int i = 0; i < 3; i++) {
+            assertThat(readOutbound(channel)).isEqualTo(second);
+        }
+        assertThat(readOutbound(channel)).isNull();
+
+        // the request read during streaming is handled after it
+        channel.runPendingTasks();
+        assertThat(readOutbound(channel)).isEqualTo(third);
+        assertThat(readOutbound(channel)).isNull();
+        assertThat(channel.config().isAutoRead()).isTrue();
+
+        channel.finishAndReleaseAll();
+    }
+
+}
@@ -0,0 +1,79 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Value;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PackedListTest {
+
+    private static byte[] pack(Object value) {
+        return MessagePack.pack(Value.get(value));
+    }
+
+    @Test
+    public void testModify() {
+        List<Object> expected = new ArrayList<>();
+        PackedList list = new PackedList(0);
+        for (int i = 0; i < 100; i++) {
+            list.add(pack((long) i));
+            expected.add((long) i);
+        }
+        // offsets are found, and kept up to date by the following modifications
+        assertThat(list.getValue(50).toLong()).isEqualTo(50);
+
+        list.insert(10, pack("ten"));
+        expected.add(10, "ten");
+        list.set(20, pack(Arrays.asList(1, 2)));
+        expected.set(20, Arrays.asList(1L, 2L));
+        list.remove(30, 40);
+        expected.subList(30, 40).clear();
+        list.add(pack(1000L));
+        expected.add(1000L);
+
+        assertThat(list.size()).isEqualTo(expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(list.getValue(i).getObject()).isEqualTo(expected.get(i));
+        }
+        assertThat(list.getObject()).isEqualTo(expected);
+    }
+
+    @Test
+    public void testWrap() {
+        byte[] packed = pack(Arrays.asList(3L, 1L, 2L));
+        byte[] copy = packed.clone();
+
+        // the wrapped bytes are not modified
+        PackedList list = PackedList.wrap(packed, 0, packed.length);
+        list.add(pack(0L));
+        list.remove(0, 1);
+        assertThat(packed).isEqualTo(copy);
+        assertThat(list.getObject()).isEqualTo(Arrays.asList(1L, 2L, 0L));
+
+        // ordered list is packed with the extension header
+        list.setFlags(PackedList.ORDERED);
+        assertThat(list.getObject()).isEqualTo(Arrays.asList(0L, 1L, 2L));
+        list.add(pack(1L));
+        byte[] ordered = list.toBytes();
+        PackedList wrapped = PackedList.wrap(ordered, 0, ordered.length);
+        assertThat(wrapped.isOrdered()).isTrue();
+        assertThat(wrapped.getObject()).isEqualTo(Arrays.asList(0L, 1L, 1L, 2L));
+    }
+
+    @Test
+    public void testCompare() {
+        // nil < integer < string < list < double
+        Object[] values = { null, -1L, 5L, "a", "ab", Arrays.asList(1L), Arrays.asList(1L, 0L), 0.5 };
+        for (int i = 0; i < values.length; i++) {
+            for (int j = 0; j < values.length; j++) {
+                int result = MessagePack.compare(pack(values[i]), 0, pack(values[j]), 0);
+                assertThat(Integer.signum(result)).isEqualTo(Integer.compare(i, j));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Value;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PackedMapTest {
+
+    private static byte[] pack(Object value) {
+        return MessagePack.pack(Value.get(value));
+    }
+
+    @Test
+    public void testIndex() {
+        Random random = new Random(0);
+        TreeMap<Long, Long> expected = new TreeMap<>();
+        PackedMap map = new PackedMap(PackedMap.KEY_ORDERED);
+        for (int i = 0; i < 2000; i++) {
+            long key = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                PackedMap.Entry entry = map.getEntry(pack(key));
+                if (entry != null) {
+                    map.remove(entry);
+                }
+                expected.remove(key);
+            } else {
+                long value = random.nextInt(100);
+                map.put(pack(key), pack(value));
+                expected.put(key, value);
+            }
+        }
+        assertThat(map.size()).isEqualTo(expected.size());
+
+        // by index, in key order
+        List<Long> keys = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < keys.size(); i++) {
+            assertThat(map.getByIndex(i).getKey().toLong()).isEqualTo(keys.get(i));
+        }
+        assertThat(map.indexOf(pack(250L))).isEqualTo(expected.headMap(250L).size());
+
+        // by rank, in value order and then key order
+        List<Map.Entry<Long, Long>> entries = new ArrayList<>(expected.entrySet());
+        entries.sort(Comparator.comparing((Map.Entry<Long, Long> entry) -> entry.getValue())
+                .thenComparing(Map.Entry::getKey));
+        for (int i = 0; i < entries.size(); i++) {
+            PackedMap.Entry entry = map.getByRank(i);
+            assertThat(entry.getKey().toLong()).isEqualTo(entries.get(i).getKey());
+            assertThat(map.getRank(entry)).isEqualTo(i);
+        }
+        long below = expected.values().stream().filter(value -> value < 50).count();
+        long equal = expected.values().stream().filter(value -> value == 50).count();
+        assertThat(map.rankOf(pack(50L), false)).isEqualTo(below);
+        assertThat(map.rankOf(pack(50L), true)).isEqualTo(below + equal);
+
+        // packed in key order
+        byte[] packed = map.toBytes();
+        PackedMap wrapped = PackedMap.wrap(packed, 0, packed.length);
+        assertThat(wrapped.getFlags()).isEqualTo(PackedMap.KEY_ORDERED);
+        assertThat(wrapped.getObject()).isEqualTo(expected);
+        assertThat(wrapped.toBytes()).isEqualTo(packed);
+    }
+
+    @Test
+    public void testSnapshot() {
+        Map<String, Long> values = new HashMap<>();
+        values.put("b", 2L);
+        values.put("a", 1L);
+        byte[] packed = pack(values);
+        PackedMap origin = PackedMap.wrap(packed, 0, packed.length);
+
+        // the index built by a snapshot is kept by origin
+        PackedMap snapshot = origin.snapshot();
+        assertThat(snapshot.getByRank(1).getKey().toString()).isEqualTo("b");
+        assertThat(origin.isIndexed()).isTrue();
+
+        // modifications of a snapshot are not seen by others
+        snapshot.put(pack("c"), pack(3L));
+        PackedMap other = origin.snapshot();
+        other.remove(other.getEntry(pack("a")));
+        assertThat(origin.getObject()).isEqualTo(values);
+        assertThat(snapshot.size()).isEqualTo(3);
+        assertThat(other.size()).isEqualTo(1);
+        assertThat(other.getByIndex(0).getValue().toLong()).isEqualTo(2L);
+    }
+
+}
@@ -0,0 +1,97 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.command.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-threaded benchmark of {@link ServiceHandlerImpl}, without network.
+ * <p>
+ * Each thread adds 1 to a counter bin of random records and reads records. It prints the throughput per the number
+ * of threads, and checks that the sum of counters equals the number of successful adds, which fails if
+ * read-modify-write is not atomic.
+ * <p>
+ * Run <code>main</code>. Arguments are the number of records (default 1000), seconds per round (default 3) and the
+ * maximum number of threads (default the number of processors).
+ */
+public class RecordStoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int recordCount = 0 < args.length ? Integer.parseInt(args[0]) : 1000;
+        int seconds = 1 < args.length ? Integer.parseInt(args[1]) : 3;
+        int maxThreads = 2 < args.length ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, recordCount, seconds);
+        }
+    }
+
+    private static void run(int threads, int recordCount, int seconds) throws Exception {
+        ServiceHandler serviceHandler = new ServiceHandlerImpl("localhost:3000", "test");
+
+        byte[][] adds = new byte[recordCount][];
+        byte[][] gets = new byte[recordCount][];
+        for (int i = 0; i < recordCount; i++) {
+            Key key = new Key("test", "test", i);
+            adds[i] = TestCommand.operate(null, key, Operation.add(new Bin("count", 1)));
+            gets[i] = TestCommand.operate(null, key, Operation.get("count"));
+        }
+
+        LongAdder operations = new LongAdder();
+        LongAdder added = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                long seed = Thread.currentThread().getId();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 100; i++) {
+                        seed = seed * 6364136223846793005L + 1442695040888963407L;
+                        int index = (int) ((seed >>> 33) % recordCount);
+                        if ((seed & 1) == 0) {
+                            byte[] response = serviceHandler.handleRequest(adds[index]);
+                            if (response[13] == ResultCode.OK) {
+                                added.increment();
+                            }
+                        } else {
+                            serviceHandler.handleRequest(gets[index]);
+                        }
+                    }
+                    operations.add(100);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long sum = 0;
+        for (int i = 0; i < recordCount; i++) {
+            byte[] response = serviceHandler.handleRequest(gets[i]);
+            // the value of integer bin is the last 8 bytes of response.
+            if (response[13] == ResultCode.OK) {
+                sum += Buffer.bytesToLong(response, response.length - 8);
+            }
+        }
+
+        System.out.printf("threads = %2d, ops/sec = %,12d, atomic = %s%n", threads, operations.sum() / seconds,
+                sum == added.sum());
+    }
+
+}
@@ -0,0 +1,166 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import com.aerospike.client.query.IndexType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SecondaryIndexTest {
+
+    private static List<byte[]> toList(Iterator<byte[]> iterator) {
+        List<byte[]> list = new ArrayList<>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+
+    @Test
+    public void testIndex() {
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            for (int i = 0; i < 100; i++) {
+                engine.put(new Key("test", "set", i).digest, "set", Collections.singletonMap("age", Value.get(i)), 0);
+            }
+            // existing records are indexed at creation
+            SecondaryIndex index = new SecondaryIndex("age", "set", "age", IndexType.NUMERIC);
+            assertThat(engine.createIndex(index)).isTrue();
+            assertThat(engine.createIndex(new SecondaryIndex("age", null, "age", IndexType.NUMERIC))).isFalse();
+            assertThat(index.size()).isEqualTo(100);
+            List<byte[]> digests = toList(index.range(10L, 19L));
+            assertThat(digests).hasSize(10);
+            assertThat(engine.get(digests.get(0)).getBin("age").toLong()).isEqualTo(10);
+
+            // writes update the index
+            byte[] digest = new Key("test", "set", 10).digest;
+            engine.put(digest, "set", Collections.singletonMap("age", Value.get(1000)), 0);
+            assertThat(toList(index.range(10L, 19L))).hasSize(9);
+            assertThat(toList(index.range(1000L, 1000L))).containsExactly(digest);
+            engine.put(digest, "set", Collections.singletonMap("age", Value.get("string")), 0);
+            assertThat(toList(index.range(1000L, 1000L))).isEmpty();
+            engine.delete(new Key("test", "set", 11).digest);
+            assertThat(toList(index.range(10L, 19L))).hasSize(8);
+
+            // records of other sets are not indexed
+            engine.put(new Key("test", "other", 15).digest, "other", Collections.singletonMap("age", Value.get(15)),
+                    0);
+            assertThat(toList(index.range(15L, 15L))).hasSize(1);
+
+            // truncate
+            engine.truncate("set");
+            assertThat(index.size()).isEqualTo(0);
+            assertThat(engine.dropIndex("age")).isTrue();
+            assertThat(engine.getIndexes()).isEmpty();
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testStringIndex() {
+        TestClock clock = new TestClock();
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setClock(clock);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            SecondaryIndex index = new SecondaryIndex("name", null, "name", IndexType.STRING);
+            engine.createIndex(index);
+            for (int i = 0; i < 100; i++) {
+                engine.put(new Key("test", null, i).digest, null,
+                        Collections.singletonMap("name", Value.get("name" + (i % 10))), i % 2 == 0 ? 1 : 0);
+            }
+            assertThat(toList(index.range("name3", "name3"))).hasSize(10);
+            assertThat(toList(index.range("name", "name"))).isEmpty();
+
+            // expiration removes entries
+            clock.advance(2);
+            engine.expire();
+            assertThat(toList(index.range("name3", "name3"))).hasSize(10);
+            assertThat(toList(index.range("name4", "name4"))).isEmpty();
+            assertThat(index.size()).isEqualTo(50);
+        } finally {
+            engine.close();
+        }
+    }
+
+    private static Set<Integer> query(MemoryStorageEngine engine, SecondaryIndex index, GeoShape query) {
+        Set<Integer> found = new HashSet<>();
+        index.query(query).forEachRemaining(digest -> {
+            StoredRecord record = engine.get(digest);
+            if (index.matches(index.getKey(record), query)) {
+                found.add((int) record.getBin("id").toLong());
+            }
+        });
+        return found;
+    }
+
+    @Test
+    public void testGeoIndex() {
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            SecondaryIndex index = new SecondaryIndex("location", null, "location", IndexType.GEO2DSPHERE);
+            engine.createIndex(index);
+            Random random = new Random(7);
+            List<GeoShape.Point> points = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                // points around Seoul
+                GeoShape.Point point = new GeoShape.Point(126.8 + random.nextDouble() * 0.4,
+                        37.4 + random.nextDouble() * 0.3);
+                points.add(point);
+                Map<String, Value> bins = new HashMap<>();
+                bins.put("id", Value.get(i));
+                bins.put("location", Value.getAsGeoJSON(String.format(
+                        "{\"type\": \"Point\", \"coordinates\": [%f, %f]}", point.getLongitude(),
+                        point.getLatitude())));
+                engine.put(new Key("test", null, i).digest, null, bins, 0);
+            }
+            assertThat(index.size()).isEqualTo(2000);
+
+            // points within regions are the same as checked one by one
+            GeoShape polygon = GeoShape.parse("{\"type\": \"Polygon\", \"coordinates\": " +
+                    "[[[126.9, 37.5], [127.1, 37.5], [127.0, 37.65], [126.9, 37.5]]]}");
+            GeoShape circle = GeoShape.parse(
+                    "{\"type\": \"AeroCircle\", \"coordinates\": [[126.95, 37.55], 3000.0]}");
+            for (GeoShape region : new GeoShape[] { polygon, circle }) {
+                Set<Integer> expected = new HashSet<>();
+                for (int i = 0; i < points.size(); i++) {
+                    if (region.contains(points.get(i))) {
+                        expected.add(i);
+                    }
+                }
+                assertThat(expected).isNotEmpty();
+                assertThat(query(engine, index, region)).isEqualTo(expected);
+            }
+            // candidates are found by cells near the region, not by all entries
+            assertThat(toList(index.query(circle)).size()).isLessThan(200);
+
+            // regions containing a point
+            Map<String, Value> bins = new HashMap<>();
+            bins.put("id", Value.get(-1));
+            bins.put("location", Value.getAsGeoJSON("{\"type\": \"Polygon\", \"coordinates\": " +
+                    "[[[126.9, 37.5], [127.1, 37.5], [127.0, 37.65], [126.9, 37.5]]]}"));
+            byte[] digest = new Key("test", null, -1).digest;
+            engine.put(digest, null, bins, 0);
+            assertThat(query(engine, index, new GeoShape.Point(127.0, 37.55))).containsExactly(-1);
+            assertThat(query(engine, index, new GeoShape.Point(126.91, 37.6))).isEmpty();
+
+            // writes update the index
+            engine.delete(digest);
+            assertThat(query(engine, index, new GeoShape.Point(127.0, 37.55))).isEmpty();
+            assertThat(index.size()).isEqualTo(2000);
+        } finally {
+            engine.close();
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.ResultCode;
+import io.dogre.aerospike.NamespaceConfig.StorageType;
+import io.netty.util.internal.PlatformDependent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SlabAllocatorTest {
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return bytes;
+    }
+
+    private static byte[] read(SlabAllocator allocator, long handle, int length) {
+        byte[] bytes = new byte[length];
+        allocator.getBytes(handle, 0, bytes, 0, length);
+        return bytes;
+    }
+
+    @Test
+    public void testAllocateAndFree() {
+        SlabAllocator allocator = new SlabAllocator(16 * SlabAllocator.SLAB_SIZE);
+        List<Long> handles = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            handles.add(allocator.allocate(bytes(i, i)));
+        }
+        // larger than slab
+        long large = allocator.allocate(bytes(SlabAllocator.SLAB_SIZE + 1, 7));
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(read(allocator, handles.get(i), i)).isEqualTo(bytes(i, i));
+        }
+        assertThat(read(allocator, large, SlabAllocator.SLAB_SIZE + 1)).isEqualTo(bytes(SlabAllocator.SLAB_SIZE + 1, 7));
+
+        allocator.free(large, SlabAllocator.SLAB_SIZE + 1);
+        for (int i = 0; i < 1000; i++) {
+            allocator.free(handles.get(i), i);
+        }
+        assertThat(allocator.getUsedBytes()).isEqualTo(0);
+        // the only slab of each size class is kept, there are 11 size classes up to 1024 bytes
+        assertThat(allocator.getAllocatedBytes()).isEqualTo(11L * SlabAllocator.SLAB_SIZE);
+
+        // empty slabs are released when the memory budget is exhausted
+        long handle = allocator.allocate(bytes(6 * SlabAllocator.SLAB_SIZE, 0));
+        assertThat(handle).isNotEqualTo(-1);
+        assertThat(allocator.getAllocatedBytes()).isLessThanOrEqualTo(16L * SlabAllocator.SLAB_SIZE);
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        SlabAllocator allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+        byte[] bytes = bytes(1000, 0);
+        long handle;
+        int count = 0;
+        while (0 <= (handle = allocator.allocate(bytes))) {
+            count++;
+        }
+        assertThat(count).isEqualTo(SlabAllocator.SLAB_SIZE / 1024);
+        assertThat(allocator.allocate(bytes(10, 0))).isEqualTo(-1);
+    }
+
+    @Test
+    public void testMaxDirectMemory() {
+        // the budget of off-heap namespace may be larger than the direct memory of JVM
+        SlabAllocator allocator = new SlabAllocator(Long.MAX_VALUE);
+        assertThat(allocator.getMemorySize()).isEqualTo(PlatformDependent.maxDirectMemory());
+        assertThat(allocator.allocate(bytes(1000, 0))).isNotEqualTo(-1);
+
+        // unlimited budget
+        allocator = new SlabAllocator(0);
+        assertThat(allocator.getMemorySize()).isEqualTo(PlatformDependent.maxDirectMemory());
+    }
+
+    @Test
+    public void testCompaction() {
+        SlabAllocator allocator = new SlabAllocator(16 * SlabAllocator.SLAB_SIZE);
+        int length = 1000;
+        List<Long> handles = new ArrayList<>();
+        for (int i = 0; i < 4 * SlabAllocator.SLAB_SIZE / 1024; i++) {
+            handles.add(allocator.allocate(bytes(length, i)));
+        }
+        assertThat(allocator.getAllocatedBytes()).isEqualTo(4L * SlabAllocator.SLAB_SIZE);
+
+        // free 3 of 4 bodies, so every slab is sparse
+        List<Integer> alives = new ArrayList<>();
+        for (int i = 0; i < handles.size(); i++) {
+            if (i % 4 == 0) {
+                alives.add(i);
+            } else {
+                allocator.free(handles.get(i), length);
+            }
+        }
+        assertThat(allocator.getAllocatedBytes()).isEqualTo(4L * SlabAllocator.SLAB_SIZE);
+
+        assertThat(allocator.beginCompaction()).isTrue();
+        for (int i : alives) {
+            long handle = handles.get(i);
+            if (allocator.isEvacuating(handle)) {
+                handle = allocator.relocate(handle, length);
+                assertThat(handle).isNotEqualTo(-1);
+                handles.set(i, handle);
+            }
+        }
+        allocator.endCompaction();
+
+        assertThat(allocator.getAllocatedBytes()).isEqualTo(SlabAllocator.SLAB_SIZE);
+        for (int i : alives) {
+            assertThat(read(allocator, handles.get(i), length)).isEqualTo(bytes(length, i));
+        }
+    }
+
+    @Test
+    public void testOffHeapNamespace() {
+        NamespaceConfig heap = new NamespaceConfig("test");
+        NamespaceConfig offHeap = new NamespaceConfig("test");
+        offHeap.setStorageType(StorageType.OFF_HEAP);
+        offHeap.setMemorySize(4 * SlabAllocator.SLAB_SIZE);
+        ServiceHandlerImpl heapHandler = new ServiceHandlerImpl("localhost:3000", heap);
+        ServiceHandlerImpl offHeapHandler = new ServiceHandlerImpl("localhost:3000", offHeap);
+        try {
+            Key key = new Key("test", "test", "test");
+            byte[][] requests = new byte[][] {
+                    TestCommand.operate(null, key, Operation.put(new Bin("a", "value")), Operation.put(new Bin("b", 1))),
+                    TestCommand.operate(null, key, Operation.add(new Bin("b", 2)), Operation.get()),
+                    TestCommand.operate(null, key, Operation.get("a")),
+                    TestCommand.operate(null, key, Operation.get())
+            };
+            for (byte[] request : requests) {
+                assertThat(offHeapHandler.handleRequest(request)).isEqualTo(heapHandler.handleRequest(request));
+            }
+
+            // fill the memory budget
+            byte[] value = new byte[1000];
+            int resultCode = ResultCode.OK;
+            for (int i = 0; resultCode == ResultCode.OK; i++) {
+                byte[] request = TestCommand.operate(null, new Key("test", "test", i), Operation.put(new Bin("a", value)));
+                resultCode = offHeapHandler.handleRequest(request)[8 + 5];
+            }
+            assertThat(resultCode).isEqualTo(ResultCode.SERVER_MEM_ERROR);
+            assertThat(offHeapHandler.handleRequest(requests[3])).isEqualTo(heapHandler.handleRequest(requests[3]));
+
+            offHeapHandler.handleInfoCommand("truncate:namespace=test");
+            byte[] request = TestCommand.operate(null, key, Operation.put(new Bin("a", value)));
+            assertThat(offHeapHandler.handleRequest(request)[8 + 5]).isEqualTo((byte) ResultCode.OK);
+        } finally {
+            heapHandler.close();
+            offHeapHandler.close();
+        }
+    }
+
+}
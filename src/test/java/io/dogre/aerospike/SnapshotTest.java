@@ -0,0 +1,133 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import io.netty.buffer.Unpooled;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] digest(int i) {
+        return new Key("test", "set", i).digest;
+    }
+
+    @Test
+    public void testWriteAndLoad() throws Exception {
+        Path file = this.folder.getRoot().toPath().resolve("test.snapshot");
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            for (int i = 0; i < 10000; i++) {
+                Map<String, Value> bins = new HashMap<>();
+                bins.put("id", Value.get(i));
+                bins.put("name", Value.get("name" + i));
+                engine.put(digest(i), i % 3 == 0 ? null : "set" + (i % 3), bins, i % 10 == 0 ? 1000 : 0);
+            }
+            engine.put(digest(1), "set1", Collections.singletonMap("id", Value.get(-1)), 0);
+            engine.put(digest(2), "set2", Collections.singletonMap("id", Value.get(-2)), 1);
+            assertThat(Snapshot.write(engine, file)).isEqualTo(10000);
+        } finally {
+            engine.close();
+        }
+
+        // loaded by threads, and expired records are skipped
+        TestClock clock = new TestClock();
+        clock.advance(2);
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setClock(clock);
+        MemoryStorageEngine loaded = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            assertThat(Snapshot.load(loaded, file, 4)).isEqualTo(9999);
+            assertThat(loaded.getStats().getObjects()).isEqualTo(9999);
+            StoredRecord record = loaded.get(digest(1));
+            assertThat(record.getBin("id").toLong()).isEqualTo(-1);
+            assertThat(record.getGeneration()).isEqualTo(2);
+            assertThat(record.getSetName()).isEqualTo("set1");
+            record = loaded.get(digest(30));
+            assertThat(record.getBin("name").toString()).isEqualTo("name30");
+            assertThat(record.getSetName()).isNull();
+            assertThat(record.getVoidTime()).isNotZero();
+            assertThat(loaded.get(digest(2))).isNull();
+        } finally {
+            loaded.close();
+        }
+    }
+
+    @Test
+    public void testManySets() throws Exception {
+        Path file = this.folder.getRoot().toPath().resolve("sets.snapshot");
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            // set indexes beyond the range of short
+            for (int i = 0; i < 40000; i++) {
+                engine.put(digest(i), "set" + i, Collections.singletonMap("id", Value.get(i)), 0);
+            }
+            assertThat(Snapshot.write(engine, file)).isEqualTo(40000);
+        } finally {
+            engine.close();
+        }
+
+        MemoryStorageEngine loaded = new MemoryStorageEngine(new RecordStore(), new NamespaceConfig("test"));
+        try {
+            assertThat(Snapshot.load(loaded, file, 4)).isEqualTo(40000);
+            for (int i = 0; i < 40000; i += 997) {
+                assertThat(loaded.get(digest(i)).getSetName()).isEqualTo("set" + i);
+            }
+            assertThat(loaded.get(digest(39999)).getSetName()).isEqualTo("set39999");
+        } finally {
+            loaded.close();
+        }
+    }
+
+    @Test
+    public void testDumpAndStart() {
+        Path file = this.folder.getRoot().toPath().resolve("dump.snapshot");
+        ServiceHandlerImpl handler = new ServiceHandlerImpl("localhost:3000", "test");
+        try {
+            StorageEngine engine = handler.getStorageEngine("test", false);
+            for (int i = 0; i < 100; i++) {
+                engine.put(digest(i), "set", Collections.singletonMap("id", Value.get(i)), 0);
+            }
+            assertThat(handler.handleInfoCommand("snapshot-dump:ns=test;file=" + file)).isEqualTo("records=100");
+            assertThat(handler.handleInfoCommand("snapshot-dump:ns=none;file=" + file)).startsWith("FAIL:");
+            // handled off the IO thread
+            assertThat(handler.isStreaming(Unpooled.wrappedBuffer(
+                    TestCommand.info("build", "snapshot-dump:ns=test;file=" + file)))).isTrue();
+            assertThat(handler.isStreaming(Unpooled.wrappedBuffer(TestCommand.info("build", "namespace/test"))))
+                    .isFalse();
+        } finally {
+            handler.close();
+        }
+
+        // the snapshot is loaded at start, and then the log is replayed
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setSnapshotFile(file);
+        config.setLogDirectory(this.folder.getRoot().toPath());
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            assertThat(engine.getStats().getObjects()).isEqualTo(100);
+            engine.delete(digest(0));
+        } finally {
+            engine.close();
+        }
+        engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            assertThat(engine.getStats().getObjects()).isEqualTo(99);
+            assertThat(engine.get(digest(99)).getBin("id").toLong()).isEqualTo(99);
+        } finally {
+            engine.close();
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+package io.dogre.aerospike;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Clock advanced by tests, to expire records without waiting. It starts at the current time.
+ */
+public class TestClock extends Clock {
+
+    private volatile long millis = System.currentTimeMillis();
+
+    public void advance(int seconds) {
+        this.millis += seconds * 1000L;
+    }
+
+    @Override
+    public long millis() {
+        return this.millis;
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(this.millis);
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,59 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.command.Buffer;
+import com.aerospike.client.command.BatchNode;
+import com.aerospike.client.command.Command;
+import com.aerospike.client.command.OperateArgs;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.WritePolicy;
+
+import java.util.Arrays;
+
+/**
+ * Builds request messages with the serializer of Aerospike Client, to call {@link ServiceHandler} without network.
+ */
+public class TestCommand extends Command {
+
+    @Override
+    protected void sizeBuffer() {
+        this.dataBuffer = new byte[this.dataOffset];
+    }
+
+    public byte[] toBytes() {
+        return Arrays.copyOf(this.dataBuffer, this.dataOffset);
+    }
+
+    public static byte[] operate(WritePolicy policy, Key key, Operation... operations) {
+        TestCommand command = new TestCommand();
+        OperateArgs args = new OperateArgs();
+        command.estimateOperate(operations, args);
+        command.setOperate(policy != null ? policy : new WritePolicy(), key, operations, args);
+        return command.toBytes();
+    }
+
+    public static byte[] batchGet(Key[] keys, String... binNames) {
+        TestCommand command = new TestCommand();
+        BatchNode batch = new BatchNode(null, keys.length, 0);
+        for (int i = 1; i < keys.length; i++) {
+            batch.addKey(i);
+        }
+        int readAttribute = Command.INFO1_READ | (binNames.length == 0 ? Command.INFO1_GET_ALL : 0);
+        command.setBatchRead(new BatchPolicy(), keys, batch, binNames.length == 0 ? null : binNames, readAttribute);
+        return command.toBytes();
+    }
+
+    public static byte[] info(String... names) {
+        StringBuilder builder = new StringBuilder();
+        for (String name : names) {
+            builder.append(name).append('\n');
+        }
+        byte[] body = Buffer.stringToUtf8(builder.toString());
+        byte[] bytes = new byte[8 + body.length];
+        Buffer.longToBytes((2L << 56) | (1L << 48) | body.length, bytes, 0);
+        System.arraycopy(body, 0, bytes, 8, body.length);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,69 @@
+package io.dogre.aerospike;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimingWheelTest {
+
+    private static byte[] digest(int value) {
+        byte[] digest = new byte[DigestIndex.DIGEST_LENGTH];
+        ByteBuffer.wrap(digest).putInt(value);
+        return digest;
+    }
+
+    private static int value(TimingWheel.Entries entries, int index) {
+        byte[] digest = new byte[DigestIndex.DIGEST_LENGTH];
+        entries.getDigest(index, digest);
+        return ByteBuffer.wrap(digest).getInt();
+    }
+
+    @Test
+    public void testAdvance() {
+        int start = 300000000;
+        TimingWheel wheel = new TimingWheel(start);
+        Random random = new Random(0);
+        // value -> void time, spread over all levels
+        Map<Integer, Integer> voidTimes = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            int voidTime = start + 1 + random.nextInt(1 << (4 + random.nextInt(20)));
+            voidTimes.put(i, voidTime);
+            wheel.schedule(digest(i), 0, voidTime);
+        }
+        // already passed
+        wheel.schedule(digest(-1), 0, start - 10);
+        voidTimes.put(-1, start);
+
+        int time = start;
+        int expired = 0;
+        while (expired < voidTimes.size()) {
+            // advance by irregular steps
+            time += 1 + random.nextInt(5000);
+            TimingWheel.Entries entries = wheel.advance(time);
+            for (int i = 0; i < entries.size(); i++) {
+                int value = value(entries, i);
+                int voidTime = voidTimes.get(value);
+                // due, and not before the previous advance
+                assertThat(voidTime).isLessThanOrEqualTo(time);
+                assertThat(entries.getVoidTime(i)).isLessThanOrEqualTo(time);
+            }
+            expired += entries.size();
+            List<Integer> late = new ArrayList<>();
+            for (Map.Entry<Integer, Integer> entry : voidTimes.entrySet()) {
+                if (entry.getValue() <= time) {
+                    late.add(entry.getKey());
+                }
+            }
+            assertThat(late).hasSize(expired);
+        }
+        assertThat(expired).isEqualTo(voidTimes.size());
+    }
+
+}
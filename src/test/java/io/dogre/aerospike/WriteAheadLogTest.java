@@ -0,0 +1,189 @@
+package io.dogre.aerospike;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import io.dogre.aerospike.NamespaceConfig.StorageType;
+import io.dogre.aerospike.NamespaceConfig.SyncPolicy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NamespaceConfig config(SyncPolicy syncPolicy) {
+        NamespaceConfig config = new NamespaceConfig("test");
+        config.setLogDirectory(this.folder.getRoot().toPath());
+        config.setSyncPolicy(syncPolicy);
+        config.setLogSegmentSize(16 * 1024);
+        return config;
+    }
+
+    private static byte[] digest(int i) {
+        return new Key("test", "set", i).digest;
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config(SyncPolicy.EVERY_COMMIT));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // concurrent commits are synced together
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = thread; i < 1000; i += 8) {
+                        engine.put(digest(i), i % 2 == 0 ? "set" : "other",
+                                Collections.singletonMap("bin", Value.get(i)), 0);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            engine.put(digest(0), "set", Collections.singletonMap("bin", Value.get("updated")), 0);
+            engine.put(digest(2), "set", Collections.singletonMap("bin", Value.get(2)), 1);
+            engine.delete(digest(4));
+            engine.truncate("other");
+        } finally {
+            executor.shutdownNow();
+            engine.close();
+        }
+        WriteAheadLog log = new WriteAheadLog(this.folder.getRoot().toPath().resolve("test"), SyncPolicy.NONE,
+                16 * 1024);
+        assertThat(log.getSegments().size()).isGreaterThan(1);
+
+        // records are restored from segments
+        TestClock clock = new TestClock();
+        clock.advance(2);
+        NamespaceConfig config = config(SyncPolicy.INTERVAL);
+        config.setClock(clock);
+        MemoryStorageEngine restored = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            assertThat(restored.getStats().getObjects()).isEqualTo(498);
+            assertThat(restored.get(digest(0)).getBin("bin").toString()).isEqualTo("updated");
+            assertThat(restored.get(digest(0)).getGeneration()).isEqualTo(2);
+            assertThat(restored.get(digest(6)).getBin("bin").toLong()).isEqualTo(6);
+            assertThat(restored.get(digest(6)).getSetName()).isEqualTo("set");
+            assertThat(restored.get(digest(4))).isNull();
+            // expired before restart
+            assertThat(restored.get(digest(2))).isNull();
+
+            restored.put(digest(4), "set", Collections.singletonMap("bin", Value.get(4)), 0);
+        } finally {
+            restored.close();
+        }
+
+        // a torn entry at the end is discarded
+        List<Path> segments = log.getSegments();
+        Files.write(segments.get(segments.size() - 1), new byte[] { 0, 0, 1, 0, 1, 2 }, StandardOpenOption.APPEND);
+        config.setSyncPolicy(SyncPolicy.NONE);
+        restored = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            assertThat(restored.getStats().getObjects()).isEqualTo(499);
+            assertThat(restored.get(digest(4)).getBin("bin").toLong()).isEqualTo(4);
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void testLargeEntry() {
+        // an entry larger than the segment size and the flush size is not a torn entry
+        byte[] large = new byte[WriteAheadLog.FLUSH_SIZE + 1024 * 1024];
+        Arrays.fill(large, (byte) 7);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config(SyncPolicy.INTERVAL));
+        try {
+            engine.put(digest(1), "set", Collections.singletonMap("bin", Value.get(1)), 0);
+            engine.put(digest(2), "set", Collections.singletonMap("bin", Value.get(large)), 0);
+            engine.put(digest(3), "set", Collections.singletonMap("bin", Value.get(3)), 0);
+        } finally {
+            engine.close();
+        }
+        MemoryStorageEngine restored = new MemoryStorageEngine(new RecordStore(), config(SyncPolicy.INTERVAL));
+        try {
+            assertThat(restored.getStats().getObjects()).isEqualTo(3);
+            assertThat((byte[]) restored.get(digest(2)).getBin("bin").getObject()).isEqualTo(large);
+            assertThat(restored.get(digest(3)).getBin("bin").toLong()).isEqualTo(3);
+        } finally {
+            restored.close();
+        }
+
+        // larger than an entry of log
+        StoredRecord record = new StoredRecord(null, new byte[WriteAheadLog.MAX_ENTRY_LENGTH], 1, 1, 0);
+        assertThatThrownBy(() -> WriteAheadLog.checkPut(record)).isInstanceOf(AerospikeException.class)
+                .hasMessageContaining("too big");
+    }
+
+    @Test
+    public void testSnapshotDropsSegments() throws Exception {
+        NamespaceConfig config = config(SyncPolicy.INTERVAL);
+        config.setSnapshotFile(this.folder.getRoot().toPath().resolve("test.snapshot"));
+        WriteAheadLog log = new WriteAheadLog(this.folder.getRoot().toPath().resolve("test"), SyncPolicy.NONE,
+                16 * 1024);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                engine.put(digest(i), "set", Collections.singletonMap("bin", Value.get(i)), 0);
+            }
+            engine.delete(digest(0));
+            assertThat(engine.writeSnapshot(config.getSnapshotFile())).isEqualTo(999);
+            // only the segment started by the snapshot is left
+            assertThat(log.getSegments()).hasSize(1);
+            engine.put(digest(0), "set", Collections.singletonMap("bin", Value.get("after")), 0);
+            engine.delete(digest(1));
+        } finally {
+            engine.close();
+        }
+        MemoryStorageEngine restored = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            assertThat(restored.getStats().getObjects()).isEqualTo(999);
+            assertThat(restored.get(digest(0)).getBin("bin").toString()).isEqualTo("after");
+            assertThat(restored.get(digest(1))).isNull();
+            assertThat(restored.get(digest(999)).getBin("bin").toLong()).isEqualTo(999);
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void testOffHeap() {
+        NamespaceConfig config = config(SyncPolicy.INTERVAL);
+        config.setStorageType(StorageType.OFF_HEAP);
+        config.setMemorySize(64 * 1024 * 1024);
+        MemoryStorageEngine engine = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            for (int i = 0; i < 100; i++) {
+                engine.put(digest(i), "set", Collections.singletonMap("bin", Value.get("value" + i)), 0);
+            }
+        } finally {
+            engine.close();
+        }
+        MemoryStorageEngine restored = new MemoryStorageEngine(new RecordStore(), config);
+        try {
+            assertThat(restored.getStats().getObjects()).isEqualTo(100);
+            assertThat(restored.get(digest(99)).getBin("bin").toString()).isEqualTo("value99");
+        } finally {
+            restored.close();
+        }
+    }
+
+}